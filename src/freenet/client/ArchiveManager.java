@@ -127,6 +127,9 @@ public class ArchiveManager {
 	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
+	/** If true, decompress each archive once into a single bucket and serve files as slices of
+	 * it, rather than copying every file into its own bucket. */
+	private volatile boolean indexedExtraction = true;
 
 	/**
 	 * Create an ArchiveManager.
@@ -154,6 +157,14 @@ public class ArchiveManager {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
+	public void setIndexedExtraction(boolean indexed) {
+		indexedExtraction = indexed;
+	}
+
+	public boolean getIndexedExtraction() {
+		return indexedExtraction;
+	}
+
 	/** Add an ArchiveHandler by key */
 	private synchronized void putCached(FreenetURI key, ArchiveStoreContext zip) {
 		if(logMINOR) Logger.minor(this, "Put cached AH for "+key+" : "+zip);
@@ -224,13 +235,18 @@ public class ArchiveManager {
 		return asi.getReaderBucket();
 	}
 
+	/** Bytes of cached data, as counted against maxCachedData. */
+	synchronized long getCachedData() {
+		return cachedData;
+	}
+
 	/**
 	 * Remove a file from the cache. Called after it has been removed from its
 	 * ArchiveHandler.
 	 * @param item The ArchiveStoreItem to remove.
 	 */
 	synchronized void removeCachedItem(ArchiveStoreItem item) {
-		long size = item.spaceUsed();
+		long size = item.onUncached();
 		storedData.removeKey(item.key);
 		// Hard disk space limit = remove it here.
 		// Soft disk space limit would be to remove it outside the lock.
@@ -349,9 +365,9 @@ public class ArchiveManager {
 			}
 
 			if(ARCHIVE_TYPE.ZIP == archiveType)
-				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
+				handleZIPArchive(ctx, key, is, archiveSize, element, callback, gotElement, throwAtExit, context);
 			else if(ARCHIVE_TYPE.TAR == archiveType)
-				handleTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
+				handleTARArchive(ctx, key, is, archiveSize, element, callback, gotElement, throwAtExit, context);
 		else
 				throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
 			if(wrapper != null) {
@@ -365,9 +381,10 @@ public class ArchiveManager {
 	}
 	}
 
-	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, long archiveSize, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarArchiveInputStream tarIS = null;
+		IndexedArchiveStoreItem.Container index = null;
 		try {
 			tarIS = new TarArchiveInputStream(data);
 
@@ -377,6 +394,9 @@ public class ArchiveManager {
 			byte[] buf = new byte[32768];
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
+			// The archive size is only a hint, the container can grow beyond it.
+			if(indexedExtraction)
+				index = new IndexedArchiveStoreItem.Container(tempBucketFactory.makeBucket(archiveSize));
 
 outerTAR:		while(true) {
 				try {
@@ -397,6 +417,11 @@ outerTAR:		while(true) {
 					gotMetadata = true;
 				if(size > maxArchivedFileSize && !name.equals(element)) {
 					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				} else if(index != null) {
+					if(index.add(name, tarIS, name.equals(element) ? -1 : maxArchivedFileSize, buf))
+						names.add(name);
+					else
+						addErrorElement(ctx, key, name, "File too big: greater than current archived file size limit "+maxArchivedFileSize, true);
 				} else {
 					// Read the element
 					long realLen = 0;
@@ -433,6 +458,11 @@ outerTAR:		while(true) {
 				}
 			}
 
+			if(index != null) {
+				addIndexedElements(ctx, key, index, gotElement, element, callback, context);
+				index = null;
+			}
+
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
@@ -446,13 +476,15 @@ outerTAR:		while(true) {
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(index != null) index.abort();
 			Closer.close(tarIS);
 		}
 	}
 
-	private void handleZIPArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	private void handleZIPArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, long archiveSize, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a ZIP Archive");
 		ZipInputStream zis = null;
+		IndexedArchiveStoreItem.Container index = null;
 		try {
 			zis = new ZipInputStream(data);
 
@@ -462,6 +494,9 @@ outerTAR:		while(true) {
 			byte[] buf = new byte[32768];
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
+			// The archive size is only a hint, the container can grow beyond it.
+			if(indexedExtraction)
+				index = new IndexedArchiveStoreItem.Container(tempBucketFactory.makeBucket(archiveSize));
 
 outerZIP:		while(true) {
 				entry = zis.getNextEntry();
@@ -477,6 +512,11 @@ outerZIP:		while(true) {
 					gotMetadata = true;
 				if(size > maxArchivedFileSize && !name.equals(element)) {
 					addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				} else if(index != null) {
+					if(index.add(name, zis, name.equals(element) ? -1 : maxArchivedFileSize, buf))
+						names.add(name);
+					else
+						addErrorElement(ctx, key, name, "File too big: greater than current archived file size limit "+maxArchivedFileSize, true);
 				} else {
 					// Read the element
 					long realLen = 0;
@@ -513,6 +553,11 @@ outerZIP:		while(true) {
 				}
 			}
 
+			if(index != null) {
+				addIndexedElements(ctx, key, index, gotElement, element, callback, context);
+				index = null;
+			}
+
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
@@ -526,6 +571,7 @@ outerZIP:		while(true) {
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(index != null) index.abort();
 			if(zis != null) {
 				try {
 					zis.close();
@@ -641,8 +687,8 @@ outerZIP:		while(true) {
 			oldItem = storedData.get(element.key);
 			storedData.push(element.key, element);
 			if(oldItem != null) {
+				cachedData -= oldItem.onUncached();
 				oldItem.close();
-				cachedData -= oldItem.spaceUsed();
 				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
 			}
 		}
@@ -660,9 +706,12 @@ outerZIP:		while(true) {
 	 * callback != null.
 	 */
 	private ArchiveStoreItem addStoreElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket temp, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
-		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
+		return addStoreItem(new RealArchiveStoreItem(ctx, key, name, temp), name, gotElement, callbackName, callback, context);
+	}
+
+	private ArchiveStoreItem addStoreItem(ArchiveStoreItem element, String name, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
 		element.addToContext();
-		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
+		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+element.key+" size "+element.spaceUsed()+" )");
 		ArchiveStoreItem oldItem;
 		// Let it throw, if it does something is drastically wrong
 		Bucket matchBucket = null;
@@ -672,9 +721,9 @@ outerZIP:		while(true) {
 		synchronized (this) {
 			oldItem = storedData.get(element.key);
 			storedData.push(element.key, element);
-			cachedData += element.spaceUsed();
+			cachedData += element.onCached();
 			if(oldItem != null) {
-				cachedData -= oldItem.spaceUsed();
+				cachedData -= oldItem.onUncached();
 				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
 				oldItem.close();
 			}
@@ -686,6 +735,35 @@ outerZIP:		while(true) {
 		return element;
 	}
 
+	/**
+	 * Add the files in an indexed container to the cache, once it has been written.
+	 * @param container Freed here, or when the last of its items is dropped from the cache.
+	 */
+	private void addIndexedElements(ArchiveStoreContext ctx, FreenetURI key, IndexedArchiveStoreItem.Container container, MutableBoolean gotElement, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, IOException {
+		Bucket ref = container.finish();
+		try {
+			if(logMINOR) Logger.minor(this, "Indexed "+container.size()+" files, "+container.written()+" bytes for "+key);
+			for(int i = 0; i < container.size(); i++) {
+				String name = container.name(i);
+				long length = container.length(i);
+				IndexedArchiveStoreItem item = new IndexedArchiveStoreItem(ctx, key, name, container, container.offset(i), length);
+				if(length <= maxArchivedFileSize) {
+					addStoreItem(item, name, gotElement, element, callback, context);
+				} else {
+					// We are here because they asked for this file.
+					Bucket data = item.getReaderBucket();
+					item.innerClose();
+					callback.gotBucket(data, context);
+					gotElement.value = true;
+					addErrorElement(ctx, key, name, "File too big: "+length+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				}
+			}
+			trimStoredData();
+		} finally {
+			ref.free();
+		}
+	}
+
 	/**
 	 * Drop any stored data beyond the limit.
 	 * Call synchronized on storedData.
@@ -701,7 +779,7 @@ outerZIP:		while(true) {
 					return;
 				}
 				item = storedData.popValue();
-				long space = item.spaceUsed();
+				long space = item.onUncached();
 				cachedData -= space;
 				// Hard limits = delete file within lock, soft limits = delete outside of lock
 				// Here we use a hard limit
@@ -45,6 +45,23 @@ abstract class ArchiveStoreItem {
 	 * locks so should not take any nontrivial locks or take long.
 	 */
 	abstract long spaceUsed();
+
+	/**
+	 * Called by the ArchiveManager, with it locked, when the item is added to the cache.
+	 * @return The cache space this adds.
+	 */
+	long onCached() {
+		return spaceUsed();
+	}
+
+	/**
+	 * Called by the ArchiveManager, with it locked, when the item is dropped from the cache,
+	 * just before closing it.
+	 * @return The cache space this frees.
+	 */
+	long onUncached() {
+		return spaceUsed();
+	}
 	
 	/**
 	 * Get the data as a Bucket, and guarantee that it won't be freed until the
@@ -1,7 +1,10 @@
 package freenet.client;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 import freenet.client.InsertContext.CompatibilityMode;
 import freenet.client.Metadata.SplitfileAlgorithm;
+import freenet.support.metrics.Histogram;
 
 /** Simple in-memory-only API for FEC encoding/decoding. Does not queue or throttle; see 
  * MemoryLimitedJobRunner for how to deal with that. Caches and creates individual codec engines
@@ -11,6 +14,10 @@ public abstract class FECCodec {
     public static final long MIN_MEMORY_ALLOCATION = 8*1024*1024+256*1024;
     public static final int MAX_TOTAL_BLOCKS_PER_SEGMENT = 256;
     
+    /** Time taken by FEC decodes and encodes in milliseconds, for every codec in this JVM. */
+    public static final Histogram DECODE_TIME = new Histogram(0.001, MINUTES.toMillis(1));
+    public static final Histogram ENCODE_TIME = new Histogram(0.001, MINUTES.toMillis(1));
+    
     /** Maximum memory usage with the given number of data blocks and check blocks, not including 
      * the blocks themselves. */
     public abstract long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks);
@@ -0,0 +1,315 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.Closer;
+import freenet.support.io.MultiReaderBucket;
+import freenet.support.io.RAFBucket;
+
+/**
+ * A file in an archive which was extracted in indexed mode: the whole archive is decompressed
+ * once into a single bucket, and each file is a slice of it, read on demand. The container is
+ * freed when the last item and the last bucket returned by getReaderBucket() are freed.
+ *
+ * Because any one item keeps the whole container alive, the whole container is counted against
+ * the cache while any of its items are cached: onCached() charges it for the first and
+ * onUncached() refunds it for the last. Both are called with the ArchiveManager locked, so
+ * the count of cached items can't change between an item being charged and being added.
+ */
+class IndexedArchiveStoreItem extends ArchiveStoreItem {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(IndexedArchiveStoreItem.class);
+	}
+
+	private final Container container;
+	private final LockableRandomAccessBuffer data;
+	/** Keeps the container alive until we are closed. */
+	private final Bucket reader;
+	private final long offset;
+	private final long length;
+	private boolean closed;
+	/** True between onCached() and onUncached(). Only used with the ArchiveManager locked. */
+	private boolean cached;
+
+	IndexedArchiveStoreItem(ArchiveStoreContext ctx, FreenetURI key, String name, Container container, long offset, long length) throws ArchiveFailureException {
+		super(new ArchiveKey(key, name), ctx);
+		this.container = container;
+		this.data = container.data;
+		this.offset = offset;
+		this.length = length;
+		reader = container.shared.getReaderBucket();
+		if(reader == null) throw new ArchiveFailureException("Archive container already freed");
+	}
+
+	/** Only the slice. What the cache is charged is decided by onCached() and onUncached(). */
+	@Override
+	long spaceUsed() {
+		return length;
+	}
+
+	@Override
+	long onCached() {
+		cached = true;
+		return container.addHolder();
+	}
+
+	@Override
+	long onUncached() {
+		if(!cached) return 0;
+		cached = false;
+		return container.removeHolder();
+	}
+
+	@Override
+	void innerClose() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		if(logMINOR) Logger.minor(this, "innerClose(): "+this);
+		reader.free();
+	}
+
+	@Override
+	Bucket getDataOrThrow() throws ArchiveFailureException {
+		return getReaderBucket();
+	}
+
+	@Override
+	Bucket getReaderBucket() throws ArchiveFailureException {
+		Bucket r = container.shared.getReaderBucket();
+		if(r == null) throw new ArchiveFailureException("Archive container already freed");
+		return new SliceBucket(r);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+key+":"+offset+"+"+length;
+	}
+
+	/** Read-only view of one file in the container. */
+	private class SliceBucket implements Bucket {
+
+		private final Bucket reader;
+		private boolean freed;
+
+		SliceBucket(Bucket reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new BufferedInputStream(getInputStreamUnbuffered());
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			synchronized(this) {
+				if(freed) throw new IOException("Already freed");
+			}
+			return new SliceInputStream();
+		}
+
+		@Override
+		public String getName() {
+			return "Archive slice: "+key;
+		}
+
+		@Override
+		public long size() {
+			return length;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(freed) return;
+				freed = true;
+			}
+			reader.free();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		@Override
+		public void storeTo(DataOutputStream dos) {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		private class SliceInputStream extends InputStream {
+
+			private long pos;
+			private final byte[] oneByte = new byte[1];
+
+			@Override
+			public int read() throws IOException {
+				if(read(oneByte, 0, 1) < 0) return -1;
+				return oneByte[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				synchronized(SliceBucket.this) {
+					if(freed) throw new IOException("Already freed");
+				}
+				if(pos >= length) return -1;
+				len = (int) Math.min(len, length - pos);
+				data.pread(offset + pos, buf, off, len);
+				pos += len;
+				return len;
+			}
+
+			@Override
+			public long skip(long n) {
+				if(n <= 0) return 0;
+				n = Math.min(n, length - pos);
+				pos += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, length - pos);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Builds the container and its index: files are appended as they are decompressed, then it
+	 * is turned into a random access buffer shared by all the items.
+	 */
+	static class Container {
+
+		private final RandomAccessBucket bucket;
+		private OutputStream os;
+		private long written;
+		private LockableRandomAccessBuffer data;
+		private MultiReaderBucket shared;
+		private final ArrayList<String> names = new ArrayList<String>();
+		private final ArrayList<long[]> slices = new ArrayList<long[]>();
+		/** Number of items in the cache. */
+		private int holders;
+
+		Container(RandomAccessBucket bucket) throws IOException {
+			this.bucket = bucket;
+			os = bucket.getOutputStream();
+		}
+
+		/**
+		 * Append a file.
+		 * @param maxLength The maximum length of the file, or -1.
+		 * @return False if it was longer than maxLength. The bytes already written are then
+		 * wasted, but we only get here if the archive lied about the size.
+		 */
+		boolean add(String name, InputStream is, long maxLength, byte[] buf) throws IOException {
+			long offset = written;
+			long length = 0;
+			int read;
+			while((read = is.read(buf)) > 0) {
+				os.write(buf, 0, read);
+				length += read;
+				written += read;
+				if(maxLength >= 0 && length > maxLength) return false;
+			}
+			names.add(name);
+			slices.add(new long[] { offset, length });
+			return true;
+		}
+
+		int size() {
+			return names.size();
+		}
+
+		String name(int i) {
+			return names.get(i);
+		}
+
+		long offset(int i) {
+			return slices.get(i)[0];
+		}
+
+		long length(int i) {
+			return slices.get(i)[1];
+		}
+
+		/** Bytes written to the container so far. */
+		long written() {
+			return written;
+		}
+
+		/** @return The space the container adds to the cache: all of it for the first item. */
+		synchronized long addHolder() {
+			return ++holders == 1 ? written : 0;
+		}
+
+		/** @return The space the container frees from the cache: all of it for the last item. */
+		synchronized long removeHolder() {
+			return --holders == 0 ? written : 0;
+		}
+
+		/** Finish writing. Until it is freed, the caller holds the returned reference. */
+		Bucket finish() throws IOException {
+			os.close();
+			os = null;
+			data = bucket.toRandomAccessBuffer();
+			shared = new MultiReaderBucket(new RAFBucket(data));
+			return shared.getReaderBucket();
+		}
+
+		/** Free the container if something went wrong before finish(). */
+		void abort() {
+			if(data != null) return;
+			Closer.close(os);
+			bucket.free();
+		}
+
+	}
+
+}
@@ -6,7 +6,8 @@ import com.onionnetworks.fec.PureCode;
 import com.onionnetworks.util.Buffer;
 
 import freenet.client.InsertContext.CompatibilityMode;
-import freenet.support.LRUMap;
+import freenet.support.CacheMap;
+import freenet.support.CacheMaps;
 
 public class OnionFECCodec extends FECCodec {
 
@@ -39,37 +40,34 @@ public class OnionFECCodec extends FECCodec {
         }
         
         // Now do the decode.
+        long start = System.currentTimeMillis();
         codec.decode(buffers, blockNumbers);
+        DECODE_TIME.record(System.currentTimeMillis() - start);
         // The data blocks are now decoded and in the correct locations.
     }
 
     /** Cache of PureCode by {k,n}. The memory usage is relatively small so we account for it in 
-     * the FEC jobs, see maxMemoryOverheadDecode() etc. */
-    private synchronized static PureCode getCodec(int k, int n) {
+     * the FEC jobs, see maxMemoryOverheadDecode() etc. Not synchronized: if two threads want 
+     * the same codec at once, both may create it, which is harmless. */
+    private static PureCode getCodec(int k, int n) {
         CodecKey key = new CodecKey(k, n);
-        SoftReference<PureCode> codeRef;
-        while((codeRef = recentlyUsedCodecs.peekValue()) != null) {
-            // Remove oldest codecs if they have been GC'ed.
-            if(codeRef.get() == null) {
-                recentlyUsedCodecs.popKey();
-            } else {
-                break;
-            }
-        }
-        codeRef = recentlyUsedCodecs.get(key);
+        SoftReference<PureCode> codeRef = recentlyUsedCodecs.get(key);
         if(codeRef != null) {
             PureCode code = codeRef.get();
-            if(code != null) {
-                recentlyUsedCodecs.push(key, codeRef);
+            if(code != null)
                 return code;
-            }
         }
         PureCode code = new PureCode(k, n);
-        recentlyUsedCodecs.push(key, new SoftReference<PureCode>(code));
+        recentlyUsedCodecs.put(key, new SoftReference<PureCode>(code));
         return code;
     }
     
-    private static final LRUMap<CodecKey, SoftReference<PureCode>> recentlyUsedCodecs = LRUMap.createSafeMap();
+    /** Codecs which have been GC'ed are replaced when they are next used, and the number of 
+     * distinct {k,n} in use is small, so a fixed limit is enough to stop this growing. */
+    private static final int MAX_CACHED_CODECS = 256;
+    
+    private static final CacheMap<CodecKey, SoftReference<PureCode>> recentlyUsedCodecs = 
+        CacheMaps.create(MAX_CACHED_CODECS, null);
 
     private static class CodecKey implements Comparable<CodecKey> {
         /** Number of input blocks */
@@ -136,7 +134,9 @@ public class OnionFECCodec extends FECCodec {
             check[x] = new Buffer(checkBlocks[i]);
             toEncode[x++] = i+dataBlocks.length;
         }
+        long start = System.currentTimeMillis();
         codec.encode(data, check, toEncode);
+        ENCODE_TIME.record(System.currentTimeMillis() - start);
     }
 
     @Override
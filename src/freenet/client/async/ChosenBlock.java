@@ -6,6 +6,7 @@ import freenet.node.LowLevelGetException;
 import freenet.node.LowLevelPutException;
 import freenet.node.NodeClientCore;
 import freenet.node.RequestScheduler;
+import freenet.node.RequestTrace;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
 
@@ -29,6 +30,10 @@ public abstract class ChosenBlock {
 	public transient final boolean canWriteClientCache;
 	public transient final boolean forkOnCacheable;
 	public transient final boolean realTimeFlag;
+	/** When the request started waiting for this block to be chosen, by System.nanoTime(), or 0. */
+	public transient long waitingSince;
+	/** Set by the RequestStarter if this fetch is being traced. */
+	public transient RequestTrace trace;
 	
 	public ChosenBlock(SendableRequestItem token, Key key, ClientKey ckey, boolean localRequestOnly, boolean ignoreStore, boolean canWriteClientCache, boolean forkOnCacheable, boolean realTimeFlag, RequestScheduler sched) {
 		this.token = token;
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import java.util.List;
+
 import freenet.client.FetchException;
 import freenet.crypt.RandomSource;
 import freenet.keys.Key;
@@ -231,12 +233,21 @@ public class ClientRequestScheduler implements RequestScheduler {
 	 */
 	@Override
 	public ChosenBlock grabRequest() {
+	    return selector.chooseRequest(getFuzz(), random, offeredKeys, starter, isRTScheduler, clientContext);
+	}
+	
+	@Override
+	public List<ChosenBlock> grabRequests(int max) {
+	    return selector.chooseRequests(max, getFuzz(), random, offeredKeys, starter, isRTScheduler, clientContext);
+	}
+	
+	private short getFuzz() {
 	    short fuzz = -1;
 	    if(PRIORITY_SOFT.equals(choosenPriorityScheduler))
 	        fuzz = -1;
 	    else if(PRIORITY_HARD.equals(choosenPriorityScheduler))
 	        fuzz = 0;
-	    return selector.chooseRequest(fuzz, random, offeredKeys, starter, isRTScheduler, clientContext);
+	    return fuzz;
 	}
 	
 	/**
@@ -2,10 +2,12 @@ package freenet.client.async;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 import freenet.client.FetchContext;
 import freenet.crypt.RandomSource;
@@ -225,6 +227,27 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 		return null;
 	}
 	
+	/** Choose up to max requests to run, for RequestStarter's batched mode. Each block is marked
+	 * as running as soon as it is chosen, as RequestStarter does when it starts a request, so 
+	 * that we don't choose it again for the same batch. */
+	List<ChosenBlock> chooseRequests(int max, int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context) {
+		List<ChosenBlock> ret = new ArrayList<ChosenBlock>(max);
+		for(int i=0;i<max;i++) {
+			ChosenBlock block = chooseRequest(fuzz, random, offeredKeys, starter, realTime, context);
+			if(block == null) break;
+			boolean added = true;
+			if(block.key != null)
+				added = addToFetching(block.key);
+			else if(((ChosenBlockImpl)block).request instanceof SendableInsert)
+				added = addRunningInsert(block.token.getKey());
+			if(added)
+				ret.add(block);
+			else
+				block.onDumped();
+		}
+		return ret;
+	}
+	
 	public ChosenBlock maybeMakeChosenRequest(SendableRequest req, ClientContext context, long now) {
 		if(req == null) return null;
 		if(req.isCancelled()) {
@@ -286,6 +309,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 				ignoreStore = false;
 			}
 			ret = new ChosenBlockImpl(req, token, key, ckey, localRequestOnly, ignoreStore, canWriteClientCache, forkOnCacheable, realTimeFlag, sched, req.persistent());
+			ret.waitingSince = req.onChosen(System.nanoTime());
 			if(logMINOR) Logger.minor(this, "Created "+ret+" for "+req);
 			return ret;
 		}
@@ -739,6 +763,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             throw new IllegalArgumentException("Request isInsert="+req.isInsert()+" but my isInsertScheduler="+isInsertScheduler+"!!");
         short prio = req.getPriorityClass();
         if(logMINOR) Logger.minor(this, "Still registering "+req+" at prio "+prio+" for "+req.getClientRequest()+" ssk="+this.isSSKScheduler+" insert="+this.isInsertScheduler);
+        req.onRegistered(System.nanoTime());
         addToGrabArray(prio, req.getClient(), req.getSchedulerGroup(), req, context);
         if(logMINOR) Logger.minor(this, "Registered "+req+" on prioclass="+prio);
     }
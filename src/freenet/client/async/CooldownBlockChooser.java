@@ -11,6 +11,8 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
         this.cooldownTries = cooldownTries;
         this.cooldownTime = cooldownTime;
         blockCooldownTimes = new long[blocks];
+        cooldownNext = new int[blocks];
+        cooldownPrev = new int[blocks];
     }
 
     /** Every cooldownTries attempts, a key will enter cooldown, and won't be re-tried for a period. */
@@ -23,32 +25,59 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
     private long overallCooldownTime;
     /** Time at which each block becomes fetchable again. 0 means it is fetchable now. */
     private long[] blockCooldownTimes;
-    /** Current time, updated at the beginning of chooseKey(). */
-    private long now;
+    /** Blocks in cooldown, as a linked list in the order they will become fetchable. Since the 
+     * cooldown time is always the same, this is the order they went into cooldown. Blocks in
+     * cooldown are kept out of the parent's buckets, so chooseKey() doesn't need to check them. */
+    private final int[] cooldownNext;
+    private final int[] cooldownPrev;
+    private int cooldownHead = -1;
+    private int cooldownTail = -1;
     
     @Override
     public synchronized int chooseKey() {
-        now = System.currentTimeMillis();
+        long now = System.currentTimeMillis();
+        while(cooldownHead != -1 && now > blockCooldownTimes[cooldownHead]) {
+            int blockNo = cooldownHead;
+            removeCooldown(blockNo);
+            setWaiting(blockNo, false);
+        }
         if(overallCooldownTime > now) return -1;
-        overallCooldownTime = Long.MAX_VALUE; // Will find the earliest wake-up.
         int ret = super.chooseKey();
         if(ret != -1) 
-            overallCooldownTime = 0; // Fetchable now, else waiting for cooldown.
+            overallCooldownTime = 0; // Fetchable now.
+        else // Waiting for cooldown, or for something to change.
+            overallCooldownTime = cooldownHead == -1 ? Long.MAX_VALUE : blockCooldownTimes[cooldownHead];
         return ret;
     }
     
-    @Override
-    protected boolean checkValid(int blockNo) {
-        if(!super.checkValid(blockNo)) return false;
-        long wakeUp = blockCooldownTimes[blockNo];
-        if(now > wakeUp) {
-            blockCooldownTimes[blockNo] = 0;
-            return true;
-        } else {
-            // Update the overall cooldown wakeup time.
-            overallCooldownTime = Math.min(overallCooldownTime, wakeUp);
-            return false;
-        }
+    private void addCooldown(int blockNo, long wakeUp) {
+        removeCooldown(blockNo);
+        // Keep the list in order even if the clock goes backwards.
+        if(cooldownTail != -1)
+            wakeUp = Math.max(wakeUp, blockCooldownTimes[cooldownTail]);
+        blockCooldownTimes[blockNo] = wakeUp;
+        cooldownPrev[blockNo] = cooldownTail;
+        cooldownNext[blockNo] = -1;
+        if(cooldownTail == -1)
+            cooldownHead = blockNo;
+        else
+            cooldownNext[cooldownTail] = blockNo;
+        cooldownTail = blockNo;
+    }
+    
+    private void removeCooldown(int blockNo) {
+        if(blockCooldownTimes[blockNo] == 0) return;
+        int prev = cooldownPrev[blockNo];
+        int next = cooldownNext[blockNo];
+        if(prev == -1)
+            cooldownHead = next;
+        else
+            cooldownNext[prev] = next;
+        if(next == -1)
+            cooldownTail = prev;
+        else
+            cooldownPrev[next] = prev;
+        blockCooldownTimes[blockNo] = 0;
     }
     
     @Override
@@ -56,11 +85,13 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
         int ret = super.innerOnNonFatalFailure(blockNo);
         if(ret > maxRetries && maxRetries != -1) return ret;
         if(ret % cooldownTries == 0) {
-            blockCooldownTimes[blockNo] = System.currentTimeMillis() + cooldownTime;
+            addCooldown(blockNo, System.currentTimeMillis() + cooldownTime);
+            setWaiting(blockNo, true);
             overallCooldownTime = Math.min(blockCooldownTimes[blockNo], overallCooldownTime); // Must not be left at infinite!
         } else {
             // Fetchable.
-            blockCooldownTimes[blockNo] = 0;
+            removeCooldown(blockNo);
+            setWaiting(blockNo, false);
             overallCooldownTime = 0;
         }
         return ret;
@@ -73,7 +104,8 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
     
     @Override
     public synchronized void onUnSuccess(int blockNo) {
-        blockCooldownTimes[blockNo] = 0;
+        removeCooldown(blockNo);
+        setWaiting(blockNo, false);
         clearCooldown();
     }
     
@@ -4,12 +4,16 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import freenet.support.math.MersenneTwister;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.node.LowLevelGetException;
 import freenet.node.Node;
@@ -40,6 +44,14 @@ public class DatastoreChecker implements PrioRunnable {
 	static final int KILL_BLOCKS = 0;
 	static final int RESET_COUNTER = 100;
 	
+	/** Checking a burst of SSKs, e.g. when polling USKs, is dominated by verifying the 
+	 * signatures of the blocks we find, so we fetch them on this many threads. */
+	private static final int SSK_FETCH_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+	/** CHKs are checked in batches, reading each store in the order the blocks are stored on 
+	 * disk. A big batch is split into this many parts, checked in parallel, to keep several 
+	 * reads in flight. */
+	private static final int CHK_FETCH_THREADS = 4;
+	
 	private static volatile boolean logMINOR;
 
 	static {
@@ -182,7 +194,9 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 		sched = getter.getScheduler(context);
 		boolean anyValid = false;
-		for(Key key : keys) {
+		KeyBlock[] found = blocks == null ? fetchAll(keys) : null;
+		for(int i=0;i<keys.length;i++) {
+			Key key = keys[i];
 			if(random != null) {
 				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
 					anyValid = true;
@@ -193,7 +207,7 @@ public class DatastoreChecker implements PrioRunnable {
 			if(blocks != null)
 				block = blocks.get(key);
 			else
-				block = node.fetch(key, true, true, false, false, null);
+				block = found[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
@@ -245,6 +259,84 @@ public class DatastoreChecker implements PrioRunnable {
 		return false;
 	}
 
+	/** Fetch the keys from the datastore: CHKs in batches, SSKs one at a time. If there are 
+	 * several, they are split into parts which are fetched in parallel on the node's executor,
+	 * the first on this thread. */
+	private KeyBlock[] fetchAll(Key[] keys) {
+		KeyBlock[] found = new KeyBlock[keys.length];
+		boolean[] fetched = new boolean[keys.length];
+		List<Integer> chks = new ArrayList<Integer>();
+		List<Integer> others = new ArrayList<Integer>();
+		for(int i=0;i<keys.length;i++) {
+			if(keys[i] instanceof NodeCHK)
+				chks.add(i);
+			else
+				others.add(i);
+		}
+		List<FutureTask<Void>> parts = new ArrayList<FutureTask<Void>>();
+		addParts(parts, keys, chks, CHK_FETCH_THREADS, found, fetched);
+		addParts(parts, keys, others, SSK_FETCH_THREADS, found, fetched);
+		for(int i=1;i<parts.size();i++)
+			executor.execute(parts.get(i), "Datastore checker fetch");
+		if(!parts.isEmpty())
+			parts.get(0).run();
+		try {
+			for(FutureTask<Void> part : parts) {
+				try {
+					part.get();
+				} catch (ExecutionException e) {
+					Logger.error(this, "Fetching from the datastore failed: "+e.getCause(), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			// Fetch the rest here.
+			for(FutureTask<Void> part : parts)
+				part.cancel(false);
+		}
+		for(int i=0;i<keys.length;i++) {
+			synchronized(fetched) {
+				if(fetched[i]) continue;
+			}
+			found[i] = node.fetch(keys[i], true, true, false, false, null);
+		}
+		return found;
+	}
+
+	/** Split the keys with the given indexes into up to maxParts parts to fetch. */
+	private void addParts(List<FutureTask<Void>> parts, final Key[] keys, List<Integer> indexes, int maxParts, final KeyBlock[] found, final boolean[] fetched) {
+		int count = Math.min(maxParts, indexes.size());
+		for(int i=0;i<count;i++) {
+			final List<Integer> part = indexes.subList(indexes.size() * i / count, indexes.size() * (i + 1) / count);
+			parts.add(new FutureTask<Void>(new Runnable() {
+
+				@Override
+				public void run() {
+					fetchPart(keys, part, found, fetched);
+				}
+
+			}, null));
+		}
+	}
+
+	private void fetchPart(Key[] keys, List<Integer> indexes, KeyBlock[] found, boolean[] fetched) {
+		KeyBlock[] blocks = new KeyBlock[indexes.size()];
+		if(indexes.size() > 1 && keys[indexes.get(0)] instanceof NodeCHK) {
+			NodeCHK[] chks = new NodeCHK[indexes.size()];
+			for(int i=0;i<chks.length;i++)
+				chks[i] = (NodeCHK) keys[indexes.get(i)];
+			blocks = node.fetch(chks, false, true, true, false, false);
+		} else {
+			for(int i=0;i<blocks.length;i++)
+				blocks[i] = node.fetch(keys[indexes.get(i)], true, true, false, false, null);
+		}
+		synchronized(fetched) {
+			for(int i=0;i<blocks.length;i++) {
+				found[indexes.get(i)] = blocks[i];
+				fetched[indexes.get(i)] = true;
+			}
+		}
+	}
+
 	synchronized void wakeUp() {
 	    if(lazy) {
 	        if(!running) {
@@ -11,6 +11,12 @@ import freenet.support.io.StorageFormatException;
 
 /** Tracks which blocks have been completed, how many attempts have been made for which blocks,
  * allows choosing a random block, failing a block etc.
+ * 
+ * Blocks which could be chosen are kept in buckets by retry count, in order, each with a bitmap
+ * of its blocks, so chooseKey() doesn't need to look at every block: It picks a random block
+ * from the least retried bucket, and only if checkValid() rejects it does it pick again, or move
+ * on to the next bucket. Blocks which have failed too many times, have succeeded, or are 
+ * waiting (e.g. for cooldown) are not in any bucket.
  * @author toad
  */
 public class SimpleBlockChooser {
@@ -27,6 +33,29 @@ public class SimpleBlockChooser {
     private final int[] retries;
     protected final int maxRetries;
     private final Random random;
+    /** Blocks which are temporarily not to be chosen, see setWaiting(). */
+    private final boolean[] waiting;
+    /** The bucket each block is in, or null. */
+    private final RetryBucket[] bucketOf;
+    /** The bucket with the fewest retries. The buckets are a linked list in order of retries. */
+    private RetryBucket lowest;
+    /** An empty bucket to reuse. */
+    private RetryBucket spare;
+    /** Copy of a bucket's bitmap, used by chooseKey(). */
+    private final long[] candidates;
+    
+    /** The blocks which could be chosen with a given number of retries. */
+    private static final class RetryBucket {
+        int retries;
+        final long[] bits;
+        int count;
+        RetryBucket prev;
+        RetryBucket next;
+        
+        RetryBucket(int words) {
+            bits = new long[words];
+        }
+    }
     
     public SimpleBlockChooser(int blocks, Random random, int maxRetries) {
         this.maxRetries = maxRetries;
@@ -34,32 +63,132 @@ public class SimpleBlockChooser {
         this.random = random;
         this.completed = new boolean[blocks];
         this.retries = new int[blocks];
+        this.waiting = new boolean[blocks];
+        this.bucketOf = new RetryBucket[blocks];
+        this.candidates = new long[(blocks + 63) / 64];
+        rebuildBuckets();
     }
     
     /** Choose a key to fetch, taking into account retries */
     public synchronized int chooseKey() {
         int max = getMaxBlockNumber();
-        int[] candidates = new int[max];
+        for(RetryBucket bucket = lowest; bucket != null; bucket = bucket.next) {
+            int chosen = chooseKey(bucket, max);
+            if(chosen != -1) return chosen;
+        }
+        return -1;
+    }
+    
+    /** Choose a random valid block below max from the bucket, or -1. */
+    private int chooseKey(RetryBucket bucket, int max) {
+        int words = (max + 63) / 64;
         int count = 0;
-        int minRetryCount = Integer.MAX_VALUE;
-        for(int i=0;i<max;i++) {
-            int retry = retries[i];
-            if(retry > maxRetries && maxRetries != -1) continue;
-            if(retry > minRetryCount) continue;
-            if(!checkValid(i)) continue;
-            if(retry < minRetryCount) {
-                count = 0;
-                candidates[count++] = i;
-                minRetryCount = retry;
-            } else if(retry == minRetryCount) {
-                candidates[count++] = i;
-            } // else continue;
+        for(int i=0;i<words;i++) {
+            long word = bucket.bits[i];
+            if(i == words - 1 && (max & 63) != 0)
+                word &= (1L << (max & 63)) - 1;
+            candidates[i] = word;
+            count += Long.bitCount(word);
+        }
+        while(count > 0) {
+            int chosen = nthBlock(random.nextInt(count), words);
+            if(checkValid(chosen)) return chosen;
+            candidates[chosen >> 6] &= ~(1L << (chosen & 63));
+            count--;
+        }
+        return -1;
+    }
+    
+    /** @return The block number of the n'th block in candidates. */
+    private int nthBlock(int n, int words) {
+        for(int i=0;i<words;i++) {
+            long word = candidates[i];
+            int count = Long.bitCount(word);
+            if(n < count) {
+                for(int j=0;j<n;j++)
+                    word &= word - 1;
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+            n -= count;
+        }
+        throw new IllegalStateException();
+    }
+    
+    private boolean shouldBeInBucket(int blockNo) {
+        if(completed[blockNo] || waiting[blockNo]) return false;
+        return maxRetries == -1 || retries[blockNo] <= maxRetries;
+    }
+    
+    /** Move the block to the right bucket, or none, after its state has changed. */
+    private void updateBucket(int blockNo) {
+        RetryBucket old = bucketOf[blockNo];
+        RetryBucket target = null;
+        if(shouldBeInBucket(blockNo)) {
+            if(old != null && old.retries == retries[blockNo]) return;
+            target = findBucket(retries[blockNo], old);
         }
-        if(count == 0) {
-            return -1;
-        } else {
-            return candidates[random.nextInt(count)];
+        if(old != null) {
+            old.bits[blockNo >> 6] &= ~(1L << (blockNo & 63));
+            bucketOf[blockNo] = null;
+            if(--old.count == 0) removeBucket(old);
         }
+        if(target != null) {
+            target.bits[blockNo >> 6] |= 1L << (blockNo & 63);
+            target.count++;
+            bucketOf[blockNo] = target;
+        }
+    }
+    
+    /** Find or create the bucket for the given number of retries.
+     * @param hint A bucket to start looking from, normally the one for the previous retry count. */
+    private RetryBucket findBucket(int retryCount, RetryBucket hint) {
+        RetryBucket bucket = (hint != null && hint.retries <= retryCount) ? hint : lowest;
+        RetryBucket prev = bucket == null ? null : bucket.prev;
+        while(bucket != null && bucket.retries < retryCount) {
+            prev = bucket;
+            bucket = bucket.next;
+        }
+        if(bucket != null && bucket.retries == retryCount) return bucket;
+        RetryBucket created = spare;
+        if(created != null)
+            spare = null;
+        else
+            created = new RetryBucket(candidates.length);
+        created.retries = retryCount;
+        created.prev = prev;
+        created.next = bucket;
+        if(prev == null)
+            lowest = created;
+        else
+            prev.next = created;
+        if(bucket != null) bucket.prev = created;
+        return created;
+    }
+    
+    private void removeBucket(RetryBucket bucket) {
+        if(bucket.prev == null)
+            lowest = bucket.next;
+        else
+            bucket.prev.next = bucket.next;
+        if(bucket.next != null) bucket.next.prev = bucket.prev;
+        bucket.prev = null;
+        bucket.next = null;
+        spare = bucket;
+    }
+    
+    /** Put every block in the right bucket, e.g. after reading the retry counts. */
+    private void rebuildBuckets() {
+        for(int i=0;i<blocks;i++)
+            updateBucket(i);
+    }
+    
+    /** Temporarily stop a block from being chosen, or allow it to be chosen again. Used by 
+     * subclasses for state which changes rarely, e.g. cooldown, so it doesn't need checking in
+     * checkValid(). */
+    protected final synchronized void setWaiting(int blockNo, boolean wait) {
+        if(waiting[blockNo] == wait) return;
+        waiting[blockNo] = wait;
+        updateBucket(blockNo);
     }
 
     public boolean onNonFatalFailure(int blockNo) {
@@ -76,7 +205,9 @@ public class SimpleBlockChooser {
      * fail after a single terminal failure, others after some number of failures (e.g. getter), so
      * we leave this to the caller. */
     protected synchronized int innerOnNonFatalFailure(int blockNo) {
-        return ++retries[blockNo];
+        int ret = ++retries[blockNo];
+        updateBucket(blockNo);
+        return ret;
     }
     
     /** Notify when a block has succeeded. */
@@ -85,6 +216,7 @@ public class SimpleBlockChooser {
             if(completed[blockNo]) return false;
             completed[blockNo] = true;
             completedCount++;
+            updateBucket(blockNo);
             if(completedCount < blocks) {
                 if(logMINOR) Logger.minor(this, "Completed blocks: "+completedCount+"/"+blocks);
                 return true;
@@ -102,6 +234,7 @@ public class SimpleBlockChooser {
         if(!completed[blockNo]) return;
         completed[blockNo] = false;
         completedCount--;
+        updateBucket(blockNo);
     }
     
     protected void onCompletedAll() {
@@ -164,8 +297,11 @@ public class SimpleBlockChooser {
 
     public void readRetries(DataInputStream dis) throws IOException {
         if(maxRetries == -1) return;
-        for(int i=0;i<blocks;i++)
-            retries[i] = dis.readInt();
+        synchronized(this) {
+            for(int i=0;i<blocks;i++)
+                retries[i] = dis.readInt();
+            rebuildBuckets();
+        }
     }
     
     static final int VERSION = 1;
@@ -182,9 +318,12 @@ public class SimpleBlockChooser {
     
     public void read(DataInputStream dis) throws StorageFormatException, IOException {
         if(dis.readInt() != VERSION) throw new StorageFormatException("Bad version in block chooser");
-        for(int i=0;i<completed.length;i++) {
-            completed[i] = dis.readBoolean();
-            if(completed[i]) completedCount++;
+        synchronized(this) {
+            for(int i=0;i<completed.length;i++) {
+                completed[i] = dis.readBoolean();
+                if(completed[i]) completedCount++;
+            }
+            rebuildBuckets();
         }
         if(dis.readInt() != maxRetries) throw new StorageFormatException("Max retries has changed");
         readRetries(dis);
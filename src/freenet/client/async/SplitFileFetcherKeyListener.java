@@ -4,7 +4,6 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 
 import freenet.client.FetchException;
@@ -16,9 +15,9 @@ import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.NodeCHK;
 import freenet.node.SendableGet;
-import freenet.support.BinaryBloomFilter;
+import freenet.support.BlockedBinaryBloomFilter;
+import freenet.support.BlockedCountingBloomFilter;
 import freenet.support.BloomFilter;
-import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
@@ -54,9 +53,9 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     private final int perSegmentK;
     /** The overall bloom filter, containing all the keys, salted with the global hash. When a key
      * is found, it is removed from this. */
-    private final CountingBloomFilter filter;
+    private final BlockedCountingBloomFilter filter;
     /** The per-segment bloom filters, containing the keys for each segment. These are not changed. */
-    private final BinaryBloomFilter[] segmentFilters;
+    private final BlockedBinaryBloomFilter[] segmentFilters;
     private boolean finishedSetup;
     private final boolean persistent;
     /** Does the main bloom filter need writing? */
@@ -99,23 +98,10 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         perSegmentSize = (perSegmentSize + 7) & ~7;
         perSegmentBloomFilterSizeBytes = perSegmentSize / 8;
         perSegmentK = BloomFilter.optimialK(perSegmentSize, segBlocks);
-        segmentFilters = new BinaryBloomFilter[segments];
-        byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
-        int start = 0;
-        int end = perSegmentBloomFilterSizeBytes;
-        for(int i=0;i<segments;i++) {
-            baseBuffer.position(start);
-            baseBuffer.limit(end);
-            ByteBuffer slice;
-            
-            slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
-            start += perSegmentBloomFilterSizeBytes;
-            end += perSegmentBloomFilterSizeBytes;
-        }
-        byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        segmentFilters = new BlockedBinaryBloomFilter[segments];
+        for(int i=0;i<segments;i++)
+            segmentFilters[i] = new BlockedBinaryBloomFilter(perSegmentBloomFilterSizeBytes, perSegmentK);
+        filter = new BlockedCountingBloomFilter(mainBloomFilterSizeBytes, mainBloomK);
         filter.setWarnOnRemoveFromEmpty();
     }
     
@@ -141,7 +127,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         if(perSegmentK < 0)
             throw new StorageFormatException("Bad per segment bloom filter K");
         int segments = storage.segments.length;
-        segmentFilters = new BinaryBloomFilter[segments];
+        segmentFilters = new BlockedBinaryBloomFilter[segments];
         byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
         try {
             storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
@@ -149,18 +135,9 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
             mustRegenerateSegmentFilters = true;
         }
-        ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
-        int start = 0;
-        int end = perSegmentBloomFilterSizeBytes;
         for(int i=0;i<segments;i++) {
-            baseBuffer.position(start);
-            baseBuffer.limit(end);
-            ByteBuffer slice;
-            
-            slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
-            start += perSegmentBloomFilterSizeBytes;
-            end += perSegmentBloomFilterSizeBytes;
+            segmentFilters[i] = new BlockedBinaryBloomFilter(segmentsFilterBuffer,
+                    i * perSegmentBloomFilterSizeBytes, perSegmentBloomFilterSizeBytes, perSegmentK);
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
         if(!newSalt) {
@@ -173,7 +150,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         } else {
             mustRegenerateMainFilter = true;
         }
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new BlockedCountingBloomFilter(filterBuffer, 0, mainBloomFilterSizeBytes, mainBloomK);
         filter.setWarnOnRemoveFromEmpty();
     }
 
@@ -213,7 +190,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
      * once. Include a checksum. */
     void initialWriteSegmentBloomFilters(long fileOffset) throws IOException {
         OutputStream cos = storage.writeChecksummedTo(fileOffset, totalSegmentBloomFiltersSize());
-        for(BinaryBloomFilter segFilter : segmentFilters) {
+        for(BlockedBinaryBloomFilter segFilter : segmentFilters) {
             segFilter.writeTo(cos);
         }
         cos.close();
@@ -355,6 +332,16 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return mustRegenerateMainFilter || mustRegenerateSegmentFilters;
     }
 
+    /** The filters were written in the old, unblocked format, so they can't be used. Clear them
+     * and add all the keys again, as if the checksums had failed. */
+    synchronized void mustRegenerateFilters() {
+        filter.unsetAll();
+        for(BlockedBinaryBloomFilter segFilter : segmentFilters)
+            segFilter.unsetAll();
+        mustRegenerateMainFilter = true;
+        mustRegenerateSegmentFilters = true;
+    }
+
     public void addedAllKeys() {
         mustRegenerateMainFilter = false;
         mustRegenerateSegmentFilters = false;
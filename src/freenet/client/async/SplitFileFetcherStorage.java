@@ -218,6 +218,10 @@ public class SplitFileFetcherStorage {
     private boolean hasCheckedDatastore;
     private boolean dirtyGeneralProgress;
     static final long HAS_CHECKED_DATASTORE_FLAG = 1;
+    /** True if the Bloom filters are in the blocked format. Older downloads used the
+     * unblocked BinaryBloomFilter and CountingBloomFilter, and must regenerate them. */
+    private boolean blockedBloomFilters;
+    static final long BLOCKED_BLOOM_FILTERS_FLAG = 2;
     /** Fixed value posted at the end of the file (if plaintext!) */
     static final long END_MAGIC = 0x28b32d99416eb6efL;
     /** Current format version */
@@ -397,6 +401,7 @@ public class SplitFileFetcherStorage {
         this.offsetKeyList = storedBlocksLength + storedCrossCheckBlocksLength;
         this.offsetSegmentStatus = offsetKeyList + storedKeysLength;
         
+        blockedBloomFilters = true;
         byte[] generalProgress = encodeGeneralProgress();
         
         if(persistent) {
@@ -867,6 +872,8 @@ public class SplitFileFetcherStorage {
                 crossSegment.checkBlocks();
         }
         readGeneralProgress();
+        if(!blockedBloomFilters)
+            keyListener.mustRegenerateFilters();
     }
     
     private void readGeneralProgress() throws IOException {
@@ -877,6 +884,8 @@ public class SplitFileFetcherStorage {
             long flags = dis.readLong();
             if((flags & HAS_CHECKED_DATASTORE_FLAG) != 0)
                 hasCheckedDatastore = true;
+            if((flags & BLOCKED_BLOOM_FILTERS_FLAG) != 0)
+                blockedBloomFilters = true;
             errors = new FailureCodeTracker(false, dis);
             dis.close();
         } catch (ChecksumFailedException e) {
@@ -900,6 +909,8 @@ public class SplitFileFetcherStorage {
             long flags = 0;
             if(hasCheckedDatastore)
                 flags |= HAS_CHECKED_DATASTORE_FLAG;
+            if(blockedBloomFilters)
+                flags |= BLOCKED_BLOOM_FILTERS_FLAG;
             dos.writeLong(flags);
             errors.writeFixedLengthTo(dos);
             dos.close();
@@ -982,6 +993,12 @@ public class SplitFileFetcherStorage {
                             if(persistent)
                                 failOnDiskError(e);
                         }
+                        if(persistent) {
+                            synchronized(SplitFileFetcherStorage.this) {
+                                blockedBloomFilters = true;
+                            }
+                            writeGeneralProgress(true);
+                        }
                         fetcher.restartedAfterDataCorruption();
                         Logger.warning(this, "Finished regenerating filters for "+SplitFileFetcherStorage.this);
                         System.out.println("Finished regenerating filters for "+SplitFileFetcherStorage.this);
@@ -0,0 +1,303 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.node.DatabaseKey;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+/**
+ * Remembers the latest known editions of USKs across restarts, so that subscriptions and
+ * freesite visits start polling at the edition we had reached, rather than starting again from
+ * the date hints and the edition in the URI. Bounded: we keep the most recently updated USKs.
+ *
+ * Written a little while after it changes, off-thread, and on shutdown. Like client.dat, it is
+ * encrypted with the database key unless the physical security level is LOW, and not written at
+ * all at MAXIMUM. When encrypted it is also padded, so the size of the file only gives a rough
+ * idea of how many USKs we know about.
+ */
+class USKEditionStore {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(USKEditionStore.class);
+	}
+
+	static final String FILENAME = "usk-editions.dat";
+	static final int DEFAULT_MAX_USKS = 20000;
+	/** Wait this long after a change before writing, so a burst of updates is one write. */
+	static final long WRITE_DELAY = MINUTES.toMillis(1);
+	/** Pad encrypted files to a multiple of this. */
+	static final int PADDING = 64 * 1024;
+	private static final long MAGIC = 0x55534b4564697431L;
+	private static final int VERSION = 1;
+
+	private static class Editions {
+		long knownGood;
+		long slot;
+
+		Editions(long knownGood, long slot) {
+			this.knownGood = knownGood;
+			this.slot = slot;
+		}
+	}
+
+	/** Clear USK to latest editions, most recently updated at the top. */
+	private final LRUMap<USK, Editions> editions;
+	private final int maxUSKs;
+	private final Ticker ticker;
+	private File dir;
+	private DatabaseKey encryptionKey;
+	private boolean noWrite;
+	private boolean loaded;
+	private boolean writeQueued;
+	/** Changed since the last write. */
+	private boolean dirty;
+	/** Only one write at a time. Taken before the lock on this. */
+	private final Object writeLock = new Object();
+
+	private final Runnable writer = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized(USKEditionStore.this) {
+				writeQueued = false;
+			}
+			write();
+		}
+
+	};
+
+	USKEditionStore(Ticker ticker, int maxUSKs) {
+		this.ticker = ticker;
+		this.maxUSKs = maxUSKs;
+		editions = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+	}
+
+	/**
+	 * Set where to write to, and load the file if we haven't already. May be called again if
+	 * the physical security level changes.
+	 * @param dir The node directory.
+	 * @param encrypt Whether to encrypt the file.
+	 * @param noWrite If true, delete any existing files and only keep the editions in memory.
+	 * @param encryptionKey The database key. Needed if encrypt is true, or if there is an
+	 * encrypted file to load.
+	 * @return The editions loaded, by clear USK, as {known good, latest slot}, least recently 
+	 * updated first. Empty if we had already loaded, or if we can't read the encrypted file, in
+	 * which case we don't write until we can.
+	 */
+	Map<USK, long[]> setFilesAndLoad(File dir, boolean encrypt, boolean noWrite, DatabaseKey encryptionKey) {
+		// Only ever contains our own file, so the hashCode()'s aren't chosen by an attacker.
+		Map<USK, long[]> ret = new LinkedHashMap<USK, long[]>();
+		synchronized(writeLock) {
+			File plain = new File(dir, FILENAME);
+			File crypt = new File(dir, FILENAME + ".crypt");
+			// Wait for the password, don't overwrite what we can't read.
+			if(encryptionKey == null && (encrypt || (!noWrite && !loaded && crypt.exists())))
+				return ret;
+			if(noWrite) {
+				delete(plain);
+				delete(crypt);
+			} else if(!loaded) {
+				// If the plain file is corrupt we may as well replace it.
+				if(plain.exists())
+					load(new FileBucket(plain, true, false, false, false), ret);
+				if(crypt.exists() && encryptionKey != null &&
+						!load(encryptionKey.createEncryptedBucketForUSKEditions(
+								new FileBucket(crypt, true, false, false, false)), ret)) {
+					// Probably the wrong key, don't overwrite it.
+					Logger.error(this, "Not writing USK editions until "+crypt+" can be read");
+					return new LinkedHashMap<USK, long[]>();
+				}
+			}
+			synchronized(this) {
+				if(!loaded) {
+					// USKs updated since startup go on top.
+					List<USK> updated = new ArrayList<USK>(editions.size());
+					List<Editions> updatedValues = new ArrayList<Editions>(editions.size());
+					while(!editions.isEmpty()) {
+						updated.add(editions.peekKey());
+						updatedValues.add(editions.popValue());
+					}
+					for(Map.Entry<USK, long[]> e : ret.entrySet())
+						editions.push(e.getKey(), new Editions(e.getValue()[0], e.getValue()[1]));
+					for(int i = 0; i < updated.size(); i++) {
+						Editions e = updatedValues.get(i);
+						Editions old = editions.get(updated.get(i));
+						if(old != null) {
+							e.knownGood = Math.max(e.knownGood, old.knownGood);
+							e.slot = Math.max(e.slot, old.slot);
+						}
+						editions.push(updated.get(i), e);
+					}
+					while(editions.size() > maxUSKs)
+						editions.popKey();
+					loaded = true;
+				}
+				this.dir = dir;
+				this.noWrite = noWrite;
+				this.encryptionKey = encrypt ? encryptionKey : null;
+				// Write in the new format, and delete the old file.
+				if(!noWrite) dirty = true;
+			}
+		}
+		if(!noWrite) queueWrite();
+		return ret;
+	}
+
+	/** Called when the latest known editions of a USK change, or when it is used. */
+	void update(USK clear, long knownGood, long slot) {
+		synchronized(this) {
+			Editions e = editions.get(clear);
+			if(e == null) {
+				e = new Editions(knownGood, slot);
+			} else {
+				e.knownGood = Math.max(e.knownGood, knownGood);
+				e.slot = Math.max(e.slot, slot);
+			}
+			editions.push(clear, e);
+			while(editions.size() > maxUSKs)
+				editions.popKey();
+			dirty = true;
+		}
+		queueWrite();
+	}
+
+	private void queueWrite() {
+		synchronized(this) {
+			if(writeQueued || noWrite || dir == null) return;
+			writeQueued = true;
+		}
+		ticker.queueTimedJob(writer, "Write USK editions", WRITE_DELAY, false, true);
+	}
+
+	/** Write the file now if anything has changed. */
+	void write() {
+		synchronized(writeLock) {
+			File dir;
+			DatabaseKey key;
+			List<USK> usks;
+			List<Editions> values;
+			synchronized(this) {
+				if(!dirty || noWrite || this.dir == null) return;
+				dir = this.dir;
+				key = encryptionKey;
+				usks = new ArrayList<USK>(editions.size());
+				values = new ArrayList<Editions>(editions.size());
+				// Least recently updated first, so we can push() them in order when loading.
+				Enumeration<USK> keys = editions.keys();
+				while(keys.hasMoreElements()) {
+					USK usk = keys.nextElement();
+					Editions e = editions.get(usk);
+					usks.add(usk);
+					values.add(new Editions(e.knownGood, e.slot));
+				}
+				dirty = false;
+			}
+			File plain = new File(dir, FILENAME);
+			File crypt = new File(dir, FILENAME + ".crypt");
+			File target = key == null ? plain : crypt;
+			File temp = new File(dir, target.getName() + ".tmp");
+			Bucket bucket = new FileBucket(temp, false, false, false, false);
+			if(key != null) bucket = key.createEncryptedBucketForUSKEditions(bucket);
+			DataOutputStream dos = null;
+			try {
+				dos = new DataOutputStream(new BufferedOutputStream(bucket.getOutputStream()));
+				dos.writeLong(MAGIC);
+				dos.writeInt(VERSION);
+				dos.writeInt(usks.size());
+				for(int i = 0; i < usks.size(); i++) {
+					usks.get(i).getURI().sskForUSK().writeFullBinaryKeyWithLength(dos);
+					dos.writeLong(values.get(i).knownGood);
+					dos.writeLong(values.get(i).slot);
+				}
+				if(key != null) {
+					int padding = PADDING - (dos.size() % PADDING);
+					dos.write(new byte[padding]);
+				}
+				dos.close();
+				dos = null;
+				if(!FileUtil.renameTo(temp, target))
+					throw new IOException("Unable to rename "+temp+" to "+target);
+				if(logMINOR) Logger.minor(this, "Written "+usks.size()+" USK editions to "+target);
+				delete(key == null ? crypt : plain);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write USK editions to "+target+" : "+e, e);
+				temp.delete();
+				synchronized(this) {
+					dirty = true;
+				}
+			} finally {
+				Closer.close(dos);
+			}
+		}
+	}
+
+	/** @return False if the file could not be read. Some editions may have been added anyway. */
+	private boolean load(Bucket bucket, Map<USK, long[]> ret) {
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(bucket.getInputStream()));
+			if(dis.readLong() != MAGIC) throw new IOException("Bad magic");
+			if(dis.readInt() != VERSION) throw new IOException("Unknown version");
+			int count = dis.readInt();
+			if(count < 0) throw new IOException("Bad count "+count);
+			for(int i = 0; i < count; i++) {
+				USK usk = USK.create(FreenetURI.readFullBinaryKeyWithLength(dis).uskForSSK());
+				long knownGood = dis.readLong();
+				long slot = dis.readLong();
+				long[] old = ret.get(usk);
+				if(old != null) {
+					knownGood = Math.max(knownGood, old[0]);
+					slot = Math.max(slot, old[1]);
+				}
+				ret.put(usk, new long[] { knownGood, slot });
+			}
+			Logger.normal(this, "Loaded "+count+" USK editions from "+bucket.getName());
+			return true;
+		} catch (IOException e) {
+			// Not important enough to stop the node, we just have to poll from scratch.
+			Logger.error(this, "Unable to load USK editions from "+bucket.getName()+" : "+e, e);
+			return false;
+		} finally {
+			Closer.close(dis);
+		}
+	}
+
+	private static void delete(File f) {
+		if(!f.exists()) return;
+		try {
+			FileUtil.secureDelete(f);
+		} catch (IOException e) {
+			f.delete();
+		}
+	}
+
+	synchronized int size() {
+		return editions.size();
+	}
+
+}
@@ -3,9 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
-import static java.util.concurrent.TimeUnit.HOURS;
-import static java.util.concurrent.TimeUnit.MINUTES;
-
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -514,10 +511,6 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	final long origMinFailures;
 	boolean firstLoop;
 
-	static final long origSleepTime = MINUTES.toMillis(30);
-	static final long maxSleepTime = HOURS.toMillis(24);
-	long sleepTime = origSleepTime;
-
 	private long valueAtSchedule;
 	
 	/** Keep going forever? */
@@ -618,6 +611,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					}
 				}
 			}
+			uskManager.pollScheduler.onDateHintFetched(origUSK.clearCopy());
 			this.uskManager.hintUpdate(this.origUSK.copy(hint).getURI(), context, prio);
 			if(toCancel != null) {
 				for(DBRAttempt a : toCancel)
@@ -725,34 +719,31 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return sb.toString();
 	}
 
-	private void finishSuccess(ClientContext context) {
+	private void finishSuccess(final ClientContext context) {
 		if(logMINOR)
 			Logger.minor(this, "finishSuccess() on "+this);
 		if(backgroundPoll) {
 			long valAtEnd = uskManager.lookupLatestSlot(origUSK);
-			long end;
-			long now = System.currentTimeMillis();
+			boolean advanced;
 			synchronized(this) {
 				started = false; // don't finish before have rescheduled
-                
-                //Find out when we should check next ('end'), in an increasing delay (unless we make progress).
-                long newSleepTime = sleepTime * 2;
-				if(newSleepTime > maxSleepTime) newSleepTime = maxSleepTime;
-				sleepTime = newSleepTime;
-				end = now + context.random.nextInt((int) sleepTime);
-
-				if(valAtEnd > valueAtSchedule && valAtEnd > origUSK.suggestedEdition) {
-					// We have advanced; keep trying as if we just started.
-					// Only if we actually DO advance, not if we just confirm our suspicion (valueAtSchedule always starts at 0).
-					sleepTime = origSleepTime;
+				// Only if we actually DO advance, not if we just confirm our suspicion (valueAtSchedule always starts at 0).
+				advanced = valAtEnd > valueAtSchedule && valAtEnd > origUSK.suggestedEdition;
+				if(advanced) {
 					firstLoop = false;
-					end = now;
 					if(logMINOR)
 						Logger.minor(this, "We have advanced: at start, "+valueAtSchedule+" at end, "+valAtEnd);
 				}
-				if(logMINOR) Logger.minor(this, "Sleep time is "+sleepTime+" this sleep is "+(end-now)+" for "+this);
 			}
-			schedule(end-now, context);
+			// The poll scheduler decides when to check next, immediately if we have advanced.
+			uskManager.pollScheduler.onRoundFinished(origUSK.clearCopy(), advanced, new Runnable() {
+				
+				@Override
+				public void run() {
+					schedule(context);
+				}
+				
+			}, context.random);
 			checkFinishedForNow(context);
 		} else {
 			USKFetcherCallback[] cb;
@@ -998,7 +989,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		synchronized(this) {
 			if(cancelled) return;
 			if(completed) return;
-			if(!scheduledDBRs && !ctx.ignoreUSKDatehints) {
+			// Background polls only need the date hints until one of them has found one today.
+			if(!scheduledDBRs && !ctx.ignoreUSKDatehints && (!backgroundPoll ||
+					uskManager.pollScheduler.shouldFetchDateHints(origUSK.clearCopy()))) {
 				atts = addDBRs(context);
 			}
 			scheduledDBRs = true;
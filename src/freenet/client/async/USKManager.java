@@ -5,6 +5,7 @@ package freenet.client.async;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -20,6 +21,7 @@ import freenet.client.NullClientCallback;
 import freenet.clients.http.FProxyToadlet;
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
+import freenet.node.DatabaseKey;
 import freenet.node.NodeClientCore;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
@@ -48,6 +50,8 @@ public class USKManager {
 
 	static RequestClient rcBulk = new RequestClientBuilder().build();
 
+	public static final int DEFAULT_MAX_POLLS_PER_HOUR = USKPollScheduler.DEFAULT_MAX_POLLS_PER_HOUR;
+
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
 			
@@ -93,6 +97,12 @@ public class USKManager {
 	
 	final Executor executor;
 	
+	/** Keeps the latest editions across restarts. */
+	private final USKEditionStore editionStore;
+	
+	/** Decides when background fetchers poll again. */
+	final USKPollScheduler pollScheduler;
+	
 	private ClientContext context;
 	
 	public USKManager(NodeClientCore core) {
@@ -113,12 +123,47 @@ public class USKManager {
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
+		editionStore = new USKEditionStore(core.getTicker(), USKEditionStore.DEFAULT_MAX_USKS);
+		pollScheduler = new USKPollScheduler(core.getTicker(), executor, USKPollScheduler.DEFAULT_MAX_POLLS_PER_HOUR);
 	}
 
 	public void init(ClientContext context) {
 		this.context = context;
 	}
 
+	/**
+	 * Tell the USKManager where to store the latest known editions, loading them on the first 
+	 * call, so that fetchers start from where we had reached before the restart. Called again
+	 * when the physical security level changes.
+	 * @param dir The node directory.
+	 * @param encrypt Whether to encrypt the file.
+	 * @param noWrite If true, don't keep editions on disk at all.
+	 * @param databaseKey The key to encrypt with, if any.
+	 */
+	public void setEditionStoreFiles(File dir, boolean encrypt, boolean noWrite, DatabaseKey databaseKey) {
+		Map<USK, long[]> loaded = editionStore.setFilesAndLoad(dir, encrypt, noWrite, databaseKey);
+		if(loaded.isEmpty()) return;
+		synchronized(this) {
+			for(Map.Entry<USK, long[]> e : loaded.entrySet()) {
+				USK clear = e.getKey();
+				long knownGood = e.getValue()[0];
+				long slot = e.getValue()[1];
+				Long l = latestKnownGoodByClearUSK.get(clear);
+				if(knownGood >= 0 && (l == null || knownGood > l))
+					latestKnownGoodByClearUSK.put(clear, knownGood);
+				l = latestSlotByClearUSK.get(clear);
+				if(slot >= 0 && (l == null || slot > l))
+					latestSlotByClearUSK.put(clear, slot);
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Loaded "+loaded.size()+" USK editions");
+	}
+
+	/** Write the latest known editions to disk now, e.g. on shutdown. */
+	public void writeEditions() {
+		editionStore.write();
+	}
+
 	/**
 	 * Look up the latest known working version of the given USK.
 	 * @return The latest known edition number, or -1.
@@ -446,6 +491,7 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
 			} 
+			editionStore.update(clear, number, l);
 			
 			callbacks = subscribersByClearUSK.get(clear);
 		}
@@ -477,6 +523,8 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 			} else
 				return;
+			Long knownGood = latestKnownGoodByClearUSK.get(clear);
+			editionStore.update(clear, knownGood == null ? -1 : knownGood, number);
 			
 			callbacks = subscribersByClearUSK.get(clear);
 			if(temporaryBackgroundFetchersPrefetch.containsKey(clear)) {
@@ -689,6 +737,32 @@ public class USKManager {
 	public int getTemporaryBackgroundFetchersLRU(){
 		return temporaryBackgroundFetchersLRU.size();
 	}
+	
+	/** Set the maximum number of rounds of background polling to start per hour, across all
+	 * subscribed USKs. */
+	public void setMaxPollsPerHour(int maxPollsPerHour) {
+		pollScheduler.setMaxPollsPerHour(maxPollsPerHour);
+	}
+	
+	public int getMaxPollsPerHour() {
+		return pollScheduler.getMaxPollsPerHour();
+	}
+	
+	/** @return Rounds of background polling finished in the last hour. */
+	public int getPollsLastHour() {
+		return pollScheduler.pollsLastHour(System.currentTimeMillis());
+	}
+	
+	/** @return Background fetchers waiting for their next round. */
+	public int getQueuedPolls() {
+		return pollScheduler.queued();
+	}
+	
+	/** @return Average time between the last round of polling which didn't find an update, and
+	 * the one which did, or -1. */
+	public long getAverageUpdateDetectionDelay() {
+		return pollScheduler.averageDetectionDelay();
+	}
 
 	public void onFinished(USKFetcher fetcher) {
 		onFinished(fetcher, false);
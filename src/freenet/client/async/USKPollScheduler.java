@@ -0,0 +1,292 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import freenet.keys.USK;
+import freenet.support.Executor;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Decides when background USK fetchers poll again, for all subscriptions together. Plugins
+ * subscribe to thousands of USKs, so rather than each fetcher waking up on its own:
+ *
+ * - Fetchers which are due are started together once a minute, so their SSK requests reach the
+ * request scheduler at the same time, and at most maxPollsPerHour of them are started in any
+ * hour. If we are over budget, the ones which have waited longest go first.
+ * - Once we have seen a USK updated, the interval between polls follows how often it is
+ * actually updated, rather than going back to 30 minutes and doubling each time we find nothing.
+ * A USK which is updated daily is polled several times a day, and the longer it has been quiet
+ * the less often we poll it, down to once a day.
+ * - Date hints are only fetched once a day per USK, however many fetchers there are for it.
+ *
+ * Also keeps the statistics: polls per hour, and how long it takes us to notice an update.
+ */
+class USKPollScheduler {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(USKPollScheduler.class);
+	}
+
+	/** Poll at least this far apart, unless we are making progress. */
+	static final long MIN_INTERVAL = MINUTES.toMillis(30);
+	/** Poll about this often at least. */
+	static final long MAX_INTERVAL = HOURS.toMillis(24);
+	/** Start due polls this often. */
+	static final long TICK = MINUTES.toMillis(1);
+	/** Poll this many times per expected update. */
+	static final int POLLS_PER_UPDATE = 2;
+	static final int DEFAULT_MAX_POLLS_PER_HOUR = 6000;
+	/** Number of USKs to remember update intervals and date hints for. */
+	static final int MAX_USKS = 50000;
+
+	private static class PollState {
+		/** Interval to use if we have never seen the USK updated. */
+		long sleepTime = MIN_INTERVAL;
+		/** When the last round finished. */
+		long lastRound;
+		/** When we last found a new edition. */
+		long lastUpdate;
+		/** Moving average of the time between updates, or 0. */
+		long updateInterval;
+		/** The date string we last found a date hint on. */
+		String dateHintsFetched;
+	}
+
+	private static class QueuedPoll implements Comparable<QueuedPoll> {
+		final long time;
+		final long seq;
+		final Runnable poll;
+
+		QueuedPoll(long time, long seq, Runnable poll) {
+			this.time = time;
+			this.seq = seq;
+			this.poll = poll;
+		}
+
+		@Override
+		public int compareTo(QueuedPoll other) {
+			if(time != other.time) return time < other.time ? -1 : 1;
+			if(seq != other.seq) return seq < other.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final LRUMap<USK, PollState> states = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+	private final PriorityQueue<QueuedPoll> queue = new PriorityQueue<QueuedPoll>();
+	private long seq;
+	private int maxPollsPerHour;
+	/** Token bucket: polls we can start now. */
+	private double budget;
+	private long lastRefill;
+	private boolean tickQueued;
+	private final Ticker ticker;
+	private final Executor executor;
+
+	/** Rounds finished in each of the last 60 minutes. */
+	private final int[] pollsByMinute = new int[60];
+	private long currentMinute;
+	private long updatesDetected;
+	private long totalDetectionDelay;
+
+	private final Runnable tick = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized(USKPollScheduler.this) {
+				tickQueued = false;
+			}
+			runDue(System.currentTimeMillis());
+			queueTick();
+		}
+
+	};
+
+	/**
+	 * @param ticker May be null if only the methods taking the time are used.
+	 * @param executor May be null if only the methods taking the time are used.
+	 */
+	USKPollScheduler(Ticker ticker, Executor executor, int maxPollsPerHour) {
+		this.ticker = ticker;
+		this.executor = executor;
+		this.maxPollsPerHour = maxPollsPerHour;
+	}
+
+	synchronized void setMaxPollsPerHour(int maxPollsPerHour) {
+		this.maxPollsPerHour = maxPollsPerHour;
+	}
+
+	synchronized int getMaxPollsPerHour() {
+		return maxPollsPerHour;
+	}
+
+	private PollState getState(USK clear) {
+		PollState state = states.get(clear);
+		if(state == null) state = new PollState();
+		states.push(clear, state);
+		while(states.size() > MAX_USKS)
+			states.popKey();
+		return state;
+	}
+
+	/**
+	 * Called by a background fetcher when it has finished a round of polling.
+	 * @param clear The USK, with edition 0.
+	 * @param advanced True if the round found a new edition.
+	 * @param poll Starts the next round.
+	 */
+	void onRoundFinished(USK clear, boolean advanced, Runnable poll, Random random) {
+		long now = System.currentTimeMillis();
+		long next = onRoundFinished(clear, advanced, now, random);
+		if(next <= now) {
+			// Making progress, keep going as if we had just started.
+			poll.run();
+			return;
+		}
+		queue(poll, next);
+	}
+
+	/**
+	 * Record the end of a round and decide when the next one should start.
+	 * @return The time at which to poll again.
+	 */
+	synchronized long onRoundFinished(USK clear, boolean advanced, long now, Random random) {
+		countPoll(now);
+		PollState state = getState(clear);
+		long next;
+		if(advanced) {
+			if(state.lastUpdate > 0) {
+				long gap = now - state.lastUpdate;
+				state.updateInterval = state.updateInterval == 0 ? gap : (state.updateInterval * 3 + gap) / 4;
+			}
+			if(state.lastRound > 0) {
+				// The edition was inserted at some point since the last round.
+				updatesDetected++;
+				totalDetectionDelay += now - state.lastRound;
+			}
+			state.lastUpdate = now;
+			next = now;
+		} else if(state.lastUpdate > 0) {
+			// We have seen it updated. Expect the next update after the average interval, or 
+			// later if it has already been quiet for longer than that.
+			long expected = Math.max(state.updateInterval, now - state.lastUpdate);
+			long interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, expected / POLLS_PER_UPDATE));
+			next = now + interval / 2 + (long) (random.nextDouble() * interval);
+		} else {
+			// Never seen it updated, back off as USKFetcher always has.
+			state.sleepTime = Math.min(state.sleepTime * 2, MAX_INTERVAL);
+			next = now + (long) (random.nextDouble() * state.sleepTime);
+		}
+		state.lastRound = now;
+		if(logMINOR) Logger.minor(this, "Next poll for "+clear+" in "+(next-now)+"ms, update interval "+state.updateInterval);
+		return next;
+	}
+
+	/** Start the poll at the given time, or later if we are over budget. */
+	void queue(Runnable poll, long time) {
+		synchronized(this) {
+			queue.add(new QueuedPoll(time, seq++, poll));
+		}
+		queueTick();
+	}
+
+	private void queueTick() {
+		synchronized(this) {
+			if(tickQueued || queue.isEmpty() || ticker == null) return;
+			tickQueued = true;
+		}
+		ticker.queueTimedJob(tick, "USK poll scheduler", TICK, false, true);
+	}
+
+	/**
+	 * Start the polls which are due, as far as the budget allows.
+	 * @return The polls started. Run on the executor if we have one, otherwise by the caller.
+	 */
+	List<Runnable> runDue(long now) {
+		List<Runnable> due = new ArrayList<Runnable>();
+		synchronized(this) {
+			if(lastRefill == 0) {
+				budget = maxBurst();
+			} else if(now > lastRefill) {
+				budget = Math.min(maxBurst(), budget + (double) (now - lastRefill) * maxPollsPerHour / HOURS.toMillis(1));
+			}
+			lastRefill = now;
+			while(!queue.isEmpty() && queue.peek().time <= now && budget >= 1) {
+				due.add(queue.poll().poll);
+				budget--;
+			}
+			if(logMINOR && !due.isEmpty())
+				Logger.minor(this, "Starting "+due.size()+" USK polls, "+queue.size()+" queued");
+		}
+		if(executor != null) {
+			for(Runnable r : due)
+				executor.execute(r, "USK poll");
+		}
+		return due;
+	}
+
+	/** Allow up to 5 minutes' worth of polls at once, e.g. after startup. */
+	private double maxBurst() {
+		return Math.max(1, maxPollsPerHour / 12.0);
+	}
+
+	synchronized int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * Should a background poll fetch the date hints for this USK? Only until one has been found
+	 * today, however many fetchers there are. The hints found update the USKManager, so all
+	 * fetchers benefit.
+	 */
+	synchronized boolean shouldFetchDateHints(USK clear) {
+		String today = USKDateHint.now().get(USKDateHint.Type.DAY);
+		return !today.equals(getState(clear).dateHintsFetched);
+	}
+
+	/** Called when a date hint has been found for the USK. */
+	synchronized void onDateHintFetched(USK clear) {
+		getState(clear).dateHintsFetched = USKDateHint.now().get(USKDateHint.Type.DAY);
+	}
+
+	private void countPoll(long now) {
+		long minute = now / MINUTES.toMillis(1);
+		if(minute != currentMinute) {
+			for(long m = Math.max(currentMinute + 1, Math.max(0, minute - pollsByMinute.length + 1)); m <= minute; m++)
+				pollsByMinute[(int) (m % pollsByMinute.length)] = 0;
+			currentMinute = minute;
+		}
+		pollsByMinute[(int) (minute % pollsByMinute.length)]++;
+	}
+
+	/** @return Rounds of polling finished in the last hour. */
+	synchronized int pollsLastHour(long now) {
+		long minute = now / MINUTES.toMillis(1);
+		if(minute - currentMinute >= pollsByMinute.length) return 0;
+		int total = 0;
+		for(long m = Math.max(0, minute - pollsByMinute.length + 1); m <= currentMinute; m++)
+			total += pollsByMinute[(int) (m % pollsByMinute.length)];
+		return total;
+	}
+
+	/** @return The average time between the last round which didn't find an update and the one
+	 * which did, i.e. roughly twice the average time it takes to notice an update. -1 if we
+	 * haven't seen any. */
+	synchronized long averageDetectionDelay() {
+		if(updatesDetected == 0) return -1;
+		return totalDetectionDelay / updatesDetected;
+	}
+
+}
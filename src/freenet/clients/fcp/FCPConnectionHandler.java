@@ -69,6 +69,9 @@ public class FCPConnectionHandler implements Closeable {
 
 	final FCPServer server;
 	final Socket sock;
+	/** Null unless the connection is multiplexed by the server's {@link FCPSelector}, in which
+	 * case the socket's channel is in non-blocking mode. */
+	final FCPSelector selector;
 	final FCPConnectionInputHandler inputHandler;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
@@ -139,6 +142,7 @@ public class FCPConnectionHandler implements Closeable {
 	public FCPConnectionHandler(Socket s, FCPServer server) {
 		this.sock = s;
 		this.server = server;
+		this.selector = (s != null && s.getChannel() != null) ? server.selector : null;
 		isClosed = false;
 		this.bf = server.core.tempBucketFactory;
 		requestsByIdentifier = new HashMap<String, ClientRequest>();
@@ -3,9 +3,14 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -32,6 +37,20 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	private boolean firstMessage = true;
+
+	// The rest is only used when the connection is handled by an FCPSelector.
+
+	/** Bytes read from the channel but not yet used. Ready for reading (flipped) between uses. */
+	private ByteBuffer buf;
+	private FCPMessageParser parser;
+	/** True if the selector should read and parse messages. Synchronized on this. */
+	private boolean parsing;
+	/** True if a thread is waiting for a message's data to arrive. Synchronized on this. */
+	private boolean waitingForData;
+	/** True if we have stopped reading because the client isn't reading our replies.
+	 * Synchronized on this. */
+	private boolean paused;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -40,6 +59,16 @@ public class FCPConnectionInputHandler implements Runnable {
 	void start() {
 		if (handler.sock == null)
 			return;
+		if(handler.selector != null) {
+			buf = ByteBuffer.allocate(4096);
+			buf.flip();
+			parser = new FCPMessageParser();
+			synchronized(this) {
+				parsing = true;
+			}
+			handler.selector.register(handler);
+			return;
+		}
 		handler.server.node.executor.execute(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
 	}
 
@@ -65,8 +94,6 @@ public class FCPConnectionInputHandler implements Runnable {
 		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
 		LineReadingInputStream lis = new LineReadingInputStream(is);
 
-		boolean firstMessage = true;
-
 		while(true) {
 			SimpleFieldSet fs;
 			if(WrapperManager.hasShutdownHookBeenTriggered()) {
@@ -84,69 +111,250 @@ public class FCPConnectionInputHandler implements Runnable {
 			if(messageType.equals(""))
 				continue;
 			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
-
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.outputHandler.queue(err);
-				continue;
+			if(!handleMessage(messageType, fs, lis)) {
+				Closer.close(is);
+				return;
 			}
+		}
+	}
 
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.outputHandler.queue(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-				}
-				continue;
-			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+	/**
+	 * Handle a message from the client.
+	 * @param is The stream to read the message's data from, if it has any.
+	 * @return False if the connection should be closed.
+	 */
+	private boolean handleMessage(String messageType, SimpleFieldSet fs, InputStream is) throws IOException {
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.outputHandler.queue(err);
+			return true;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
 				handler.outputHandler.queue(err);
 				handler.close();
-				Closer.close(is);
-				return;
-			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.outputHandler.queue(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(is, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
+				return true;
 			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
+		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.server.node);
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		firstMessage = false;
+		return !handler.isClosed();
+	}
+
+	/** @return True if the selector should tell us when the channel is readable. */
+	synchronized boolean wantsRead() {
+		return parsing || waitingForData;
+	}
+
+	/** Called on the selector thread when the channel is readable. Reads and parses as much as
+	 * is available, and hands any complete message to the executor. */
+	void onReadable() {
+		synchronized(this) {
+			if(waitingForData) {
+				waitingForData = false;
+				notifyAll();
 				return;
 			}
+			if(!parsing) return;
+		}
+		try {
+			int read;
+			buf.compact();
+			try {
+				read = handler.sock.getChannel().read(buf);
+			} finally {
+				buf.flip();
+			}
+			if(read < 0) {
+				closeFromSelector();
+			} else if(read > 0 && parser.parse(buf)) {
+				synchronized(this) {
+					parsing = false;
+				}
+				handler.server.node.executor.execute(messageHandler, "FCP message handler for "+handler.sock.getRemoteSocketAddress());
+			}
+		} catch (TooLongException e) {
+			Logger.normal(this, "Caught "+e.getMessage(), e);
+			closeFromSelector();
+		} catch (IOException e) {
+			if(logMINOR)
+				Logger.minor(this, "Caught "+e, e);
+			closeFromSelector();
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t, t);
+			closeFromSelector();
+		}
+	}
+
+	/** Closing may wait for the output to be sent, so mustn't happen on the selector thread. */
+	private void closeFromSelector() {
+		synchronized(this) {
+			parsing = false;
+		}
+		handler.server.node.executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				handler.close();
+				handler.closedInput();
+			}
+
+		}, "FCP input closer for "+handler.sock.getRemoteSocketAddress());
+	}
+
+	/** Handles the messages parsed by the selector, and any others already in the buffer, then
+	 * goes back to the selector. */
+	private final Runnable messageHandler = new Runnable() {
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			try {
+				if(handleParsedMessages()) return;
+			} catch (TooLongException e) {
+				Logger.normal(this, "Caught "+e.getMessage(), e);
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+			handler.close();
+			handler.closedInput();
+		}
+
+	};
+
+	/** @return False if the connection should be closed. */
+	private boolean handleParsedMessages() throws IOException {
+		do {
+			if(WrapperManager.hasShutdownHookBeenTriggered()) {
+				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+				handler.outputHandler.queue(msg);
+				return false;
+			}
+			if(!handleMessage(parser.getMessageType(), parser.getFieldSet(), dataInput))
+				return false;
+		} while(parser.parse(buf));
+		synchronized(this) {
+			// Don't read any more requests until the client has read some of the replies.
+			if(handler.outputHandler.isQueueHalfFull())
+				paused = true;
+			else
+				parsing = true;
+		}
+		handler.selector.update(handler);
+		return true;
+	}
+
+	/** Called by the output handler when it takes a message off its queue, in case we stopped
+	 * reading because too many were queued. Must not be called with the output queue locked. */
+	void onMessageSent() {
+		synchronized(this) {
+			if(!paused || handler.outputHandler.isQueueHalfFull()) return;
+			paused = false;
+			parsing = true;
+		}
+		handler.selector.update(handler);
+	}
+
+	/** A message's data: first whatever is left in the buffer, then more from the channel. */
+	private final InputStream dataInput = new InputStream() {
+
+		@Override
+		public int read() throws IOException {
+			if(!buf.hasRemaining() && !fill()) return -1;
+			return buf.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			if(!buf.hasRemaining() && !fill()) return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buf.remaining();
+		}
+
+	};
+
+	/** Read more from the channel into the buffer, waiting if necessary.
+	 * @return False if the client has closed the connection. */
+	private boolean fill() throws IOException {
+		SocketChannel channel = handler.sock.getChannel();
+		buf.compact();
+		try {
+			while(true) {
+				int read = channel.read(buf);
+				if(read != 0) return read > 0;
+				waitReadable(channel);
+			}
+		} finally {
+			buf.flip();
+		}
+	}
+
+	private void waitReadable(SocketChannel channel) throws IOException {
+		synchronized(this) {
+			waitingForData = true;
+		}
+		handler.selector.update(handler);
+		synchronized(this) {
+			while(waitingForData) {
+				if(!channel.isOpen()) throw new ClosedChannelException();
+				try {
+					wait(SECONDS.toMillis(10));
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
 		}
 	}
 
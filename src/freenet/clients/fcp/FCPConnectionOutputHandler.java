@@ -3,9 +3,14 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
 import java.util.Deque;
 
@@ -21,6 +26,20 @@ public class FCPConnectionOutputHandler implements Runnable {
 	// Synced on outQueue
 	private boolean closedOutputQueue;
 
+	// The rest is only used when the connection is handled by an FCPSelector. There is no
+	// output thread; a thread is started when a message is queued, and exits once the queue is
+	// empty and flushed.
+
+	/** True while a thread is sending queued messages. Synced on outQueue. */
+	private boolean sending;
+	/** Set when the connection is closed, so the sender closes the output when it is done.
+	 * Synced on outQueue. */
+	private boolean closing;
+	/** True if the sender is waiting for the channel to be writable. Synchronized on this. */
+	private boolean waitingForWrite;
+	/** Only used by the sender. */
+	private OutputStream os;
+
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
 	static {
@@ -39,7 +58,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 	}
 
 	void start() {
-		if (handler.sock == null)
+		if (handler.sock == null || handler.selector != null)
 			return;
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
@@ -155,10 +174,25 @@ public class FCPConnectionOutputHandler implements Runnable {
 			}
 			outQueue.add(msg);
 			outQueue.notifyAll();
+			if(handler.selector == null || sending) return;
+			sending = true;
 		}
+		startSender();
 	}
 
 	public void onClosed() {
+		boolean startSender = false;
+		synchronized(outQueue) {
+			if(handler.selector != null && !closing) {
+				// Make sure something closes the output once the queue is empty.
+				closing = true;
+				if(!sending && !closedOutputQueue) {
+					sending = true;
+					startSender = true;
+				}
+			}
+		}
+		if(startSender) startSender();
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
@@ -182,4 +216,111 @@ public class FCPConnectionOutputHandler implements Runnable {
 		}
 	}
 	
+	private void startSender() {
+		handler.server.node.executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				freenet.support.Logger.OSThread.logPID(this);
+				try {
+					if(sendQueued()) return;
+				} catch (IOException e) {
+					if(logMINOR)
+						Logger.minor(this, "Caught "+e, e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t, t);
+				}
+				synchronized(outQueue) {
+					closedOutputQueue = true;
+					sending = false;
+					outQueue.notifyAll();
+				}
+				handler.close();
+				handler.closedOutput();
+			}
+
+		}, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
+	}
+
+	/**
+	 * Send everything in the queue and flush.
+	 * @return True if there is nothing more to do until another message is queued, false if
+	 * the connection has been closed and the output should be closed too.
+	 */
+	private boolean sendQueued() throws IOException {
+		if(os == null)
+			os = new BufferedOutputStream(new ChannelOutputStream(), 4096);
+		while(true) {
+			FCPMessage msg;
+			synchronized(outQueue) {
+				msg = outQueue.poll();
+			}
+			if(msg != null) {
+				handler.inputHandler.onMessageSent();
+				if(logMINOR) Logger.minor(this, "Sending "+msg);
+				msg.send(os);
+				continue;
+			}
+			os.flush();
+			synchronized(outQueue) {
+				if(!outQueue.isEmpty()) continue;
+				if(!closing) {
+					sending = false;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** @return True if the selector should tell us when the channel is writable. */
+	synchronized boolean wantsWrite() {
+		return waitingForWrite;
+	}
+
+	/** Called on the selector thread when the channel is writable. */
+	synchronized void onWritable() {
+		if(!waitingForWrite) return;
+		waitingForWrite = false;
+		notifyAll();
+	}
+
+	/** Writes to the non-blocking channel, waiting for the selector when the socket buffer is full. */
+	private class ChannelOutputStream extends OutputStream {
+
+		private final SocketChannel channel = handler.sock.getChannel();
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer data = ByteBuffer.wrap(b, off, len);
+			while(data.hasRemaining()) {
+				if(channel.write(data) == 0)
+					waitWritable();
+			}
+		}
+
+		private void waitWritable() throws IOException {
+			synchronized(FCPConnectionOutputHandler.this) {
+				waitingForWrite = true;
+			}
+			handler.selector.update(handler);
+			synchronized(FCPConnectionOutputHandler.this) {
+				while(waitingForWrite) {
+					if(!channel.isOpen()) throw new ClosedChannelException();
+					try {
+						FCPConnectionOutputHandler.this.wait(SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+
+	}
+
 }
@@ -99,6 +99,8 @@ public abstract class FCPMessage {
 			return new GenerateSSKMessage(fs);
 		if(name.equals(GetConfig.NAME))
 			return new GetConfig(fs);
+		if(name.equals(GetMetrics.NAME))
+			return new GetMetrics(fs);
 		if(name.equals(GetNode.NAME))
 			return new GetNode(fs);
 		if(name.equals(GetPluginInfo.NAME))
@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.TooLongException;
+
+/**
+ * Parses FCP messages incrementally from buffers of bytes, for connections handled by
+ * {@link FCPSelector}, where a message may arrive in any number of pieces. The result is the
+ * same as reading the message name with a LineReadingInputStream and the fields with
+ * {@link SimpleFieldSet#SimpleFieldSet(freenet.support.io.LineReader, int, int, boolean, boolean, boolean)},
+ * as the blocking {@link FCPConnectionInputHandler} does: blank lines before a message are
+ * ignored, the name may be at most {@link #MAX_NAME_LENGTH} bytes and each field line at most
+ * {@link #MAX_LINE_LENGTH}.
+ */
+final class FCPMessageParser {
+
+	static final int MAX_NAME_LENGTH = 128;
+	static final int MAX_LINE_LENGTH = 4096;
+
+	/** The line we are currently reading. */
+	private byte[] line = new byte[128];
+	private int lineLength;
+	/** Null until we have read the name of the next message. */
+	private String messageType;
+	/** The field lines of the current message. */
+	private final List<String> lines = new ArrayList<String>();
+	/** Non-null once a message is complete. */
+	private SimpleFieldSet fs;
+
+	/**
+	 * Consume bytes from the buffer until the end of a message, or until the buffer is empty.
+	 * Anything after the end of the message, such as its data, is left in the buffer. After a
+	 * message has been returned, the next call starts a new one.
+	 * @return True if a complete message is available from {@link #getMessageType()} and
+	 * {@link #getFieldSet()}.
+	 * @throws TooLongException If a line is too long.
+	 */
+	boolean parse(ByteBuffer buf) throws IOException {
+		if(fs != null) {
+			fs = null;
+			messageType = null;
+			lines.clear();
+		}
+		while(buf.hasRemaining()) {
+			byte b = buf.get();
+			if(b == '\n') {
+				if(endOfLine()) return true;
+				continue;
+			}
+			int maxLength = messageType == null ? MAX_NAME_LENGTH : MAX_LINE_LENGTH;
+			if(lineLength >= maxLength)
+				throw new TooLongException("We reached maxLength="+maxLength+" parsing an FCP message");
+			if(lineLength == line.length)
+				line = Arrays.copyOf(line, Math.min(line.length * 2, maxLength));
+			line[lineLength++] = b;
+		}
+		return false;
+	}
+
+	/** @return True if the line was the end marker. */
+	private boolean endOfLine() throws IOException {
+		int length = lineLength;
+		if(length > 0 && line[length - 1] == '\r') length--;
+		String s = new String(line, 0, length, "UTF-8");
+		lineLength = 0;
+		if(messageType == null) {
+			if(!s.isEmpty()) messageType = s;
+			return false;
+		}
+		lines.add(s);
+		if(s.isEmpty() || s.charAt(0) == '#' || s.indexOf('=') >= 0) return false;
+		fs = new SimpleFieldSet(lines.toArray(new String[lines.size()]), true, true, false);
+		return true;
+	}
+
+	String getMessageType() {
+		return messageType;
+	}
+
+	SimpleFieldSet getFieldSet() {
+		return fs;
+	}
+
+}
@@ -0,0 +1,171 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Multiplexes FCP connections onto a single thread, so that idle clients don't each hold an
+ * input and an output thread. The selector reads incoming bytes and parses them with the
+ * connection's {@link FCPMessageParser}; each complete message is handed to the executor, and
+ * the connection isn't read from again until the message has been handled, so messages from
+ * one client are still processed one at a time and in order. Output is written by an executor
+ * thread only while there is something to send. Threads which would block, because the socket
+ * buffer is full or a message's data hasn't arrived yet, wait for the selector to tell them the
+ * channel is ready rather than each needing a selector of their own.
+ *
+ * Only connections which have a channel can be handled here, i.e. non-SSL connections accepted
+ * through a selectable {@link freenet.io.NetworkInterface}.
+ */
+class FCPSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(FCPSelector.class);
+	}
+
+	private final Selector selector;
+	/** Connections waiting to be registered by the selector thread. */
+	private final ArrayDeque<FCPConnectionHandler> toRegister = new ArrayDeque<FCPConnectionHandler>();
+	/** Connections whose interest set has changed. */
+	private final ArrayDeque<FCPConnectionHandler> toUpdate = new ArrayDeque<FCPConnectionHandler>();
+	private boolean closed;
+
+	FCPSelector() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	void start() {
+		Thread t = new Thread(this, "FCP selector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Start handling a new connection. */
+	void register(FCPConnectionHandler handler) {
+		synchronized(this) {
+			if(!closed) {
+				toRegister.add(handler);
+				handler = null;
+			}
+		}
+		if(handler != null) {
+			Closer.close(handler.sock);
+			return;
+		}
+		selector.wakeup();
+	}
+
+	/** Called when what the connection is waiting for has changed. Can be called on any thread. */
+	void update(FCPConnectionHandler handler) {
+		synchronized(this) {
+			if(closed) return;
+			toUpdate.add(handler);
+		}
+		selector.wakeup();
+	}
+
+	void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					Logger.error(this, "Select failed: "+e, e);
+					return;
+				}
+				synchronized(this) {
+					if(closed) return;
+				}
+				registerPending();
+				updatePending();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					FCPConnectionHandler handler = (FCPConnectionHandler) key.attachment();
+					if(key.isValid() && key.isWritable())
+						handler.outputHandler.onWritable();
+					if(key.isValid() && key.isReadable())
+						handler.inputHandler.onReadable();
+					if(key.isValid())
+						key.interestOps(interestOps(handler));
+				}
+			}
+		} finally {
+			synchronized(this) {
+				closed = true;
+				for(FCPConnectionHandler handler : toRegister)
+					Closer.close(handler.sock);
+				toRegister.clear();
+				toUpdate.clear();
+			}
+			for(SelectionKey key : selector.keys()) {
+				FCPConnectionHandler handler = (FCPConnectionHandler) key.attachment();
+				Closer.close(handler.sock);
+				// Wake up anything waiting for the channel; it will see that it is closed.
+				handler.inputHandler.onReadable();
+				handler.outputHandler.onWritable();
+			}
+			Closer.close(selector);
+		}
+	}
+
+	private static int interestOps(FCPConnectionHandler handler) {
+		int ops = 0;
+		if(handler.inputHandler.wantsRead()) ops |= SelectionKey.OP_READ;
+		if(handler.outputHandler.wantsWrite()) ops |= SelectionKey.OP_WRITE;
+		return ops;
+	}
+
+	private void registerPending() {
+		while(true) {
+			FCPConnectionHandler handler;
+			synchronized(this) {
+				handler = toRegister.poll();
+				if(handler == null) return;
+			}
+			SocketChannel channel = handler.sock.getChannel();
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, interestOps(handler), handler);
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Unable to register "+handler.sock+" : "+e, e);
+				Closer.close(handler.sock);
+			}
+		}
+	}
+
+	private void updatePending() {
+		while(true) {
+			FCPConnectionHandler handler;
+			synchronized(this) {
+				handler = toUpdate.poll();
+				if(handler == null) return;
+			}
+			SelectionKey key = handler.sock.getChannel().keyFor(selector);
+			// If it's not registered yet, it will pick up the new interest set when it is.
+			if(key != null && key.isValid())
+				key.interestOps(interestOps(handler));
+		}
+	}
+
+}
@@ -30,6 +30,7 @@ import freenet.clients.fcp.ClientRequest.Persistence;
 import freenet.clients.fcp.FCPPluginConnection.SendDirection;
 import freenet.config.Config;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
@@ -84,8 +85,13 @@ public class FCPServer implements Runnable, DownloadCache {
 	private boolean assumeUploadDDAIsAllowed;
 	private boolean neverDropAMessage;
 	private int maxMessageQueueLength;
+	/** If true, connections are multiplexed on one thread rather than having an input and an
+	 * output thread each. Takes effect on restart. */
+	private boolean multiplexConnections;
+	/** Null unless multiplexConnections was set when the server started. */
+	volatile FCPSelector selector;
 
-	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
+	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, boolean multiplexConnections, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
 		this.bindTo = ipToBindTo;
 		this.allowedHosts=allowedHosts;
 		this.allowedHostsFullAccess = new AllowedHosts(allowedHostsFullAccess);
@@ -97,6 +103,7 @@ public class FCPServer implements Runnable, DownloadCache {
 		this.assumeUploadDDAIsAllowed = assumeDDAUploadAllowed;
 		this.neverDropAMessage = neverDropAMessage;
 		this.maxMessageQueueLength = maxMessageQueueLength;
+		this.multiplexConnections = multiplexConnections;
 		rebootClientsByName = new WeakHashMap<String, PersistentRequestClient>();
 		this.persistentRoot = persistentRoot;
         globalForeverClient = persistentRoot.globalForeverClient;
@@ -123,11 +130,20 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				if(multiplexConnections && selector == null) {
+					try {
+						selector = new FCPSelector();
+						selector.start();
+					} catch (IOException e) {
+						Logger.error(this, "Unable to open selector, FCP connections will each use two threads: "+e, e);
+					}
+				}
+				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true, selector != null);
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
 			System.out.println("Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.");
+			closeSelector();
 		}
 
 		this.networkInterface = tempNetworkInterface;
@@ -172,14 +188,24 @@ public class FCPServer implements Runnable, DownloadCache {
 			} catch (Throwable t) {
 				Logger.error(this, "Caught "+t, t);
 			}
-			if (WrapperManager.hasShutdownHookBeenTriggered())
+			if (WrapperManager.hasShutdownHookBeenTriggered()) {
+				closeSelector();
 				return;
+			}
 			try{
 				Thread.sleep(2000);
 			}catch (InterruptedException e) {}
 		}
 	}
 
+	/** Stop the selector thread, closing the connections it is handling. A rebind keeps the
+	 * same {@link NetworkInterface}, so the selector is only closed when the server stops. */
+	private void closeSelector() {
+		FCPSelector s = selector;
+		selector = null;
+		if(s != null) s.close();
+	}
+
 	private void realRun() throws IOException {
 		if(!node.isHasStarted()) return;
 		// Accept a connection
@@ -421,6 +447,23 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class MultiplexConnectionsCallback extends BooleanCallback {
+		FCPServer server;
+
+		@Override
+		public Boolean get() {
+			return server.multiplexConnections;
+		}
+
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if (get().equals(val))
+				return;
+			server.multiplexConnections = val;
+			throw new NodeNeedRestartException(l10n("multiplexConnectionsNeedsRestart"));
+		}
+	}
+
 
 	public static FCPServer maybeCreate(Node node, NodeClientCore core, Config config, PersistentRequestRoot root) throws IOException, InvalidConfigValueException {
 		SubConfig fcpConfig = config.createSubConfig("fcp");
@@ -436,22 +479,25 @@ public class FCPServer implements Runnable, DownloadCache {
 		AssumeDDAUploadIsAllowedCallback cb5;
 		NeverDropAMessageCallback cb6;
 		MaxMessageQueueLengthCallback cb7;
+		MultiplexConnectionsCallback cb8;
 		fcpConfig.register("assumeDownloadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeDownloadDDAIsAllowed", "FcpServer.assumeDownloadDDAIsAllowedLong", cb4 = new AssumeDDADownloadIsAllowedCallback());
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		fcpConfig.register("multiplexConnections", true, sortOrder++, true, false, "FcpServer.multiplexConnections", "FcpServer.multiplexConnectionsLong", cb8 = new MultiplexConnectionsCallback());
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
 		}
 
-		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), root);
+		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), fcpConfig.getBoolean("multiplexConnections"), root);
 
 		if(fcp != null) {
 			cb4.server = fcp;
 			cb5.server = fcp;
 			cb6.server = fcp;
 			cb7.server = fcp;
+			cb8.server = fcp;
 		}
 
 		fcpConfig.finishedInitialization();
@@ -623,6 +669,41 @@ public class FCPServer implements Runnable, DownloadCache {
 		return v.toArray(new RequestStatus[v.size()]);
 	}
 
+	/**
+	 * Get the global queue's downloads or uploads, by priority and then identifier, as kept by the
+	 * status caches, so without copying or sorting them. <strong>The statuses are live</strong>:
+	 * read them only to decide which to show, and clone() those before showing them.
+	 */
+	public RequestStatus[] getGlobalRequestsSorted(boolean uploads) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		List<RequestStatus> reboot = new ArrayList<RequestStatus>();
+		globalRebootClient.addSortedRequestStatus(reboot, uploads);
+		List<RequestStatus> forever = new ArrayList<RequestStatus>();
+		if(globalForeverClient != null)
+			globalForeverClient.addSortedRequestStatus(forever, uploads);
+		// Merge the two.
+		RequestStatus[] ret = new RequestStatus[reboot.size() + forever.size()];
+		int i = 0, j = 0;
+		for(int k = 0; k < ret.length; k++) {
+			if(j == forever.size() || (i < reboot.size() &&
+					RequestStatusCache.QUEUE_ORDER.compare(reboot.get(i), forever.get(j)) <= 0))
+				ret[k] = reboot.get(i++);
+			else
+				ret[k] = forever.get(j++);
+		}
+		return ret;
+	}
+
+	/** @return A copy of the status of a request on the global queue, or null if there is no
+	 * such request. */
+	public RequestStatus getGlobalRequestStatus(String identifier) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		RequestStatus status = globalRebootClient.getRequestStatus(identifier);
+		if(status == null && globalForeverClient != null)
+			status = globalForeverClient.getRequestStatus(identifier);
+		return status;
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, PersistenceDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, core.clientContext)) {
 			final CountDownLatch done = new CountDownLatch(1);
@@ -0,0 +1,44 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * GetMetrics
+ * Identifier=id // optional
+ * EndMessage
+ *
+ * Replies with a MetricsData message holding the node's metrics.
+ */
+public class GetMetrics extends FCPMessage {
+
+	static final String NAME = "GetMetrics";
+	final String identifier;
+
+	public GetMetrics(SimpleFieldSet fs) {
+		identifier = fs.get("Identifier");
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		return new SimpleFieldSet(true);
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		if(!handler.hasFullAccess()) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ACCESS_DENIED, "GetMetrics requires full access", identifier, false);
+		}
+		handler.outputHandler.queue(new MetricsData(node, identifier));
+	}
+
+}
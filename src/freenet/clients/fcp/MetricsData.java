@@ -0,0 +1,45 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * The node's metrics, keyed by name and label values, e.g.
+ * freenet_requests_completed_total.chk.local.success=1234. Histograms have Count, Sum, P50, P90
+ * and P99 in the units they were recorded in, usually milliseconds.
+ */
+public class MetricsData extends FCPMessage {
+
+	static final String NAME = "MetricsData";
+
+	final Node node;
+	final String identifier;
+
+	public MetricsData(Node node, String identifier) {
+		this.node = node;
+		this.identifier = identifier;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = node.metrics.toFieldSet();
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "MetricsData goes from server to client not the other way around", null, false);
+	}
+
+}
@@ -332,6 +332,16 @@ public class PersistentRequestClient {
 		statusCache.addTo(status);
 	}
 
+	/** From cache, live, in queue order. @see RequestStatusCache#addSortedTo(List, boolean) */
+	void addSortedRequestStatus(List<RequestStatus> status, boolean uploads) {
+		statusCache.addSortedTo(status, uploads);
+	}
+
+	/** From cache. @return A copy, or null. */
+	RequestStatus getRequestStatus(String identifier) {
+		return statusCache.get(identifier);
+	}
+
 	/**
 	 * Enable or disable watch-the-global-queue.
 	 * @param enabled Whether we want watch-global-queue to be enabled.
@@ -193,7 +193,9 @@ public abstract class RequestStatus implements Cloneable {
 			return ret;
 	}
 
-	public RequestStatus clone() {
+	/** Synchronized, like every method which changes the status, so the copy is consistent even
+	 * if taken without locking the RequestStatusCache. */
+	public synchronized RequestStatus clone() {
 		try {
 			return (RequestStatus) super.clone();
 		} catch (CloneNotSupportedException e) {
@@ -1,8 +1,9 @@
 package freenet.clients.fcp;
 
-import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeSet;
 
 import freenet.client.ClientMetadata;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -26,15 +27,27 @@ public class RequestStatusCache {
 		Logger.registerClass(RequestStatusCache.class);
 	}
 
-	private final ArrayList<RequestStatus> downloads;
-	private final ArrayList<RequestStatus> uploads;
+	/** The order of the queue page unless the user asks for another: by priority, then by
+	 * identifier. */
+	public static final Comparator<RequestStatus> QUEUE_ORDER = new Comparator<RequestStatus>() {
+		@Override
+		public int compare(RequestStatus a, RequestStatus b) {
+			if(a.getPriority() != b.getPriority())
+				return a.getPriority() < b.getPriority() ? -1 : 1;
+			return a.getIdentifier().compareTo(b.getIdentifier());
+		}
+	};
+
+	/** Kept in QUEUE_ORDER, so showing a page of the queue doesn't need to sort it. */
+	private final TreeSet<RequestStatus> downloads;
+	private final TreeSet<RequestStatus> uploads;
 	private final HashMap<String, RequestStatus> requestsByIdentifier;
 	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
 	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
 	
 	RequestStatusCache() {
-		downloads = new ArrayList<RequestStatus>();
-		uploads = new ArrayList<RequestStatus>();
+		downloads = new TreeSet<RequestStatus>(QUEUE_ORDER);
+		uploads = new TreeSet<RequestStatus>(QUEUE_ORDER);
 		requestsByIdentifier = new HashMap<String, RequestStatus>();
 		downloadsByURI = new MultiValueTable<FreenetURI, RequestStatus>();
 		uploadsByFinalURI = new MultiValueTable<FreenetURI, RequestStatus>();
@@ -143,6 +156,22 @@ public class RequestStatusCache {
 			status.add(req.clone());
 	}
 
+	/**
+	 * Add the downloads or the uploads, in QUEUE_ORDER, without copying them.
+	 * <strong>The statuses are live</strong>: they may be read to decide which to show, holding
+	 * each one's lock since they are updated under it, but must be copied with clone() before
+	 * anything else is done with them.
+	 */
+	synchronized void addSortedTo(List<RequestStatus> status, boolean uploads) {
+		status.addAll(uploads ? this.uploads : downloads);
+	}
+
+	/** @return A copy of the status of the request, or null if there is no such request. */
+	synchronized RequestStatus get(String identifier) {
+		RequestStatus status = requestsByIdentifier.get(identifier);
+		return status == null ? null : status.clone();
+	}
+
 	public synchronized void updateExpectedMIME(String identifier, String foundDataMimeType) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
@@ -155,10 +184,14 @@ public class RequestStatusCache {
 		status.updateExpectedDataLength(expectedDataLength);
 	}
 
-	public void setPriority(String identifier, short newPriorityClass) {
+	public synchronized void setPriority(String identifier, short newPriorityClass) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
+		// Re-insert, as the priority is part of the sort order.
+		TreeSet<RequestStatus> sorted = status instanceof DownloadRequestStatus ? downloads : uploads;
+		boolean removed = sorted.remove(status);
 		status.setPriority(newPriorityClass);
+		if(removed) sorted.add(status);
 	}
 	
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
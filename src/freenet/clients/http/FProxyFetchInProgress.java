@@ -196,6 +196,15 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private boolean checkCache(ClientContext context) {
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
 		if(bogusUSK(context)) return false;
+		if(canUseFilteredCache() && refilterPolicy != REFILTER_POLICY.RE_FETCH) {
+			// Filtered by this build, so no need to filter it again.
+			FetchResult cached = tracker.cache.lookup(uri, fctx.overrideMIME, fctx.charset, refilterPolicy, maxSize, context.getPersistentMasterSecret());
+			if(cached != null) {
+				// A copy, so we can stay in the FProxyFetchTracker.
+				onSuccess(cached, null);
+				return true;
+			}
+		}
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
 		if(result == null) return false;
 		Bucket data = null;
@@ -266,8 +275,10 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				os.close();
 				os = null;
 				// Since we are not re-using the data bucket, we can happily stay in the FProxyFetchTracker.
-				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
+				FetchResult filtered = new FetchResult(new ClientMetadata(fullMimeType), output);
+				this.onSuccess(filtered, null);
 				output = null;
+				storeInCache(filtered, context);
 				return true;
 			} catch (IOException e) {
 				Logger.normal(this, "Failed filtering coalesced data in fproxy");
@@ -402,6 +413,22 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		wakeWaiters(true);
 		if(droppedData != null)
 			droppedData.free();
+		else if(state != null)
+			storeInCache(result, tracker.context);
+	}
+
+	/** Remember the output of the content filter, if this is a CHK, so next time we can skip
+	 * both the fetch and the filter. Called after waking the waiters, so as not to delay the
+	 * page, but well before the data can be freed by {@link #finishCancel()}. */
+	private void storeInCache(FetchResult result, ClientContext context) {
+		if(!canUseFilteredCache()) return;
+		tracker.cache.store(uri, fctx.overrideMIME, fctx.charset, refilterPolicy, result.getMimeType(), result.asBucket(), context.getPersistentMasterSecret());
+	}
+
+	/** Only filtered data which is the same for every request can be shared. With web pushing,
+	 * the filter adds elements whose ids belong to the request that fetched the page. */
+	private boolean canUseFilteredCache() {
+		return fctx.filterData && fctx.tagReplacer == null && tracker.cache != null;
 	}
 
 	public synchronized boolean hasData() {
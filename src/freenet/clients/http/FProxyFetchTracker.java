@@ -30,15 +30,18 @@ public class FProxyFetchTracker implements Runnable {
 	
 	final MultiValueTable<FreenetURI, FProxyFetchInProgress> fetchers;
 	final ClientContext context;
+	/** Filtered content from earlier fetches of CHKs, or null. */
+	final FilteredContentCache cache;
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
 	private final RequestClient rc;
 	private boolean queuedJob;
 	private boolean requeue;
 
-	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
+	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc, FilteredContentCache cache) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
+		this.cache = cache;
 		this.fctx = fctx;
 		this.rc = rc;
 	}
@@ -5,9 +5,8 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
@@ -31,6 +30,7 @@ import freenet.client.filter.FoundURICallback;
 import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.PushingTagReplacerCallback;
 import freenet.client.filter.UnsafeContentTypeException;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.clients.http.ajaxpush.DismissAlertToadlet;
 import freenet.clients.http.ajaxpush.LogWritebackToadlet;
 import freenet.clients.http.ajaxpush.PushDataToadlet;
@@ -67,7 +67,6 @@ import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
@@ -140,7 +139,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
-	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
+	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset, String etag) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
 		String extrasNoMime = extras; // extras will not include MIME type to start with - REDFLAG maybe it should be an array
@@ -219,12 +218,15 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			}
 		}
 
+		boolean cacheable = container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK());
 		if (forceDownload) {
 			MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
 			headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
 			headers.put("Cache-Control", "private");
 			headers.put("Content-Transfer-Encoding", "binary");
             headers.put("X-Content-Type-Options", "nosniff");
+			if (etag != null)
+				headers.put("ETag", etag);
 			// really the above should be enough, but ...
 			// was application/x-msdownload, but some unix browsers offer to open that in Wine as default!
 			// it is important that this type not be understandable, but application/octet-stream doesn't work.
@@ -237,53 +239,82 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			// Send the data, intact
 			MultiValueTable<String, String> hdr = context.getHeaders();
 			String rangeStr = hdr.get("range");
-			// was a range request
+			String ifRange = hdr.get("if-range");
+			// If-Range: only send part of the data if the client has the same entity already.
+			// We don't send a meaningful Last-Modified, so a date never matches.
+			if (rangeStr != null && ifRange != null && (etag == null || !etag.equals(ifRange.trim())))
+				rangeStr = null;
+			List<long[]> ranges = null;
 			if (rangeStr != null) {
-
-				long range[];
 				try {
-					range = parseRange(rangeStr);
+					ranges = parseRange(rangeStr);
 				} catch (HTTPRangeException e) {
 					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
 					return;
 				}
-				if (range[1] == -1 || range[1] >= size) {
-					range[1] = size - 1;
-				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
-					os.close(); os = null; // If we can't write, we need to throw, so we don't send too little data.
-				} finally {
-					Closer.close(is);
-					Closer.close(os);
-				}
+				// Lots of small or overlapping ranges cost more than they save; send it all.
+				if (ranges.size() > MAX_RANGES)
+					ranges = null;
+			}
+			// was a range request
+			if (ranges != null) {
+				ranges = getSatisfiableRanges(ranges, size);
 				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
-				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+				if (ranges.isEmpty()) {
+					retHdr.put("Content-Range", "bytes */" + size);
+					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", retHdr, null, 0);
+					return;
+				}
                 retHdr.put("X-Content-Type-Options", "nosniff");
-				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
+				if (etag != null)
+					retHdr.put("ETag", etag);
+				if (ranges.size() == 1) {
+					long[] range = ranges.get(0);
+					retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+					sendDataHeaders(context, 206, "Partial content", retHdr, mimeType, range[1] - range[0] + 1, cacheable);
+					context.writeData(data, range[0], range[1] - range[0] + 1);
+				} else {
+					String boundary = "freenet-byteranges-" + Long.toHexString(core.node.fastWeakRandom.nextLong());
+					byte[][] partHeaders = new byte[ranges.size()][];
+					byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+					long length = trailer.length;
+					for (int i = 0; i < ranges.size(); i++) {
+						long[] range = ranges.get(i);
+						partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType +
+								"\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + size +
+								"\r\n\r\n").getBytes("US-ASCII");
+						length += partHeaders[i].length + range[1] - range[0] + 1;
+					}
+					sendDataHeaders(context, 206, "Partial content", retHdr, "multipart/byteranges; boundary=" + boundary, length, cacheable);
+					for (int i = 0; i < ranges.size(); i++) {
+						long[] range = ranges.get(i);
+						context.writeData(partHeaders[i]);
+						context.writeData(data, range[0], range[1] - range[0] + 1);
+					}
+					context.writeData(trailer);
+				}
 			} else {
                 MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
                 retHdr.put("X-Content-Type-Options", "nosniff");
-                if (container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
-                    context.sendReplyHeadersStatic(200, "OK", retHdr, mimeType, size, new Date());
-                } else {
-                    context.sendReplyHeadersFProxy(200, "OK", retHdr, mimeType, size);
-                }
+                retHdr.put("Accept-Ranges", "bytes");
+                if (etag != null)
+                    retHdr.put("ETag", etag);
+                sendDataHeaders(context, 200, "OK", retHdr, mimeType, size, cacheable);
 				context.writeData(data);
 			}
 		}
 	}
 
+	/** Send reply headers for data, allowing the browser to cache it if it is from a CHK or SSK
+	 * and the user has enabled that. */
+	private static void sendDataHeaders(ToadletContext context, int code, String desc, MultiValueTable<String, String> retHdr, String mimeType, long length, boolean cacheable) throws ToadletContextClosedException, IOException {
+		if (cacheable) {
+			context.sendReplyHeadersStatic(code, desc, retHdr, mimeType, length, new Date());
+		} else {
+			context.sendReplyHeadersFProxy(code, desc, retHdr, mimeType, length);
+		}
+	}
+
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
 
 	private static void addDownloadOptions(ToadletContext ctx, HTMLNode optionList, FreenetURI key, String mimeType,
@@ -683,6 +714,18 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			else override = override+"&forcedownload";
 		}
 
+		// Pages filtered for web pushing contain ids for this request only, so they can't be
+		// cached and mustn't get an entity tag.
+		String etag = getETag(key, fctx.tagReplacer != null, requestedMimeType, maybeCharset, force, httprequest.isParameterSet("forcedownload"), maxSize, ctx.getReFilterPolicy());
+		if(etag != null && matchesETag(ctx.getHeaders().get("if-none-match"), etag)) {
+			// CHKs never change, so the browser's copy is still good.
+			if(logMINOR) Logger.minor(this, "Not modified: "+key);
+			MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+			retHdr.put("ETag", etag);
+			sendDataHeaders(ctx, 304, "Not Modified", retHdr, null, -1, container.enableCachingForChkAndSskKeys());
+			return;
+		}
+
 		Bucket data = null;
 		String mimeType = null;
 		String referer = sanitizeReferer(ctx);
@@ -828,7 +871,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 
-			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset);
+			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset, etag);
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
 			String msg = e.getMessage();
@@ -1110,6 +1153,24 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return f;
 	}
 
+	/** How to store the filtered content cache at a given physical security level. */
+	static FilteredContentCache.Mode getCacheMode(PHYSICAL_THREAT_LEVEL level) {
+		switch(level) {
+		case LOW:
+			return FilteredContentCache.Mode.PLAIN;
+		case MAXIMUM:
+			return FilteredContentCache.Mode.DISABLED;
+		default:
+			return FilteredContentCache.Mode.ENCRYPTED;
+		}
+	}
+
+	/** Wipe the cache of filtered freesite content, e.g. when the panic button is pressed. */
+	public void wipeFilteredContentCache() {
+		if(fetchTracker.cache != null)
+			fetchTracker.cache.clear();
+	}
+
 	public static void maybeCreateFProxyEtc(NodeClientCore core, Node node, Config config,
 	        SimpleToadletServer server) throws IOException {
 
@@ -1120,8 +1181,29 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		random = new byte[32];
 		core.random.nextBytes(random);
 
+		final FilteredContentCache cache = new FilteredContentCache(new File(core.getPersistentTempDir(), "fproxy-cache"),
+				server.getFilteredContentCacheSize(), getCacheMode(node.securityLevels.getPhysicalThreatLevel()),
+				core.tempBucketFactory);
+		server.setFilteredContentCache(cache);
+		core.getExecutor().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				cache.init();
+			}
+
+		}, "Load FProxy filtered content cache");
+		node.securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<PHYSICAL_THREAT_LEVEL>() {
+
+			@Override
+			public void onChange(PHYSICAL_THREAT_LEVEL oldLevel, PHYSICAL_THREAT_LEVEL newLevel) {
+				cache.setMode(getCacheMode(newLevel));
+			}
+
+		});
+
 		FProxyFetchTracker fetchTracker = new FProxyFetchTracker(core.clientContext, client.getFetchContext(),
-				new RequestClientBuilder().realTime().build());
+				new RequestClientBuilder().realTime().build(), cache);
 
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
@@ -1249,6 +1331,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(diagnosticToadlet, "FProxyToadlet.categoryStatus", "/diagnostic/", true,
 		        "FProxyToadlet.diagnosticTitle", "FProxyToadlet.diagnostic", true, null);
 
+		MetricsToadlet metricsToadlet = new MetricsToadlet(client, node);
+		server.register(metricsToadlet, null, MetricsToadlet.TOADLET_URL, true, true);
+
 		ConnectivityToadlet connectivityToadlet = new ConnectivityToadlet(client, node);
 		server.register(connectivityToadlet, "FProxyToadlet.categoryStatus", "/connectivity/", true,
 		        "ConnectivityToadlet.connectivityTitle", "ConnectivityToadlet.connectivity", true, null);
@@ -1300,27 +1385,53 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return DefaultMIMETypes.forceExtension(uri.getPreferredFilename(), expectedMimeType);
 	}
 
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
+	/** The maximum number of ranges in a single request. If there are more, we send the whole file. */
+	static final int MAX_RANGES = 32;
+
+	/**
+	 * Parse a Range header.
+	 * @return The ranges in the order given. Each is {from, to}, inclusive. to is -1 if the
+	 * range runs to the end of the data, and from is -1 for a suffix range, in which case to
+	 * is the number of bytes at the end of the data to send.
+	 * @throws HTTPRangeException If the header is not valid.
+	 */
+	static List<long[]> parseRange(String hdrrange) throws HTTPRangeException {
 
-		long result[] = new long[2];
+		List<long[]> result = new ArrayList<long[]>();
 		try {
 			String[] units = hdrrange.split("=", 2);
 			// FIXME are MBytes and co valid? if so, we need to adjust the values and
 			// return always bytes
-			if (!"bytes".equals(units[0])) {
+			if (!"bytes".equals(units[0].trim())) {
 				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
 			}
-			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
-			if (result[0] < 0)
-				throw new HTTPRangeException("Negative 'from' value");
-			if (range[1].trim().length() > 0) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
-			} else {
-				result[1] = -1;
+			for (String spec : units[1].split(",")) {
+				spec = spec.trim();
+				if (spec.length() == 0) continue;
+				String[] range = spec.split("-", 2);
+				long[] r = new long[2];
+				if (range[0].trim().length() == 0) {
+					// Suffix range: the last N bytes.
+					r[0] = -1;
+					r[1] = Long.parseLong(range[1].trim());
+					if (r[1] < 0)
+						throw new HTTPRangeException("Negative suffix length");
+				} else {
+					r[0] = Long.parseLong(range[0].trim());
+					if (r[0] < 0)
+						throw new HTTPRangeException("Negative 'from' value");
+					if (range[1].trim().length() > 0) {
+						r[1] = Long.parseLong(range[1].trim());
+						if (r[1] < r[0])
+							throw new HTTPRangeException("'from' value must not be greater than 'to' value");
+					} else {
+						r[1] = -1;
+					}
+				}
+				result.add(r);
 			}
+			if (result.isEmpty())
+				throw new HTTPRangeException("No ranges");
 		} catch (NumberFormatException nfe) {
 			throw new HTTPRangeException(nfe);
 		} catch (IndexOutOfBoundsException ioobe) {
@@ -1329,6 +1440,69 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return result;
 	}
 
+	/**
+	 * Resolve ranges from {@link #parseRange(String)} against the size of the data.
+	 * @return The ranges which overlap the data, as absolute, inclusive {from, to}. Empty if
+	 * none of them do, in which case the request can't be satisfied.
+	 */
+	static List<long[]> getSatisfiableRanges(List<long[]> ranges, long size) {
+		List<long[]> result = new ArrayList<long[]>(ranges.size());
+		for (long[] r : ranges) {
+			long from, to;
+			if (r[0] == -1) {
+				if (r[1] == 0 || size == 0) continue;
+				from = Math.max(0, size - r[1]);
+				to = size - 1;
+			} else {
+				if (r[0] >= size) continue;
+				from = r[0];
+				to = (r[1] == -1 || r[1] >= size) ? size - 1 : r[1];
+			}
+			result.add(new long[] { from, to });
+		}
+		return result;
+	}
+
+	/**
+	 * Get a strong entity tag for a fetch. CHKs are immutable, so what we send depends only on
+	 * the key, the request parameters which affect filtering, and the filter itself (hence the
+	 * build number).
+	 * @param pushing True if the page will be filtered for web pushing, in which case it differs
+	 * on every request.
+	 * @return A quoted entity tag, or null if the key is not a CHK or we are pushing.
+	 */
+	static String getETag(FreenetURI key, boolean pushing, String requestedMimeType, String maybeCharset, boolean force, boolean forceDownload, long maxSize, REFILTER_POLICY policy) {
+		if (!key.isCHK() || pushing) return null;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			bos.write(Integer.toString(Version.buildNumber()).getBytes("UTF-8"));
+			bos.write(0);
+			bos.write(key.toString().getBytes("UTF-8"));
+			bos.write(0);
+			bos.write(String.valueOf(requestedMimeType).getBytes("UTF-8"));
+			bos.write(0);
+			bos.write(String.valueOf(maybeCharset).getBytes("UTF-8"));
+			bos.write(0);
+			bos.write((force + " " + forceDownload + " " + maxSize + " " + policy).getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		return '"' + HexUtil.bytesToHex(SHA256.digest(bos.toByteArray())) + '"';
+	}
+
+	/** @return True if an If-None-Match header matches the given entity tag. Uses the weak
+	 * comparison, as RFC 7232 specifies for If-None-Match. */
+	static boolean matchesETag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*")) return true;
+			if (tag.startsWith("W/")) tag = tag.substring(2);
+			if (tag.equals(etag)) return true;
+		}
+		return false;
+	}
+
 	@Override
 	public boolean persistent() {
 		return false;
@@ -0,0 +1,424 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchResult;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.crypt.EncryptedRandomAccessBucket;
+import freenet.crypt.KeyType;
+import freenet.crypt.MasterSecret;
+import freenet.crypt.SHA256;
+import freenet.keys.FreenetURI;
+import freenet.node.Version;
+import freenet.support.HexUtil;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PaddedEphemerallyEncryptedBucket;
+import freenet.support.io.TempBucketFactory;
+
+/**
+ * Bounded on-disk cache of content filter output for CHKs, so revisiting a freesite doesn't
+ * re-run the fetch and the filter for every page. CHKs never change, so an entry is valid for
+ * as long as the filter which produced it, hence the build number is part of the cache key,
+ * along with the key, the MIME type override, the charset and the refilter policy. Output which
+ * depends on the request, such as pages with push elements, must not be cached.
+ *
+ * Each entry is a single file, named after a hash of the cache key, containing the cache key,
+ * the MIME type and the data. Least recently used entries are evicted to keep the total size
+ * below the limit. The order is kept in the files' modification times, so it survives
+ * restarts.
+ *
+ * What goes to disk depends on the physical security level, see {@link Mode}. Changing mode
+ * wipes the cache.
+ *
+ * Nothing is read from disk until {@link #init()} is called, and the cache is not used until it
+ * has finished.
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	public enum Mode {
+		/** Plaintext files. For physical security level LOW. */
+		PLAIN,
+		/** Files are encrypted with the persistent master secret, and padded to hide the size
+		 * of the content. File names are salted so that they don't reveal which keys have been
+		 * visited. For physical security level NORMAL and HIGH. */
+		ENCRYPTED,
+		/** Nothing is written to disk. For physical security level MAXIMUM. */
+		DISABLED
+	}
+
+	private static final int MAGIC = 0x6b2f91a3;
+	private static final int VERSION = 1;
+	private static final String TEMP_SUFFIX = ".tmp";
+	/** An entry may use at most this fraction of the cache. Big files are rarely pages, and
+	 * copying them in and out of the cache costs more than it saves. */
+	private static final int MAX_ENTRY_FRACTION = 16;
+
+	private final File dir;
+	private final BucketFactory bf;
+	/** File name to file size, least recently used at the tail. */
+	private final LRUMap<String, Long> entries;
+	private long totalSize;
+	private long maxSize;
+	private Mode mode;
+	/** Set once the files left by the last run have been indexed or deleted. */
+	private volatile boolean initialized;
+
+	/**
+	 * Doesn't touch the disk, call {@link #init()} off-thread to start using the cache.
+	 * @param dir The directory to keep the cache in. Created if necessary. Files already there
+	 * are assumed to belong to the cache if the mode is not DISABLED.
+	 * @param maxSize The maximum total size of the files in the cache. 0 to disable it.
+	 * @param mode How to store the data.
+	 * @param bf Used to create the buckets returned by {@link #lookup}.
+	 */
+	public FilteredContentCache(File dir, long maxSize, Mode mode, BucketFactory bf) {
+		this.dir = dir;
+		this.bf = bf;
+		this.maxSize = maxSize;
+		this.mode = mode;
+		entries = new LRUMap<String, Long>();
+	}
+
+	/** Index the files left by the last run, or delete them if the cache is disabled. Slow if
+	 * there are many files, so should not be called on the startup path. */
+	public synchronized void init() {
+		if(initialized) return;
+		if(mode == Mode.DISABLED || maxSize == 0)
+			clear();
+		else
+			load();
+		initialized = true;
+	}
+
+	/** Index the files left by the last run, oldest first so the newest are at the head. */
+	private synchronized void load() {
+		if(!makeDir()) return;
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		final long[] times = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for(int i = 0; i < files.length; i++) {
+			times[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(times[a], times[b]);
+			}
+
+		});
+		for(int i : order) {
+			File f = files[i];
+			if(!f.isFile()) continue;
+			if(f.getName().endsWith(TEMP_SUFFIX)) {
+				f.delete();
+				continue;
+			}
+			long size = f.length();
+			entries.push(f.getName(), size);
+			totalSize += size;
+		}
+		evict();
+		if(logMINOR) Logger.minor(this, "Loaded "+entries.size()+" entries ("+totalSize+" bytes) from "+dir);
+	}
+
+	/** @return False if the directory doesn't exist and can't be created. */
+	private boolean makeDir() {
+		if(dir.exists() || dir.mkdirs()) return true;
+		Logger.error(this, "Unable to create FProxy cache directory "+dir);
+		return false;
+	}
+
+	/** Delete everything in the cache, including files we don't know about. */
+	public synchronized void clear() {
+		entries.clear();
+		totalSize = 0;
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		for(File f : files) {
+			if(!f.isFile()) continue;
+			try {
+				FileUtil.secureDelete(f);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to delete "+f+" from FProxy cache: "+e, e);
+			}
+		}
+	}
+
+	/** Change how data is stored. Wipes the cache if the mode changes, since existing entries
+	 * are in the wrong format, or shouldn't be on disk at all. */
+	public synchronized void setMode(Mode mode) {
+		if(this.mode == mode) return;
+		this.mode = mode;
+		clear();
+		if(mode != Mode.DISABLED && maxSize > 0)
+			makeDir();
+	}
+
+	public synchronized Mode getMode() {
+		return mode;
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		boolean wasDisabled = this.maxSize == 0;
+		this.maxSize = maxSize;
+		if(maxSize == 0)
+			clear();
+		else if(wasDisabled && mode != Mode.DISABLED)
+			makeDir();
+		evict();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized int countEntries() {
+		return entries.size();
+	}
+
+	/** @return The largest entry we will store. */
+	public synchronized long maxEntrySize() {
+		return maxSize / MAX_ENTRY_FRACTION;
+	}
+
+	/** Is the cache in use? If so, and the data is a CHK, {@link #lookup} and {@link #store}
+	 * may do something. */
+	public synchronized boolean isEnabled() {
+		return initialized && maxSize > 0 && mode != Mode.DISABLED;
+	}
+
+	private synchronized boolean canStore(long length) {
+		return isEnabled() && length <= maxSize / MAX_ENTRY_FRACTION;
+	}
+
+	/**
+	 * Look up filtered content.
+	 * @param uri The key. Only CHKs are cached.
+	 * @param overrideMIME The MIME type the user asked for, or null.
+	 * @param charset The charset the user asked for, or null.
+	 * @param policy The refilter policy of the request.
+	 * @param maxSize The maximum size the user will accept.
+	 * @param secret The persistent master secret, needed in ENCRYPTED mode. If null, and we
+	 * are encrypting, we don't return anything.
+	 * @return The filtered data and its MIME type, in a new bucket which the caller must free,
+	 * or null if it is not in the cache.
+	 */
+	public FetchResult lookup(FreenetURI uri, String overrideMIME, String charset, REFILTER_POLICY policy, long maxSize, MasterSecret secret) {
+		// Don't wait for init().
+		if(!uri.isCHK() || !initialized) return null;
+		Mode mode;
+		synchronized(this) {
+			if(!isEnabled()) return null;
+			mode = this.mode;
+		}
+		if(mode == Mode.ENCRYPTED && secret == null) return null;
+		String cacheKey = getCacheKey(uri, overrideMIME, charset, policy);
+		String name = getFileName(cacheKey, mode, secret);
+		synchronized(this) {
+			Long size = entries.get(name);
+			if(size == null) return null;
+			// Promote now rather than after reading, so a concurrent store can't evict it.
+			entries.push(name, size);
+		}
+		File f = new File(dir, name);
+		Bucket output = null;
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = new BufferedInputStream(openEntry(f, mode, secret).getInputStream());
+			DataInputStream dis = new DataInputStream(is);
+			if(dis.readInt() != MAGIC || dis.readInt() != VERSION)
+				throw new IOException("Bad magic or version");
+			if(!cacheKey.equals(dis.readUTF()))
+				throw new IOException("Cache key does not match, hash collision or corruption");
+			String mimeType = dis.readUTF();
+			long length = dis.readLong();
+			if(length > maxSize) {
+				if(logMINOR) Logger.minor(this, "Cached data too big for request: "+uri);
+				return null;
+			}
+			output = bf.makeBucket(length);
+			os = output.getOutputStream();
+			FileUtil.copy(dis, os, length);
+			os.close();
+			os = null;
+			f.setLastModified(System.currentTimeMillis());
+			if(logMINOR) Logger.minor(this, "Found "+uri+" in FProxy cache ("+length+" bytes)");
+			FetchResult result = new FetchResult(new ClientMetadata(mimeType), output);
+			output = null;
+			return result;
+		} catch (IOException e) {
+			// E.g. the file was evicted while we were reading it, or the secret changed.
+			Logger.normal(this, "Unable to read "+f+" from FProxy cache: "+e);
+			remove(name);
+			return null;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+			if(output != null) output.free();
+		}
+	}
+
+	/**
+	 * Add filtered content to the cache, evicting older entries if necessary. Does nothing if
+	 * the cache is disabled, the key is not a CHK, or the data is too big. The data must not
+	 * depend on anything about the request other than the parameters here.
+	 * @param uri The key.
+	 * @param overrideMIME The MIME type the user asked for, or null.
+	 * @param charset The charset the user asked for, or null.
+	 * @param policy The refilter policy of the request.
+	 * @param mimeType The MIME type of the filtered data.
+	 * @param data The filtered data. Not freed.
+	 * @param secret The persistent master secret, needed in ENCRYPTED mode.
+	 */
+	public void store(FreenetURI uri, String overrideMIME, String charset, REFILTER_POLICY policy, String mimeType, Bucket data, MasterSecret secret) {
+		if(!uri.isCHK() || !initialized) return;
+		long length = data.size();
+		Mode mode;
+		synchronized(this) {
+			if(!canStore(length)) return;
+			mode = this.mode;
+		}
+		if(mode == Mode.ENCRYPTED && secret == null) return;
+		if(mimeType == null) mimeType = "";
+		String cacheKey = getCacheKey(uri, overrideMIME, charset, policy);
+		String name = getFileName(cacheKey, mode, secret);
+		synchronized(this) {
+			if(entries.containsKey(name)) return;
+		}
+		File temp = new File(dir, name + TEMP_SUFFIX);
+		File f = new File(dir, name);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(openEntry(temp, mode, secret).getOutputStream());
+			DataOutputStream dos = new DataOutputStream(os);
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeUTF(cacheKey);
+			dos.writeUTF(mimeType);
+			dos.writeLong(length);
+			long written = dos.size() + length;
+			is = data.getInputStream();
+			FileUtil.copy(is, dos, length);
+			if(mode == Mode.ENCRYPTED) {
+				long padded = PaddedEphemerallyEncryptedBucket.paddedLength(written, PaddedEphemerallyEncryptedBucket.MIN_PADDED_SIZE);
+				byte[] zeros = new byte[4096];
+				for(long i = written; i < padded; i += zeros.length)
+					dos.write(zeros, 0, (int) Math.min(zeros.length, padded - i));
+			}
+			dos.close();
+			os = null;
+		} catch (IOException e) {
+			Logger.normal(this, "Unable to write "+uri+" to FProxy cache: "+e);
+			Closer.close(os);
+			temp.delete();
+			return;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		synchronized(this) {
+			// Might have been disabled or changed mode while we were writing.
+			if(this.mode != mode || !canStore(length) || !FileUtil.renameTo(temp, f)) {
+				temp.delete();
+				return;
+			}
+			Long old = entries.push(name, f.length());
+			if(old != null) totalSize -= old;
+			totalSize += f.length();
+			evict();
+		}
+		if(logMINOR) Logger.minor(this, "Stored "+uri+" in FProxy cache ("+length+" bytes)");
+	}
+
+	private synchronized void remove(String name) {
+		Long size = entries.get(name);
+		if(size == null) return;
+		entries.removeKey(name);
+		totalSize -= size;
+		new File(dir, name).delete();
+	}
+
+	private synchronized void evict() {
+		while(totalSize > maxSize && !entries.isEmpty()) {
+			String name = entries.peekKey();
+			long size = entries.popValue();
+			totalSize -= size;
+			File f = new File(dir, name);
+			if(!f.delete() && f.exists())
+				Logger.normal(this, "Unable to delete "+f+" from FProxy cache, will retry on restart");
+		}
+	}
+
+	private static RandomAccessBucket openEntry(File f, Mode mode, MasterSecret secret) {
+		RandomAccessBucket bucket = new FileBucket(f, false, false, false, false);
+		if(mode == Mode.ENCRYPTED)
+			bucket = new EncryptedRandomAccessBucket(TempBucketFactory.CRYPT_TYPE, bucket, secret);
+		return bucket;
+	}
+
+	static String getCacheKey(FreenetURI uri, String overrideMIME, String charset, REFILTER_POLICY policy) {
+		return Version.buildNumber() + "\n" + uri.toString(false, false) + "\n" +
+			(overrideMIME == null ? "" : overrideMIME) + "\n" + (charset == null ? "" : charset) + "\n" +
+			policy.name();
+	}
+
+	private static String getFileName(String cacheKey, Mode mode, MasterSecret secret) {
+		byte[] key;
+		try {
+			key = cacheKey.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		if(mode == Mode.ENCRYPTED) {
+			byte[] salt = secret.deriveKey(KeyType.HMACSHA256).getEncoded();
+			byte[] buf = Arrays.copyOf(salt, salt.length + key.length);
+			System.arraycopy(key, 0, buf, salt.length, key.length);
+			key = buf;
+		}
+		return HexUtil.bytesToHex(SHA256.digest(key));
+	}
+
+}
@@ -0,0 +1,210 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Watches FProxy connections which are waiting for their next request, so that they don't
+ * each tie up a thread blocked in a read. Between requests on a persistent connection (and
+ * before the first one), {@link ToadletContextImpl#handle} parks the connection here; when
+ * the client sends something, the connection is switched back to blocking mode and handed
+ * back to {@link SimpleToadletServer} to be handled on the executor. Toadlets themselves
+ * still see an ordinary blocking socket.
+ *
+ * Only sockets which have a channel can be parked, i.e. plain HTTP accepted through a
+ * selectable {@link freenet.io.NetworkInterface}. SSL connections are handled by blocking
+ * threads as before.
+ */
+class IdleConnectionSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(IdleConnectionSelector.class);
+	}
+
+	/** Connections idle for longer than this are closed. */
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(2);
+	/** How often to check for idle connections. */
+	private static final long IDLE_CHECK_INTERVAL = SECONDS.toMillis(10);
+
+	private final SimpleToadletServer server;
+	private final Selector selector;
+	/** Connections waiting to be registered by the selector thread. */
+	private final ArrayDeque<ToadletConnection> toRegister = new ArrayDeque<ToadletConnection>();
+	private boolean closed;
+	private int parked;
+
+	IdleConnectionSelector(SimpleToadletServer server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+	}
+
+	void start() {
+		Thread t = new Thread(this, "FProxy idle connection selector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Park a connection until its next request arrives. The caller must not touch the
+	 * connection afterwards if this returns true.
+	 * @return False if the connection can't be parked, in which case the caller should carry
+	 * on reading from it.
+	 */
+	boolean park(ToadletConnection conn) {
+		if(conn.sock.getChannel() == null) return false;
+		synchronized(this) {
+			if(closed) return false;
+			conn.idleSince = System.currentTimeMillis();
+			toRegister.add(conn);
+		}
+		selector.wakeup();
+		return true;
+	}
+
+	/** @return The number of connections currently waiting for a request. */
+	synchronized int countParked() {
+		return parked + toRegister.size();
+	}
+
+	void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		List<ToadletConnection> ready = new ArrayList<ToadletConnection>();
+		long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_INTERVAL;
+		try {
+			while(true) {
+				try {
+					selector.select(IDLE_CHECK_INTERVAL);
+				} catch (IOException e) {
+					Logger.error(this, "Select failed: "+e, e);
+					return;
+				}
+				synchronized(this) {
+					if(closed) return;
+				}
+				registerPending();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					key.cancel();
+					ready.add((ToadletConnection) key.attachment());
+				}
+				if(!ready.isEmpty()) {
+					// A channel can only go back to blocking mode once its cancelled key has
+					// been removed from the selector.
+					try {
+						selector.selectNow();
+					} catch (IOException e) {
+						Logger.error(this, "Select failed: "+e, e);
+						return;
+					}
+					synchronized(this) {
+						parked -= ready.size();
+					}
+					for(ToadletConnection conn : ready)
+						resume(conn);
+					ready.clear();
+				}
+				long now = System.currentTimeMillis();
+				if(now >= nextIdleCheck) {
+					closeIdle(now);
+					nextIdleCheck = now + IDLE_CHECK_INTERVAL;
+				}
+			}
+		} finally {
+			for(SelectionKey key : selector.keys())
+				Closer.close(((ToadletConnection) key.attachment()).sock);
+			synchronized(this) {
+				closed = true;
+				for(ToadletConnection conn : toRegister)
+					Closer.close(conn.sock);
+				toRegister.clear();
+				parked = 0;
+			}
+			Closer.close(selector);
+		}
+	}
+
+	private void registerPending() {
+		while(true) {
+			ToadletConnection conn;
+			synchronized(this) {
+				conn = toRegister.poll();
+				if(conn == null) return;
+				parked++;
+			}
+			SocketChannel channel = conn.sock.getChannel();
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, conn);
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Unable to park "+conn.sock+" : "+e, e);
+				synchronized(this) {
+					parked--;
+				}
+				Closer.close(conn.sock);
+			}
+		}
+	}
+
+	private void resume(ToadletConnection conn) {
+		conn.idleSince = -1;
+		conn.readable = true;
+		try {
+			conn.sock.getChannel().configureBlocking(true);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Unable to resume "+conn.sock+" : "+e, e);
+			Closer.close(conn.sock);
+			return;
+		}
+		handle(conn);
+	}
+
+	/** Handle the next request on a connection which has been resumed. */
+	void handle(ToadletConnection conn) {
+		server.resume(conn);
+	}
+
+	private void closeIdle(long now) {
+		int closedIdle = 0;
+		for(SelectionKey key : selector.keys()) {
+			ToadletConnection conn = (ToadletConnection) key.attachment();
+			if(key.isValid() && now - conn.idleSince > IDLE_TIMEOUT) {
+				key.cancel();
+				Closer.close(conn.sock);
+				closedIdle++;
+			}
+		}
+		if(closedIdle > 0) {
+			synchronized(this) {
+				parked -= closedIdle;
+			}
+			if(logMINOR) Logger.minor(this, "Closed "+closedIdle+" idle connections");
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.node.Node;
+import freenet.support.api.HTTPRequest;
+
+/**
+ * The node's metrics in the Prometheus text format, for scraping by Prometheus or anything else
+ * which understands it. Like the diagnostics page, this needs full access.
+ */
+public class MetricsToadlet extends Toadlet {
+
+	public static final String TOADLET_URL = "/metrics/";
+	static final String MIME_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Node node;
+
+	MetricsToadlet(HighLevelSimpleClient client, Node node) {
+		super(client);
+		this.node = node;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		if(!ctx.checkFullAccess(this))
+			return;
+		writeReply(ctx, 200, MIME_TYPE, "OK", node.metrics.toText());
+	}
+
+	@Override
+	public String path() {
+		return TOADLET_URL;
+	}
+
+}
@@ -29,6 +29,7 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
@@ -64,6 +65,7 @@ import freenet.clients.fcp.RequestStatus;
 import freenet.clients.fcp.UploadDirRequestStatus;
 import freenet.clients.fcp.UploadFileRequestStatus;
 import freenet.clients.fcp.UploadRequestStatus;
+import freenet.clients.http.updateableelements.RequestProgressElement;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.DarknetPeerNode;
@@ -82,6 +84,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.MultiValueTable;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.URLEncoder;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 import freenet.support.api.RandomAccessBucket;
@@ -139,6 +142,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	static final int MAX_FILENAME_LENGTH = 1024*1024;
 	private static final int MAX_TYPE_LENGTH = 1024;
 	static final int MAX_KEY_LENGTH = 1024*1024;
+	/** How many requests each table shows at once, unless the pageSize parameter says otherwise */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 2000;
 
 	private NodeClientCore core;
 	final FCPServer fcp;
@@ -159,6 +165,8 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	}
 
 	private boolean isReversed = false;
+	/** Pushes the progress of uncompleted requests; created on first use */
+	private RequestProgressElement.Pusher progressPusher;
 	private final boolean uploads;
 
     private static final String KEY_LIST_LOCATION = "listKeys.txt";
@@ -1107,7 +1115,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		
 		if(!(count || keys)) {
 			try {
-				RequestStatus[] reqs = fcp.getGlobalRequests();
+				RequestStatus[] reqs = fcp.getGlobalRequestsSorted(uploads);
 				MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 				HTMLNode pageNode = handleGetInner(pageMaker, reqs, core.clientContext, request, ctx);
 				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
@@ -1247,9 +1255,13 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			Logger.minor(this, "Request count: "+reqs.length);
 
 		if(reqs.length < 1){
-		    return sendEmptyQueuePage(ctx, pageMaker);
+		    return sendEmptyQueuePage(ctx, pageMaker, request);
 		}
 
+		// The statuses are live, and already in the default order; only those shown are copied.
+		String filter = request.getParam("filter").trim().toLowerCase();
+		isReversed = request.isParameterSet("reversed");
+
 		short lowestQueuedPrio = RequestStarter.PAUSED_PRIORITY_CLASS;
 
 		long totalQueuedDownloadSize = 0;
@@ -1257,96 +1269,101 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 		boolean added = false;
 		for(RequestStatus req: reqs) {
-			if(req instanceof DownloadRequestStatus && !uploads) {
-				DownloadRequestStatus download = (DownloadRequestStatus)req;
-				if(download.hasSucceeded()) {
-					if(download.toTempSpace())
-						completedDownloadToTemp.add(download);
-					else // to disk
-						completedDownloadToDisk.add(download);
-				} else if(download.hasFinished()) {
-				    FetchExceptionMode failureCode = download.getFailureCode();
-					String mimeType = download.getMIMEType();
-					if(mimeType == null && (failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME || failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)) {
-						Logger.error(this, "MIME type is null but failure code is "+FetchException.getMessage(failureCode)+" for "+download.getIdentifier()+" : "+download.getURI());
-						mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
-					}
-					if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list = failedUnknownMIMEType.get(mimeType);
-						if(list == null) {
-							list = new LinkedList<DownloadRequestStatus>();
-							failedUnknownMIMEType.put(mimeType, list);
+			// The statuses are live, so read each one under its lock, as it is updated.
+			synchronized(req) {
+				if(!filter.isEmpty() && !matchesFilter(req, filter))
+					continue;
+				if(req instanceof DownloadRequestStatus && !uploads) {
+					DownloadRequestStatus download = (DownloadRequestStatus)req;
+					if(download.hasSucceeded()) {
+						if(download.toTempSpace())
+							completedDownloadToTemp.add(download);
+						else // to disk
+							completedDownloadToDisk.add(download);
+					} else if(download.hasFinished()) {
+					    FetchExceptionMode failureCode = download.getFailureCode();
+						String mimeType = download.getMIMEType();
+						if(mimeType == null && (failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME || failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)) {
+							Logger.error(this, "MIME type is null but failure code is "+FetchException.getMessage(failureCode)+" for "+download.getIdentifier()+" : "+download.getURI());
+							mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
 						}
-						list.add(download);
-					} else if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list;
-						if(type == null) {
-							Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
-							list = failedUnknownMIMEType.get(mimeType);
+						if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME) {
+							mimeType = ContentFilter.stripMIMEType(mimeType);
+							LinkedList<DownloadRequestStatus> list = failedUnknownMIMEType.get(mimeType);
 							if(list == null) {
 								list = new LinkedList<DownloadRequestStatus>();
 								failedUnknownMIMEType.put(mimeType, list);
 							}
-						} else {
-							list = failedBadMIMEType.get(mimeType);
-							if(list == null) {
-								list = new LinkedList<DownloadRequestStatus>();
-								failedBadMIMEType.put(mimeType, list);
+							list.add(download);
+						} else if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME) {
+							mimeType = ContentFilter.stripMIMEType(mimeType);
+							FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
+							LinkedList<DownloadRequestStatus> list;
+							if(type == null) {
+								Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
+								list = failedUnknownMIMEType.get(mimeType);
+								if(list == null) {
+									list = new LinkedList<DownloadRequestStatus>();
+									failedUnknownMIMEType.put(mimeType, list);
+								}
+							} else {
+								list = failedBadMIMEType.get(mimeType);
+								if(list == null) {
+									list = new LinkedList<DownloadRequestStatus>();
+									failedBadMIMEType.put(mimeType, list);
+								}
 							}
+							list.add(download);
+						} else {
+							failedDownload.add(download);
 						}
-						list.add(download);
 					} else {
-						failedDownload.add(download);
+						short prio = download.getPriority();
+						if(prio < lowestQueuedPrio)
+							lowestQueuedPrio = prio;
+						uncompletedDownload.add(download);
+						long size = download.getDataSize();
+						if(size > 0)
+							totalQueuedDownloadSize += size;
 					}
-				} else {
-					short prio = download.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDownload.add(download);
-					long size = download.getDataSize();
+					added = true;
+				} else if(req instanceof UploadFileRequestStatus && uploads) {
+					UploadFileRequestStatus upload = (UploadFileRequestStatus)req;
+					if(upload.hasSucceeded()) {
+						completedUpload.add(upload);
+					} else if(upload.hasFinished()) {
+						failedUpload.add(upload);
+					} else {
+						short prio = upload.getPriority();
+						if(prio < lowestQueuedPrio)
+							lowestQueuedPrio = prio;
+						uncompletedUpload.add(upload);
+					}
+					long size = upload.getDataSize();
 					if(size > 0)
-						totalQueuedDownloadSize += size;
-				}
-				added = true;
-			} else if(req instanceof UploadFileRequestStatus && uploads) {
-				UploadFileRequestStatus upload = (UploadFileRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedUpload.add(upload);
-				}
-				long size = upload.getDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-				added = true;
-			} else if(req instanceof UploadDirRequestStatus && uploads) {
-				UploadDirRequestStatus upload = (UploadDirRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedDirUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedDirUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDirUpload.add(upload);
+						totalQueuedUploadSize += size;
+					added = true;
+				} else if(req instanceof UploadDirRequestStatus && uploads) {
+					UploadDirRequestStatus upload = (UploadDirRequestStatus)req;
+					if(upload.hasSucceeded()) {
+						completedDirUpload.add(upload);
+					} else if(upload.hasFinished()) {
+						failedDirUpload.add(upload);
+					} else {
+						short prio = upload.getPriority();
+						if(prio < lowestQueuedPrio)
+							lowestQueuedPrio = prio;
+						uncompletedDirUpload.add(upload);
+					}
+					long size = upload.getTotalDataSize();
+					if(size > 0)
+						totalQueuedUploadSize += size;
+	                added = true;
 				}
-				long size = upload.getTotalDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-                added = true;
 			}
 		}
 		if(!added) {
-		    return sendEmptyQueuePage(ctx, pageMaker);
+		    return sendEmptyQueuePage(ctx, pageMaker, request);
 		}
 		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
 		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
@@ -1410,16 +1427,16 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			}
 		};
 
-		Collections.sort(completedDownloadToDisk, jobComparator);
-		Collections.sort(completedDownloadToTemp, jobComparator);
-		Collections.sort(completedUpload, jobComparator);
-		Collections.sort(completedDirUpload, jobComparator);
-		Collections.sort(failedDownload, jobComparator);
-		Collections.sort(failedUpload, jobComparator);
-		Collections.sort(failedDirUpload, jobComparator);
-		Collections.sort(uncompletedDownload, jobComparator);
-		Collections.sort(uncompletedUpload, jobComparator);
-		Collections.sort(uncompletedDirUpload, jobComparator);
+		sortRequests(completedDownloadToDisk, jobComparator, request);
+		sortRequests(completedDownloadToTemp, jobComparator, request);
+		sortRequests(completedUpload, jobComparator, request);
+		sortRequests(completedDirUpload, jobComparator, request);
+		sortRequests(failedDownload, jobComparator, request);
+		sortRequests(failedUpload, jobComparator, request);
+		sortRequests(failedDirUpload, jobComparator, request);
+		sortRequests(uncompletedDownload, jobComparator, request);
+		sortRequests(uncompletedUpload, jobComparator, request);
+		sortRequests(uncompletedDirUpload, jobComparator, request);
 
 		String pageName;
 		if(uploads)
@@ -1520,6 +1537,8 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild(navigationBar);
 		}
 
+		contentNode.addChild(createFilterForm(request));
+
 		final String[] priorityClasses = new String[] {
 				l10n("priority0"),
 				l10n("priority1"),
@@ -1566,9 +1585,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
 			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			}
 		}
 
@@ -1576,9 +1595,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
 			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			}
 		}
 
@@ -1586,9 +1605,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedUpload");
 			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			} else  {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			}
 		}
 
@@ -1596,9 +1615,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDirUpload");
 			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			}
 		}
 
@@ -1606,9 +1625,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDownload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			}
 		}
 
@@ -1616,9 +1635,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			}
 		}
 
@@ -1626,9 +1645,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDirUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			}
 		}
 
@@ -1651,11 +1670,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						list.addChild("li", s);
 				}
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
+				sortRequests(getters, jobComparator, request);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				}
 			}
 		}
@@ -1671,11 +1690,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				// FIXME add a class for easier styling.
 				failedContent.addChild("p", NodeL10n.getBase().getString("UnknownContentTypeException.explanation", "type", type));
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
+				sortRequests(getters, jobComparator, request);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				}
 			}
 
@@ -1687,7 +1706,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
                 uncompletedContent.addChild(
                     createRequestTable(
-                        pageMaker, ctx, uncompletedDownload,
+                        pageMaker, ctx, request, uncompletedDownload,
                         new QueueColumn[] {
                             QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
                             QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1704,7 +1723,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
                         QueueType.UncompletedDownload)
                 );
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
 			}
 		}
 
@@ -1714,7 +1733,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
                 uncompletedContent.addChild(
                     createRequestTable(
-                        pageMaker, ctx, uncompletedUpload,
+                        pageMaker, ctx, request, uncompletedUpload,
                         new QueueColumn[] {
                             QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
                             QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1731,7 +1750,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
                         QueueType.UncompletedUpload)
                 );
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
 			}
 		}
 
@@ -1741,7 +1760,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
                 uncompletedContent.addChild(
                     createRequestTable(
-                        pageMaker, ctx, uncompletedDirUpload,
+                        pageMaker, ctx, request, uncompletedDirUpload,
                         new QueueColumn[] {
                             QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.PRIORITY,
                             QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1757,7 +1776,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
                         QueueType.UncompletedDirUpload)
                 );
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
 			}
 		}
 
@@ -1768,13 +1787,19 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return pageNode;
 	}
 
-	private HTMLNode sendEmptyQueuePage(ToadletContext ctx, PageMaker pageMaker) {
+	private HTMLNode sendEmptyQueuePage(ToadletContext ctx, PageMaker pageMaker, HTTPRequest request) {
         PageNode page = pageMaker.getPageNode(l10n("title"+(uploads?"Uploads":"Downloads")), ctx);
         HTMLNode pageNode = page.outer;
         HTMLNode contentNode = page.content;
         /* add alert summary box */
         if(ctx.isAllowedFullAccess())
             contentNode.addChild(ctx.getAlertManager().createSummary());
+        if(request.getParam("filter").trim().length() > 0) {
+            contentNode.addChild(createFilterForm(request));
+            HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", l10n("noMatchingRequestsTitle"), contentNode, "queue-empty", true);
+            infoboxContent.addChild("#", l10n("noMatchingRequests"));
+            return pageNode;
+        }
         HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", l10n("globalQueueIsEmpty"), contentNode, "queue-empty", true);
         infoboxContent.addChild("#", l10n("noTaskOnGlobalQueue"));
         if(!uploads)
@@ -1782,6 +1807,129 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
         return pageNode;
     }
 
+	/** @param filter The lower case text to look for in the identifier, key and filename. */
+	private static boolean matchesFilter(RequestStatus req, String filter) {
+		if(req.getIdentifier().toLowerCase().contains(filter))
+			return true;
+		FreenetURI uri = req.getURI();
+		if(uri != null && uri.toString().toLowerCase().contains(filter))
+			return true;
+		if(req instanceof UploadRequestStatus) {
+			uri = ((UploadRequestStatus) req).getFinalURI();
+			if(uri != null && uri.toString().toLowerCase().contains(filter))
+				return true;
+		}
+		String filename = req.getPreferredFilename();
+		return filename != null && filename.toLowerCase().contains(filter);
+	}
+
+	/**
+	 * Put a table's requests in the order asked for. They are already in the default order, so
+	 * this only needs to sort them if sorting by a column, and then sorts copies, because a
+	 * request's progress may change while it is being sorted.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends RequestStatus> void sortRequests(List<T> requests, Comparator<RequestStatus> comparator, HTTPRequest request) {
+		if(request.isParameterSet("sortBy")) {
+			for(ListIterator<T> it = requests.listIterator(); it.hasNext();)
+				it.set((T) it.next().clone());
+			Collections.sort(requests, comparator);
+		} else if(request.isParameterSet("reversed")) {
+			Collections.reverse(requests);
+		}
+	}
+
+	/**
+	 * Get the requests on the page of a table asked for by its "start-" parameter, copied so
+	 * they don't change while being rendered, and add links to its other pages, if any.
+	 * @param name Identifies the table in the parameter and in the links.
+	 */
+	private List<RequestStatus> getPage(HTMLNode parent, List<? extends RequestStatus> requests, String name, HTTPRequest request) {
+		int pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, request.getIntParam("pageSize", DEFAULT_PAGE_SIZE)));
+		int total = requests.size();
+		int start = request.getIntParam("start-" + name, 0);
+		if(start < 0 || start >= total)
+			start = 0;
+		int end = Math.min(total, start + pageSize);
+		List<RequestStatus> page = new ArrayList<RequestStatus>(end - start);
+		for(RequestStatus status : requests.subList(start, end))
+			page.add(status.clone());
+		if(total > pageSize) {
+			HTMLNode pager = parent.addChild("div", new String[] { "class", "id" }, new String[] { "queue-pager", "page-" + name });
+			if(start > 0)
+				pager.addChild("a", "href", pageLink(request, name, Math.max(0, start - pageSize)), l10n("previousPage"));
+			pager.addChild("span", "class", "queue-page-range", l10n("pageRange", new String[] { "from", "to", "total" },
+					new String[] { Integer.toString(start + 1), Integer.toString(end), Integer.toString(total) }));
+			if(end < total)
+				pager.addChild("a", "href", pageLink(request, name, end), l10n("nextPage"));
+		}
+		return page;
+	}
+
+	/** A link to another page of a table, keeping the order, filter and page size. */
+	private static String pageLink(HTTPRequest request, String name, int start) {
+		StringBuilder sb = new StringBuilder();
+		appendParameter(sb, request, "sortBy");
+		appendParameter(sb, request, "reversed");
+		appendParameter(sb, request, "filter");
+		appendParameter(sb, request, "pageSize");
+		String param = URLEncoder.encode("start-" + name, false);
+		sb.append(sb.length() == 0 ? '?' : '&').append(param).append('=').append(start);
+		sb.append("#page-").append(URLEncoder.encode(name, false));
+		return sb.toString();
+	}
+
+	/** A link to sort by a column, in the other direction to the current order, keeping the
+	 * filter and page size. */
+	private String sortLink(HTTPRequest request, String sortBy) {
+		StringBuilder sb = new StringBuilder("?sortBy=").append(sortBy);
+		if(!isReversed)
+			sb.append("&reversed");
+		appendParameter(sb, request, "filter");
+		appendParameter(sb, request, "pageSize");
+		return sb.toString();
+	}
+
+	private static void appendParameter(StringBuilder sb, HTTPRequest request, String name) {
+		if(!request.isParameterSet(name))
+			return;
+		sb.append(sb.length() == 0 ? '?' : '&').append(name);
+		String value = request.getParam(name);
+		if(value.length() > 0)
+			sb.append('=').append(URLEncoder.encode(value, false));
+	}
+
+	private HTMLNode createFilterForm(HTTPRequest request) {
+		HTMLNode form = new HTMLNode("form", new String[] { "action", "method", "class" }, new String[] { path(), "get", "queue-filter" });
+		for(String name : new String[] { "sortBy", "pageSize" }) {
+			if(request.isParameterSet(name))
+				form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", name, request.getParam(name) });
+		}
+		if(request.isParameterSet("reversed"))
+			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "reversed", "" });
+		String filter = request.getParam("filter");
+		form.addChild("label", "for", "queue-filter-text", l10n("filterLabel") + ' ');
+		form.addChild("input", new String[] { "type", "name", "id", "value", "size" },
+				new String[] { "text", "filter", "queue-filter-text", filter, "30" });
+		form.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("filterButton") });
+		if(filter.length() > 0) {
+			StringBuilder sb = new StringBuilder(path());
+			appendParameter(sb, request, "sortBy");
+			appendParameter(sb, request, "reversed");
+			appendParameter(sb, request, "pageSize");
+			form.addChild("#", " ");
+			form.addChild("a", "href", sb.toString(), l10n("clearFilter"));
+		}
+		return form;
+	}
+
+	private synchronized RequestProgressElement.Pusher getProgressPusher(ToadletContext ctx) {
+		if(progressPusher == null)
+			progressPusher = new RequestProgressElement.Pusher(core.node.ticker,
+					((SimpleToadletServer) ctx.getContainer()).pushDataManager, fcp);
+		return progressPusher;
+	}
+
     private HTMLNode createReasonCell(String failureReason) {
 		HTMLNode reasonCell = new HTMLNode("td", "class", "request-reason");
 		if (failureReason == null) {
@@ -1792,6 +1940,15 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return reasonCell;
 	}
 
+	public static HTMLNode createProgressCell(RequestStatus status, boolean advancedMode, boolean upload) {
+		COMPRESS_STATE compressing = status instanceof UploadFileRequestStatus ?
+				((UploadFileRequestStatus) status).isCompressing() : COMPRESS_STATE.WORKING;
+		return createProgressCell(advancedMode, status.isStarted(), compressing,
+				status.getFetchedBlocks(), status.getFailedBlocks(), status.getFatalyFailedBlocks(),
+				status.getMinBlocks(), status.getTotalBlocks(),
+				status.isTotalFinalized() || status instanceof UploadFileRequestStatus, upload);
+	}
+
 	public static HTMLNode createProgressCell(boolean advancedMode, boolean started, COMPRESS_STATE compressing, int fetched, int failed, int fatallyFailed, int min, int total, boolean finalized, boolean upload) {
 		HTMLNode progressCell = new HTMLNode("td", "class", "request-progress");
 		if (!started) {
@@ -2089,15 +2246,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
         return lastFailureCell;
     }
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
-		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
+		return createRequestTable(pageMaker, ctx, request, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
 	}
 	
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
 		boolean hasFriends = core.node.getDarknetConnections().length > 0;
 		long now = System.currentTimeMillis();
 		
 		HTMLNode formDiv = new HTMLNode("div", "class", "request-table-form");
+		String pageName = mimeType == null ? id : id + "-" + mimeType;
+		List<RequestStatus> page = getPage(formDiv, requests, pageName, request);
 		HTMLNode form = ctx.addFormChild(formDiv, path(), "request-table-form-"+id+(advancedModeEnabled?"-advanced":"-simple"));
 		
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, true, queueType);
@@ -2112,10 +2271,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		for (QueueColumn column : columns) {
 			switch (column) {
 				case IDENTIFIER:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=id" : "?sortBy=id&reversed")).addChild("#", l10n("identifier"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "id")).addChild("#", l10n("identifier"));
 					break;
 				case SIZE:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=size" : "?sortBy=size&reversed")).addChild("#", l10n("size"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "size")).addChild("#", l10n("size"));
 					break;
 				case MIME_TYPE:
 					headerRow.addChild("th", l10n("mimeType"));
@@ -2139,17 +2298,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					headerRow.addChild("th", l10n("totalSize"));
 					break;
 				case PROGRESS:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=progress" : "?sortBy=progress&reversed")).addChild("#", l10n("progress"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "progress")).addChild("#", l10n("progress"));
 					break;
 				case REASON:
 					headerRow.addChild("th", l10n("reason"));
 					break;
 				case LAST_ACTIVITY:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=lastActivity" : "?sortBy=lastActivity&reversed"),  l10n("lastActivity"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "lastActivity"),  l10n("lastActivity"));
 					break;
                 case LAST_FAILURE:
                     headerRow.addChild("th").addChild("a", "href",
-                            (isReversed ? "?sortBy=lastFailure" : "?sortBy=lastFailure&reversed"),
+                            sortLink(request, "lastFailure"),
                             l10n("lastFailure"));
                     break;
 				case COMPAT_MODE:
@@ -2159,7 +2318,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		}
 		//Add a row with a checkbox for each request.
 		int x = 0;
-		for (RequestStatus clientRequest : requests) {
+		boolean pushProgress = !(queueType.isCompleted || queueType.isFailed) &&
+			ctx.getContainer().isFProxyJavascriptEnabled() && ctx.getContainer().isFProxyWebPushingEnabled();
+		for (RequestStatus clientRequest : page) {
 			HTMLNode requestRow = table.addChild("tr", "class", "priority" + clientRequest.getPriority());
 			requestRow.addChild(createCheckboxCell(clientRequest, x++));
 
@@ -2210,22 +2371,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
 						break;
 					case PROGRESS:
-						if(clientRequest instanceof UploadFileRequestStatus)
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
+						if(pushProgress)
+							requestRow.addChild("td", "class", "request-progress").addChild(new RequestProgressElement(
+									getProgressPusher(ctx), clientRequest.getIdentifier(), ctx.isAdvancedModeEnabled(), queueType.isUpload, ctx));
 						else
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), COMPRESS_STATE.WORKING,
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
+							requestRow.addChild(createProgressCell(clientRequest, ctx.isAdvancedModeEnabled(), queueType.isUpload));
 						break;
 					case REASON:
 						requestRow.addChild(createReasonCell(clientRequest.getFailureReason(false)));
@@ -120,8 +120,18 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private volatile boolean disableProgressPage;
 	private int maxFproxyConnections;
 	
+	/** Number of connections currently being handled by a thread. Connections parked in
+	 * {@link #idleConnections} between requests don't count. */
 	private int fproxyConnections;
 	
+	/** If true, connections waiting for a request don't hold a thread. Takes effect on restart. */
+	private boolean parkIdleConnections;
+	/** Null unless parkIdleConnections was set when FProxy started, or if FProxy is disabled. */
+	private volatile IdleConnectionSelector idleConnections;
+	private long filteredContentCacheSize;
+	/** Set once FProxy has been created. */
+	private FilteredContentCache filteredContentCache;
+	
 	private boolean finishedStartup;
 	
 	/** The PushDataManager handles all the pushing tasks*/
@@ -320,9 +330,17 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 					myThread.interrupt();
 					myThread = null;
 					SimpleToadletServer.this.notifyAll();
-					return;
 				}
 			}
+			if(!val) {
+				closeIdleConnections();
+				return;
+			}
+			try {
+				maybeStartIdleConnections();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to park idle connections: "+e, e);
+			}
 			createFproxy();
 			myThread.setDaemon(true);
 			myThread.start();
@@ -604,6 +622,27 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		});
 		enablePersistentConnections = fproxyConfig.getBoolean("enablePersistentConnections");
 		
+		fproxyConfig.register("parkIdleConnections", true, configItemOrder++, true, false, "SimpleToadletServer.parkIdleConnections", "SimpleToadletServer.parkIdleConnectionsLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(SimpleToadletServer.this) {
+							return parkIdleConnections;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(SimpleToadletServer.this) {
+							if(parkIdleConnections == val) return;
+							parkIdleConnections = val;
+						}
+						throw new NodeNeedRestartException(l10n("parkIdleConnectionsNeedsRestart"));
+					}
+		});
+		parkIdleConnections = fproxyConfig.getBoolean("parkIdleConnections");
+		
 		// Off by default.
 		// I had hoped it would yield a significant performance boost to bootstrap performance
 		// on browsers with low numbers of simultaneous connections. Unfortunately the bottleneck
@@ -648,6 +687,28 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		FProxyToadlet.MAX_LENGTH_NO_PROGRESS = fproxyConfig.getLong("passthroughMaxSize");
 		fproxyConfig.register("passthroughMaxSizeProgress", FProxyToadlet.MAX_LENGTH_WITH_PROGRESS, configItemOrder++, true, false, "SimpleToadletServer.passthroughMaxSizeProgress", "SimpleToadletServer.passthroughMaxSizeProgressLong", new FProxyPassthruMaxSizeProgress(), true);
 		FProxyToadlet.MAX_LENGTH_WITH_PROGRESS = fproxyConfig.getLong("passthroughMaxSizeProgress");
+		fproxyConfig.register("filteredContentCacheSize", 64L*1024*1024, configItemOrder++, true, false, "SimpleToadletServer.filteredContentCacheSize", "SimpleToadletServer.filteredContentCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						synchronized(SimpleToadletServer.this) {
+							return filteredContentCacheSize;
+						}
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if(val < 0) throw new InvalidConfigValueException(l10n("filteredContentCacheSizeNegative"));
+						FilteredContentCache cache;
+						synchronized(SimpleToadletServer.this) {
+							filteredContentCacheSize = val;
+							cache = filteredContentCache;
+						}
+						if(cache != null) cache.setMaxSize(val);
+					}
+		}, true);
+		filteredContentCacheSize = fproxyConfig.getLong("filteredContentCacheSize");
 		System.out.println("Set fproxy max length to "+FProxyToadlet.MAX_LENGTH_NO_PROGRESS+" and max length with progress to "+FProxyToadlet.MAX_LENGTH_WITH_PROGRESS+" = "+fproxyConfig.getLong("passthroughMaxSizeProgress"));
 
 		fproxyConfig.register("enableCachingForChkAndSskKeys", false, configItemOrder++, true, true, "SimpleToadletServer.enableCachingForChkAndSskKeys", "SimpleToadletServer.enableCachingForChkAndSskKeysLong", new BooleanCallback() {
@@ -827,9 +888,40 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true, parkIdleConnections);
+			maybeStartIdleConnections();
+		}
+	}
+
+	private synchronized void maybeStartIdleConnections() throws IOException {
+		if(!parkIdleConnections || ssl || idleConnections != null) return;
+		idleConnections = new IdleConnectionSelector(this);
+		idleConnections.start();
+	}
+
+	/** Stop parking connections, and close those which are parked. */
+	private void closeIdleConnections() {
+		IdleConnectionSelector idle;
+		synchronized(this) {
+			idle = idleConnections;
+			idleConnections = null;
 		}
-	}		
+		if(idle != null) idle.close();
+	}
+
+	/** Called by {@link IdleConnectionSelector} when a parked connection has a new request. */
+	void resume(ToadletConnection conn) {
+		new SocketHandler(conn, true).start();
+	}
+
+	public synchronized long getFilteredContentCacheSize() {
+		return filteredContentCacheSize;
+	}
+
+	/** Called when FProxy is created, so changes to the cache size take effect immediately. */
+	public synchronized void setFilteredContentCache(FilteredContentCache cache) {
+		filteredContentCache = cache;
+	}
 
 	@Override
 	public boolean doRobots() {
@@ -997,8 +1089,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				if(myThread == null) return;
 			}
 			Socket conn = networkInterface.accept();
-			if (WrapperManager.hasShutdownHookBeenTriggered())
+			if (WrapperManager.hasShutdownHookBeenTriggered()) {
+				closeIdleConnections();
 				return;
+			}
             if(conn == null)
                 continue; // timeout
             if(logMINOR)
@@ -1011,10 +1105,19 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
+		/** Set if the connection was resumed after being parked. */
+		private final ToadletConnection conn;
 		final boolean finishedStartup;
 		
 		public SocketHandler(Socket conn, boolean finishedStartup) {
 			this.sock = conn;
+			this.conn = null;
+			this.finishedStartup = finishedStartup;
+		}
+		
+		SocketHandler(ToadletConnection conn, boolean finishedStartup) {
+			this.sock = conn.sock;
+			this.conn = conn;
 			this.finishedStartup = finishedStartup;
 		}
 
@@ -1033,7 +1136,14 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		    freenet.support.Logger.OSThread.logPID(this);
 			if(logMINOR) Logger.minor(this, "Handling connection");
 			try {
-				ToadletContextImpl.handle(sock, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager);
+				IdleConnectionSelector idle = idleConnections;
+				if(idle == null && conn == null) {
+					ToadletContextImpl.handle(sock, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager);
+				} else {
+					ToadletConnection c = conn;
+					if(c == null) c = new ToadletConnection(sock);
+					ToadletContextImpl.handle(c, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager, idle);
+				}
 			} catch (Throwable t) {
 				System.err.println("Caught in SimpleToadletServer: "+t);
 				t.printStackTrace();
@@ -3,6 +3,7 @@ package freenet.clients.http;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.IOException;
@@ -35,6 +36,8 @@ import freenet.node.PeerManager;
 import freenet.node.PeerNodeStatus;
 import freenet.node.RequestClient;
 import freenet.node.RequestStarterGroup;
+import freenet.node.RequestTrace;
+import freenet.node.RequestTracer;
 import freenet.node.RequestTracker;
 import freenet.node.Version;
 import freenet.node.stats.DataStoreInstanceType;
@@ -131,6 +134,10 @@ public class StatisticsToadlet extends Toadlet {
 				showRequesters(request, ctx);
 				return;
 			}
+			if(requestPath.equals("traces.json") || requestPath.equals("/traces.json")) {
+				writeReply(ctx, 200, "application/json; charset=utf-8", "OK", node.nodeStats.tracer.toJSON());
+				return;
+			}
 		}
 
 		node.clientCore.bandwidthStatsPutter.updateData(node);
@@ -447,6 +454,8 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode threadUsageList = threadUsageContent.addChild("ul");
 			getThreadNames(threadUsageList);
 			
+			drawSlowRequestsBox(nextTableCell, now);
+
 			// rejection reasons box
 			drawRejectReasonsBox(nextTableCell, false);
 			drawRejectReasonsBox(nextTableCell, true);
@@ -575,6 +584,37 @@ public class StatisticsToadlet extends Toadlet {
 		rejectReasonsInfobox.addChild("div", "class", "infobox-content").addChild(rejectReasonsTable);
 	}
 
+	/** The slowest recent traced requests, if tracing is enabled, or was. */
+	private void drawSlowRequestsBox(HTMLNode nextTableCell, long now) {
+		RequestTracer tracer = node.nodeStats.tracer;
+		RequestTrace[] traces = tracer.getSlowTraces();
+		if(tracer.getSampleInterval() == 0 && traces.length == 0)
+			return;
+		HTMLNode slowRequestsInfobox = nextTableCell.addChild("div", "class", "infobox");
+		slowRequestsInfobox.addChild("div", "class", "infobox-header", l10n("slowRequestsTitle"));
+		HTMLNode slowRequestsContent = slowRequestsInfobox.addChild("div", "class", "infobox-content");
+		slowRequestsContent.addChild("p").addChild("a", "href", path() + "traces.json", l10n("slowRequestsJSON"));
+		if(traces.length == 0) {
+			slowRequestsContent.addChild("p", l10n("slowRequestsNone"));
+			return;
+		}
+		HTMLNode slowRequestsTable = slowRequestsContent.addChild("table", "border", "0");
+		HTMLNode row = slowRequestsTable.addChild("tr");
+		row.addChild("th", l10n("slowRequestsAge"));
+		row.addChild("th", l10n("slowRequestsResult"));
+		row.addChild("th", l10n("slowRequestsTotal"));
+		for(RequestTrace.Phase phase : RequestTrace.Phase.values())
+			row.addChild("th", phase.label);
+		for(RequestTrace trace : traces) {
+			row = slowRequestsTable.addChild("tr");
+			row.addChild("td", TimeUtil.formatTime(now - trace.getFinishedTime()));
+			row.addChild("td", "title", trace.getKey().toString(), trace.getResult());
+			row.addChild("td", TimeUtil.formatTime(NANOSECONDS.toMillis(trace.totalTime()), 2, true));
+			for(long time : trace.phaseTimes())
+				row.addChild("td", time == 0 ? "" : TimeUtil.formatTime(NANOSECONDS.toMillis(time), 2, true));
+		}
+	}
+
 	private void drawNodeVersionBox(HTMLNode versionInfobox) {
 		
 		versionInfobox.addChild("div", "class", "infobox-header", l10n("versionTitle"));
@@ -1057,6 +1097,11 @@ public class StatisticsToadlet extends Toadlet {
 				activityList.addChild("li", "ARK\u00a0Fetch\u00a0Requests:\u00a0" + numARKFetchers);
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
+			activityList.addChild("li", "USKPollsLastHour:\u00a0" + node.clientCore.uskManager.getPollsLastHour() + 
+					"\u00a0(" + node.clientCore.uskManager.getQueuedPolls() + "\u00a0queued)");
+			long detectionDelay = node.clientCore.uskManager.getAverageUpdateDetectionDelay();
+			if (detectionDelay >= 0)
+				activityList.addChild("li", "USKUpdateDetectionDelay:\u00a0" + TimeUtil.formatTime(detectionDelay));
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.nodeStats.getBandwidthLiabilityUsage()));
 		}
 		
@@ -1278,6 +1323,8 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		overviewList.addChild("li", "RAMBucketSlabs:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getSlabBytesInUse())+ " used, "+ SizeUtil.formatSize(core.tempBucketFactory.getSlabBytesFree())+" free"+(core.tempBucketFactory.isSlabPoolDirect() ? "" : " (on heap)"));
+		overviewList.addChild("li", "RAMBucketMigrations:\u00a0" + core.tempBucketFactory.getBackgroundMigrations()+ " background, "+ core.tempBucketFactory.getForegroundMigrations()+" foreground");
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
@@ -0,0 +1,44 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+import freenet.support.io.LineReadingInputStream;
+
+/**
+ * An HTTP connection to FProxy and its buffered input. Kept together so that a persistent
+ * connection can be handed between threads between requests (see
+ * {@link IdleConnectionSelector}) without losing pipelined data already read into the buffer.
+ */
+class ToadletConnection {
+
+	final Socket sock;
+	final InputStream is;
+	final LineReadingInputStream lis;
+	/** When the connection was parked, or -1 if it is being handled. */
+	long idleSince = -1;
+	/** Set when a parked connection is resumed because the socket became readable. */
+	boolean readable;
+
+	ToadletConnection(Socket sock) throws IOException {
+		this.sock = sock;
+		this.is = new BufferedInputStream(sock.getInputStream(), 4096);
+		this.lis = new LineReadingInputStream(is);
+	}
+
+	/** @return True if the next request has already been (at least partly) received, so
+	 * reading it won't block for long. */
+	boolean hasPendingInput() throws IOException {
+		if(readable) {
+			readable = false;
+			return true;
+		}
+		return is.available() > 0;
+	}
+
+}
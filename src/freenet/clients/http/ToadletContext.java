@@ -111,6 +111,18 @@ public interface ToadletContext {
 	 * @see freenet.support.io.NoFreeBucket
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
+
+	/**
+	 * Write part of a bucket, e.g. for a Range request. You must send reply headers first.
+	 * Unlike {@link #writeData(Bucket)} this does not free the bucket, as callers often need
+	 * to send several ranges from it. Where possible the data is sent directly from the file
+	 * to the socket without being copied.
+	 *
+	 * @param data The Bucket which contains the data.
+	 * @param offset The first byte to send.
+	 * @param length The number of bytes to send.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
 	
 	/**
 	 * Get the page maker object.
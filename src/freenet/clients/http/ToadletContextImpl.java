@@ -1,6 +1,6 @@
 package freenet.clients.http;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -12,6 +12,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -38,6 +39,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.TooLongException;
@@ -67,6 +69,8 @@ public class ToadletContextImpl implements ToadletContext {
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
 	private ArrayList<Cookie> replyCookies; // Null until the first time the user sets a Cookie.
 	private final OutputStream sockOutputStream;
+	/** Only used for its channel, if any, when sending ranges of file buckets. */
+	private final Socket sock;
 	private final PageMaker pagemaker;
 	private final BucketFactory bf;
 	private final ToadletContainer container;
@@ -105,6 +109,7 @@ public class ToadletContextImpl implements ToadletContext {
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
+		this.sock = sock;
 		sockOutputStream = sock.getOutputStream();
 		remoteAddr = sock.getInetAddress();
 		if(logDEBUG)
@@ -487,13 +492,36 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		ToadletConnection conn;
 		try {
-			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
+			conn = new ToadletConnection(sock);
+		} catch (IOException e) {
+			Closer.close(sock);
+			return;
+		}
+		handle(conn, container, pageMaker, userAlertManager, bookmarkManager, null);
+	}
+
+	/**
+	 * Handle requests on a connection until it is closed, or until it is waiting for the next
+	 * request and can be parked.
+	 * @param idle If not null, park the connection here rather than blocking the thread while
+	 * waiting for the next request. It will be passed back to the container to resume.
+	 */
+	static void handle(ToadletConnection conn, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, IdleConnectionSelector idle) {
+		Socket sock = conn.sock;
+		try {
+			InputStream is = conn.is;
 			
-			LineReadingInputStream lis = new LineReadingInputStream(is);
+			LineReadingInputStream lis = conn.lis;
 			
 			while(true) {
 				
+				// Pipelined requests are handled straight away, otherwise give up the thread
+				// until the client sends something.
+				if(idle != null && !conn.hasPendingInput() && idle.park(conn))
+					return;
+				
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
 					sock.close();
@@ -806,6 +834,20 @@ public class ToadletContextImpl implements ToadletContext {
 		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
 		data.free();
 	}
+
+	@Override
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
+		if(closed) throw new ToadletContextClosedException();
+		SocketChannel channel = sock.getChannel();
+		File file = channel == null ? null : BucketTools.getFile(data);
+		if(file != null) {
+			// The headers have already gone out through the stream, which is unbuffered.
+			sockOutputStream.flush();
+			BucketTools.transferTo(file, channel, offset, length);
+		} else {
+			BucketTools.copyTo(data, sockOutputStream, offset, length);
+		}
+	}
 	
 	@Override
 	public BucketFactory getBucketFactory() {
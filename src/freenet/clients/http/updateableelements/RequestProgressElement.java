@@ -0,0 +1,128 @@
+package freenet.clients.http.updateableelements;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import freenet.client.async.PersistenceDisabledException;
+import freenet.clients.fcp.FCPServer;
+import freenet.clients.fcp.RequestStatus;
+import freenet.clients.http.QueueToadlet;
+import freenet.clients.http.ToadletContext;
+import freenet.support.Base64;
+import freenet.support.HTMLNode;
+import freenet.support.Ticker;
+
+/**
+ * A pushed element that renders the progress of one request on the queue page. The queue page
+ * can show thousands of requests, so rather than listening to each of them, a {@link Pusher}
+ * polls the rendered elements and only pushes those whose progress has changed, so the browser
+ * only fetches the rows which changed.
+ */
+public class RequestProgressElement extends BaseUpdateableElement {
+
+	/** Checks the rendered progress elements every few seconds, and pushes those which would now
+	 * be rendered differently. Only runs while there are elements to check. */
+	public static class Pusher implements Runnable {
+
+		/** How often to check for changes */
+		private static final int INTERVAL = 2000;
+
+		private final Ticker ticker;
+		private final PushDataManager pushDataManager;
+		private final FCPServer fcp;
+		private final Set<RequestProgressElement> elements = new CopyOnWriteArraySet<RequestProgressElement>();
+
+		public Pusher(Ticker ticker, PushDataManager pushDataManager, FCPServer fcp) {
+			this.ticker = ticker;
+			this.pushDataManager = pushDataManager;
+			this.fcp = fcp;
+		}
+
+		void register(RequestProgressElement element) {
+			elements.add(element);
+			// No duplicates, so this only starts the job if it isn't already queued.
+			ticker.queueTimedJob(this, "Queue progress pusher", INTERVAL, false, true);
+		}
+
+		void deregister(RequestProgressElement element) {
+			elements.remove(element);
+		}
+
+		@Override
+		public void run() {
+			for(RequestProgressElement element : elements) {
+				if(element.hasChanged())
+					pushDataManager.updateElement(element.getUpdaterId(null));
+			}
+			if(!elements.isEmpty())
+				ticker.queueTimedJob(this, "Queue progress pusher", INTERVAL, false, true);
+		}
+	}
+
+	private final Pusher pusher;
+	private final String identifier;
+	private final boolean advancedMode;
+	private final boolean upload;
+	/** The progress as last rendered, to tell whether it has changed */
+	private volatile String rendered;
+
+	public RequestProgressElement(Pusher pusher, String identifier, boolean advancedMode, boolean upload, ToadletContext ctx) {
+		super("div", "class", "request-progress-pushed", ctx);
+		this.pusher = pusher;
+		this.identifier = identifier;
+		this.advancedMode = advancedMode;
+		this.upload = upload;
+		init(true);
+		pusher.register(this);
+	}
+
+	private RequestStatus getStatus() {
+		try {
+			return pusher.fcp.getGlobalRequestStatus(identifier);
+		} catch (PersistenceDisabledException e) {
+			return null;
+		}
+	}
+
+	boolean hasChanged() {
+		RequestStatus status = getStatus();
+		if(status == null) return false;
+		return !QueueToadlet.createProgressCell(status, advancedMode, upload).generateChildren().equals(rendered);
+	}
+
+	@Override
+	public void updateState(boolean initial) {
+		RequestStatus status = getStatus();
+		// If removed, leave the last progress shown.
+		if(status == null) return;
+		children.clear();
+		HTMLNode cell = QueueToadlet.createProgressCell(status, advancedMode, upload);
+		addChildren(cell.getChildren());
+		rendered = generateChildren();
+	}
+
+	@Override
+	public String getUpdaterId(String requestId) {
+		return getId(identifier);
+	}
+
+	public static String getId(String identifier) {
+		return Base64.encodeStandardUTF8("requestprogress[" + identifier + "]");
+	}
+
+	@Override
+	public String getUpdaterType() {
+		return UpdaterConstants.REPLACER_UPDATER;
+	}
+
+	@Override
+	public void dispose() {
+		pusher.deregister(this);
+	}
+
+	@Override
+	public String toString() {
+		return "RequestProgressElement[identifier:" + identifier + ",updaterId:" + getUpdaterId(null) + "]";
+	}
+
+}
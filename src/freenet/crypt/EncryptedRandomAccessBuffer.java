@@ -11,7 +11,7 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.crypto.SecretKey;
 
@@ -31,18 +31,23 @@ import freenet.support.io.StorageFormatException;
 /**
  * EncryptedRandomAccessBuffer is a encrypted RandomAccessBuffer implementation using a 
  * SkippingStreamCipher. 
+ * 
+ * The cipher is a counter mode stream cipher, so the keystream for any offset can be computed
+ * directly, by setting the block counter. Each pread() or pwrite() takes a cipher from a pool,
+ * positions it, and puts it back, so concurrent reads and writes don't wait for each other.
  * @author unixninja92
  * Suggested EncryptedRandomAccessBufferType to use: ChaCha128
  */
 public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable { 
     private static final long serialVersionUID = 1L;
-    private final ReentrantLock readLock = new ReentrantLock();
-    private final ReentrantLock writeLock = new ReentrantLock();
+    /** Largest chunk encrypted at once by pwrite(). */
+    static final int WRITE_CHUNK = 32 * 1024;
     private final EncryptedRandomAccessBufferType type;
     private final LockableRandomAccessBuffer underlyingBuffer;
     
-    private transient SkippingStreamCipher cipherRead;
-    private transient SkippingStreamCipher cipherWrite;
+    /** Ciphers not currently in use. There is one per thread that has used this buffer at the 
+     * same time as another. */
+    private transient ConcurrentLinkedQueue<Keystream> ciphers;
     private transient ParametersWithIV cipherParams;//includes key
     
     private transient SecretKey headerMacKey;
@@ -82,9 +87,6 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
     
     private void setup(MasterSecret masterKey, boolean newFile) throws IOException, GeneralSecurityException {
-        this.cipherRead = this.type.get();
-        this.cipherWrite = this.type.get();
-        
         MasterSecret masterSecret = masterKey;
         
         this.headerEncKey = masterSecret.deriveKey(type.encryptKey);
@@ -137,8 +139,42 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
             throw new IllegalStateException(e); // Must be a bug.
         }
         this.cipherParams = tempPram;
-    	cipherRead.init(false, cipherParams);
-    	cipherWrite.init(true, cipherParams);
+        ciphers = new ConcurrentLinkedQueue<Keystream>();
+        // Check the parameters now rather than on the first read.
+        ciphers.add(new Keystream());
+    }
+    
+    /** A cipher, and a buffer for encrypting into, used by one thread at a time. */
+    private class Keystream {
+        private final SkippingStreamCipher cipher;
+        private byte[] buf;
+        
+        Keystream() {
+            cipher = type.get();
+            cipher.init(true, cipherParams);
+        }
+        
+        /** Encrypt or decrypt, starting at the given offset in the keystream. */
+        void process(long fileOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+            // seekTo() does reset() and then skip(), so it would generate the keystream 
+            // block at 0 first. skip() just moves the block counter, in either direction.
+            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
+            cipher.skip(fileOffset - cipher.getPosition());
+            assert(cipher.getPosition() == fileOffset);
+            cipher.processBytes(in, inOffset, length, out, outOffset);
+            assert(cipher.getPosition() == fileOffset+length);
+        }
+        
+        byte[] getBuffer(int length) {
+            if(buf == null || buf.length < length)
+                buf = new byte[Math.min(Math.max(length, buf == null ? 0 : buf.length * 2), WRITE_CHUNK)];
+            return buf;
+        }
+    }
+    
+    private Keystream takeKeystream() {
+        Keystream k = ciphers.poll();
+        return k == null ? new Keystream() : k;
     }
 
     @Override
@@ -147,7 +183,8 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
 
     /**
-     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe. 
+     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe,
+     * and doesn't block other reads or writes.
      */
     @Override
     public void pread(long fileOffset, byte[] buf, int bufOffset, int length)
@@ -163,28 +200,19 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
         
-        byte[] cipherText = new byte[length];
-        underlyingBuffer.pread(fileOffset+type.headerLen, cipherText, 0, length);
-
-        readLock.lock();
-        try{
-            //cipherRead.seekTo(fileOffset);
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherRead.getPosition();
-            long delta = fileOffset - position;
-            cipherRead.skip(delta);
-            assert(cipherRead.getPosition() == fileOffset);
-            cipherRead.processBytes(cipherText, 0, length, buf, bufOffset);
-            assert(cipherRead.getPosition() == fileOffset+length);
-        }finally{
-            readLock.unlock();
+        Keystream k = takeKeystream();
+        try {
+            // Decrypt in place.
+            underlyingBuffer.pread(fileOffset+type.headerLen, buf, bufOffset, length);
+            k.process(fileOffset, buf, bufOffset, length, buf, bufOffset);
+        } finally {
+            ciphers.add(k);
         }
     }
 
     /**
-     * Encrypts the given data and writes it to the underlying RAT. Encryption is thread-safe. 
+     * Encrypts the given data and writes it to the underlying RAT. Encryption is thread-safe, and 
+     * doesn't block other reads or writes.
      */
     @Override
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length)
@@ -200,24 +228,20 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
 
-        byte[] cipherText = new byte[length];
-
-        writeLock.lock();
-        try{
-            //cipherWrite.seekTo(fileOffset)
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherWrite.getPosition();
-            long delta = fileOffset - position;
-            cipherWrite.skip(delta);
-            assert(cipherWrite.getPosition() == fileOffset);
-            cipherWrite.processBytes(buf, bufOffset, length, cipherText, 0);
-            assert(cipherWrite.getPosition() == fileOffset+length);
-        }finally{
-            writeLock.unlock();
+        Keystream k = takeKeystream();
+        try {
+            while(length > 0) {
+                int chunk = Math.min(length, WRITE_CHUNK);
+                byte[] cipherText = k.getBuffer(chunk);
+                k.process(fileOffset, buf, bufOffset, chunk, cipherText, 0);
+                underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, chunk);
+                fileOffset += chunk;
+                bufOffset += chunk;
+                length -= chunk;
+            }
+        } finally {
+            ciphers.add(k);
         }
-        underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, length);
     }
     
     @Override
@@ -51,6 +51,11 @@ import freenet.support.io.Closer;
  * delta calculation that is quite conservative. Still, its used along side the
  * global multiplier and program- supplied guesses, as suggested.</li>
  * </ul>
+ * <p>
+ * Each thread reads from its own generator, built the same way as the main one and keyed from
+ * it, so that threads don't contend for the main generator. Entropy from the public accept
+ * methods is collected per thread and added to the pools in batches.
+ * </p>
  *
  * @author Scott G. Miller <scgmille@indiana.edu>
  */
@@ -227,12 +232,12 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 
 	protected void readStartupEntropy(EntropySource startupEntropy) {
 		// Consume the current time
-		acceptEntropy(startupEntropy, System.currentTimeMillis(), 0);
-		acceptEntropy(startupEntropy, System.nanoTime(), 0);
+		acceptEntropy(startupEntropy, System.currentTimeMillis(), 0, 1.0);
+		acceptEntropy(startupEntropy, System.nanoTime(), 0, 1.0);
 		// Free memory
-		acceptEntropy(startupEntropy, Runtime.getRuntime().freeMemory(), 0);
+		acceptEntropy(startupEntropy, Runtime.getRuntime().freeMemory(), 0, 1.0);
 		// Total memory
-		acceptEntropy(startupEntropy, Runtime.getRuntime().totalMemory(), 0);
+		acceptEntropy(startupEntropy, Runtime.getRuntime().totalMemory(), 0, 1.0);
 	}
 
 	/**
@@ -250,7 +255,7 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 
 			EntropySource seedFile = new EntropySource();
 				for(int i = 0; i < 32; i++)
-					acceptEntropy(seedFile, dis.readLong(), 64);
+					acceptEntropy(seedFile, dis.readLong(), 64, 1.0);
 			dis.close();
 		} catch(EOFException f) {
 			// Okay.
@@ -278,7 +283,9 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
     }
 
     private void write_seed(File filename, boolean force) {
-		if(!force)
+		if(force)
+			flushEntropy();
+		else
 			synchronized(this) {
 				long now = System.currentTimeMillis();
 				if(now - timeLastWroteSeed <= HOURS.toMillis(1) /* once per hour */)
@@ -295,8 +302,9 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 			bos = new BufferedOutputStream(fos);
 			dos = new DataOutputStream(bos);
 
-			for(int i = 0; i < 32; i++)
-				dos.writeLong(nextLong());
+			byte[] seed = new byte[32 * 8];
+			generatorNextBytes(seed);
+			dos.write(seed);
 
 			dos.flush();
 			dos.close();
@@ -312,10 +320,15 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 	 * 5.1 Generation Mechanism
 	 */
 	private BlockCipher cipher_ctx;
+	private String cipherName;
 	private byte[] output_buffer,  counter,  allZeroString,  tmp;
 	private int output_count,  fetch_counter;
+	/** Incremented when the generator is reseeded from the pools, so that the per-thread 
+	 * generators take a new key. */
+	private volatile int reseedGeneration;
 
 	private void generator_init(String cipher) {
+		cipherName = cipher;
 		cipher_ctx = Util.getCipherByName(cipher);
 		output_buffer = new byte[cipher_ctx.getBlockSize() / 8];
 		counter = new byte[cipher_ctx.getBlockSize() / 8];
@@ -339,7 +352,7 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 
 		if(output_count++ > Pg) {
 			output_count = 0;
-			nextBytes(tmp);
+			generatorNextBytes(tmp);
 			rekey(tmp);
 		}
 	}
@@ -365,92 +378,114 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 		fetch_counter += count;
 		return rv;
 	}
-	static final int bitTable[][] = {{0, 0x0}, {
-			1, 0x1
-		}, {
-			1, 0x3
-		}, {
-			1, 0x7
-		}, {
-			1, 0xf
-		}, {
-			1, 0x1f
-		}, {
-			1, 0x3f
-		}, {
-			1, 0x7f
-		}, {
-			1, 0xff
-		}, {
-			2, 0x1ff
-		}, {
-			2, 0x3ff
-		}, {
-			2, 0x7ff
-		}, {
-			2, 0xfff
-		}, {
-			2, 0x1fff
-		}, {
-			2, 0x3fff
-		}, {
-			2, 0x7fff
-		}, {
-			2, 0xffff
-		}, {
-			3, 0x1ffff
-		}, {
-			3, 0x3ffff
-		}, {
-			3, 0x7ffff
-		}, {
-			3, 0xfffff
-		}, {
-			3, 0x1fffff
-		}, {
-			3, 0x3fffff
-		}, {
-			3, 0x7fffff
-		}, {
-			3, 0xffffff
-		}, {
-			4, 0x1ffffff
-		}, {
-			4, 0x3ffffff
-		}, {
-			4, 0x7ffffff
-		}, {
-			4, 0xfffffff
-		}, {
-			4, 0x1fffffff
-		}, {
-			4, 0x3fffffff
-		}, {
-			4, 0x7fffffff
-		}, {
-			4, 0xffffffff
-		}};
-
-	// This may *look* more complicated than in is, but in fact it is
-	// loop unrolled, cache and operation optimized.
-	// So don't try to simplify it... Thanks. :)
-	// When this was not synchronized, we were getting repeats...
-	@Override
-	protected synchronized int next(int bits) {
-		int[] parameters = bitTable[bits];
-		int offset = getBytes(parameters[0]);
+	/** Fill the buffer from the main generator. */
+	private synchronized void generatorNextBytes(byte[] buf) {
+		for(int i = 0; i < buf.length; i++)
+			buf[i] = output_buffer[getBytes(1)];
+	}
+
+	/** Bytes a per-thread generator produces before it takes a new key from the main one. */
+	private static final int STREAM_RESEED_BYTES = 64 * 1024;
+
+	/**
+	 * A generator for one thread. It works like the main generator: a block cipher in counter 
+	 * mode, which is rekeyed from its own output every Pg blocks. Its key comes from the main 
+	 * generator, and it takes a new one after STREAM_RESEED_BYTES, or after the main generator 
+	 * has been reseeded from the entropy pools.
+	 */
+	private final class Stream {
+		private final BlockCipher cipher;
+		private final byte[] counter, output, key, zero;
+		private int fetch, blocks, generation;
+		private int bytesSinceReseed;
+
+		Stream() {
+			cipher = Util.getCipherByName(cipherName);
+			counter = new byte[cipher.getBlockSize() / 8];
+			output = new byte[counter.length];
+			zero = new byte[counter.length];
+			key = new byte[cipher.getKeySize() / 8];
+			fetch = output.length;
+			reseed();
+		}
 
-		int val = output_buffer[offset];
+		private void reseed() {
+			// Read first, so that a reseed while we are fetching the key causes another.
+			generation = reseedGeneration;
+			generatorNextBytes(key);
+			rekey();
+			bytesSinceReseed = 0;
+		}
 
-		if(parameters[0] == 4)
-			val += (output_buffer[offset + 1] << 24) + (output_buffer[offset + 2] << 16) + (output_buffer[offset + 3] << 8);
-		else if(parameters[0] == 3)
-			val += (output_buffer[offset + 1] << 16) + (output_buffer[offset + 2] << 8);
-		else if(parameters[0] == 2)
-			val += output_buffer[offset + 2] << 8;
+		private void rekey() {
+			cipher.initialize(key);
+			Arrays.fill(key, (byte) 0);
+			cipher.encipher(zero, counter);
+			blocks = 0;
+		}
+
+		private void nextBlock() {
+			for(int i = counter.length - 1; i >= 0; i--)
+				if(++counter[i] != 0)
+					break;
+			cipher.encipher(counter, output);
+		}
+
+		private void generate() {
+			if(generation != reseedGeneration || bytesSinceReseed >= STREAM_RESEED_BYTES)
+				reseed();
+			else if(blocks++ > Pg) {
+				// Generator gate
+				for(int i = 0; i < key.length; i += output.length) {
+					nextBlock();
+					System.arraycopy(output, 0, key, i, Math.min(output.length, key.length - i));
+				}
+				rekey();
+			}
+			nextBlock();
+			bytesSinceReseed += output.length;
+			fetch = 0;
+		}
 
-		return val & parameters[1];
+		int nextInt() {
+			if(fetch + 4 > output.length)
+				generate();
+			int val = ((output[fetch] & 0xFF) << 24) | ((output[fetch + 1] & 0xFF) << 16) |
+				((output[fetch + 2] & 0xFF) << 8) | (output[fetch + 3] & 0xFF);
+			fetch += 4;
+			return val;
+		}
+
+		void nextBytes(byte[] buf) {
+			int offset = 0;
+			while(offset < buf.length) {
+				if(fetch == output.length)
+					generate();
+				int count = Math.min(output.length - fetch, buf.length - offset);
+				System.arraycopy(output, fetch, buf, offset, count);
+				fetch += count;
+				offset += count;
+			}
+		}
+	}
+
+	private final ThreadLocal<Stream> streams = new ThreadLocal<Stream>() {
+		@Override
+		protected Stream initialValue() {
+			return new Stream();
+		}
+	};
+
+	@Override
+	protected int next(int bits) {
+		return streams.get().nextInt() >>> (32 - bits);
 	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		streams.get().nextBytes(bytes);
+	}
+
 	/**
 	 * 5.2 Entropy Accumulator
 	 */
@@ -458,16 +493,33 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 	private int fast_entropy,  slow_entropy;
 	private boolean fast_select;
 	private Map<EntropySource, int[]> entropySeen;
+	private final byte[] entropyBytes = new byte[8];
+
+	/** Entropy from the public accept methods is buffered in one of these, chosen by thread, 
+	 * and added to the pools when it is full, so we only lock the pools once per STRIPE_SIZE
+	 * samples. */
+	private static final int STRIPES = 8, STRIPE_SIZE = 32;
+	private EntropyStripe[] stripes;
+
+	private static final class EntropyStripe {
+		final long[] data = new long[STRIPE_SIZE];
+		final int[] entropy = new int[STRIPE_SIZE];
+		final EntropySource[] sources = new EntropySource[STRIPE_SIZE];
+		int count;
+	}
 
 	private void accumulator_init(String digest) throws NoSuchAlgorithmException {
 		fast_pool = MessageDigest.getInstance(digest, Util.mdProviders.get(digest));
 		slow_pool = MessageDigest.getInstance(digest, Util.mdProviders.get(digest));
 		entropySeen = new HashMap<EntropySource, int[]>();
+		stripes = new EntropyStripe[STRIPES];
+		for(int i = 0; i < STRIPES; i++)
+			stripes[i] = new EntropyStripe();
 	}
 
 	@Override
 	public int acceptEntropy(EntropySource source, long data, int entropyGuess) {
-		return acceptEntropy(source, data, entropyGuess, 1.0);
+		return bufferEntropy(source, data, entropyGuess, 1.0);
 	}
 
 	@Override
@@ -481,7 +533,7 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 				thingy = (thingy << 8) + (buf[j] & 0xFF);
 				bytes++;
 			}
-			totalRealEntropy += acceptEntropy(source, thingy, bytes * 8, bias);
+			totalRealEntropy += bufferEntropy(source, thingy, bytes * 8, bias);
 		}
 		return totalRealEntropy;
 	}
@@ -499,65 +551,57 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 			Math.min(estimateEntropy(source, data), entropyGuess))));
 	}
 
-	private int accept_entropy(long data, EntropySource source, int actualEntropy) {
+	private int bufferEntropy(EntropySource source, long data, int entropyGuess, double bias) {
+		int actualEntropy = (int) (bias * Math.min(32, Math.min(estimateEntropy(source, data), entropyGuess)));
+		// Threads whose ids are equal modulo STRIPES share a stripe, so it must be folded before
+		// its lock is released, or another thread would write past the end.
+		EntropyStripe stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+		boolean performedPoolReseed = false;
+		synchronized(stripe) {
+			stripe.data[stripe.count] = data;
+			stripe.entropy[stripe.count] = actualEntropy;
+			stripe.sources[stripe.count] = source;
+			if(++stripe.count == STRIPE_SIZE)
+				performedPoolReseed = foldEntropyLocked(stripe);
+		}
+		if(performedPoolReseed && (seedfile != null))
+			write_seed(seedfile);
+		return actualEntropy;
+	}
+
+	/** Add the buffered entropy to the pools. */
+	private void foldEntropy(EntropyStripe stripe) {
+		boolean performedPoolReseed;
+		synchronized(stripe) {
+			performedPoolReseed = foldEntropyLocked(stripe);
+		}
+		if(performedPoolReseed && (seedfile != null))
+			write_seed(seedfile);
+	}
 
+	/** Caller must hold the lock on the stripe.
+	 * @return True if we reseeded from one of the pools. */
+	private boolean foldEntropyLocked(EntropyStripe stripe) {
 		boolean performedPoolReseed = false;
-		byte[] b = new byte[] {
-				(byte) data,
-				(byte) (data >> 8),
-				(byte) (data >> 16),
-				(byte) (data >> 24),
-				(byte) (data >> 32),
-				(byte) (data >> 40),
-				(byte) (data >> 48),
-				(byte) (data >> 56)
-		};
+		synchronized(this) {
+			for(int i = 0; i < stripe.count; i++)
+				performedPoolReseed |= addEntropy(stripe.data[i], stripe.sources[i], stripe.entropy[i]);
+		}
+		Arrays.fill(stripe.sources, null);
+		stripe.count = 0;
+		return performedPoolReseed;
+	}
+
+	/** Add all the buffered entropy to the pools now. */
+	void flushEntropy() {
+		for(EntropyStripe stripe : stripes)
+			foldEntropy(stripe);
+	}
 
+	private int accept_entropy(long data, EntropySource source, int actualEntropy) {
+		boolean performedPoolReseed;
 		synchronized(this) {
-			fast_select = !fast_select;
-			MessageDigest pool = (fast_select ? fast_pool : slow_pool);
-			pool.update(b);
-
-			if(fast_select) {
-				fast_entropy += actualEntropy;
-				if(fast_entropy > FAST_THRESHOLD) {
-					fast_pool_reseed();
-					performedPoolReseed = true;
-				}
-			} else {
-				slow_entropy += actualEntropy;
-
-				if(source != null) {
-					int[] contributedEntropy = entropySeen.get(source);
-					if(contributedEntropy == null) {
-						contributedEntropy = new int[] { actualEntropy };
-						entropySeen.put(source, contributedEntropy);
-					} else
-						contributedEntropy[0]+=actualEntropy;
-
-					if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
-						int kc = 0;
-						for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
-							EntropySource key = e.getKey();
-							int[] v = e.getValue();
-							if(DEBUG)
-								Logger.normal(this, "Key: <" + key + "> " + v);
-							if(v[0] > SLOW_THRESHOLD) {
-								kc++;
-								if(kc >= SLOW_K) {
-									slow_pool_reseed();
-									performedPoolReseed = true;
-									break;
-								}
-							}
-						}
-					}
-				}
-			}
-			if(DEBUG)
-				//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
-				// "+slow_entropy, LogLevel.NORMAL);
-				System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+			performedPoolReseed = addEntropy(data, source, actualEntropy);
 		}
 		if(performedPoolReseed && (seedfile != null)) {
 			//Dont do this while synchronized on 'this' since
@@ -572,6 +616,61 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 		return actualEntropy;
 	}
 
+	/** Caller must hold the lock on this.
+	 * @return True if we reseeded from one of the pools. */
+	private boolean addEntropy(long data, EntropySource source, int actualEntropy) {
+		boolean performedPoolReseed = false;
+		byte[] b = entropyBytes;
+		for(int i = 0; i < 8; i++)
+			b[i] = (byte) (data >> (i * 8));
+
+		fast_select = !fast_select;
+		MessageDigest pool = (fast_select ? fast_pool : slow_pool);
+		pool.update(b);
+
+		if(fast_select) {
+			fast_entropy += actualEntropy;
+			if(fast_entropy > FAST_THRESHOLD) {
+				fast_pool_reseed();
+				performedPoolReseed = true;
+			}
+		} else {
+			slow_entropy += actualEntropy;
+
+			if(source != null) {
+				int[] contributedEntropy = entropySeen.get(source);
+				if(contributedEntropy == null) {
+					contributedEntropy = new int[] { actualEntropy };
+					entropySeen.put(source, contributedEntropy);
+				} else
+					contributedEntropy[0]+=actualEntropy;
+
+				if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
+					int kc = 0;
+					for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
+						EntropySource key = e.getKey();
+						int[] v = e.getValue();
+						if(DEBUG)
+							Logger.normal(this, "Key: <" + key + "> " + v);
+						if(v[0] > SLOW_THRESHOLD) {
+							kc++;
+							if(kc >= SLOW_K) {
+								slow_pool_reseed();
+								performedPoolReseed = true;
+								break;
+							}
+						}
+					}
+				}
+			}
+		}
+		if(DEBUG)
+			//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
+			// "+slow_entropy, LogLevel.NORMAL);
+			System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+		return performedPoolReseed;
+	}
+
 	private int estimateEntropy(EntropySource source, long newVal) {
 		int delta = (int) (newVal - source.lastVal);
 		int delta2 = delta - source.lastDelta;
@@ -624,7 +723,7 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 	@Override
 	public int acceptTimerEntropy(EntropySource timer, double bias) {
 		long now = System.currentTimeMillis();
-		return acceptEntropy(timer, now - timer.lastVal, 32, bias);
+		return bufferEntropy(timer, now - timer.lastVal, 32, bias);
 	}
 
 	/**
@@ -662,6 +761,7 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 		rekey(tmp);
 		Arrays.fill(v0, (byte) 0); // blank out for security
 		fast_entropy = 0;
+		reseedGeneration++;
 		if (DEBUG) {
 			long endTime = System.currentTimeMillis();
 			if(endTime - startTime > 5000)
@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
 import java.util.Arrays;
@@ -97,12 +98,24 @@ public class NetworkInterface implements Closeable {
 	private volatile boolean shutdown = false;
 	
 	private final Executor executor;
+	
+	/** Whether to accept connections through a {@link ServerSocketChannel}. */
+	private final boolean selectable;
 
 	// FIXME make configurable
 	static final int maxQueueLength = 100;
 
 	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
-		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor);
+		return create(port, bindTo, allowedHosts, executor, ignoreUnbindableIP6, false);
+	}
+	
+	/**
+	 * @param selectable If true, accepted sockets are backed by a {@link java.nio.channels.SocketChannel},
+	 * so they can be temporarily switched to non-blocking mode and registered with a selector.
+	 * They behave as ordinary blocking sockets otherwise.
+	 */
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6, boolean selectable) throws IOException {
+		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor, selectable);
 		String[] failedBind = iface.setBindTo(bindTo, ignoreUnbindableIP6);
 		if(failedBind != null) {
 			System.err.println("Could not bind to some of the interfaces specified for port "+port+" : "+Arrays.toString(failedBind));
@@ -120,12 +133,19 @@ public class NetworkInterface implements Closeable {
 	 *            A comma-separated list of allowed addresses
 	 */
 	protected NetworkInterface(int port, String allowedHosts, Executor executor) throws IOException {
+		this(port, allowedHosts, executor, false);
+	}
+	
+	private NetworkInterface(int port, String allowedHosts, Executor executor, boolean selectable) throws IOException {
 		this.port = port;
 		this.allowedHosts = new AllowedHosts(allowedHosts);
 		this.executor = executor;
+		this.selectable = selectable;
 	}
 
 	protected ServerSocket createServerSocket() throws IOException {
+		if(selectable)
+			return ServerSocketChannel.open().socket();
 		return new ServerSocket();
 	}
 	
@@ -0,0 +1,220 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import freenet.node.Node;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+import freenet.support.math.MersenneTwister;
+
+/**
+ * Delivers packets between nodes in the same JVM through memory rather than UDP, for simulations
+ * with lots of nodes. Each node gets a SimulatedSocketHandler instead of a UdpSocketHandler, so
+ * doesn't need a real port or a receiving thread. Nodes are found by port number alone, so every
+ * node must have a different port, but the addresses in their noderefs don't matter.
+ *
+ * Every packet is delayed by the latency, plus a random jitter, plus the time to send it and
+ * anything queued before it over the sender's link, if we have a bandwidth limit. Packets may be
+ * lost at random, or if the sender's link is too far behind, as in a router's queue.
+ *
+ * All the random decisions come from a generator seeded by the caller. But the nodes run on
+ * several threads, so the order in which they send packets, and hence the decisions made for
+ * each packet, can still differ between runs.
+ */
+public class SimulatedNetwork {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SimulatedNetwork.class);
+	}
+
+	/** Packets which would wait longer than this for the sender's link are dropped. */
+	static final long MAX_QUEUE_DELAY = SECONDS.toNanos(1);
+
+	private final Random random;
+	private final long latency;
+	private final long jitter;
+	private final double loss;
+	private final int bandwidth;
+	private final HashMap<Integer, SimulatedSocketHandler> handlers;
+	private final Deliverer[] deliverers;
+	/** Orders packets due at the same time. */
+	private long sequence;
+	private long packetsSent;
+	private long packetsDropped;
+	private long bytesSent;
+
+	/**
+	 * @param seed Seed for all the random decisions: jitter and lost packets.
+	 * @param latency One way latency in milliseconds.
+	 * @param jitter Up to this many milliseconds are added to the latency of each packet.
+	 * @param loss The probability of losing each packet.
+	 * @param bandwidth The bandwidth of each node's link in bytes per second, or 0 for unlimited.
+	 * @param threads The number of threads delivering packets. Packets to each node are always
+	 * delivered by the same thread.
+	 */
+	public SimulatedNetwork(long seed, int latency, int jitter, double loss, int bandwidth, int threads) {
+		if(latency < 0 || jitter < 0 || loss < 0.0 || loss >= 1.0 || bandwidth < 0 || threads <= 0)
+			throw new IllegalArgumentException();
+		this.random = new MersenneTwister(seed);
+		this.latency = MILLISECONDS.toNanos(latency);
+		this.jitter = MILLISECONDS.toNanos(jitter);
+		this.loss = loss;
+		this.bandwidth = bandwidth;
+		handlers = new HashMap<Integer, SimulatedSocketHandler>();
+		deliverers = new Deliverer[threads];
+		for(int i = 0; i < threads; i++) {
+			deliverers[i] = new Deliverer();
+			NativeThread t = new NativeThread(deliverers[i], "Simulated network delivery thread " + i, NativeThread.MAX_PRIORITY, false);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Create a socket handler for a node.
+	 * @throws SocketException If another node is already using the port.
+	 */
+	public UdpSocketHandler createSocketHandler(int port, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		SimulatedSocketHandler handler = new SimulatedSocketHandler(this, port, bindto, node, startupTime, title, collector);
+		synchronized(this) {
+			if(handlers.containsKey(port))
+				throw new SocketException("Simulated port already in use: " + port);
+			handlers.put(port, handler);
+		}
+		return handler;
+	}
+
+	synchronized void remove(SimulatedSocketHandler handler) {
+		if(handlers.get(handler.getPortNumber()) == handler)
+			handlers.remove(handler.getPortNumber());
+	}
+
+	/**
+	 * Queue a packet for delivery, unless it is lost.
+	 * @param dropProbability If &gt;0, drop 1 in this many packets, as with UdpSocketHandler.
+	 */
+	void send(SimulatedSocketHandler source, byte[] data, InetAddress address, int port, int dropProbability) {
+		SimulatedSocketHandler target;
+		Packet packet;
+		synchronized(this) {
+			packetsSent++;
+			bytesSent += data.length;
+			target = handlers.get(port);
+			if(target == null || (dropProbability > 0 && random.nextInt(dropProbability) == 0) ||
+					(loss > 0.0 && random.nextDouble() < loss)) {
+				packetsDropped++;
+				return;
+			}
+			long now = System.nanoTime();
+			long sent = now;
+			if(bandwidth > 0) {
+				long start = Math.max(now, source.linkFreeAt);
+				if(start - now > MAX_QUEUE_DELAY) {
+					packetsDropped++;
+					return;
+				}
+				sent = start + SECONDS.toNanos(data.length + UdpSocketHandler.UDP_HEADERS_LENGTH) / bandwidth;
+				source.linkFreeAt = sent;
+			}
+			long time = sent + latency;
+			if(jitter > 0)
+				time += (long) (random.nextDouble() * jitter);
+			// Replies go to the address the sender used, which is what it has for the target.
+			packet = new Packet(time, sequence++, target, Arrays.copyOf(data, data.length),
+					new Peer(address, source.getPortNumber()));
+		}
+		if(logMINOR) Logger.minor(this, "Sending " + data.length + " bytes from " + source + " to " + target);
+		deliverers[port % deliverers.length].add(packet);
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getPacketsDropped() {
+		return packetsDropped;
+	}
+
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	public synchronized int countNodes() {
+		return handlers.size();
+	}
+
+	private static class Packet implements Comparable<Packet> {
+		final long time;
+		final long sequence;
+		final SimulatedSocketHandler target;
+		final byte[] data;
+		final Peer source;
+
+		Packet(long time, long sequence, SimulatedSocketHandler target, byte[] data, Peer source) {
+			this.time = time;
+			this.sequence = sequence;
+			this.target = target;
+			this.data = data;
+			this.source = source;
+		}
+
+		@Override
+		public int compareTo(Packet p) {
+			if(time != p.time) return time < p.time ? -1 : 1;
+			if(sequence != p.sequence) return sequence < p.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/** Delivers packets when they are due, in order. */
+	private static class Deliverer implements Runnable {
+
+		private final PriorityQueue<Packet> queue = new PriorityQueue<Packet>();
+
+		synchronized void add(Packet packet) {
+			queue.add(packet);
+			if(queue.peek() == packet) notifyAll();
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				Packet packet;
+				synchronized(this) {
+					packet = queue.peek();
+					long wait = packet == null ? SECONDS.toNanos(1) : packet.time - System.nanoTime();
+					if(wait > 0) {
+						try {
+							wait(Math.max(1, NANOSECONDS.toMillis(wait)));
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+						continue;
+					}
+					queue.poll();
+				}
+				try {
+					packet.target.deliver(packet.data, packet.source);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " delivering to " + packet.target, t);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,98 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.node.Node;
+import freenet.support.Logger;
+import freenet.support.transport.ip.IPUtil;
+
+/**
+ * A node's port on a SimulatedNetwork. Packets are passed to the network rather than a socket,
+ * and the network's threads feed incoming packets to our filter, so we don't have a thread.
+ */
+class SimulatedSocketHandler extends UdpSocketHandler {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SimulatedSocketHandler.class);
+	}
+
+	private final SimulatedNetwork network;
+	private final int port;
+	private final Node node;
+	private final IOStatisticCollector collector;
+	private volatile boolean active = true;
+	/** We don't have a filter to give packets to until we are started. */
+	private volatile boolean started;
+	/** When our link will have sent everything queued so far, in System.nanoTime() terms.
+	 * Protected by the network's lock. */
+	long linkFreeAt;
+
+	SimulatedSocketHandler(SimulatedNetwork network, int port, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		super(null, port, bindto, node, startupTime, title, collector);
+		this.network = network;
+		this.port = port;
+		this.node = node;
+		this.collector = collector;
+	}
+
+	@Override
+	public void start() {
+		getAddressTracker().startReceive(System.currentTimeMillis());
+		started = true;
+	}
+
+	@Override
+	public void close() {
+		Logger.normal(this, "Closing.");
+		active = false;
+		network.remove(this);
+		getAddressTracker().storeData(node.bootID, node.runDir(), port);
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
+		assert(blockToSend != null);
+		if(!active) {
+			Logger.error(this, "Trying to send packet but no longer active");
+			return;
+		}
+		InetAddress address = destination.getAddress(false, allowLocalAddresses);
+		if(address == null) {
+			Logger.error(this, "Tried sending to destination without pre-looked up IP address: " + destination, new Exception("error"));
+			return;
+		}
+		network.send(this, blockToSend, address, destination.getPort(), getDropProbability());
+		packetsSent.increment();
+		getAddressTracker().sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address, destination.getPort(), 0, getHeadersLength(address) + blockToSend.length, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length " + blockToSend.length + " to " + destination);
+	}
+
+	/** Called by the network's delivery threads. */
+	void deliver(byte[] data, Peer source) {
+		if(!(started && active)) return;
+		InetAddress address = source.getAddress(false);
+		collector.addInfo(address, source.getPort(), getHeadersLength(address) + data.length, 0,
+				!IPUtil.isValidAddress(address, false));
+		processPacket(data, 0, data.length, source, System.currentTimeMillis());
+	}
+
+	@Override
+	public int getPortNumber() {
+		return port;
+	}
+
+	@Override
+	public String toString() {
+		return "simulated:" + getBindTo() + ":" + port;
+	}
+
+}
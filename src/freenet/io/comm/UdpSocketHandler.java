@@ -25,6 +25,7 @@ import freenet.node.Node;
 import freenet.node.PrioRunnable;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
+import freenet.support.metrics.Counter;
 import freenet.support.transport.ip.IPUtil;
 
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
@@ -50,6 +51,9 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** Shared with the node's other sockets. */
+	final Counter packetsSent;
+	final Counter packetsReceived;
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -127,6 +131,15 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(new DatagramSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	/**
+	 * @param sock The socket to use. Null for transports which don't have a real socket, i.e.
+	 * SimulatedSocketHandler; these must override start(), close(), sendPacket(),
+	 * getPortNumber() and toString().
+	 */
+	UdpSocketHandler(DatagramSocket sock, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -137,27 +150,31 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
-		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
-		}
-		try {
-			// Exit reasonably quickly
-			_sock.setReuseAddress(true);
-		} catch (SocketException e) {
-			throw new RuntimeException(e);
-		}
-		try {
-			_sock.setTrafficClass(node.getTrafficClass().value);
-		} catch (SocketException e) {
-			Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
+		_sock = sock;
+		if(_sock != null) {
+			int sz = _sock.getReceiveBufferSize();
+			if(sz < 65536) {
+				_sock.setReceiveBufferSize(65536);
+			}
+			try {
+				// Exit reasonably quickly
+				_sock.setReuseAddress(true);
+			} catch (SocketException e) {
+				throw new RuntimeException(e);
+			}
+			try {
+				_sock.setTrafficClass(node.getTrafficClass().value);
+			} catch (SocketException e) {
+				Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
+			}
+			boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+			if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
 		}
-		boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
-		if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
 //		}
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
+		packetsSent = node.metrics.counter("freenet_packets_sent_total", "UDP packets sent.");
+		packetsReceived = node.metrics.counter("freenet_packets_received_total", "UDP packets received.");
 		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
 		tracker.startSend(startupTime);
 	}
@@ -239,7 +256,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		if (gotPacket) {
 			long startTime = System.currentTimeMillis();
 			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
 			long endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
 				if(endTime-startTime > 3000) {
@@ -248,32 +264,36 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
+			processPacket(packet.getData(), packet.getOffset(), packet.getLength(), peer, now);
 		} else {
 			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
 	}
 
+	/** Handle a packet which has been received from the given peer. */
+	void processPacket(byte[] data, int offset, int length, Peer peer, long now) {
+		packetsReceived.increment();
+		tracker.receivedPacketFrom(peer);
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
 	private boolean getPacket(DatagramPacket packet) {
@@ -334,6 +354,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 
 		try {
 			_sock.send(packet);
+			packetsSent.increment();
 			tracker.sentPacketTo(destination);
 			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
 			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
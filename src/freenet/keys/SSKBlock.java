@@ -13,6 +13,7 @@ import java.util.Arrays;
 import freenet.crypt.DSAPublicKey;
 import freenet.crypt.Global;
 import freenet.crypt.SHA256;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.Logger;
@@ -130,6 +131,7 @@ public class SSKBlock implements KeyBlock {
 			throw new SSKVerifyException("Headers too short: "+headers.length+" should be at least "+x+SIG_R_LENGTH+SIG_S_LENGTH);
 		// Compute the hash on the data
 		if(!dontVerify || logMINOR) {	// force verify on log minor
+			int sigOffset = x;
 			byte[] bufR = new byte[SIG_R_LENGTH];
 			byte[] bufS = new byte[SIG_S_LENGTH];
 			
@@ -154,21 +156,26 @@ public class SSKBlock implements KeyBlock {
 				SHA256.returnMessageDigest(md);
 			}
 			
-			// Now verify it
-			BigInteger r = new BigInteger(1, bufR);
-			BigInteger s = new BigInteger(1, bufS);
-			DSASigner dsa = new DSASigner();
-			dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
+			// Skip the expensive part if we have seen exactly this before.
+			ByteArrayWrapper verified = SSKVerificationCache.entry(nodeKey.getRoutingKey(), overallHash, headers, sigOffset);
+			if(!SSKVerificationCache.isVerified(verified)) {
+				// Now verify it
+				BigInteger r = new BigInteger(1, bufR);
+				BigInteger s = new BigInteger(1, bufS);
+				DSASigner dsa = new DSASigner();
+				dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
 
-			// We probably don't need to try both here...
-			// but that's what the legacy code was doing...
-			// @see comments in Global before touching it
-			if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
-			     dsa.verifySignature(overallHash, r, s))
-			  ) {
-				if (dontVerify)
-					Logger.error(this, "DSA verification failed with dontVerify!!!!");
-				throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				// We probably don't need to try both here...
+				// but that's what the legacy code was doing...
+				// @see comments in Global before touching it
+				if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
+				     dsa.verifySignature(overallHash, r, s))
+				  ) {
+					if (dontVerify)
+						Logger.error(this, "DSA verification failed with dontVerify!!!!");
+					throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				}
+				SSKVerificationCache.setVerified(verified);
 			}
 		} // x isn't verified otherwise so no need to += SIG_R_LENGTH + SIG_S_LENGTH
 		if(!Arrays.equals(ehDocname, nodeKey.encryptedHashedDocname))
@@ -0,0 +1,74 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.SHA256;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.CacheMap;
+import freenet.support.CacheMaps;
+
+/**
+ * Remembers SSK signatures we have already checked, so the same block can be constructed again
+ * (fetched from the store, promoted, decoded by the client layer) without DSA verification.
+ * An entry is the hash of the routing key, the hash which is signed and the signature, so it
+ * only matches exactly the same signed content under exactly the same key.
+ */
+final class SSKVerificationCache {
+
+	/** About 100 bytes each. */
+	static final int MAX_ENTRIES = 16384;
+
+	private static final CacheMap<ByteArrayWrapper, Boolean> verified =
+		CacheMaps.create(MAX_ENTRIES, null);
+
+	/** Signatures we didn't need to check again. */
+	private static final AtomicLong hits = new AtomicLong();
+
+	private SSKVerificationCache() {
+		// Static only.
+	}
+
+	/**
+	 * @param routingKey The routing key of the block, which includes the hash of the pubkey.
+	 * @param signedHash The hash which the signature is on.
+	 * @param headers The headers, containing the signature.
+	 * @param sigOffset The offset of the signature (R then S) in the headers.
+	 * @return The entry for this signature.
+	 */
+	static ByteArrayWrapper entry(byte[] routingKey, byte[] signedHash, byte[] headers, int sigOffset) {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			md.update(routingKey);
+			md.update(signedHash);
+			md.update(headers, sigOffset, SSKBlock.SIG_R_LENGTH + SSKBlock.SIG_S_LENGTH);
+			return new ByteArrayWrapper(md.digest());
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	static boolean isVerified(ByteArrayWrapper entry) {
+		if(verified.get(entry) == null) return false;
+		hits.incrementAndGet();
+		return true;
+	}
+
+	static long hits() {
+		return hits.get();
+	}
+
+	/** Only call after the signature has been checked. */
+	static void setVerified(ByteArrayWrapper entry) {
+		verified.put(entry, Boolean.TRUE);
+	}
+
+	/** For benchmarks. */
+	static void clear() {
+		verified.clear();
+	}
+
+}
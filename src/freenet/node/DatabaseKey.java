@@ -64,13 +64,30 @@ public class DatabaseKey {
         return HMAC.macWithSHA256(databaseKey, full);
     }
     
+    public Bucket createEncryptedBucketForUSKEditions(Bucket underlying) {
+        return new AEADCryptBucket(underlying, getKeyForUSKEditions());
+    }
+
+    /** Key Derivation Function for the USK edition store, as for client.dat but with a 
+     * different constant.
+     * @return An encryption key, as byte[].
+     */
+    public byte[] getKeyForUSKEditions() {
+        byte[] full = new byte[databaseKey.length+USK_EDITIONS.length];
+        System.arraycopy(databaseKey, 0, full, 0, databaseKey.length);
+        System.arraycopy(USK_EDITIONS, 0, full, databaseKey.length, USK_EDITIONS.length);
+        return HMAC.macWithSHA256(databaseKey, full);
+    }
+    
     private static final byte[] PLUGIN;
     private static final byte[] CLIENT_LAYER;
+    private static final byte[] USK_EDITIONS;
     
     static {
         try {
             PLUGIN = "PLUGIN".getBytes("UTF-8");
             CLIENT_LAYER = "CLIENT".getBytes("UTF-8");
+            USK_EDITIONS = "USKEDITIONS".getBytes("UTF-8");
         } catch (UnsupportedEncodingException e) {
             throw new Error(e);
         }
@@ -28,9 +28,11 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
@@ -66,6 +68,7 @@ import freenet.io.comm.MessageFilter;
 import freenet.io.comm.Peer;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.io.comm.TrafficClass;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.io.xfer.PartiallyReceivedBlock;
@@ -123,6 +126,7 @@ import freenet.store.caching.CachingFreenetStore;
 import freenet.store.caching.CachingFreenetStoreTracker;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.CacheMaps;
 import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
@@ -147,6 +151,7 @@ import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MersenneTwister;
+import freenet.support.metrics.MetricsRegistry;
 import freenet.support.transport.ip.HostnameSyntaxException;
 
 /**
@@ -444,6 +449,10 @@ public class Node implements TimeSkewDetectorCallback {
 	/** Stats */
 	public final NodeStats nodeStats;
 
+	/** Counters, gauges and histograms for export to monitoring, e.g. by MetricsToadlet.
+	 * Created first so that anything can register metrics while the node is being built. */
+	public final MetricsRegistry metrics = new MetricsRegistry();
+
 	/** Config object for the whole node. */
 	public final PersistentConfig config;
 
@@ -653,6 +662,8 @@ public class Node implements TimeSkewDetectorCallback {
 	public final Executor executor;
 	public final PacketSender ps;
 	public final PrioritizedTicker ticker;
+	/** If not null, our ports are on this network rather than real UDP sockets. */
+	final SimulatedNetwork simulatedNetwork;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
@@ -663,6 +674,8 @@ public class Node implements TimeSkewDetectorCallback {
 	boolean inputLimitDefault;
 	final boolean enableARKs;
 	final boolean enablePerNodeFailureTables;
+	/** Use ConcurrentCacheMap for in-memory caches. Takes effect on restart. */
+	private volatile boolean concurrentCaches;
 	final boolean enableULPRDataPropagation;
 	final boolean enableSwapping;
 	private volatile boolean publishOurPeersLocation;
@@ -958,6 +971,18 @@ public class Node implements TimeSkewDetectorCallback {
 	 * @throws NodeInitException If the node initialization fails.
 	 */
 	 Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor) throws NodeInitException {
+		this(config, r, weakRandom, lc, ns, executor, null, null);
+	}
+
+	/**
+	 * Create a Node which may share its ticker with other nodes in the same JVM, and may use a
+	 * simulated network. Only for simulations.
+	 * @param sharedTicker The ticker to use, or null to create one. A shared ticker is started by
+	 * the first node to start.
+	 * @param simulatedNetwork The network to open our ports on, or null to use UDP.
+	 * @see #Node(PersistentConfig, RandomSource, RandomSource, LoggingConfigHandler, NodeStarter, Executor)
+	 */
+	 Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor, PrioritizedTicker sharedTicker, SimulatedNetwork simulatedNetwork) throws NodeInitException {
 		this.shutdownHook = SemiOrderedShutdownHook.get();
 		// Easy stuff
 		String tmp = "Initializing Node using Freenet Build #"+Version.buildNumber()+" r"+Version.cvsRevision()+" and freenet-ext Build #"+NodeStarter.extBuildNumber+" r"+NodeStarter.extRevisionNumber+" with "+System.getProperty("java.vendor")+" JVM version "+System.getProperty("java.version")+" running on "+System.getProperty("os.arch")+' '+System.getProperty("os.name")+' '+System.getProperty("os.version");
@@ -966,10 +991,10 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println(tmp);
 		collector = new IOStatisticCollector();
 		this.executor = executor;
+		this.simulatedNetwork = simulatedNetwork;
 		nodeStarter=ns;
 		if(logConfigHandler != lc)
 			logConfigHandler=lc;
-		getPubKey = new NodeGetPubkey(this);
 		startupTime = System.currentTimeMillis();
 		SimpleFieldSet oldConfig = config.getSimpleFieldSet();
 		// Setup node-specific configuration
@@ -1006,6 +1031,25 @@ public class Node implements TimeSkewDetectorCallback {
 			}
 		}
 
+		// Before anything creates a cache.
+		nodeConfig.register("concurrentCaches", true, sortOrder++, true, false, "Node.concurrentCaches", "Node.concurrentCachesLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return concurrentCaches;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val == concurrentCaches) return;
+				concurrentCaches = val;
+				throw new NodeNeedRestartException(l10n("concurrentCachesNeedsRestart"));
+			}
+		});
+		concurrentCaches = nodeConfig.getBoolean("concurrentCaches");
+		CacheMaps.setConcurrent(concurrentCaches);
+		getPubKey = new NodeGetPubkey(this);
+
 		// FProxy config needs to be here too
 		SubConfig fproxyConfig = config.createSubConfig("fproxy");
 		try {
@@ -1491,7 +1535,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		ticker = sharedTicker == null ? new PrioritizedTicker(executor, getDarknetPortNumber()) : sharedTicker;
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
 
@@ -2176,6 +2220,29 @@ public class Node implements TimeSkewDetectorCallback {
 		
 		cachingFreenetStorePeriod = nodeConfig.getLong("cachingFreenetStorePeriod");
 		
+		nodeConfig.register("cachingFreenetStoreReadCacheSize", defaultCacheSize * 2, sortOrder++, true, false, "Node.cachingFreenetStoreReadCacheSize", "Node.cachingFreenetStoreReadCacheSizeLong",
+			new LongCallback() {
+				@Override
+				public Long get() {
+					synchronized(Node.this) {
+						return cachingFreenetStoreReadCacheSize;
+					}
+				}
+
+				@Override
+				public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+					if(val < 0) throw new InvalidConfigValueException(l10n("invalidMemoryCacheSize"));
+					synchronized(Node.this) {
+						cachingFreenetStoreReadCacheSize = val;
+					}
+					throw new NodeNeedRestartException("Caching Read Cache Size cannot be changed on the fly");
+				}
+		}, true);
+		
+		cachingFreenetStoreReadCacheSize = nodeConfig.getLong("cachingFreenetStoreReadCacheSize");
+		if(cachingFreenetStoreReadCacheSize < 0)
+			throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("invalidMemoryCacheSize"));
+		
 		if(cachingFreenetStoreMaxSize > 0 && cachingFreenetStorePeriod > 0) {
 			cachingFreenetStoreTracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
 		}
@@ -2795,6 +2862,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private long cachingFreenetStoreMaxSize;
 	private long cachingFreenetStorePeriod;
+	private long cachingFreenetStoreReadCacheSize;
 	private CachingFreenetStoreTracker cachingFreenetStoreTracker;
 
 	private void initSaltHashFS(final String suffix, boolean dontResizeOnStart, byte[] masterKey) throws NodeInitException {
@@ -2981,7 +3049,7 @@ public class Node implements TimeSkewDetectorCallback {
 		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
-			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
+			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker, cachingFreenetStoreReadCacheSize);
 		else
 			return fs;
 	}
@@ -3300,6 +3368,7 @@ public class Node implements TimeSkewDetectorCallback {
 		if(logMINOR) Logger.minor(this, "makeRequestSender("+key+ ',' +htl+ ',' +uid+ ',' +source+") on "+getDarknetPortNumber());
 		// In store?
 		if(!ignoreStore) {
+			if(tag.trace != null) tag.trace.enter(RequestTrace.Phase.STORE);
 			KeyBlock kb = makeRequestLocal(key, uid, canReadClientCache, canWriteClientCache, canWriteDatastore, offersOnly);
 			if (kb != null)
 				return kb;
@@ -3506,6 +3575,94 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/** Where fetch(NodeCHK[], ...) found a block, for the statistics. */
+	private static final int FOUND_CLIENT_CACHE = 0;
+	private static final int FOUND_SLASHDOT_CACHE = 1;
+	private static final int FOUND_STORE = 2;
+	private static final int FOUND_CACHE = 3;
+
+	/**
+	 * Fetch several CHKs, with the same result as calling fetch(NodeCHK, ...) for each, but a
+	 * store at a time, so that each store can read the keys in the order it keeps them. Each
+	 * store is only asked for the keys not found so far, so blocks are promoted and counted 
+	 * the same way. Callers wanting parallelism should split the keys rather than the stores.
+	 * @return The blocks, with null for the keys which were not found.
+	 */
+	public CHKBlock[] fetch(NodeCHK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		// In the same order as fetch(NodeCHK, ...).
+		List<CHKStore> stores = new ArrayList<CHKStore>();
+		List<Integer> kinds = new ArrayList<Integer>();
+		List<Boolean> noPromote = new ArrayList<Boolean>();
+		List<Boolean> ignoreOld = new ArrayList<Boolean>();
+		if(canReadClientCache) {
+			stores.add(chkClientcache); kinds.add(FOUND_CLIENT_CACHE); noPromote.add(dontPromote || !canWriteClientCache); ignoreOld.add(false);
+		}
+		if(forULPR || useSlashdotCache || canReadClientCache) {
+			stores.add(chkSlashdotcache); kinds.add(FOUND_SLASHDOT_CACHE); noPromote.add(dontPromote); ignoreOld.add(false);
+		}
+		for(CHKStore store : new CHKStore[] { chkDatastore, oldCHK }) {
+			if(store == null) continue;
+			stores.add(store); kinds.add(FOUND_STORE); noPromote.add(dontPromote || !canWriteDatastore); ignoreOld.add(ignoreOldBlocks);
+		}
+		for(CHKStore store : new CHKStore[] { chkDatacache, oldCHKCache }) {
+			if(store == null) continue;
+			stores.add(store); kinds.add(FOUND_CACHE); noPromote.add(dontPromote || !canWriteDatastore); ignoreOld.add(ignoreOldBlocks);
+		}
+		CHKBlock[] blocks = new CHKBlock[keys.length];
+		int[] foundIn = new int[keys.length];
+		Arrays.fill(foundIn, -1);
+		for(int i=0;i<stores.size();i++) {
+			List<Integer> missing = new ArrayList<Integer>();
+			for(int j=0;j<keys.length;j++)
+				if(blocks[j] == null) missing.add(j);
+			if(missing.isEmpty()) break;
+			NodeCHK[] missingKeys = new NodeCHK[missing.size()];
+			for(int j=0;j<missingKeys.length;j++)
+				missingKeys[j] = keys[missing.get(j)];
+			try {
+				CHKBlock[] fetched = stores.get(i).fetch(missingKeys, noPromote.get(i), ignoreOld.get(i));
+				for(int j=0;j<fetched.length;j++) {
+					if(fetched[j] == null) continue;
+					blocks[missing.get(j)] = fetched[j];
+					foundIn[missing.get(j)] = kinds.get(i);
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Cannot fetch data: "+e, e);
+			}
+		}
+		for(int j=0;j<keys.length;j++) {
+			double loc = keys[j].toNormalizedDouble();
+			double dist = Location.distance(lm.getLocation(), loc);
+			if(foundIn[j] != FOUND_CLIENT_CACHE && foundIn[j] != FOUND_SLASHDOT_CACHE)
+				nodeStats.avgRequestLocation.report(loc);
+			switch(foundIn[j]) {
+			case FOUND_CLIENT_CACHE:
+				nodeStats.avgClientCacheCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestClientCacheCHKSuccess)
+					nodeStats.furthestClientCacheCHKSuccess=dist;
+				break;
+			case FOUND_SLASHDOT_CACHE:
+				nodeStats.avgSlashdotCacheCHKSucess.report(loc);
+				if (dist > nodeStats.furthestSlashdotCacheCHKSuccess)
+					nodeStats.furthestSlashdotCacheCHKSuccess=dist;
+				break;
+			case FOUND_STORE:
+				nodeStats.avgStoreCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestStoreCHKSuccess)
+					nodeStats.furthestStoreCHKSuccess=dist;
+				break;
+			case FOUND_CACHE:
+				nodeStats.avgCacheCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestCacheCHKSuccess)
+					nodeStats.furthestCacheCHKSuccess=dist;
+				break;
+			}
+		}
+		return blocks;
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -4562,6 +4719,8 @@ public class Node implements TimeSkewDetectorCallback {
 		hasPanicked = true;
 		clientCore.clientLayerPersister.panic();
 		clientCore.clientLayerPersister.killAndWaitForNotRunning();
+		if(clientCore.getFProxy() != null)
+			clientCore.getFProxy().wipeFilteredContentCache();
 		try {
 			MasterKeys.killMasterKeys(getMasterPasswordFile());
 		} catch (IOException e) {
@@ -418,6 +418,27 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("offHeapRAMBuckets", true, sortOrder++, true, false,
+				    "NodeClientCore.offHeapRAMBuckets",
+				    "NodeClientCore.offHeapRAMBucketsLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return (tempBucketFactory == null ? true
+										  : tempBucketFactory
+									.isOffHeap());
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						if (get().equals(val) || (tempBucketFactory
+									  == null))
+							return;
+						tempBucketFactory.setOffHeap(val);
+					}
+				});
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -428,6 +449,7 @@ public class NodeClientCore implements Persistable {
 						      node.fastWeakRandom,
 						      nodeConfig.getBoolean("encryptTempBuckets"),
 						      minDiskFreeShortTerm, cryptoSecretTransient);
+		tempBucketFactory.setOffHeap(nodeConfig.getBoolean("offHeapRAMBuckets"));
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
@@ -447,6 +469,14 @@ public class NodeClientCore implements Persistable {
 			}
 		});
 
+		shutdownHook.addEarlyJob(new NativeThread("Save USK editions",
+							  NativeThread.HIGH_PRIORITY, true) {
+			@Override
+			public void realRun() {
+				uskManager.writeEditions();
+			}
+		});
+
 		shutdownHook.addEarlyJob(
 				new NativeThread("Shutdown database", NativeThread.HIGH_PRIORITY,
 						 true) {
@@ -787,6 +817,44 @@ public class NodeClientCore implements Persistable {
 
 		maxBackgroundUSKFetchers = nodeConfig.getInt("maxBackgroundUSKFetchers");
 
+		nodeConfig.register("maxUSKPollsPerHour", USKManager.DEFAULT_MAX_POLLS_PER_HOUR, sortOrder++, true, false,
+				    "NodeClientCore.maxUSKPollsPerHour",
+				    "NodeClientCore.maxUSKPollsPerHourLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return uskManager.getMaxPollsPerHour();
+					}
+
+					@Override
+					public void set(Integer val)
+							throws InvalidConfigValueException {
+						if (val <= 0)
+							throw new InvalidConfigValueException(
+									l10n("maxUSKPollsPerHourMustBeGreaterThanZero"));
+						uskManager.setMaxPollsPerHour(val);
+					}
+				}, false);
+
+		uskManager.setMaxPollsPerHour(nodeConfig.getInt("maxUSKPollsPerHour"));
+
+		nodeConfig.register("indexedArchiveExtraction", true, sortOrder++, true, false,
+				    "NodeClientCore.indexedArchiveExtraction",
+				    "NodeClientCore.indexedArchiveExtractionLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return archiveManager.getIndexedExtraction();
+					}
+
+					@Override
+					public void set(Boolean val) {
+						archiveManager.setIndexedExtraction(val);
+					}
+				});
+
+		archiveManager.setIndexedExtraction(nodeConfig.getBoolean("indexedArchiveExtraction"));
+
 		// This is all part of construction, not of start().
 		// Some plugins depend on it, so it needs to be *created* before they are started.
 
@@ -963,6 +1031,8 @@ public class NodeClientCore implements Persistable {
 	private void initStorage(DatabaseKey databaseKey) throws MasterKeysWrongPasswordException {
 	    clientLayerPersister.setFilesAndLoad(node.nodeDir.dir(), "client.dat", 
 	            node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey, clientContext, requestStarters, random);
+	    uskManager.setEditionStoreFiles(node.nodeDir.dir(), node.wantEncryptedDatabase(), 
+	            node.wantNoPersistentDatabase(), databaseKey);
 	}
 	
 	/** Must only be called after we have loaded master.keys */
@@ -1106,15 +1176,27 @@ public class NodeClientCore implements Persistable {
 	 * @param ignoreStore If true, don't check the datastore, create a request immediately.
 	 */
 	public void asyncGet(final Key key, boolean offersOnly, final RequestCompletionListener listener, boolean canReadClientCache, boolean canWriteClientCache, final boolean realTimeFlag, boolean localOnly, boolean ignoreStore) {
+		asyncGet(key, offersOnly, listener, canReadClientCache, canWriteClientCache, realTimeFlag, localOnly, ignoreStore, null);
+	}
+
+	/** As above.
+	 * @param trace If not null, the phases of the request will be recorded here, and it will be
+	 * finished when the request completes. */
+	public void asyncGet(final Key key, boolean offersOnly, final RequestCompletionListener listener, boolean canReadClientCache, boolean canWriteClientCache, final boolean realTimeFlag, boolean localOnly, boolean ignoreStore, final RequestTrace trace) {
 		final long uid = makeUID();
 		final boolean isSSK = key instanceof NodeSSK;
 		final RequestTag tag = new RequestTag(isSSK, RequestTag.START.ASYNC_GET, null, realTimeFlag, uid, node);
 		if(!tracker.lockUID(uid, isSSK, false, false, true, realTimeFlag, tag)) {
 			Logger.error(this, "Could not lock UID just randomly generated: " + uid + " - probably indicates broken PRNG");
+			if(trace != null) trace.finish("internal error");
 			listener.onFailed(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR, "Could not lock random UID - serious PRNG problem???"));
 			return;
 		}
 		tag.setAccepted();
+		if(trace != null) {
+			trace.setUID(uid);
+			tag.trace = trace;
+		}
 		short htl = node.maxHTL();
 		// If another node requested it within the ULPR period at a lower HTL, that may allow
 		// us to cache it in the datastore. Find the lowest HTL fetching the key in that period,
@@ -1145,6 +1227,7 @@ public class NodeClientCore implements Persistable {
 			@Override
 			public void onDataFoundLocally() {
 				tag.unlockHandler();
+				if(trace != null) trace.finish("found locally");
 				listener.onSucceeded();
 			}
 
@@ -1159,6 +1242,8 @@ public class NodeClientCore implements Persistable {
 				if(rs.abortedDownstreamTransfers())
 					status = RequestSender.TRANSFER_FAILED;
 
+				if(trace != null) trace.finish(RequestSender.getStatusString(status));
+
 				if(status == RequestSender.NOT_FINISHED) {
 					Logger.error(this, "Bogus status in onRequestSenderFinished for "+rs, new Exception("error"));
 					listener.onFailed(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR));
@@ -1269,6 +1354,7 @@ public class NodeClientCore implements Persistable {
 
 			@Override
 			public void onNotStarted(boolean internalError) {
+				if(trace != null) trace.finish(internalError ? "internal error" : "not in store");
 				if(internalError)
 					listener.onFailed(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR));
 				else
@@ -1673,6 +1759,7 @@ public class NodeClientCore implements Persistable {
 
 			// Get status explicitly, *after* completed(), so that it will be RECEIVE_FAILED if the receive failed.
 			int status = is.getStatus();
+			nodeStats.reportInsertOutcome(System.currentTimeMillis() - startTime, status == CHKInsertSender.SUCCESS, false);
 			if(status != CHKInsertSender.TIMED_OUT && status != CHKInsertSender.GENERATED_REJECTED_OVERLOAD && status != CHKInsertSender.INTERNAL_ERROR && status != CHKInsertSender.ROUTE_REALLY_NOT_FOUND) {
 				int sent = is.getTotalSentBytes();
 				int received = is.getTotalReceivedBytes();
@@ -1790,6 +1877,7 @@ public class NodeClientCore implements Persistable {
 				}
 
 			int status = is.getStatus();
+			nodeStats.reportInsertOutcome(System.currentTimeMillis() - startTime, status == SSKInsertSender.SUCCESS, true);
 
 			if(status != CHKInsertSender.TIMED_OUT && status != CHKInsertSender.GENERATED_REJECTED_OVERLOAD && status != CHKInsertSender.INTERNAL_ERROR && status != CHKInsertSender.ROUTE_REALLY_NOT_FOUND) {
 				int sent = is.getTotalSentBytes();
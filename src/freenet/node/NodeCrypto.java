@@ -7,6 +7,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
 import java.util.zip.DeflaterOutputStream;
@@ -104,7 +105,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = createSocketHandler(portNo, bindto, startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -118,7 +119,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = createSocketHandler(port, bindto, startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -158,6 +159,12 @@ public class NodeCrypto {
 		}
 	}
 
+	private UdpSocketHandler createSocketHandler(int port, FreenetInetAddress bindto, long startupTime) throws SocketException {
+		if(node.simulatedNetwork != null)
+			return node.simulatedNetwork.createSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+		return new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+	}
+
 	private String getTitle(int port) {
 		// FIXME l10n
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
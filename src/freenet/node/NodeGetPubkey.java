@@ -10,8 +10,9 @@ import freenet.store.BlockMetadata;
 import freenet.store.GetPubkey;
 import freenet.store.PubkeyStore;
 import freenet.support.ByteArrayWrapper;
+import freenet.support.CacheMap;
+import freenet.support.CacheMaps;
 import freenet.support.HexUtil;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
 
 public class NodeGetPubkey implements GetPubkey {
@@ -23,9 +24,20 @@ public class NodeGetPubkey implements GetPubkey {
 	
 	// Debugging stuff
 	private static final boolean USE_RAM_PUBKEYS_CACHE = true;
-	private static final int MAX_MEMORY_CACHED_PUBKEYS = 1000;
+	/** Maximum memory used by the in-memory cache, in bytes. */
+	private static final long MAX_MEMORY_CACHED_PUBKEYS_BYTES = 1024 * 1024;
+	/** Estimated memory used by a cached key apart from the value of y: the key object, the
+	 * BigInteger, the hash, and the cache entry. The group is shared. */
+	private static final int PUBKEY_OVERHEAD = 200;
+	private static final CacheMap.Weigher<ByteArrayWrapper, DSAPublicKey> PUBKEY_WEIGHER =
+		new CacheMap.Weigher<ByteArrayWrapper, DSAPublicKey>() {
+			@Override
+			public int weigh(ByteArrayWrapper hash, DSAPublicKey key) {
+				return (key.getY().bitLength() + 7) / 8 + PUBKEY_OVERHEAD;
+			}
+		};
 	
-	private final LRUMap<ByteArrayWrapper, DSAPublicKey> cachedPubKeys;
+	private final CacheMap<ByteArrayWrapper, DSAPublicKey> cachedPubKeys;
 
 	private PubkeyStore pubKeyDatastore;
 	private PubkeyStore pubKeyDatacache;
@@ -35,7 +47,7 @@ public class NodeGetPubkey implements GetPubkey {
 	private final Node node;
 	
 	NodeGetPubkey(Node node) {
-		cachedPubKeys = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		cachedPubKeys = CacheMaps.create(MAX_MEMORY_CACHED_PUBKEYS_BYTES, ByteArrayWrapper.FAST_COMPARATOR, PUBKEY_WEIGHER, null);
 		this.node = node;
 	}
 
@@ -56,14 +68,11 @@ public class NodeGetPubkey implements GetPubkey {
 			Logger.minor(this, "Getting pubkey: " + HexUtil.bytesToHex(hash));
 
 		if (USE_RAM_PUBKEYS_CACHE) {
-			synchronized (cachedPubKeys) {
-				DSAPublicKey key = cachedPubKeys.get(w);
-				if (key != null) {
-					cachedPubKeys.push(w, key);
-					if (logMINOR)
-						Logger.minor(this, "Got " + HexUtil.bytesToHex(hash) + " from in-memory cache");
-					return key;
-				}
+			DSAPublicKey key = cachedPubKeys.get(w);
+			if (key != null) {
+				if (logMINOR)
+					Logger.minor(this, "Got " + HexUtil.bytesToHex(hash) + " from in-memory cache");
+				return key;
 			}
 		}
 		try {
@@ -124,14 +133,10 @@ public class NodeGetPubkey implements GetPubkey {
 		if (logMINOR)
 			Logger.minor(this, "Cache key: " + HexUtil.bytesToHex(hash) + " : " + key);
 		ByteArrayWrapper w = new ByteArrayWrapper(hash);
-		synchronized (cachedPubKeys) {
-			DSAPublicKey key2 = cachedPubKeys.get(w);
-			if ((key2 != null) && !key2.equals(key))
-				throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
-			cachedPubKeys.push(w, key);
-			while (cachedPubKeys.size() > MAX_MEMORY_CACHED_PUBKEYS)
-				cachedPubKeys.popKey();
-		}
+		DSAPublicKey key2 = cachedPubKeys.peek(w);
+		if ((key2 != null) && !key2.equals(key))
+			throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
+		cachedPubKeys.put(w, key);
 		try {
 			if (canWriteClientCache && !(canWriteDatastore || writeLocalToDatastore)) {
 				if(pubKeyClientcache != null) {
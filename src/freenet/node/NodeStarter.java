@@ -20,12 +20,14 @@ import freenet.crypt.JceLoader;
 import freenet.crypt.RandomSource;
 import freenet.crypt.SSL;
 import freenet.crypt.Yarrow;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.support.Executor;
 import freenet.support.JVMVersion;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
+import freenet.support.PrioritizedTicker;
 import freenet.support.ProcessPriority;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
@@ -418,7 +420,9 @@ public class NodeStarter implements WrapperListener {
         public Executor executor;
         public int threadLimit = 500;
         public long storeSize;
-        public boolean ramStore;
+        /** Keep the datastore in memory. On by default so that big simulations don't need lots
+         *  of disk space. */
+        public boolean ramStore = true;
         public boolean enableSwapping;
         public boolean enableARKs;
         public boolean enableULPRs;
@@ -433,6 +437,12 @@ public class NodeStarter implements WrapperListener {
         public String ipAddressOverride;
         public boolean enableFCP;
         public boolean enablePlugins;
+        /** If not null, the node's ports are on this in-memory network rather than UDP, so
+         *  that lots of nodes can run in one JVM. */
+        public SimulatedNetwork network;
+        /** If not null, the node uses this ticker rather than its own. Nodes in a big
+         *  simulation should share one ticker, as well as the executor. */
+        public PrioritizedTicker ticker;
     }
 
     /**
@@ -563,8 +573,8 @@ public class NodeStarter implements WrapperListener {
         if(params.ipAddressOverride != null)
             configFS.putSingle("node.ipAddressOverride", params.ipAddressOverride);
         if(params.longPingTimes) {
-			configFS.put("node.maxPingTime", 100000);
-			configFS.put("node.subMaxPingTime", 50000);
+			configFS.put("node.load.maxPingTime", 100000);
+			configFS.put("node.load.subMaxPingTime", 50000);
 		}
 		configFS.put("node.respondBandwidth", true);
 		configFS.put("node.respondBuild", true);
@@ -576,7 +586,7 @@ public class NodeStarter implements WrapperListener {
 
 		PersistentConfig config = new PersistentConfig(configFS);
 
-        Node node = new Node(config, params.random, params.random, null, null, params.executor);
+        Node node = new Node(config, params.random, params.random, null, null, params.executor, params.ticker, params.network);
 
 		//All testing environments connect the nodes as they want, even if the old setup is restored, it is not desired.
 		node.peers.removeAllPeers();
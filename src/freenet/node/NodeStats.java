@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 
+import freenet.client.FECCodec;
 import freenet.config.InvalidConfigValueException;
 import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
@@ -20,6 +21,9 @@ import freenet.l10n.NodeL10n;
 import freenet.node.RequestTracker.CountedRequests;
 import freenet.node.RequestTracker.WaitingForSlots;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
+import freenet.node.stats.DataStoreInstanceType;
+import freenet.node.stats.DataStoreKeyType;
+import freenet.node.stats.DataStoreType;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreLocationStats;
 import freenet.store.StoreCallback;
@@ -35,11 +39,15 @@ import freenet.support.TokenBucket;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
-import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.DecayingKeyspaceAverage;
+import freenet.support.math.LockFreeBootstrappingDecayingRunningAverage;
+import freenet.support.math.LockFreeTimeDecayingRunningAverage;
+import freenet.support.math.LockFreeTrivialRunningAverage;
 import freenet.support.math.RunningAverage;
-import freenet.support.math.TimeDecayingRunningAverage;
-import freenet.support.math.TrivialRunningAverage;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.Gauge;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -125,6 +133,9 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private volatile long subMaxPingTime;
 	private volatile long maxPingTime;
 
+	/** Traces a sample of local requests, see node.load.traceSampleInterval. */
+	public final RequestTracer tracer;
+
 	final Node node;
 	private MemoryChecker myMemoryChecker;
 	public final PeerManager peers;
@@ -153,15 +164,15 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	/** nodeAveragePing PeerManagerUserAlert should happen if true */
 	public boolean nodeAveragePingAlertRelevant;
 	/** Average proportion of requests rejected immediately due to overload */
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingOverall;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingCHKRequestRT;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingSSKRequestRT;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingCHKInsertRT;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingSSKInsertRT;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingCHKRequestBulk;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingSSKRequestBulk;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingCHKInsertBulk;
-	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingSSKInsertBulk;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingOverall;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingCHKRequestRT;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingSSKRequestRT;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingCHKInsertRT;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingSSKInsertRT;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingCHKRequestBulk;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingSSKRequestBulk;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingCHKInsertBulk;
+	public final LockFreeBootstrappingDecayingRunningAverage pInstantRejectIncomingSSKInsertBulk;
 	private boolean ignoreLocalVsRemoteBandwidthLiability;
 
 	/** Average delay caused by throttling for sending a packet */
@@ -170,22 +181,22 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private final RunningAverage throttledPacketSendAverageBulk;
 
 	// Bytes used by each different type of local/remote chk/ssk request/insert
-	final TimeDecayingRunningAverage remoteChkFetchBytesSentAverage;
-	final TimeDecayingRunningAverage remoteSskFetchBytesSentAverage;
-	final TimeDecayingRunningAverage remoteChkInsertBytesSentAverage;
-	final TimeDecayingRunningAverage remoteSskInsertBytesSentAverage;
-	final TimeDecayingRunningAverage remoteChkFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage remoteSskFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage remoteChkInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage remoteSskInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage localChkFetchBytesSentAverage;
-	final TimeDecayingRunningAverage localSskFetchBytesSentAverage;
-	final TimeDecayingRunningAverage localChkInsertBytesSentAverage;
-	final TimeDecayingRunningAverage localSskInsertBytesSentAverage;
-	final TimeDecayingRunningAverage localChkFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage localSskFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage localChkInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage localSskInsertBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage remoteChkFetchBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage remoteSskFetchBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage remoteChkInsertBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage remoteSskInsertBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage remoteChkFetchBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage remoteSskFetchBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage remoteChkInsertBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage remoteSskInsertBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage localChkFetchBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage localSskFetchBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage localChkInsertBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage localSskInsertBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage localChkFetchBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage localSskFetchBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage localChkInsertBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage localSskInsertBytesReceivedAverage;
 
 	// Bytes used by successful chk/ssk request/insert.
 	// Note: These are used to determine whether to accept a request,
@@ -198,45 +209,52 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	// Note that these are always reported in the Handler or the NodeClientCore
 	// call taking its place.
-	final TimeDecayingRunningAverage successfulChkFetchBytesSentAverage;
-	final TimeDecayingRunningAverage successfulSskFetchBytesSentAverage;
-	final TimeDecayingRunningAverage successfulChkInsertBytesSentAverage;
-	final TimeDecayingRunningAverage successfulSskInsertBytesSentAverage;
-	final TimeDecayingRunningAverage successfulChkOfferReplyBytesSentAverage;
-	final TimeDecayingRunningAverage successfulSskOfferReplyBytesSentAverage;
-	final TimeDecayingRunningAverage successfulChkFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulSskFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulChkInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulSskInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulChkOfferReplyBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulSskOfferReplyBytesReceivedAverage;
-
-	final TrivialRunningAverage globalFetchPSuccess;
-	final TrivialRunningAverage chkLocalFetchPSuccess;
-	final TrivialRunningAverage chkRemoteFetchPSuccess;
-	final TrivialRunningAverage sskLocalFetchPSuccess;
-	final TrivialRunningAverage sskRemoteFetchPSuccess;
-	final TrivialRunningAverage blockTransferPSuccessRT;
-	final TrivialRunningAverage blockTransferPSuccessBulk;
-	final TrivialRunningAverage blockTransferPSuccessLocal;
-	final TrivialRunningAverage blockTransferFailTimeout;
-
-	final TrivialRunningAverage successfulLocalCHKFetchTimeAverageRT;
-	final TrivialRunningAverage unsuccessfulLocalCHKFetchTimeAverageRT;
-	final TrivialRunningAverage localCHKFetchTimeAverageRT;
-	final TrivialRunningAverage successfulLocalCHKFetchTimeAverageBulk;
-	final TrivialRunningAverage unsuccessfulLocalCHKFetchTimeAverageBulk;
-	final TrivialRunningAverage localCHKFetchTimeAverageBulk;
-
-	final TrivialRunningAverage successfulLocalSSKFetchTimeAverageRT;
-	final TrivialRunningAverage unsuccessfulLocalSSKFetchTimeAverageRT;
-	final TrivialRunningAverage localSSKFetchTimeAverageRT;
-	final TrivialRunningAverage successfulLocalSSKFetchTimeAverageBulk;
-	final TrivialRunningAverage unsuccessfulLocalSSKFetchTimeAverageBulk;
-	final TrivialRunningAverage localSSKFetchTimeAverageBulk;
+	final LockFreeTimeDecayingRunningAverage successfulChkFetchBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage successfulSskFetchBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage successfulChkInsertBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage successfulSskInsertBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage successfulChkOfferReplyBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage successfulSskOfferReplyBytesSentAverage;
+	final LockFreeTimeDecayingRunningAverage successfulChkFetchBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage successfulSskFetchBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage successfulChkInsertBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage successfulSskInsertBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage successfulChkOfferReplyBytesReceivedAverage;
+	final LockFreeTimeDecayingRunningAverage successfulSskOfferReplyBytesReceivedAverage;
+
+	final LockFreeTrivialRunningAverage globalFetchPSuccess;
+	final LockFreeTrivialRunningAverage chkLocalFetchPSuccess;
+	final LockFreeTrivialRunningAverage chkRemoteFetchPSuccess;
+	final LockFreeTrivialRunningAverage sskLocalFetchPSuccess;
+	final LockFreeTrivialRunningAverage sskRemoteFetchPSuccess;
+	final LockFreeTrivialRunningAverage blockTransferPSuccessRT;
+	final LockFreeTrivialRunningAverage blockTransferPSuccessBulk;
+	final LockFreeTrivialRunningAverage blockTransferPSuccessLocal;
+	final LockFreeTrivialRunningAverage blockTransferFailTimeout;
+
+	final LockFreeTrivialRunningAverage successfulLocalCHKFetchTimeAverageRT;
+	final LockFreeTrivialRunningAverage unsuccessfulLocalCHKFetchTimeAverageRT;
+	final LockFreeTrivialRunningAverage localCHKFetchTimeAverageRT;
+	final LockFreeTrivialRunningAverage successfulLocalCHKFetchTimeAverageBulk;
+	final LockFreeTrivialRunningAverage unsuccessfulLocalCHKFetchTimeAverageBulk;
+	final LockFreeTrivialRunningAverage localCHKFetchTimeAverageBulk;
+
+	final LockFreeTrivialRunningAverage successfulLocalSSKFetchTimeAverageRT;
+	final LockFreeTrivialRunningAverage unsuccessfulLocalSSKFetchTimeAverageRT;
+	final LockFreeTrivialRunningAverage localSSKFetchTimeAverageRT;
+	final LockFreeTrivialRunningAverage successfulLocalSSKFetchTimeAverageBulk;
+	final LockFreeTrivialRunningAverage unsuccessfulLocalSSKFetchTimeAverageBulk;
+	final LockFreeTrivialRunningAverage localSSKFetchTimeAverageBulk;
 
 	final public Histogram2 chkSuccessRatesByLocation;
 
+	/** Time taken by local requests and inserts in milliseconds, by [isSSK][successful], for
+	 * Node.metrics. */
+	private final Histogram[][] localRequestTimes = new Histogram[2][2];
+	private final Histogram[][] localInsertTimes = new Histogram[2][2];
+	/** Requests completed, by [isSSK][isRemote][succeeded]. */
+	private final Counter[][][] requestsCompleted = new Counter[2][2][2];
+
 	private long previous_input_stat;
 	private long previous_output_stat;
 	private long previous_io_stat_time;
@@ -296,15 +314,15 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private static final long peerManagerUserAlertStatsUpdateInterval = 1000;  // 1 second
 
 	// Backoff stats
-	final Hashtable<String, TrivialRunningAverage> avgMandatoryBackoffTimesRT;
-	final Hashtable<String, TrivialRunningAverage> avgMandatoryBackoffTimesBulk;
-	final Hashtable<String, TrivialRunningAverage> avgRoutingBackoffTimesRT;
-	final Hashtable<String, TrivialRunningAverage> avgRoutingBackoffTimesBulk;
-	final Hashtable<String, TrivialRunningAverage> avgTransferBackoffTimesRT;
-	final Hashtable<String, TrivialRunningAverage> avgTransferBackoffTimesBulk;
+	final Hashtable<String, LockFreeTrivialRunningAverage> avgMandatoryBackoffTimesRT;
+	final Hashtable<String, LockFreeTrivialRunningAverage> avgMandatoryBackoffTimesBulk;
+	final Hashtable<String, LockFreeTrivialRunningAverage> avgRoutingBackoffTimesRT;
+	final Hashtable<String, LockFreeTrivialRunningAverage> avgRoutingBackoffTimesBulk;
+	final Hashtable<String, LockFreeTrivialRunningAverage> avgTransferBackoffTimesRT;
+	final Hashtable<String, LockFreeTrivialRunningAverage> avgTransferBackoffTimesBulk;
 
 	// Database stats
-	final Hashtable<String, TrivialRunningAverage> avgDatabaseJobExecutionTimes;
+	final Hashtable<String, LockFreeTrivialRunningAverage> avgDatabaseJobExecutionTimes;
 	public final DecayingKeyspaceAverage avgClientCacheCHKLocation;
 	public final DecayingKeyspaceAverage avgCacheCHKSuccess;
 	public final DecayingKeyspaceAverage avgSlashdotCacheCHKSucess;
@@ -327,23 +345,23 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		this.node = node;
 		this.peers = node.peers;
 		this.hardRandom = node.random;
-		this.routingMissDistanceLocal = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
-		this.routingMissDistanceRemote = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
-		this.routingMissDistanceOverall = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
-		this.routingMissDistanceBulk = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
-		this.routingMissDistanceRT = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
-		this.backedOffPercent = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.routingMissDistanceLocal = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.routingMissDistanceRemote = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.routingMissDistanceOverall = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.routingMissDistanceBulk = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.routingMissDistanceRT = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.backedOffPercent = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
 		preemptiveRejectReasons = new StringCounter();
 		localPreemptiveRejectReasons = new StringCounter();
-		pInstantRejectIncomingOverall = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingCHKRequestRT = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingSSKRequestRT = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingCHKInsertRT = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingSSKInsertRT = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingCHKRequestBulk = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingSSKRequestBulk = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingCHKInsertBulk = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
-		pInstantRejectIncomingSSKInsertBulk = new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingOverall = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingCHKRequestRT = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingSSKRequestRT = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingCHKInsertRT = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingSSKInsertRT = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingCHKRequestBulk = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingSSKRequestBulk = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingCHKInsertBulk = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		pInstantRejectIncomingSSKInsertBulk = new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
 		REJECT_STATS_AVERAGERS = new RunningAverage[] {
 					pInstantRejectIncomingCHKRequestBulk,
 					pInstantRejectIncomingSSKRequestBulk,
@@ -355,11 +373,11 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		while(tg.getParent() != null) tg = tg.getParent();
 		this.rootThreadGroup = tg;
 		throttledPacketSendAverage =
-			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
+			new LockFreeBootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
 		throttledPacketSendAverageRT =
-			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
+			new LockFreeBootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
 		throttledPacketSendAverageBulk =
-			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
+			new LockFreeBootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
 		nodePinger = new NodePinger(node);
 
 		previous_input_stat = 0;
@@ -491,6 +509,23 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		}, false);
 		subMaxPingTime = statsConfig.getLong("subMaxPingTime");
 
+		statsConfig.register("traceSampleInterval", 0, sortOrder++, true, false, "NodeStat.traceSampleInterval", "NodeStat.traceSampleIntervalLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				return tracer.getSampleInterval();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("valueTooLow"));
+				tracer.setSampleInterval(val);
+			}
+
+		}, false);
+		tracer = new RequestTracer(node.metrics, Math.max(0, statsConfig.getInt("traceSampleInterval")));
+
 		// This is a *network* level setting, because it affects the rate at which we initiate local
 		// requests, which could be seen by distant nodes.
 
@@ -553,60 +588,60 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		if(logMINOR) Logger.minor(this, "Read throttleFS:\n"+throttleFS);
 
 		// Guesstimates. Hopefully well over the reality.
-		localChkFetchBytesSentAverage = new TimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesSentAverage"), node);
-		localSskFetchBytesSentAverage = new TimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesSentAverage"), node);
-		localChkInsertBytesSentAverage = new TimeDecayingRunningAverage(32768, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesSentAverage"), node);
-		localSskInsertBytesSentAverage = new TimeDecayingRunningAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskInsertBytesSentAverage"), node);
-		localChkFetchBytesReceivedAverage = new TimeDecayingRunningAverage(32768+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesReceivedAverage"), node);
-		localSskFetchBytesReceivedAverage = new TimeDecayingRunningAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesReceivedAverage"), node);
-		localChkInsertBytesReceivedAverage = new TimeDecayingRunningAverage(1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"), node);
-		localSskInsertBytesReceivedAverage = new TimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"), node);
-
-		remoteChkFetchBytesSentAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesSentAverage"), node);
-		remoteSskFetchBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesSentAverage"), node);
-		remoteChkInsertBytesSentAverage = new TimeDecayingRunningAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesSentAverage"), node);
-		remoteSskInsertBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesSentAverage"), node);
-		remoteChkFetchBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesReceivedAverage"), node);
-		remoteSskFetchBytesReceivedAverage = new TimeDecayingRunningAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesReceivedAverage"), node);
-		remoteChkInsertBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesReceivedAverage"), node);
-		remoteSskInsertBytesReceivedAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesReceivedAverage"), node);
-
-		successfulChkFetchBytesSentAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesSentAverage"), node);
-		successfulSskFetchBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesSentAverage"), node);
-		successfulChkInsertBytesSentAverage = new TimeDecayingRunningAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesSentAverage"), node);
-		successfulSskInsertBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesSentAverage"), node);
-		successfulChkOfferReplyBytesSentAverage = new TimeDecayingRunningAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesSentAverage"), node);
-		successfulSskOfferReplyBytesSentAverage = new TimeDecayingRunningAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesSentAverage"), node);
-		successfulChkFetchBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesReceivedAverage"), node);
-		successfulSskFetchBytesReceivedAverage = new TimeDecayingRunningAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesReceivedAverage"), node);
-		successfulChkInsertBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesReceivedAverage"), node);
-		successfulSskInsertBytesReceivedAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesReceivedAverage"), node);
-		successfulChkOfferReplyBytesReceivedAverage = new TimeDecayingRunningAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesReceivedAverage"), node);
-		successfulSskOfferReplyBytesReceivedAverage = new TimeDecayingRunningAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesReceivedAverage"), node);
-
-		globalFetchPSuccess = new TrivialRunningAverage();
-		chkLocalFetchPSuccess = new TrivialRunningAverage();
-		chkRemoteFetchPSuccess = new TrivialRunningAverage();
-		sskLocalFetchPSuccess = new TrivialRunningAverage();
-		sskRemoteFetchPSuccess = new TrivialRunningAverage();
-		blockTransferPSuccessRT = new TrivialRunningAverage();
-		blockTransferPSuccessBulk = new TrivialRunningAverage();
-		blockTransferPSuccessLocal = new TrivialRunningAverage();
-		blockTransferFailTimeout = new TrivialRunningAverage();
-
-		successfulLocalCHKFetchTimeAverageRT = new TrivialRunningAverage();
-		unsuccessfulLocalCHKFetchTimeAverageRT = new TrivialRunningAverage();
-		localCHKFetchTimeAverageRT = new TrivialRunningAverage();
-		successfulLocalCHKFetchTimeAverageBulk = new TrivialRunningAverage();
-		unsuccessfulLocalCHKFetchTimeAverageBulk = new TrivialRunningAverage();
-		localCHKFetchTimeAverageBulk = new TrivialRunningAverage();
-
-		successfulLocalSSKFetchTimeAverageRT = new TrivialRunningAverage();
-		unsuccessfulLocalSSKFetchTimeAverageRT = new TrivialRunningAverage();
-		localSSKFetchTimeAverageRT = new TrivialRunningAverage();
-		successfulLocalSSKFetchTimeAverageBulk = new TrivialRunningAverage();
-		unsuccessfulLocalSSKFetchTimeAverageBulk = new TrivialRunningAverage();
-		localSSKFetchTimeAverageBulk = new TrivialRunningAverage();
+		localChkFetchBytesSentAverage = new LockFreeTimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesSentAverage"), node);
+		localSskFetchBytesSentAverage = new LockFreeTimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesSentAverage"), node);
+		localChkInsertBytesSentAverage = new LockFreeTimeDecayingRunningAverage(32768, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesSentAverage"), node);
+		localSskInsertBytesSentAverage = new LockFreeTimeDecayingRunningAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskInsertBytesSentAverage"), node);
+		localChkFetchBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(32768+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesReceivedAverage"), node);
+		localSskFetchBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesReceivedAverage"), node);
+		localChkInsertBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"), node);
+		localSskInsertBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"), node);
+
+		remoteChkFetchBytesSentAverage = new LockFreeTimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesSentAverage"), node);
+		remoteSskFetchBytesSentAverage = new LockFreeTimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesSentAverage"), node);
+		remoteChkInsertBytesSentAverage = new LockFreeTimeDecayingRunningAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesSentAverage"), node);
+		remoteSskInsertBytesSentAverage = new LockFreeTimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesSentAverage"), node);
+		remoteChkFetchBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesReceivedAverage"), node);
+		remoteSskFetchBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesReceivedAverage"), node);
+		remoteChkInsertBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesReceivedAverage"), node);
+		remoteSskInsertBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesReceivedAverage"), node);
+
+		successfulChkFetchBytesSentAverage = new LockFreeTimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesSentAverage"), node);
+		successfulSskFetchBytesSentAverage = new LockFreeTimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesSentAverage"), node);
+		successfulChkInsertBytesSentAverage = new LockFreeTimeDecayingRunningAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesSentAverage"), node);
+		successfulSskInsertBytesSentAverage = new LockFreeTimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesSentAverage"), node);
+		successfulChkOfferReplyBytesSentAverage = new LockFreeTimeDecayingRunningAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesSentAverage"), node);
+		successfulSskOfferReplyBytesSentAverage = new LockFreeTimeDecayingRunningAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesSentAverage"), node);
+		successfulChkFetchBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesReceivedAverage"), node);
+		successfulSskFetchBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesReceivedAverage"), node);
+		successfulChkInsertBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesReceivedAverage"), node);
+		successfulSskInsertBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesReceivedAverage"), node);
+		successfulChkOfferReplyBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesReceivedAverage"), node);
+		successfulSskOfferReplyBytesReceivedAverage = new LockFreeTimeDecayingRunningAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesReceivedAverage"), node);
+
+		globalFetchPSuccess = new LockFreeTrivialRunningAverage();
+		chkLocalFetchPSuccess = new LockFreeTrivialRunningAverage();
+		chkRemoteFetchPSuccess = new LockFreeTrivialRunningAverage();
+		sskLocalFetchPSuccess = new LockFreeTrivialRunningAverage();
+		sskRemoteFetchPSuccess = new LockFreeTrivialRunningAverage();
+		blockTransferPSuccessRT = new LockFreeTrivialRunningAverage();
+		blockTransferPSuccessBulk = new LockFreeTrivialRunningAverage();
+		blockTransferPSuccessLocal = new LockFreeTrivialRunningAverage();
+		blockTransferFailTimeout = new LockFreeTrivialRunningAverage();
+
+		successfulLocalCHKFetchTimeAverageRT = new LockFreeTrivialRunningAverage();
+		unsuccessfulLocalCHKFetchTimeAverageRT = new LockFreeTrivialRunningAverage();
+		localCHKFetchTimeAverageRT = new LockFreeTrivialRunningAverage();
+		successfulLocalCHKFetchTimeAverageBulk = new LockFreeTrivialRunningAverage();
+		unsuccessfulLocalCHKFetchTimeAverageBulk = new LockFreeTrivialRunningAverage();
+		localCHKFetchTimeAverageBulk = new LockFreeTrivialRunningAverage();
+
+		successfulLocalSSKFetchTimeAverageRT = new LockFreeTrivialRunningAverage();
+		unsuccessfulLocalSSKFetchTimeAverageRT = new LockFreeTrivialRunningAverage();
+		localSSKFetchTimeAverageRT = new LockFreeTrivialRunningAverage();
+		successfulLocalSSKFetchTimeAverageBulk = new LockFreeTrivialRunningAverage();
+		unsuccessfulLocalSSKFetchTimeAverageBulk = new LockFreeTrivialRunningAverage();
+		localSSKFetchTimeAverageBulk = new LockFreeTrivialRunningAverage();
 
 		chkSuccessRatesByLocation = new Histogram2(10, 1.0);
 
@@ -635,14 +670,14 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		hourlyStatsRT = new HourlyStats(node);
 		hourlyStatsBulk = new HourlyStats(node);
 
-		avgMandatoryBackoffTimesRT = new Hashtable<String, TrivialRunningAverage>();
-		avgMandatoryBackoffTimesBulk = new Hashtable<String, TrivialRunningAverage>();
-		avgRoutingBackoffTimesRT = new Hashtable<String, TrivialRunningAverage>();
-		avgRoutingBackoffTimesBulk = new Hashtable<String, TrivialRunningAverage>();
-		avgTransferBackoffTimesRT = new Hashtable<String, TrivialRunningAverage>();
-		avgTransferBackoffTimesBulk = new Hashtable<String, TrivialRunningAverage>();
+		avgMandatoryBackoffTimesRT = new Hashtable<String, LockFreeTrivialRunningAverage>();
+		avgMandatoryBackoffTimesBulk = new Hashtable<String, LockFreeTrivialRunningAverage>();
+		avgRoutingBackoffTimesRT = new Hashtable<String, LockFreeTrivialRunningAverage>();
+		avgRoutingBackoffTimesBulk = new Hashtable<String, LockFreeTrivialRunningAverage>();
+		avgTransferBackoffTimesRT = new Hashtable<String, LockFreeTrivialRunningAverage>();
+		avgTransferBackoffTimesBulk = new Hashtable<String, LockFreeTrivialRunningAverage>();
 
-		avgDatabaseJobExecutionTimes = new Hashtable<String, TrivialRunningAverage>();
+		avgDatabaseJobExecutionTimes = new Hashtable<String, LockFreeTrivialRunningAverage>();
 		
 		if(!NodeStarter.isTestingVM()) {
 			// Normal mode
@@ -655,9 +690,108 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			rejectStatsUpdateInterval = SECONDS.toMillis(10);
 			rejectStatsFuzz = -1.0;
 		}
+		registerMetrics(node.metrics);
 		statsConfig.finishedInitialization();
 	}
 
+	private void registerMetrics(MetricsRegistry metrics) {
+		String[] keyTypes = new String[] { "chk", "ssk" };
+		String[] results = new String[] { "failure", "success" };
+		for(int ssk = 0; ssk < 2; ssk++) {
+			for(int success = 0; success < 2; success++) {
+				localRequestTimes[ssk][success] = metrics.histogram("freenet_local_request_duration_seconds",
+						"Time taken by requests started on this node.", 0.001, MINUTES.toMillis(10),
+						"type", keyTypes[ssk], "result", results[success]);
+				localInsertTimes[ssk][success] = metrics.histogram("freenet_local_insert_duration_seconds",
+						"Time taken by inserts started on this node.", 0.001, MINUTES.toMillis(10),
+						"type", keyTypes[ssk], "result", results[success]);
+				for(int remote = 0; remote < 2; remote++)
+					requestsCompleted[ssk][remote][success] = metrics.counter("freenet_requests_completed_total",
+							"Requests completed, started locally or by other nodes.",
+							"type", keyTypes[ssk], "source", remote == 1 ? "remote" : "local", "result", results[success]);
+			}
+		}
+		metrics.gauge("freenet_threads_running", "Threads running.", new Gauge() {
+			@Override
+			public double value() {
+				return getActiveThreadCount();
+			}
+		});
+		metrics.gauge("freenet_peers_connected", "Peers connected.", new Gauge() {
+			@Override
+			public double value() {
+				return node.peers.countConnectedPeers();
+			}
+		});
+		metrics.gauge("freenet_average_ping_seconds", "Average round trip time to our peers.", new Gauge() {
+			@Override
+			public double value() {
+				return getNodeAveragePingTime() / 1000.0;
+			}
+		});
+		metrics.gauge("freenet_bwlimit_delay_seconds", "Average delay sending packets due to the bandwidth limit.", new Gauge() {
+			@Override
+			public double value() {
+				return getBwlimitDelayTime() / 1000.0;
+			}
+		});
+		metrics.gauge("freenet_incoming_rejected_ratio", "Fraction of incoming requests rejected at once.", new Gauge() {
+			@Override
+			public double value() {
+				return pRejectIncomingInstantly();
+			}
+		});
+		for(int i = 0; i < 2; i++) {
+			final boolean out = i == 0;
+			metrics.counter("freenet_transferred_bytes_total", "Bytes sent and received over UDP, including headers.", new Gauge() {
+				@Override
+				public double value() {
+					return node.collector.getTotalIO()[out ? 0 : 1];
+				}
+			}, "direction", out ? "out" : "in");
+		}
+		for(DataStoreKeyType key : DataStoreKeyType.values())
+			for(DataStoreType store : DataStoreType.values())
+				registerStoreMetrics(metrics, new DataStoreInstanceType(key, store));
+		metrics.register("freenet_fec_decode_duration_seconds", "Time taken by FEC decodes.", FECCodec.DECODE_TIME);
+		metrics.register("freenet_fec_encode_duration_seconds", "Time taken by FEC encodes.", FECCodec.ENCODE_TIME);
+	}
+
+	/** The stores may be replaced, e.g. if the store type is changed, so look them up each time. */
+	private void registerStoreMetrics(MetricsRegistry metrics, final DataStoreInstanceType type) {
+		String[] labels = new String[] { "key", type.key.name().toLowerCase(), "store", type.store.name().toLowerCase() };
+		metrics.gauge("freenet_store_keys", "Keys in each datastore.", new Gauge() {
+			@Override
+			public double value() {
+				return node.getDataStoreStats().get(type).keys();
+			}
+		}, labels);
+		metrics.gauge("freenet_store_capacity_keys", "Capacity of each datastore.", new Gauge() {
+			@Override
+			public double value() {
+				return node.getDataStoreStats().get(type).capacity();
+			}
+		}, labels);
+		metrics.counter("freenet_store_hits_total", "Successful reads from each datastore since startup.", new Gauge() {
+			@Override
+			public double value() {
+				return node.getDataStoreStats().get(type).getSessionAccessStats().hits();
+			}
+		}, labels);
+		metrics.counter("freenet_store_misses_total", "Unsuccessful reads from each datastore since startup.", new Gauge() {
+			@Override
+			public double value() {
+				return node.getDataStoreStats().get(type).getSessionAccessStats().misses();
+			}
+		}, labels);
+		metrics.counter("freenet_store_writes_total", "Writes to each datastore since startup.", new Gauge() {
+			@Override
+			public double value() {
+				return node.getDataStoreStats().get(type).getSessionAccessStats().writes();
+			}
+		}, labels);
+	}
+
 	protected String l10n(String key) {
 		return NodeL10n.getBase().getString("NodeStats."+key);
 	}
@@ -1639,7 +1773,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		}
 	}
 
-	private BootstrappingDecayingRunningAverage getRejectedTracker(
+	private LockFreeBootstrappingDecayingRunningAverage getRejectedTracker(
 			boolean isRealTime, boolean isSSK, boolean isInsert) {
 		if(isRealTime) {
 			if(isSSK) {
@@ -1981,6 +2115,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
+		fs.put("RAMBucketSlabsInUse", node.clientCore.tempBucketFactory.getSlabBytesInUse());
+		fs.put("RAMBucketSlabsFree", node.clientCore.tempBucketFactory.getSlabBytesFree());
+		fs.put("RAMBucketBackgroundMigrations", node.clientCore.tempBucketFactory.getBackgroundMigrations());
+		fs.put("RAMBucketForegroundMigrations", node.clientCore.tempBucketFactory.getForegroundMigrations());
 
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
@@ -2259,6 +2397,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public synchronized void requestCompleted(boolean succeeded, boolean isRemote, boolean isSSK) {
+		requestsCompleted[isSSK ? 1 : 0][isRemote ? 1 : 0][succeeded ? 1 : 0].increment();
 		globalFetchPSuccess.report(succeeded ? 1.0 : 0.0);
 		if(isSSK) {
 			if (isRemote) {
@@ -2999,6 +3138,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportCHKOutcome(long rtt, boolean successful, double location, boolean isRealtime) {
+		localRequestTimes[0][successful ? 1 : 0].record(rtt);
 		if (successful) {
 			(isRealtime ? successfulLocalCHKFetchTimeAverageRT : successfulLocalCHKFetchTimeAverageBulk).report(rtt);
 			chkSuccessRatesByLocation.report(location, 1.0);
@@ -3010,6 +3150,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportSSKOutcome(long rtt, boolean successful, boolean isRealtime) {
+		localRequestTimes[1][successful ? 1 : 0].record(rtt);
 		if (successful) {
 			(isRealtime ? successfulLocalSSKFetchTimeAverageRT : successfulLocalSSKFetchTimeAverageBulk).report(rtt);
 		} else {
@@ -3018,6 +3159,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		(isRealtime ? localSSKFetchTimeAverageRT : localSSKFetchTimeAverageBulk).report(rtt);
 	}
 
+	public void reportInsertOutcome(long time, boolean successful, boolean isSSK) {
+		localInsertTimes[isSSK ? 1 : 0][successful ? 1 : 0].record(time);
+	}
+
 	public void fillDetailedTimingsBox(HTMLNode html) {
 		HTMLNode table = html.addChild("table");
 		HTMLNode row = table.addChild("tr");
@@ -3085,13 +3230,13 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	public void reportDatabaseJob(String jobType, long executionTimeMiliSeconds) {
 		jobType = sanitizeDBJobType(jobType);
 
-		TrivialRunningAverage avg;
+		LockFreeTrivialRunningAverage avg;
 
 		synchronized(avgDatabaseJobExecutionTimes) {
 			avg = avgDatabaseJobExecutionTimes.get(jobType);
 
 			if(avg == null) {
-				avg = new TrivialRunningAverage();
+				avg = new LockFreeTrivialRunningAverage();
 				avgDatabaseJobExecutionTimes.put(jobType, avg);
 			}
 		}
@@ -3100,13 +3245,13 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportMandatoryBackoff(String backoffType, long backoffTimeMilliSeconds, boolean realtime) {
-		TrivialRunningAverage avg;
+		LockFreeTrivialRunningAverage avg;
 		if(realtime) {
 			synchronized (avgMandatoryBackoffTimesRT) {
 				avg = avgMandatoryBackoffTimesRT.get(backoffType);
 
 				if (avg == null) {
-					avg = new TrivialRunningAverage();
+					avg = new LockFreeTrivialRunningAverage();
 					avgMandatoryBackoffTimesRT.put(backoffType, avg);
 				}
 			}
@@ -3115,7 +3260,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 				avg = avgMandatoryBackoffTimesBulk.get(backoffType);
 
 				if (avg == null) {
-					avg = new TrivialRunningAverage();
+					avg = new LockFreeTrivialRunningAverage();
 					avgMandatoryBackoffTimesBulk.put(backoffType, avg);
 				}
 			}
@@ -3124,14 +3269,14 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportRoutingBackoff(String backoffType, long backoffTimeMilliSeconds, boolean realtime) {
-		TrivialRunningAverage avg;
+		LockFreeTrivialRunningAverage avg;
 
 		if(realtime) {
 			synchronized (avgRoutingBackoffTimesRT) {
 				avg = avgRoutingBackoffTimesRT.get(backoffType);
 
 				if (avg == null) {
-					avg = new TrivialRunningAverage();
+					avg = new LockFreeTrivialRunningAverage();
 					avgRoutingBackoffTimesRT.put(backoffType, avg);
 				}
 			}
@@ -3140,7 +3285,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 				avg = avgRoutingBackoffTimesBulk.get(backoffType);
 
 				if (avg == null) {
-					avg = new TrivialRunningAverage();
+					avg = new LockFreeTrivialRunningAverage();
 					avgRoutingBackoffTimesBulk.put(backoffType, avg);
 				}
 			}
@@ -3150,14 +3295,14 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportTransferBackoff(String backoffType, long backoffTimeMilliSeconds, boolean realtime) {
-		TrivialRunningAverage avg;
+		LockFreeTrivialRunningAverage avg;
 
 		if (realtime) {
 			synchronized (avgTransferBackoffTimesRT) {
 				avg = avgTransferBackoffTimesRT.get(backoffType);
 
 				if (avg == null) {
-					avg = new TrivialRunningAverage();
+					avg = new LockFreeTrivialRunningAverage();
 					avgTransferBackoffTimesRT.put(backoffType, avg);
 				}
 			}
@@ -3166,7 +3311,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 				avg = avgTransferBackoffTimesBulk.get(backoffType);
 
 				if (avg == null) {
-					avg = new TrivialRunningAverage();
+					avg = new LockFreeTrivialRunningAverage();
 					avgTransferBackoffTimesBulk.put(backoffType, avg);
 				}
 			}
@@ -3488,8 +3633,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			int i = 0;
 
 			synchronized (avgMandatoryBackoffTimesRT) {
-				for (Map.Entry<String, TrivialRunningAverage> entry : avgMandatoryBackoffTimesRT.entrySet()) {
-					TrivialRunningAverage avg = entry.getValue();
+				for (Map.Entry<String, LockFreeTrivialRunningAverage> entry : avgMandatoryBackoffTimesRT.entrySet()) {
+					LockFreeTrivialRunningAverage avg = entry.getValue();
 					entries[i++] = new TimedStats(entry.getKey(), avg.countReports(), (long) avg.currentValue(), (long) avg.totalValue());
 				}
 			}
@@ -3501,8 +3646,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			int i = 0;
 
 			synchronized (avgMandatoryBackoffTimesBulk) {
-				for (Map.Entry<String, TrivialRunningAverage> entry : avgMandatoryBackoffTimesBulk.entrySet()) {
-					TrivialRunningAverage avg = entry.getValue();
+				for (Map.Entry<String, LockFreeTrivialRunningAverage> entry : avgMandatoryBackoffTimesBulk.entrySet()) {
+					LockFreeTrivialRunningAverage avg = entry.getValue();
 					entries[i++] = new TimedStats(entry.getKey(), avg.countReports(), (long) avg.currentValue(), (long) avg.totalValue());
 				}
 			}
@@ -3518,8 +3663,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			int i = 0;
 
 			synchronized (avgRoutingBackoffTimesRT) {
-				for (Map.Entry<String, TrivialRunningAverage> entry : avgRoutingBackoffTimesRT.entrySet()) {
-					TrivialRunningAverage avg = entry.getValue();
+				for (Map.Entry<String, LockFreeTrivialRunningAverage> entry : avgRoutingBackoffTimesRT.entrySet()) {
+					LockFreeTrivialRunningAverage avg = entry.getValue();
 					entries[i++] = new TimedStats(entry.getKey(), avg.countReports(), (long) avg.currentValue(), (long) avg.totalValue());
 				}
 			}
@@ -3531,8 +3676,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			int i = 0;
 
 			synchronized (avgRoutingBackoffTimesBulk) {
-				for (Map.Entry<String, TrivialRunningAverage> entry : avgRoutingBackoffTimesBulk.entrySet()) {
-					TrivialRunningAverage avg = entry.getValue();
+				for (Map.Entry<String, LockFreeTrivialRunningAverage> entry : avgRoutingBackoffTimesBulk.entrySet()) {
+					LockFreeTrivialRunningAverage avg = entry.getValue();
 					entries[i++] = new TimedStats(entry.getKey(), avg.countReports(), (long) avg.currentValue(), (long) avg.totalValue());
 				}
 			}
@@ -3548,8 +3693,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			int i = 0;
 
 			synchronized (avgTransferBackoffTimesRT) {
-				for (Map.Entry<String, TrivialRunningAverage> entry : avgTransferBackoffTimesRT.entrySet()) {
-					TrivialRunningAverage avg = entry.getValue();
+				for (Map.Entry<String, LockFreeTrivialRunningAverage> entry : avgTransferBackoffTimesRT.entrySet()) {
+					LockFreeTrivialRunningAverage avg = entry.getValue();
 					entries[i++] = new TimedStats(entry.getKey(), avg.countReports(), (long) avg.currentValue(), (long) avg.totalValue());
 				}
 			}
@@ -3561,8 +3706,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			int i = 0;
 
 			synchronized (avgTransferBackoffTimesBulk) {
-				for (Map.Entry<String, TrivialRunningAverage> entry : avgTransferBackoffTimesBulk.entrySet()) {
-					TrivialRunningAverage avg = entry.getValue();
+				for (Map.Entry<String, LockFreeTrivialRunningAverage> entry : avgTransferBackoffTimesBulk.entrySet()) {
+					LockFreeTrivialRunningAverage avg = entry.getValue();
 					entries[i++] = new TimedStats(entry.getKey(), avg.countReports(), (long) avg.currentValue(), (long) avg.totalValue());
 				}
 			}
@@ -3577,8 +3722,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		int i = 0;
 
 		synchronized(avgDatabaseJobExecutionTimes) {
-			for(Map.Entry<String, TrivialRunningAverage> entry : avgDatabaseJobExecutionTimes.entrySet()) {
-				TrivialRunningAverage avg = entry.getValue();
+			for(Map.Entry<String, LockFreeTrivialRunningAverage> entry : avgDatabaseJobExecutionTimes.entrySet()) {
+				LockFreeTrivialRunningAverage avg = entry.getValue();
 				entries[i++] = new TimedStats(entry.getKey(), avg.countReports(), (long) avg.currentValue(), (long) avg.totalValue());
 			}
 		}
@@ -3681,10 +3826,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return 2 * maxPingTime;
 	}
 	
-	private RunningAverage nlmDelayRTLocal = new TrivialRunningAverage();
-	private RunningAverage nlmDelayRTRemote = new TrivialRunningAverage();
-	private RunningAverage nlmDelayBulkLocal = new TrivialRunningAverage();
-	private RunningAverage nlmDelayBulkRemote = new TrivialRunningAverage();
+	private RunningAverage nlmDelayRTLocal = new LockFreeTrivialRunningAverage();
+	private RunningAverage nlmDelayRTRemote = new LockFreeTrivialRunningAverage();
+	private RunningAverage nlmDelayBulkLocal = new LockFreeTrivialRunningAverage();
+	private RunningAverage nlmDelayBulkRemote = new LockFreeTrivialRunningAverage();
 
 	public void reportNLMDelay(long waitTime, boolean realTime, boolean local) {
 		if(realTime) {
@@ -0,0 +1,178 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable snapshot of a set of peers sorted on the location circle, together with the
+ * locations of their own peers (FOAF). Used by {@link PeerManager#closerPeer} to visit
+ * candidates in order of increasing distance to the target, so the closest eligible peer
+ * is found in O(log n + k) rather than by scoring every connected peer.
+ *
+ * Each peer contributes one "direct" entry for its own location and one entry for each
+ * location its peers have published. Entries at the same location keep direct entries
+ * first, since the linear scan prefers a direct location over an equally close FOAF one.
+ *
+ * The snapshot is only valid as long as none of the peers' locations change; the owner is
+ * responsible for discarding it when they do.
+ * @param <T> The peer type. {@link PeerNode} in the node; tests use something lighter.
+ */
+final class PeerLocationIndex<T> {
+
+	/** Callback for {@link PeerLocationIndex#walk(double, double, Visitor)}. */
+	interface Visitor {
+		/**
+		 * Called for each entry, in order of increasing distance to the target. A peer is
+		 * visited once for its own location and once per FOAF location.
+		 * @param item The index of the peer, see {@link PeerLocationIndex#get(int)}.
+		 * @param location The location of this entry.
+		 * @param direct True if this is the peer's own location, false if it is the
+		 * location of one of its peers.
+		 * @param distance The distance from the entry to the target.
+		 * @return True to stop the walk.
+		 */
+		boolean visit(int item, double location, boolean direct, double distance);
+	}
+
+	/** The peers, in the order they were passed in. */
+	final T[] items;
+	/** Opaque version stamp set by the owner, used to detect stale snapshots. */
+	final int version;
+	/** Entry locations, sorted ascending. */
+	private final double[] locations;
+	/** Index into items of the peer which contributed each entry. */
+	private final int[] owners;
+	/** Whether each entry is the peer's own location. */
+	private final boolean[] direct;
+
+	/**
+	 * @param items The peers.
+	 * @param itemLocations The location of each peer. Must all be valid.
+	 * @param peersLocations For each peer, the locations of its peers, or null.
+	 * @param version Opaque version stamp, see {@link #version}.
+	 */
+	PeerLocationIndex(T[] items, double[] itemLocations, double[][] peersLocations, int version) {
+		this.items = items;
+		this.version = version;
+		int count = items.length;
+		for(double[] locs : peersLocations)
+			if(locs != null) count += locs.length;
+		final double[] entryLocations = new double[count];
+		final int[] entryOwners = new int[count];
+		final boolean[] entryDirect = new boolean[count];
+		int x = 0;
+		for(int i = 0; i < items.length; i++) {
+			entryLocations[x] = itemLocations[i];
+			entryOwners[x] = i;
+			entryDirect[x] = true;
+			x++;
+			double[] locs = peersLocations[i];
+			if(locs == null) continue;
+			for(double l : locs) {
+				entryLocations[x] = l;
+				entryOwners[x] = i;
+				x++;
+			}
+		}
+		Integer[] order = new Integer[count];
+		for(int i = 0; i < count; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				int cmp = Double.compare(entryLocations[a], entryLocations[b]);
+				if(cmp != 0) return cmp;
+				if(entryDirect[a] != entryDirect[b]) return entryDirect[a] ? -1 : 1;
+				return a - b;
+			}
+
+		});
+		locations = new double[count];
+		owners = new int[count];
+		direct = new boolean[count];
+		for(int i = 0; i < count; i++) {
+			int e = order[i];
+			locations[i] = entryLocations[e];
+			owners[i] = entryOwners[e];
+			direct[i] = entryDirect[e];
+		}
+	}
+
+	/** Build an index of the given peers, or return null if any of them has an invalid
+	 * location, in which case the caller must fall back to a linear scan. */
+	static PeerLocationIndex<PeerNode> create(PeerNode[] peers, int version) {
+		double[] locs = new double[peers.length];
+		double[][] peersLocs = new double[peers.length][];
+		for(int i = 0; i < peers.length; i++) {
+			locs[i] = peers[i].getLocation();
+			if(!Location.isValid(locs[i])) return null;
+			peersLocs[i] = peers[i].getPeersLocationArray();
+		}
+		return new PeerLocationIndex<PeerNode>(peers, locs, peersLocs, version);
+	}
+
+	/** @return The number of peers in the index. */
+	int size() {
+		return items.length;
+	}
+
+	T get(int item) {
+		return items[item];
+	}
+
+	/** @return The number of entries, i.e. peers plus FOAF locations. */
+	int entries() {
+		return locations.length;
+	}
+
+	/**
+	 * Visit entries in order of increasing distance to the target, walking outwards in both
+	 * directions around the circle. Does not allocate.
+	 * @param maxDistance Stop once entries are further than this from the target.
+	 */
+	void walk(double target, double maxDistance, Visitor visitor) {
+		final int n = locations.length;
+		if(n == 0) return;
+		int right = ceiling(target);
+		if(right == n) right = 0;
+		int left = (right == 0) ? n - 1 : right - 1;
+		double rightDist = Location.distance(locations[right], target);
+		double leftDist = Location.distance(locations[left], target);
+		for(int visited = 0; visited < n; visited++) {
+			int e;
+			double distance;
+			if(rightDist <= leftDist) {
+				e = right;
+				distance = rightDist;
+				right = (right == n - 1) ? 0 : right + 1;
+				rightDist = Location.distance(locations[right], target);
+			} else {
+				e = left;
+				distance = leftDist;
+				left = (left == 0) ? n - 1 : left - 1;
+				leftDist = Location.distance(locations[left], target);
+			}
+			if(distance > maxDistance) return;
+			if(visitor.visit(owners[e], locations[e], direct[e], distance)) return;
+		}
+	}
+
+	/** @return The first entry whose location is not less than the target, or the number of
+	 * entries if there is none. */
+	private int ceiling(double target) {
+		int low = 0;
+		int high = locations.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(locations[mid] < target)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+}
@@ -966,14 +966,32 @@ public class PeerManager {
 		if(key != null)
 			entry = node.failureTable.getTimedOutNodesList(key);
 		
-		double[] selectionRates = new double[peers.length];
-		double totalSelectionRate = 0.0;
-		for(int i=0;i<peers.length;i++) {
-			selectionRates[i] = peers[i].selectionRate();
-			totalSelectionRate += selectionRates[i];
-		}
+		SelectionRates rates = getSelectionRates(peers, now);
+		double[] selectionRates = rates.rates;
+		double totalSelectionRate = rates.total;
 		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
 
+		if(addUnpickedLocsTo == null && (entry == null || ignoreTimeout)) {
+			// No failure table timeouts apply, so the closest eligible peer wins outright
+			// and we don't need to look at every peer.
+			PeerLocationIndex<PeerNode> index = getLocationIndex(peers);
+			if(index != null) {
+				ClosestPeerVisitor visitor = new ClosestPeerVisitor(index, pn, routedTo, myLoc, prevLoc,
+						minVersion, outgoingHTL, ignoreBackoffUnder, realTime, now, newLoadManagement,
+						enableFOAFMitigationHack ? selectionRates : null, totalSelectionRate);
+				double limit = maxDistance;
+				if(!ignoreSelf)
+					limit = Math.min(limit, maxDiff);
+				index.walk(target, limit, visitor);
+				PeerNode best = visitor.closestNotBackedOff;
+				if(best == null)
+					best = visitor.closestBackedOff;
+				if(best != null && calculateMisrouting)
+					reportBackedOffPercent();
+				return best;
+			}
+		}
+
 		// Locations not to consider for routing: our own location, and locations already routed to
 		Set<Double> excludeLocations = new HashSet<Double>();
 		excludeLocations.add(myLoc);
@@ -1231,12 +1249,8 @@ public class PeerManager {
 		// DO NOT PUT A ELSE HERE: we need to re-check the value!
 		if(best != null) {
 			//racy... getLocation() could have changed
-			if(calculateMisrouting) {
-				int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
-				int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
-				if(numberOfRoutingBackedOff + numberOfConnected > 0)
-					node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
-			}
+			if(calculateMisrouting)
+				reportBackedOffPercent();
 			//racy... getLocation() could have changed
 			if(addUnpickedLocsTo != null)
 				//Add the location which we did not pick, if it exists.
@@ -1248,6 +1262,165 @@ public class PeerManager {
 		return best;
 	}
 
+	private void reportBackedOffPercent() {
+		int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
+		int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
+		if(numberOfRoutingBackedOff + numberOfConnected > 0)
+			node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
+	}
+
+	/**
+	 * Walks the location index for closerPeer() when no failure table timeouts apply. Applies
+	 * the same filters as the linear scan, in the same order. Since entries are visited in
+	 * order of increasing distance, the first eligible peer which is not backed off is the
+	 * answer, and the first backed off one is the fallback.
+	 */
+	private static class ClosestPeerVisitor implements PeerLocationIndex.Visitor {
+
+		private final PeerLocationIndex<PeerNode> index;
+		private final PeerNode source;
+		private final Set<PeerNode> routedTo;
+		private final double myLoc;
+		private final double prevLoc;
+		private final int minVersion;
+		private final short outgoingHTL;
+		private final long ignoreBackoffUnder;
+		private final boolean realTime;
+		private final long now;
+		private final boolean newLoadManagement;
+		/** Null if the FOAF mitigation hack is disabled. */
+		private final double[] selectionRates;
+		private final double totalSelectionRate;
+		PeerNode closestNotBackedOff;
+		PeerNode closestBackedOff;
+
+		ClosestPeerVisitor(PeerLocationIndex<PeerNode> index, PeerNode source, Set<PeerNode> routedTo,
+				double myLoc, double prevLoc, int minVersion, short outgoingHTL, long ignoreBackoffUnder,
+				boolean realTime, long now, boolean newLoadManagement, double[] selectionRates,
+				double totalSelectionRate) {
+			this.index = index;
+			this.source = source;
+			this.routedTo = routedTo;
+			this.myLoc = myLoc;
+			this.prevLoc = prevLoc;
+			this.minVersion = minVersion;
+			this.outgoingHTL = outgoingHTL;
+			this.ignoreBackoffUnder = ignoreBackoffUnder;
+			this.realTime = realTime;
+			this.now = now;
+			this.newLoadManagement = newLoadManagement;
+			this.selectionRates = selectionRates;
+			this.totalSelectionRate = totalSelectionRate;
+		}
+
+		@Override
+		public boolean visit(int item, double location, boolean direct, double distance) {
+			PeerNode p = index.get(item);
+			if(p == closestBackedOff) return false;
+			if(!direct && (!p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL) || isExcluded(location)))
+				return false;
+			if(routedTo.contains(p)) return false;
+			if(p == source) return false;
+			if(!p.isRoutable()) return false;
+			if(p.isDisconnecting()) return false;
+			if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null)
+				return false;
+			if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion)
+				return false;
+			if(selectionRates != null &&
+					PeerNode.SELECTION_PERCENTAGE_WARNING < selectionRates[item] / totalSelectionRate)
+				return false;
+			if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) return false;
+			if(logMINOR)
+				Logger.minor(this, "p.loc=" + location + " d=" + distance + " direct=" + direct + " for " + p.getPeer());
+			if(!p.isRoutingBackedOff(ignoreBackoffUnder, realTime)) {
+				closestNotBackedOff = p;
+				return true;
+			}
+			if(closestBackedOff == null)
+				closestBackedOff = p;
+			return false;
+		}
+
+		/** Same as the excludeLocations set in the linear scan, without building it. */
+		private boolean isExcluded(double location) {
+			if(sameLocation(location, myLoc) || sameLocation(location, prevLoc)) return true;
+			for(PeerNode p : routedTo) {
+				if(sameLocation(location, p.getLocation())) return true;
+			}
+			return false;
+		}
+
+		/** Matches Double.equals(), which is what the HashSet in the linear scan uses. */
+		private static boolean sameLocation(double a, double b) {
+			return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+		}
+
+	}
+
+	/** Selection rates of a snapshot of the connected peers, see {@link PeerNode#selectionRate()}. */
+	private static class SelectionRates {
+		final PeerNode[] peers;
+		final double[] rates;
+		final double total;
+		final long time;
+
+		SelectionRates(PeerNode[] peers, long now) {
+			this.peers = peers;
+			this.time = now;
+			rates = new double[peers.length];
+			double t = 0.0;
+			for(int i = 0; i < peers.length; i++) {
+				rates[i] = peers[i].selectionRate();
+				t += rates[i];
+			}
+			total = t;
+		}
+	}
+
+	/** How long the selection rates used by closerPeer() are cached for. They are sampled over
+	 * {@link PeerNode#SELECTION_SAMPLING_PERIOD}, so a second of staleness makes no difference,
+	 * but recomputing them on every request means taking every peer's lock. */
+	static final long SELECTION_RATES_UPDATE_INTERVAL = SECONDS.toMillis(1);
+
+	private volatile SelectionRates selectionRates;
+
+	private SelectionRates getSelectionRates(PeerNode[] peers, long now) {
+		SelectionRates rates = selectionRates;
+		if(rates != null && rates.peers == peers && now >= rates.time &&
+				now - rates.time < SELECTION_RATES_UPDATE_INTERVAL)
+			return rates;
+		rates = new SelectionRates(peers, now);
+		selectionRates = rates;
+		return rates;
+	}
+
+	/** Sorted location index over connectedPeers for closerPeer(). Stale if it was built from a
+	 * different connectedPeers array or an older locationIndexVersion. */
+	private volatile PeerLocationIndex<PeerNode> locationIndex;
+	/** Incremented whenever a connected peer's location or its peers' locations change. */
+	private volatile int locationIndexVersion;
+
+	/** Called when a peer's location, or the locations of its peers, change. */
+	void invalidateLocationIndex() {
+		synchronized(this) {
+			locationIndexVersion++;
+		}
+	}
+
+	/** @return An up to date location index for the given connected peers snapshot, or null if
+	 * one can't be built because some peer has an invalid location. */
+	private PeerLocationIndex<PeerNode> getLocationIndex(PeerNode[] peers) {
+		int version = locationIndexVersion;
+		PeerLocationIndex<PeerNode> index = locationIndex;
+		if(index != null && index.items == peers && index.version == version)
+			return index;
+		index = PeerLocationIndex.create(peers, version);
+		if(index != null)
+			locationIndex = index;
+		return index;
+	}
+
 	static final int MIN_DELTA = 2000;
 	
 	/** Check whether the routing situation will change soon because of a node coming out of backoff or of
@@ -77,10 +77,10 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.WeakHashSet;
+import freenet.support.math.LockFreeTimeDecayingRunningAverage;
 import freenet.support.math.MersenneTwister;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.SimpleRunningAverage;
-import freenet.support.math.TimeDecayingRunningAverage;
 import freenet.support.transport.ip.HostnameSyntaxException;
 import freenet.support.transport.ip.IPUtil;
 
@@ -336,7 +336,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	 */
 	protected long peerAddedTime = 1;
 	/** Average proportion of requests which are rejected or timed out */
-	private TimeDecayingRunningAverage pRejected;
+	private LockFreeTimeDecayingRunningAverage pRejected;
 
 	/** Bytes received at/before startup */
 	private final long bytesInAtStartup;
@@ -437,9 +437,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		this.crypto = crypto;
 		assert(crypto.isOpennet == isOpennetForNoderef());
 		this.peers = node.peers;
-		this.backedOffPercent = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
-		this.backedOffPercentRT = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
-		this.backedOffPercentBulk = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.backedOffPercent = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.backedOffPercentRT = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
+		this.backedOffPercentBulk = new LockFreeTimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
 		this.myBootID = node2.bootID;
 		this.bootID = new AtomicLong();
 		version = fs.get("version");
@@ -628,11 +628,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		// So go for a filter.
 		pingAverage =
 			// Short average otherwise we will reject for a *REALLY* long time after any spike.
-			new TimeDecayingRunningAverage(1, SECONDS.toMillis(30), 0, NodePinger.CRAZY_MAX_PING_TIME, node);
+			new LockFreeTimeDecayingRunningAverage(1, SECONDS.toMillis(30), 0, NodePinger.CRAZY_MAX_PING_TIME, node);
 
 		// TDRA for probability of rejection
 		pRejected =
-			new TimeDecayingRunningAverage(0, MINUTES.toMillis(4), 0.0, 1.0, node);
+			new LockFreeTimeDecayingRunningAverage(0, MINUTES.toMillis(4), 0.0, 1.0, node);
 
 		// ARK stuff.
 
@@ -1744,8 +1744,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
 		node.peers.updatePMUserAlert();
-		if(anythingChanged)
+		if(anythingChanged) {
+		    node.peers.invalidateLocationIndex();
 		    writePeers();
+		}
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2524,6 +2526,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			} else {
 				double oldLoc = location.setLocation(newLoc);
 				if(!Location.equals(oldLoc, newLoc)) {
+					node.peers.invalidateLocationIndex();
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
 					changedAnything = true;
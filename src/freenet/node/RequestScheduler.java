@@ -5,6 +5,8 @@ package freenet.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+import java.util.List;
+
 import freenet.client.async.ChosenBlock;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestSelector;
@@ -46,6 +48,13 @@ public interface RequestScheduler {
 
 	public ChosenBlock grabRequest();
 
+	/** Grab up to max requests to run, for RequestStarter's batched mode. Unlike grabRequest(), 
+	 * the keys are added to the fetching keys (or the inserts to the running inserts) as they are 
+	 * chosen, so a batch never includes the same block twice. So the caller must either start 
+	 * each request or remove it again.
+	 * @return The requests chosen, possibly none. */
+	public List<ChosenBlock> grabRequests(int max);
+
 	public void removeRunningRequest(SendableRequest request);
 
 	/**
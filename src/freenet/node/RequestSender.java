@@ -349,6 +349,8 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
             
             long now = System.currentTimeMillis();
             
+            if(origTag.trace != null) origTag.trace.enter(RequestTrace.Phase.ROUTING);
+            
             // Route it
             next = node.peers.closerPeer(source, nodesRoutedTo, target, true, node.isAdvancedModeEnabled(), -1, null,
 			        2.0, key, htl, 0, source == null, realTimeFlag, r, false, now, newLoadManagement);
@@ -2106,6 +2108,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 	
 	@Override
 	protected void onAccepted(PeerNode next) {
+		if(origTag.trace != null) origTag.trace.enter(RequestTrace.Phase.WAITING);
 		onAccepted(next, false, htl);
 	}
 	
@@ -3,15 +3,21 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.util.ArrayDeque;
+import java.util.List;
+
 import freenet.client.async.ChosenBlock;
 import freenet.client.async.ClientContext;
 import freenet.client.async.RequestSelectionTreeNode;
 import freenet.client.async.ChosenBlockImpl;
 import freenet.keys.Key;
 import freenet.node.NodeStats.RejectReason;
+import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.RandomGrabArrayItem;
@@ -19,12 +25,21 @@ import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.TokenBucket;
 import freenet.support.Logger.LogLevel;
 import freenet.support.math.RunningAverage;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.Histogram;
+import freenet.support.math.SimpleRunningAverage;
 
 /**
  * Starts requests.
  * Nobody starts a request directly, you have to go through RequestStarter.
  * And you have to provide a RequestStarterClient. We do round robin between 
  * clients on the same priority level.
+ * 
+ * There are two ways to pace the requests: The original loop in realRun() grabs one request, 
+ * sleeps for the throttle's delay since the last one was started, and starts it, so time spent 
+ * choosing and starting requests adds to the delay. In batched mode (realRunBatched()), slots 
+ * are released at the rate set by the throttle, and we grab as many requests from the scheduler
+ * as we have slots for. Either way the requests themselves run on the executor.
  */
 public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionList {
 	private static volatile boolean logMINOR;
@@ -75,11 +90,34 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	final boolean realTime;
 	
 	static final int MAX_WAITING_FOR_SLOTS = 50;
+	/** In batched mode, if we fall behind, e.g. because choosing requests is slow, we can start up
+	 * to this many requests at once to catch up. */
+	static final int MAX_BATCH = 8;
+	
+	private final Executor executor;
+	private volatile boolean batched;
+	/** Requests grabbed in batched mode but not started yet. Only used by the starter thread. */
+	private final ArrayDeque<ChosenBlock> pending = new ArrayDeque<ChosenBlock>();
+	/** Requests started in each of the last 60 seconds. */
+	private final int[] startedBySecond = new int[60];
+	private long currentSecond;
+	/** Time from grabbing a request from the scheduler to actually sending it. */
+	private final RunningAverage waitTime = new SimpleRunningAverage(100, 0.0);
+	/** Requests started, and the time from grabbing each to sending it, for metrics. */
+	final Counter started = new Counter();
+	final Histogram waitTimes = new Histogram(0.001, MINUTES.toMillis(1));
 	
 	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, 
 			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK, boolean realTime) {
+		this(node, node.nodeStats, node.getExecutor(), throttle, name, averageOutputBytesPerRequest, 
+				averageInputBytesPerRequest, isInsert, isSSK, realTime);
+	}
+	
+	RequestStarter(NodeClientCore node, NodeStats stats, Executor executor, BaseRequestThrottle throttle, String name, 
+			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK, boolean realTime) {
 		this.core = node;
-		this.stats = core.nodeStats;
+		this.stats = stats;
+		this.executor = executor;
 		this.throttle = throttle;
 		this.name = name + (realTime ? " (realtime)" : " (bulk)");
 		this.averageOutputBytesPerRequest = averageOutputBytesPerRequest;
@@ -94,7 +132,17 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	}
 	
 	void start() {
-		core.getExecutor().execute(this, name);
+		executor.execute(this, name);
+	}
+	
+	/** Switch between the original loop and batched mode. */
+	void setBatched(boolean batched) {
+		this.batched = batched;
+		wakeUp();
+	}
+	
+	boolean isBatched() {
+		return batched;
 	}
 	
 	final String name;
@@ -106,25 +154,15 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	
 	void realRun() {
 		ChosenBlock req = null;
+		long grabbed = 0;
 		// The last time at which we sent a request or decided not to
 		long cycleTime = System.currentTimeMillis();
 		while(true) {
-			// Allow 5 minutes before we start killing requests due to not connecting.
-			OpennetManager om;
-			if(core.node.peers.countConnectedPeers() < 3 && (om = core.node.getOpennet()) != null &&
-					System.currentTimeMillis() - om.getCreationTime() < MINUTES.toMillis(5)) {
-				try {
-					synchronized(this) {
-						wait(1000);
-					}
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				continue;
-			}
+			if(req == null && batched) return;
+			if(waitForPeers()) continue;
 			if(req == null) {
 				req = sched.grabRequest();
+				grabbed = System.nanoTime();
 			}
 			if(req != null) {
 				if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
@@ -167,8 +205,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				RejectReason reason;
 				assert(req.realTimeFlag == realTime);
 				if (!req.localRequestOnly) {
-					reason = stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false, 
-							Node.PREFER_INSERT_DEFAULT && isInsert, req.realTimeFlag, null);
+					reason = shouldRejectRequest();
 					if(reason != null) {
 						if(logMINOR)
 							Logger.minor(this, "Not sending local request: "+reason);
@@ -177,7 +214,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 						continue; // Let local requests compete with all the others
 					}
 				} else {
-					stats.waitUntilNotOverloaded(isInsert);
+					waitUntilNotOverloaded();
 				}
 			} else {
 				if(logMINOR) Logger.minor(this, "Waiting...");				
@@ -185,6 +222,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
 				synchronized(this) {
 					req = sched.grabRequest();
+					grabbed = System.nanoTime();
 					if(req == null) {
 						try {
 							wait();
@@ -195,7 +233,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				}
 			}
 			if(req == null) continue;
-			if(!startRequest(req, logMINOR)) {
+			if(!startRequest(req, false, grabbed, logMINOR)) {
 				// Don't log if it's a cancelled transient request.
 				if(!((!req.isPersistent()) && req.isCancelled()))
 					Logger.normal(this, "No requests to start on "+req);
@@ -206,12 +244,144 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		}
 	}
 
-	private boolean startRequest(ChosenBlock req, boolean logMINOR) {
+	/**
+	 * Start requests as the throttle releases slots for them. Slots are released at the rate 
+	 * given by the throttle's delay, which follows the AIMD window and the round trip time, and 
+	 * if we fall behind they accumulate up to MAX_BATCH. We grab as many requests as we have 
+	 * slots for in one go, and starting them doesn't delay the next one. As in realRun(), being 
+	 * rejected by load limiting costs us one slot, i.e. one throttle delay. Fairness between 
+	 * priorities is up to the scheduler, as before.
+	 */
+	private void realRunBatched() {
+		double slots = 1.0;
+		long lastRefill = System.nanoTime();
+		while(batched) {
+			if(waitForPeers()) continue;
+			long delay = throttle.getDelay();
+			long now = System.nanoTime();
+			slots = Math.min(MAX_BATCH, slots + (double) (now - lastRefill) / MILLISECONDS.toNanos(delay));
+			lastRefill = now;
+			if(slots < 1.0) {
+				try {
+					Thread.sleep((long) ((1.0 - slots) * delay) + 1);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+				continue;
+			}
+			if(pending.isEmpty()) {
+				List<ChosenBlock> batch = sched.grabRequests((int) slots);
+				if(batch.isEmpty()) {
+					if(logMINOR) Logger.minor(this, "Waiting...");
+					// See realRun() for the locking.
+					synchronized(this) {
+						batch = sched.grabRequests((int) slots);
+						if(batch.isEmpty()) {
+							try {
+								wait();
+							} catch (InterruptedException e) {
+								// Ignore
+							}
+						}
+					}
+					if(batch.isEmpty()) {
+						// Only catch up after falling behind, not after being idle.
+						slots = Math.min(slots, 1.0);
+						lastRefill = System.nanoTime();
+						continue;
+					}
+				}
+				if(logMINOR) Logger.minor(this, "Grabbed "+batch.size()+" requests with "+slots+" slots");
+				pending.addAll(batch);
+			}
+			long grabbed = System.nanoTime();
+			while(!pending.isEmpty()) {
+				ChosenBlock req = pending.peekFirst();
+				if(!req.localRequestOnly) {
+					if(slots < 1.0) break;
+					slots--;
+					RejectReason reason = shouldRejectRequest();
+					if(reason != null) {
+						if(logMINOR)
+							Logger.minor(this, "Not sending local request: "+reason);
+						break;
+					}
+				} else {
+					waitUntilNotOverloaded();
+				}
+				pending.removeFirst();
+				if(!startRequest(req, true, grabbed, logMINOR)) {
+					if(!((!req.isPersistent()) && req.isCancelled()))
+						Logger.normal(this, "No requests to start on "+req);
+				}
+			}
+		}
+		// Switched back to the old loop.
+		while(!pending.isEmpty())
+			release(pending.removeFirst());
+	}
+	
+	/** Allow 5 minutes before we start killing requests due to not connecting.
+	 * @return True if we have waited a bit and the caller should check again. */
+	boolean waitForPeers() {
+		OpennetManager om;
+		if(core.node.peers.countConnectedPeers() < 3 && (om = core.node.getOpennet()) != null &&
+				System.currentTimeMillis() - om.getCreationTime() < MINUTES.toMillis(5)) {
+			try {
+				synchronized(this) {
+					wait(1000);
+				}
+			} catch (InterruptedException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	RejectReason shouldRejectRequest() {
+		return stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false, 
+				Node.PREFER_INSERT_DEFAULT && isInsert, realTime, null);
+	}
+	
+	void waitUntilNotOverloaded() {
+		stats.waitUntilNotOverloaded(isInsert);
+	}
+	
+	void reportOutgoingLocalRequestLocation(Key key) {
+		stats.reportOutgoingLocalRequestLocation(key.toNormalizedDouble());
+	}
+	
+	RequestTrace maybeTrace(ChosenBlock req, long grabbed) {
+		return stats.tracer.maybeStart(req, grabbed);
+	}
+	
+	/** Give back a request from grabRequests() which we aren't going to start. */
+	private void release(ChosenBlock req) {
+		if(req.key != null)
+			sched.removeFetchingKey(req.key);
+		else if(((ChosenBlockImpl)req).request instanceof SendableInsert)
+			sched.removeRunningInsert((SendableInsert)(((ChosenBlockImpl)req).request), req.token.getKey());
+		req.onDumped();
+	}
+
+	/**
+	 * @param reserved True if the scheduler has already added the key to the fetching keys, or 
+	 * the insert to the running inserts, as grabRequests() does.
+	 * @param grabbed When we got the request from the scheduler, by System.nanoTime().
+	 */
+	private boolean startRequest(ChosenBlock req, boolean reserved, long grabbed, boolean logMINOR) {
 		if((!req.isPersistent()) && req.isCancelled()) {
-			req.onDumped();
+			if(reserved)
+				release(req);
+			else
+				req.onDumped();
 			return false;
 		}
-		if(req.key != null) {
+		if(reserved) {
+			// Already running as far as the scheduler is concerned.
+		} else if(req.key != null) {
 			if(!sched.addToFetching(req.key)) {
 				req.onDumped();
 				return false;
@@ -223,16 +393,48 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 			}
 		}
 		if(logMINOR) Logger.minor(this, "Running request "+req+" priority "+req.getPriority());
-		core.getExecutor().execute(new SenderThread(req, req.key), "RequestStarter$SenderThread for "+req);
+		countStarted(System.currentTimeMillis());
+		req.trace = maybeTrace(req, grabbed);
+		executor.execute(new SenderThread(req, req.key, grabbed), "RequestStarter$SenderThread for "+req);
 		return true;
 	}
+	
+	private synchronized void countStarted(long now) {
+		long second = now / SECONDS.toMillis(1);
+		if(second != currentSecond) {
+			for(long s = Math.max(currentSecond + 1, second - startedBySecond.length + 1); s <= second; s++)
+				startedBySecond[(int) (s % startedBySecond.length)] = 0;
+			currentSecond = second;
+		}
+		startedBySecond[(int) (second % startedBySecond.length)]++;
+		started.increment();
+	}
+	
+	/** @return The average number of requests started per second over the last minute. */
+	public synchronized double getStartedPerSecond(long now) {
+		long second = now / SECONDS.toMillis(1);
+		if(second - currentSecond >= startedBySecond.length) return 0;
+		int total = 0;
+		for(long s = second - startedBySecond.length + 1; s <= currentSecond; s++)
+			total += startedBySecond[(int) (s % startedBySecond.length)];
+		return (double) total / startedBySecond.length;
+	}
+	
+	/** @return The average time in milliseconds between grabbing a request from the scheduler 
+	 * and sending it, for recent requests. */
+	public double getAverageWaitTime() {
+		return waitTime.currentValue();
+	}
 
 	@Override
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
             while(true) {
                 try {
-                    realRun();
+                    if(batched)
+                        realRunBatched();
+                    else
+                        realRun();
                 } catch (Throwable t) {
                         Logger.error(this, "Caught "+t, t);
                 }
@@ -243,18 +445,23 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 
 		private final ChosenBlock req;
 		private final Key key;
+		private final long grabbed;
 		
-		public SenderThread(ChosenBlock req, Key key) {
+		public SenderThread(ChosenBlock req, Key key, long grabbed) {
 			this.req = req;
 			this.key = key;
+			this.grabbed = grabbed;
 		}
 
 		@Override
 		public void run() {
 		    freenet.support.Logger.OSThread.logPID(this);
+		    long wait = System.nanoTime() - grabbed;
+		    waitTime.report((double) wait / MILLISECONDS.toNanos(1));
+		    waitTimes.record(NANOSECONDS.toMillis(wait));
 		    // FIXME ? key is not known for inserts here
 		    if (key != null)
-		    	stats.reportOutgoingLocalRequestLocation(key.toNormalizedDouble());
+		    	reportOutgoingLocalRequestLocation(key);
 		    if(!req.send(core, sched)) {
 				if(!((!req.isPersistent()) && req.isCancelled()))
 					Logger.error(this, "run() not able to send a request on "+req);
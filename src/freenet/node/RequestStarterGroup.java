@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.text.DecimalFormat;
+
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.config.Config;
@@ -16,8 +18,11 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
+import freenet.support.api.BooleanCallback;
 import freenet.support.api.StringCallback;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
+import freenet.support.metrics.Gauge;
+import freenet.support.metrics.MetricsRegistry;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
@@ -127,8 +132,58 @@ public class RequestStarterGroup {
 		
 		registerSchedulerConfig(schedulerConfig, "SSKinserter", sskPutSchedulerBulk, sskPutSchedulerRT, true, true);
 		
+		schedulerConfig.register("batchedStarts", true, 0, true, false, 
+				"RequestStarterGroup.batchedStarts", "RequestStarterGroup.batchedStartsLong", 
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return chkRequestStarterBulk.isBatched();
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						setBatched(val);
+					}
+			
+		});
+		setBatched(schedulerConfig.getBoolean("batchedStarts"));
+		
+		registerMetrics(node.metrics);
 		schedulerConfig.finishedInitialization();
 	}
+
+	private void registerMetrics(MetricsRegistry metrics) {
+		for(int ssk = 0; ssk < 2; ssk++) {
+			for(int insert = 0; insert < 2; insert++) {
+				for(int rt = 0; rt < 2; rt++) {
+					final boolean isSSK = ssk == 1;
+					final boolean isInsert = insert == 1;
+					final boolean realTime = rt == 1;
+					String[] labels = new String[] { "type", isSSK ? "ssk" : "chk",
+							"kind", isInsert ? "insert" : "request", "mode", realTime ? "realtime" : "bulk" };
+					RequestStarter starter = getStarter(isSSK, isInsert, realTime);
+					metrics.register("freenet_scheduler_started_total", "Requests started by the scheduler.",
+							starter.started, labels);
+					metrics.register("freenet_scheduler_wait_seconds",
+							"Time from the scheduler choosing a request to sending it.", starter.waitTimes, labels);
+					final MyRequestThrottle throttle = getThrottle(isSSK, isInsert, realTime);
+					metrics.gauge("freenet_throttle_delay_seconds", "Current delay between starting requests.", new Gauge() {
+						@Override
+						public double value() {
+							return throttle.getDelay() / 1000.0;
+						}
+					}, labels);
+					metrics.gauge("freenet_throttle_rtt_seconds", "Average round trip time of requests.", new Gauge() {
+						@Override
+						public double value() {
+							return throttle.getRTT() / 1000.0;
+						}
+					}, labels);
+				}
+			}
+		}
+	}
 	
 	private void registerSchedulerConfig(SubConfig schedulerConfig,
 			String name, ClientRequestScheduler csBulk,
@@ -141,6 +196,13 @@ public class RequestStarterGroup {
 		callback.init(csRT, csBulk, schedulerConfig.getString(name+"_priority_policy"));
 	}
 
+	private void setBatched(boolean batched) {
+		for(RequestStarter starter : new RequestStarter[] { 
+				chkRequestStarterBulk, chkInsertStarterBulk, sskRequestStarterBulk, sskInsertStarterBulk,
+				chkRequestStarterRT, chkInsertStarterRT, sskRequestStarterRT, sskInsertStarterRT })
+			starter.setBatched(batched);
+	}
+
 	public void start() {
 		chkRequestStarterRT.start();
 		chkInsertStarterRT.start();
@@ -334,9 +396,28 @@ public class RequestStarterGroup {
 		sb.append(" bw=");
 		sb.append(throttle.getRate());
 		sb.append("B/sec");
+		RequestStarter starter = getStarter(isSSK, isInsert, realTime);
+		sb.append(" started=");
+		sb.append(new DecimalFormat("0.0").format(starter.getStartedPerSecond(System.currentTimeMillis())));
+		sb.append("/sec wait=");
+		sb.append(TimeUtil.formatTime((long) starter.getAverageWaitTime(), 2, true));
 		return sb.toString();
 	}
 
+	RequestStarter getStarter(boolean isSSK, boolean isInsert, boolean realTime) {
+		if(realTime) {
+			if(isSSK)
+				return isInsert ? sskInsertStarterRT : sskRequestStarterRT;
+			else
+				return isInsert ? chkInsertStarterRT : chkRequestStarterRT;
+		} else {
+			if(isSSK)
+				return isInsert ? sskInsertStarterBulk : sskRequestStarterBulk;
+			else
+				return isInsert ? chkInsertStarterBulk : chkRequestStarterBulk;
+		}
+	}
+
 	public String diagnosticThrottlesLine(boolean mode) {
 		StringBuilder sb = new StringBuilder();
 		if(mode) {
@@ -42,6 +42,8 @@ public class RequestTag extends UIDTag {
 	private boolean senderTransferring;
 	/** Set if transferring */
 	private NodeCHK key;
+	/** Set if this is a local request being traced. Set before the RequestSender is created. */
+	RequestTrace trace;
 
 	public RequestTag(boolean isSSK, START start, PeerNode source, boolean realTimeFlag, long uid, Node node) {
 		super(source, realTimeFlag, uid, node);
@@ -258,6 +260,7 @@ public class RequestTag extends UIDTag {
 				throw new IllegalStateException("Set RequestSender first!");
 			this.key = k;
 		}
+		if(trace != null) trace.enter(RequestTrace.Phase.TRANSFER);
 		tracker.addTransferringSender(k, requestSender);
 	}
 
@@ -271,6 +274,7 @@ public class RequestTag extends UIDTag {
 			assert(this.key != null && this.key.equals(key));
 			this.key = null;
 		}
+		if(trace != null) trace.enter(RequestTrace.Phase.COMMIT);
 		tracker.removeTransferringSender(key, requestSender);
 	}
 	
@@ -0,0 +1,155 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Arrays;
+
+import freenet.keys.Key;
+
+/**
+ * The phases one sampled local request went through, with the System.nanoTime() at which each
+ * began. Each phase lasts until the next one begins, or until the request finishes, and a phase
+ * can occur more than once, e.g. routing to one peer after another. Created by RequestTracer,
+ * carried by the ChosenBlock and then the RequestTag.
+ */
+public final class RequestTrace {
+
+	public enum Phase {
+		/** Waiting in the ClientRequestScheduler to be chosen, since the request was registered
+		 * or last had a block chosen. */
+		SCHEDULER,
+		/** Chosen, waiting for the RequestStarter's throttle and a thread. */
+		THROTTLE,
+		/** Looking in the datastore. */
+		STORE,
+		/** Routing to a peer and waiting for it to accept. */
+		ROUTING,
+		/** Accepted, waiting for the data or a failure. */
+		WAITING,
+		/** Receiving the data. */
+		TRANSFER,
+		/** Verifying the data and writing it to the datastore. */
+		COMMIT;
+
+		/** The name used in metrics and JSON. */
+		public final String label = name().toLowerCase();
+	}
+
+	private final RequestTracer tracer;
+	private final Key key;
+	private final boolean realTime;
+	private long finishedTime;
+	private long uid;
+	private Phase[] phases = new Phase[8];
+	private long[] times = new long[8];
+	private int count;
+	private long endTime;
+	private String result;
+
+	RequestTrace(RequestTracer tracer, Key key, boolean realTime) {
+		this.tracer = tracer;
+		this.key = key;
+		this.realTime = realTime;
+	}
+
+	public void enter(Phase phase) {
+		enter(phase, System.nanoTime());
+	}
+
+	public synchronized void enter(Phase phase, long time) {
+		if(result != null) return;
+		if(count == phases.length) {
+			phases = Arrays.copyOf(phases, count * 2);
+			times = Arrays.copyOf(times, count * 2);
+		}
+		phases[count] = phase;
+		times[count] = time;
+		count++;
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	/** @return When the request finished, by System.currentTimeMillis(). */
+	public synchronized long getFinishedTime() {
+		return finishedTime;
+	}
+
+	synchronized void setUID(long uid) {
+		this.uid = uid;
+	}
+
+	public synchronized long getUID() {
+		return uid;
+	}
+
+	/** Called once, when the request completes. Only the first call counts. */
+	public void finish(String result) {
+		synchronized(this) {
+			if(this.result != null) return;
+			this.result = result;
+			endTime = System.nanoTime();
+			finishedTime = System.currentTimeMillis();
+		}
+		tracer.finished(this);
+	}
+
+	public synchronized String getResult() {
+		return result;
+	}
+
+	public synchronized boolean hasPhase(Phase phase) {
+		for(int i = 0; i < count; i++)
+			if(phases[i] == phase) return true;
+		return false;
+	}
+
+	/** @return The total time in each phase, in nanoseconds, indexed by ordinal. Only
+	 * meaningful once finished. */
+	public synchronized long[] phaseTimes() {
+		long[] total = new long[Phase.values().length];
+		for(int i = 0; i < count; i++)
+			total[phases[i].ordinal()] += (i + 1 < count ? times[i + 1] : endTime) - times[i];
+		return total;
+	}
+
+	/** @return The time from the first phase to finishing, in nanoseconds. */
+	public synchronized long totalTime() {
+		if(count == 0) return 0;
+		return endTime - times[0];
+	}
+
+	synchronized void toJSON(StringBuilder sb) {
+		sb.append("{\"uid\":").append(uid);
+		sb.append(",\"key\":");
+		RequestTracer.quote(sb, key.toString());
+		sb.append(",\"realTime\":").append(realTime);
+		sb.append(",\"finished\":").append(finishedTime);
+		sb.append(",\"result\":");
+		RequestTracer.quote(sb, result);
+		sb.append(",\"totalMillis\":").append(millis(totalTime()));
+		sb.append(",\"phases\":[");
+		for(int i = 0; i < count; i++) {
+			if(i > 0) sb.append(',');
+			sb.append("{\"phase\":\"").append(phases[i].label).append('"');
+			sb.append(",\"startMillis\":").append(millis(times[i] - times[0]));
+			sb.append(",\"millis\":").append(millis((i + 1 < count ? times[i + 1] : endTime) - times[i]));
+			sb.append('}');
+		}
+		sb.append("]}");
+	}
+
+	static double millis(long nanos) {
+		return NANOSECONDS.toMicros(nanos) / 1000.0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RequestTrace for " + key + " uid " + uid + ": " + result;
+	}
+
+}
@@ -0,0 +1,140 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.client.async.ChosenBlock;
+import freenet.node.RequestTrace.Phase;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * Traces a sample of local requests through the client layer and the node: how long each spent
+ * waiting in the scheduler, in the RequestStarter's throttle, in the datastore, routing,
+ * waiting for the data, and receiving and storing it. The time in each phase is added to a
+ * histogram, and the slowest recent traces are kept for the stats page and for export as JSON.
+ *
+ * When sampling is off, the only cost is reading one volatile int per request started.
+ */
+public class RequestTracer {
+
+	/** The number of slow traces to keep. */
+	static final int MAX_SLOW_TRACES = 20;
+	/** A trace is slow if it took at least as long as this fraction of the traces so far. */
+	static final double SLOW_QUANTILE = 0.9;
+
+	/** Trace one in this many requests, or none if 0. */
+	private volatile int sampleInterval;
+	private final AtomicInteger sampleCounter = new AtomicInteger();
+	/** Time in each phase, in microseconds, by ordinal. */
+	private final Histogram[] phaseTimes;
+	private final Histogram totalTimes;
+	/** The most recent slow traces, newest first. */
+	private final ArrayDeque<RequestTrace> slowTraces = new ArrayDeque<RequestTrace>();
+	private long traced;
+
+	RequestTracer(MetricsRegistry metrics, int sampleInterval) {
+		this.sampleInterval = sampleInterval;
+		Phase[] phases = Phase.values();
+		phaseTimes = new Histogram[phases.length];
+		for(Phase phase : phases)
+			phaseTimes[phase.ordinal()] = metrics.histogram("freenet_traced_request_phase_seconds",
+					"Time sampled local requests spent in each phase.", 0.000001, MINUTES.toMicros(10),
+					"phase", phase.label);
+		totalTimes = metrics.histogram("freenet_traced_request_seconds",
+				"Total time taken by sampled local requests.", 0.000001, MINUTES.toMicros(10));
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	public void setSampleInterval(int interval) {
+		if(interval < 0) throw new IllegalArgumentException();
+		sampleInterval = interval;
+	}
+
+	/**
+	 * Maybe start tracing a request the RequestStarter is about to send. Only fetches are traced.
+	 * @param grabbed When the starter got the request from the scheduler, by System.nanoTime().
+	 * @return A trace, already through the scheduler and into the throttle, or null if not
+	 * sampled.
+	 */
+	RequestTrace maybeStart(ChosenBlock req, long grabbed) {
+		int interval = sampleInterval;
+		if(interval == 0) return null;
+		if(req.key == null) return null;
+		if(sampleCounter.incrementAndGet() % interval != 0) return null;
+		RequestTrace trace = new RequestTrace(this, req.key, req.realTimeFlag);
+		if(req.waitingSince != 0 && req.waitingSince <= grabbed)
+			trace.enter(Phase.SCHEDULER, req.waitingSince);
+		trace.enter(Phase.THROTTLE, grabbed);
+		return trace;
+	}
+
+	void finished(RequestTrace trace) {
+		long[] times = trace.phaseTimes();
+		for(int i = 0; i < times.length; i++)
+			if(times[i] > 0 || trace.hasPhase(Phase.values()[i]))
+				phaseTimes[i].record(NANOSECONDS.toMicros(times[i]));
+		long total = NANOSECONDS.toMicros(trace.totalTime());
+		totalTimes.record(total);
+		boolean slow = Histogram.roundUp(total) >= totalTimes.quantile(SLOW_QUANTILE);
+		synchronized(this) {
+			traced++;
+			if(!slow) return;
+			slowTraces.addFirst(trace);
+			if(slowTraces.size() > MAX_SLOW_TRACES)
+				slowTraces.removeLast();
+		}
+	}
+
+	/** @return The most recent slow traces, newest first. */
+	public synchronized RequestTrace[] getSlowTraces() {
+		return slowTraces.toArray(new RequestTrace[slowTraces.size()]);
+	}
+
+	public synchronized long getTracedCount() {
+		return traced;
+	}
+
+	/** The recent slow traces, as JSON. */
+	public String toJSON() {
+		RequestTrace[] traces = getSlowTraces();
+		StringBuilder sb = new StringBuilder(1024 + traces.length * 512);
+		sb.append("{\"sampleInterval\":").append(sampleInterval);
+		sb.append(",\"traced\":").append(getTracedCount());
+		sb.append(",\"slowTraces\":[");
+		for(int i = 0; i < traces.length; i++) {
+			if(i > 0) sb.append(',');
+			traces[i].toJSON(sb);
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	static void quote(StringBuilder sb, String s) {
+		if(s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if(c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+
+}
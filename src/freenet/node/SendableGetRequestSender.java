@@ -60,7 +60,7 @@ public class SendableGetRequestSender implements SendableRequestSender {
 					    req.onFailure(e, context);
 					}
 					
-				}, !req.ignoreStore, req.canWriteClientCache, req.realTimeFlag, req.localRequestOnly, req.ignoreStore);
+				}, !req.ignoreStore, req.canWriteClientCache, req.realTimeFlag, req.localRequestOnly, req.ignoreStore, req.trace);
 			} catch (Throwable t) {
 				Logger.error(this, "Caught "+t, t);
 				req.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR), context);
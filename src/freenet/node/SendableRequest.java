@@ -58,6 +58,9 @@ public abstract class SendableRequest implements RandomGrabArrayItem, Serializab
 	protected transient RandomGrabArray parentGrabArray;
 	/** Member because must be accessible when only marginally activated */
 	protected final boolean persistent;
+	/** When we were registered with the scheduler, or last had a block chosen, by
+	 * System.nanoTime(). For RequestTracer. */
+	private transient volatile long waitingSince;
 	
 	/** Get the priority class of the request. */
 	public abstract short getPriorityClass();
@@ -94,6 +97,19 @@ public abstract class SendableRequest implements RandomGrabArrayItem, Serializab
 	 * stored on the request itself, hence we pass in a container. */
 	public abstract RequestClient getClient();
 	
+	/** Called by the scheduler when registering the request. */
+	public void onRegistered(long now) {
+		waitingSince = now;
+	}
+
+	/** Called by the scheduler when choosing a block from the request.
+	 * @return When we started waiting for this block to be chosen, or 0 if not known. */
+	public long onChosen(long now) {
+		long since = waitingSince;
+		waitingSince = now;
+		return since;
+	}
+
 	/** Is this request persistent? MUST NOT CHANGE. */
 	public final boolean persistent() {
 		return persistent;
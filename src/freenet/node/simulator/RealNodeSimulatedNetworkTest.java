@@ -0,0 +1,234 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.io.File;
+import java.util.Random;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.io.comm.SimulatedNetwork;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.ClientKey;
+import freenet.node.LowLevelGetException;
+import freenet.node.LowLevelPutException;
+import freenet.node.Node;
+import freenet.node.NodeStarter;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
+import freenet.support.PrioritizedTicker;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.FileUtil;
+
+/**
+ * Runs a big network in one JVM: the nodes share an executor and a ticker, keep their stores in
+ * RAM, and talk through a SimulatedNetwork rather than UDP. Inserts some blocks and then requests
+ * them from random nodes, and reports how many nodes fit in a GB of heap and how many requests
+ * per second we can simulate. Everything random is seeded, see SimulatedNetwork for the limits.
+ *
+ * Usage: RealNodeSimulatedNetworkTest [nodes [seed [seconds]]]
+ */
+public class RealNodeSimulatedNetworkTest extends RealNodeTest {
+
+	static final int DEFAULT_NUMBER_OF_NODES = 1000;
+	static final int DEGREE = 10;
+	static final short MAX_HTL = (short) 10;
+	static final boolean START_WITH_IDEAL_LOCATIONS = true;
+	static final boolean FORCE_NEIGHBOUR_CONNECTIONS = true;
+	static final int LATENCY = 20;
+	static final int JITTER = 10;
+	static final double LOSS = 0.001;
+	static final int BWLIMIT = 100 * 1024;
+	static final int STORE_SIZE = 4 * 1024 * 1024;
+	static final int BLOCKS = 100;
+	static final int REQUEST_THREADS = 20;
+	/** Give up waiting for connections after this long, and go ahead with what we have. */
+	static final long CONNECT_TIMEOUT = 30 * 60 * 1000;
+
+	public static final int DARKNET_PORT_BASE = 20000;
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_NODES;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 3142;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+		String name = "realNodeSimulatedNetworkTest";
+		File wd = new File(name);
+		if(!FileUtil.removeAll(wd)) {
+			System.err.println("Mass delete failed, test may not be accurate.");
+			System.exit(EXIT_CANNOT_DELETE_OLD_DATA);
+		}
+		wd.mkdir();
+		NodeStarter.globalTestInit(wd, false, LogLevel.ERROR, "", true, new DummyRandomSource(seed));
+		System.out.println("Simulated network test: " + count + " nodes, seed " + seed);
+		long baseMemory = usedMemory();
+		SimulatedNetwork network = new SimulatedNetwork(seed, LATENCY, JITTER, LOSS, BWLIMIT, 1);
+		Executor executor = new PooledExecutor();
+		PrioritizedTicker ticker = new PrioritizedTicker(executor, DARKNET_PORT_BASE);
+		Node[] nodes = new Node[count];
+		for(int i = 0; i < count; i++) {
+			TestNodeParameters params = new TestNodeParameters();
+			params.port = DARKNET_PORT_BASE + i;
+			params.baseDirectory = wd;
+			params.disableProbabilisticHTLs = true;
+			params.maxHTL = MAX_HTL;
+			params.random = new DummyRandomSource(seed + 1 + i);
+			params.executor = executor;
+			params.ticker = ticker;
+			params.network = network;
+			params.threadLimit = 500 * count;
+			params.storeSize = STORE_SIZE;
+			params.enablePacketCoalescing = true;
+			params.outputBandwidthLimit = BWLIMIT;
+			params.enableFOAF = true;
+			params.longPingTimes = true;
+			nodes[i] = NodeStarter.createTestNode(params);
+			if(i % 100 == 99) System.err.println("Created " + (i + 1) + " nodes");
+		}
+		makeKleinbergNetwork(nodes, START_WITH_IDEAL_LOCATIONS, DEGREE, FORCE_NEIGHBOUR_CONNECTIONS, new DummyRandomSource(seed));
+		long startTime = System.currentTimeMillis();
+		for(int i = 0; i < count; i++)
+			nodes[i].start(false);
+		waitForConnections(nodes, 0.95, CONNECT_TIMEOUT);
+		System.out.println("Connected after " + (System.currentTimeMillis() - startTime) / 1000 + "s");
+		long used = usedMemory() - baseMemory;
+		System.out.println("Heap used: " + used / (1024 * 1024) + "MB, " + used / count / 1024 + "KB per node, " +
+				(count * 1024L * 1024 * 1024 / used) + " nodes per GB");
+
+		Random random = new Random(seed);
+		ClientCHKBlock[] blocks = new ClientCHKBlock[BLOCKS];
+		ClientKey[] keys = new ClientKey[BLOCKS];
+		for(int i = 0; i < BLOCKS; i++) {
+			byte[] data = ("Simulated network test block " + seed + " " + i).getBytes("UTF-8");
+			blocks[i] = ClientCHKBlock.encode(data, false, false, (short) -1, data.length, COMPRESSOR_TYPE.DEFAULT_COMPRESSORDESCRIPTOR, false);
+			keys[i] = blocks[i].getClientKey();
+		}
+		Inserter[] inserters = new Inserter[REQUEST_THREADS];
+		Thread[] threads = new Thread[REQUEST_THREADS];
+		for(int i = 0; i < REQUEST_THREADS; i++) {
+			inserters[i] = new Inserter(nodes, blocks, i, new Random(random.nextLong()));
+			threads[i] = new Thread(inserters[i], "Inserter " + i);
+			threads[i].start();
+		}
+		int failedInserts = 0;
+		for(int i = 0; i < REQUEST_THREADS; i++) {
+			threads[i].join();
+			failedInserts += inserters[i].failures;
+		}
+		// Failed inserts, e.g. with RouteNotFound, still leave the block on the nodes visited.
+		System.out.println("Inserted " + BLOCKS + " blocks, " + failedInserts + " failed");
+
+		Requester[] requesters = new Requester[REQUEST_THREADS];
+		long requestStart = System.currentTimeMillis();
+		long requestEnd = requestStart + seconds * 1000L;
+		long packetsBefore = network.getPacketsSent();
+		for(int i = 0; i < REQUEST_THREADS; i++) {
+			requesters[i] = new Requester(nodes, keys, new Random(random.nextLong()), requestEnd);
+			threads[i] = new Thread(requesters[i], "Requester " + i);
+			threads[i].start();
+		}
+		int requests = 0;
+		int successes = 0;
+		for(int i = 0; i < REQUEST_THREADS; i++) {
+			threads[i].join();
+			requests += requesters[i].requests;
+			successes += requesters[i].successes;
+		}
+		long elapsed = System.currentTimeMillis() - requestStart;
+		System.out.println(requests + " requests in " + elapsed / 1000 + "s: " + (requests * 1000.0 / elapsed) +
+				" requests/sec, " + (successes * 100 / Math.max(1, requests)) + "% succeeded, " +
+				((network.getPacketsSent() - packetsBefore) * 1000 / elapsed) + " packets/sec");
+		System.exit(0);
+	}
+
+	/** Inserts every nth block, starting at the given offset, to random nodes. */
+	private static class Inserter implements Runnable {
+		private final Node[] nodes;
+		private final ClientCHKBlock[] blocks;
+		private final int offset;
+		private final Random random;
+		int failures;
+
+		Inserter(Node[] nodes, ClientCHKBlock[] blocks, int offset, Random random) {
+			this.nodes = nodes;
+			this.blocks = blocks;
+			this.offset = offset;
+			this.random = random;
+		}
+
+		@Override
+		public void run() {
+			for(int i = offset; i < blocks.length; i += REQUEST_THREADS) {
+				try {
+					nodes[random.nextInt(nodes.length)].clientCore.realPut(blocks[i].getBlock(), false, false, false, false, false);
+				} catch (LowLevelPutException e) {
+					failures++;
+				}
+			}
+		}
+	}
+
+	/** Requests random blocks from random nodes until the given time. */
+	private static class Requester implements Runnable {
+		private final Node[] nodes;
+		private final ClientKey[] keys;
+		private final Random random;
+		private final long end;
+		int requests;
+		int successes;
+
+		Requester(Node[] nodes, ClientKey[] keys, Random random, long end) {
+			this.nodes = nodes;
+			this.keys = keys;
+			this.random = random;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			while(System.currentTimeMillis() < end) {
+				Node node = nodes[random.nextInt(nodes.length)];
+				ClientKey key = keys[random.nextInt(keys.length)];
+				try {
+					if(node.clientCore.realGetKey(key, false, false, false, false) != null)
+						successes++;
+				} catch (LowLevelGetException e) {
+					// Failed
+				}
+				requests++;
+			}
+		}
+	}
+
+	/** Wait until the given fraction of the connections are up, or the timeout expires. Waiting
+	 * for all of them, as waitForAllConnected() does, can take a long time on a big network. */
+	static void waitForConnections(Node[] nodes, double fraction, long timeout) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while(true) {
+			int connected = 0;
+			int total = 0;
+			for(Node node : nodes) {
+				connected += node.peers.countConnectedDarknetPeers();
+				total += node.peers.countValidPeers();
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			System.err.println("Connected: " + connected + " / " + total + " at " + elapsed / 1000 + "s");
+			if(connected >= total * fraction) return;
+			if(elapsed > timeout) {
+				Logger.error(RealNodeSimulatedNetworkTest.class, "Timed out waiting for connections: " + connected + " / " + total);
+				return;
+			}
+			Thread.sleep(5000);
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime r = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+			System.gc();
+		return r.totalMemory() - r.freeMemory();
+	}
+
+}
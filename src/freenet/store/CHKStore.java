@@ -27,6 +27,20 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		// FIXME optimize: change API so we can just pass in the crypto algorithm rather than having to construct the full key???
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, false, false, ignoreOldBlocks, meta);
 	}
+
+	/** Fetch several keys at once, see FreenetStore.fetchBatch(). 
+	 * @return The blocks, with null for the keys which were not found. */
+	public CHKBlock[] fetch(NodeCHK[] chks, boolean dontPromote, boolean ignoreOldBlocks) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		byte[][] fullKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++) {
+			routingKeys[i] = chks[i].getRoutingKey();
+			fullKeys[i] = chks[i].getFullKey();
+		}
+		CHKBlock[] blocks = new CHKBlock[chks.length];
+		store.fetchBatch(routingKeys, fullKeys, blocks, dontPromote, false, false, ignoreOldBlocks, null);
+		return blocks;
+	}
 	
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
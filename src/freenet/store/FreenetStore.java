@@ -29,6 +29,19 @@ public interface FreenetStore<T extends StorableBlock> {
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException;
 	
+	/**
+	 * Retrieve several blocks. The same as calling fetch() for each key, but stores on disk can
+	 * read the blocks in the order they are stored rather than the order they were asked for.
+	 * @param routingKeys The routing keys.
+	 * @param fullKeys The full keys, in the same order.
+	 * @param blocks Set to the blocks found, in the same order. Left null for keys which are not
+	 * found.
+	 * @param meta Null, or metadata for each key, any of which may be null.
+	 * @return The number of blocks found.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta) throws IOException;
+	
 	/**
 	 * Store a block.
 	 * 
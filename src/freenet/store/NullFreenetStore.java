@@ -20,6 +20,13 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta) throws IOException {
+		return 0;
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return 0;
@@ -77,6 +77,13 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, BlockMetadata[] meta) throws IOException {
+		return backDatastore.fetchBatch(routingKeys, fullKeys, blocks, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite,
 			boolean oldBlock) throws IOException, KeyCollisionException {
@@ -2,94 +2,117 @@ package freenet.store;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
 import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
+import freenet.support.CacheMap;
+import freenet.support.CacheMaps;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 
 /**
  * LRU in memory store.
  * 
- * For debugging / simulation only
+ * For debugging / simulation, and the RAM client cache. Fetches don't lock the store if the
+ * cache is concurrent (see {@link CacheMaps}); puts do.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** The data is never changed once the block is in the cache; a new Block replaces it. */
 	private final static class Block {
-		byte[] header;
-		byte[] data;
-		byte[] fullKey;
-		boolean oldBlock;
+		final byte[] header;
+		final byte[] data;
+		final byte[] fullKey;
+		volatile boolean oldBlock;
+		
+		Block(byte[] header, byte[] data, byte[] fullKey, boolean oldBlock) {
+			this.header = header;
+			this.data = data;
+			this.fullKey = fullKey;
+			this.oldBlock = oldBlock;
+		}
 	}
 	
-	private final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey;
+	private final CacheMap<ByteArrayWrapper, Block> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
 	private int maxKeys;
 	
-	private long hits;
-	private long misses;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
 	private long writes;
 	
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.blocksByRoutingKey = CacheMaps.create(maxKeys, ByteArrayWrapper.FAST_COMPARATOR);
 		this.maxKeys = maxKeys;
 		callback.setStore(this);
 	}
 	
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block block = blocksByRoutingKey.get(key);
+		Block block = dontPromote ? blocksByRoutingKey.peek(key) : blocksByRoutingKey.get(key);
 		if(block == null) {
-			misses++;
+			misses.incrementAndGet();
 			return null;
 		}
-		if(ignoreOldBlocks && block.oldBlock) {
+		boolean oldBlock = block.oldBlock;
+		if(ignoreOldBlocks && oldBlock) {
 			Logger.normal(this, "Ignoring old block");
 			return null;
 		}
 		try {
 			T ret =
 				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
-			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
-			if(meta != null && block.oldBlock)
+			hits.incrementAndGet();
+			if(meta != null && oldBlock)
 				meta.setOldBlock();
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			synchronized(this) {
+				if(blocksByRoutingKey.peek(key) == block)
+					blocksByRoutingKey.remove(key);
+			}
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta) throws IOException {
+		// In RAM, no point in sorting.
+		int found = 0;
+		for(int i = 0; i < routingKeys.length; i++) {
+			blocks[i] = fetch(routingKeys[i], fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta == null ? null : meta[i]);
+			if(blocks[i] != null) found++;
+		}
+		return found;
+	}
+
 	@Override
 	public synchronized long getMaxKeys() {
 		return maxKeys;
 	}
 
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
+	public long keyCount() {
 		return blocksByRoutingKey.size();
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
 	@Override
@@ -99,7 +122,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		
 		writes++;
 		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
+		Block oldBlock = blocksByRoutingKey.peek(key);
 		boolean storeFullKeys = callback.storeFullKeys();
 		if(oldBlock != null) {
 			if(callback.collisionPossible()) {
@@ -112,11 +135,8 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 					return;
 				}
 				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
+					blocksByRoutingKey.put(key, new Block(header, data,
+							storeFullKeys ? fullKey : oldBlock.fullKey, isOldBlock));
 				} else {
 					throw new KeyCollisionException();
 				}
@@ -127,16 +147,8 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 				return;
 			}
 		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		Block storeBlock = new Block(header, data, storeFullKeys ? fullKey : null, isOldBlock);
+		blocksByRoutingKey.put(key, storeBlock);
 	}
 
 	@Override
@@ -144,9 +156,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 			throws IOException {
 		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		blocksByRoutingKey.setMaximumWeight(maxKeys);
 	}
 
 	@Override
@@ -162,7 +172,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.get(key) != null;
+		return blocksByRoutingKey.containsKey(key);
 	}
 
 	public void clear() {
@@ -170,11 +180,10 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	}
 
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
+		for(ByteArrayWrapper routingKeyWrapped : blocksByRoutingKey.keys()) {
 			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
+			Block block = blocksByRoutingKey.peek(routingKeyWrapped);
+			if(block == null) continue;
 			
 			T ret;
 			try {
@@ -197,12 +206,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
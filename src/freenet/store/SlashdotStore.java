@@ -4,14 +4,14 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
 import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
+import freenet.support.CacheMap;
+import freenet.support.CacheMaps;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -21,7 +21,8 @@ import freenet.support.io.TempBucketFactory;
 
 /** Short-term cache. Used to cache all blocks retrieved in the last 30 minutes (on low 
  * security levels), or just to cache data fetched through ULPRs (on higher security levels).
- * - Strict LRU.
+ * - LRU, or W-TinyLFU if the cache is concurrent (see {@link CacheMaps}), so that one big 
+ *   download passing through doesn't flush everything else.
  * - Size limit.
  * - Strictly enforced time limit.
  * - Blocks are encrypted, and kept in temp files.
@@ -41,14 +42,58 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		});
 	}
 	
-	private class DiskBlock {
-		Bucket data;
-		long lastAccessed;
+	/** fetch() reads blocks without holding the lock on the store, so a block evicted or 
+	 * purged while it is being read is only freed when the last reader has finished. */
+	private static class DiskBlock {
+		final Bucket data;
+		volatile long lastAccessed;
+		private int readers;
+		private boolean removed;
+		
+		DiskBlock(Bucket data) {
+			this.data = data;
+		}
+		
+		/** @return False if the block has already been removed, in which case don't read it. */
+		synchronized boolean startRead() {
+			if(removed) return false;
+			readers++;
+			return true;
+		}
+		
+		void endRead() {
+			boolean free;
+			synchronized(this) {
+				free = --readers == 0 && removed;
+			}
+			if(free) data.free();
+		}
+		
+		/** Called once the block is no longer in the cache. Frees it now, or when the last 
+		 * reader has finished. */
+		void release() {
+			synchronized(this) {
+				if(removed) return;
+				removed = true;
+				if(readers > 0) return;
+			}
+			data.free();
+		}
 	}
 	
+	private static final CacheMap.EvictionListener<ByteArrayWrapper, DiskBlock> FREE_ON_EVICTION = 
+		new CacheMap.EvictionListener<ByteArrayWrapper, DiskBlock>() {
+
+		@Override
+		public void onEviction(ByteArrayWrapper key, DiskBlock block) {
+			block.release();
+		}
+		
+	};
+	
 	private final TempBucketFactory bf;
 	
-	private long maxLifetime;
+	private volatile long maxLifetime;
 	
 	private final long purgePeriod;
 	
@@ -57,15 +102,15 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	private final Ticker ticker;
 	
-	private final LRUMap<ByteArrayWrapper, DiskBlock> blocksByRoutingKey;
+	private final CacheMap<ByteArrayWrapper, DiskBlock> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
 	private int maxKeys;
 	
-	private long hits;
-	private long misses;
-	private long writes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	private final int headerSize;
 	private final int dataSize;
@@ -73,7 +118,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	public SlashdotStore(StoreCallback<T> callback, int maxKeys, long maxLifetime, long purgePeriod, Ticker ticker, TempBucketFactory tbf) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.blocksByRoutingKey = CacheMaps.create(maxKeys, ByteArrayWrapper.FAST_COMPARATOR, null, FREE_ON_EVICTION);
 		this.maxKeys = maxKeys;
 		this.bf = tbf;
 		this.ticker = ticker;
@@ -104,50 +149,57 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		DiskBlock block;
-		long timeAccessed;
-		synchronized(this) {
-			block = blocksByRoutingKey.get(key);
-			if(block == null) {
-				misses++;
-				return null;
-			}
-			timeAccessed = block.lastAccessed;
+		DiskBlock block = blocksByRoutingKey.peek(key);
+		// Removed since we looked it up: a miss.
+		if(block == null || !block.startRead()) {
+			misses.incrementAndGet();
+			return null;
 		}
+		long timeAccessed = block.lastAccessed;
 		byte[] fk = new byte[fullKeySize];
 		byte[] header = new byte[headerSize];
 		byte[] data = new byte[dataSize];
-		InputStream in = block.data.getInputStream();
 		try {
-			DataInputStream dis = new DataInputStream(in);
-			dis.readFully(fk);
-			dis.readFully(header);
-			dis.readFully(data);
+			InputStream in = block.data.getInputStream();
+			try {
+				DataInputStream dis = new DataInputStream(in);
+				dis.readFully(fk);
+				dis.readFully(header);
+				dis.readFully(data);
+			} finally {
+				in.close();
+			}
 		} finally {
-			in.close();
+			block.endRead();
 		}
 		try {
 			T ret =
 				callback.construct(data, header, routingKey, fk, canReadClientCache, canReadSlashdotCache, null, null);
-			synchronized(this) {
-				hits++;
-				if(!dontPromote) {
-					block.lastAccessed = System.currentTimeMillis();
-					blocksByRoutingKey.push(key, block);
-				}
+			hits.incrementAndGet();
+			if(!dontPromote) {
+				block.lastAccessed = System.currentTimeMillis();
+				blocksByRoutingKey.get(key);
 			}
 			if(logDEBUG) Logger.debug(this, "Block was last accessed "+(System.currentTimeMillis() - timeAccessed)+"ms ago");
 			return ret;
 		} catch (KeyVerifyException e) {
-			block.data.free();
-			synchronized(this) {
-				blocksByRoutingKey.removeKey(key);
-				misses++;
-			}
+			remove(key, block);
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta) throws IOException {
+		// Small, and mostly in RAM, so no point in sorting.
+		int found = 0;
+		for(int i = 0; i < routingKeys.length; i++) {
+			blocks[i] = fetch(routingKeys[i], fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta == null ? null : meta[i]);
+			if(blocks[i] != null) found++;
+		}
+		return found;
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
@@ -160,7 +212,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	@Override
 	public long hits() {
-		return hits;
+		return hits.get();
 	}
 
 	@Override
@@ -170,7 +222,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	@Override
 	public long misses() {
-		return misses;
+		return misses.get();
 	}
 
 	@Override
@@ -198,15 +250,14 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		os.close();
 		}
 		
-		DiskBlock stored = new DiskBlock();
-		stored.data = bucket;
-		purgeOldData(new ByteArrayWrapper(routingkey), stored);
+		add(new ByteArrayWrapper(routingkey), new DiskBlock(bucket));
 	}
 
 	@Override
 	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
 		if(maxStoreKeys > Integer.MAX_VALUE) throw new IllegalArgumentException();
 		this.maxKeys = (int) maxStoreKeys;
+		blocksByRoutingKey.setMaximumWeight(maxKeys);
 		if(shrinkNow) {
 			purgeOldData();
 		} else {
@@ -224,40 +275,39 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
+	/** Remove blocks which haven't been accessed for maxLifetime. The size limit is enforced 
+	 * by the cache itself. */
 	protected void purgeOldData() {
-		purgeOldData(null, null);
+		long now = System.currentTimeMillis();
+		long lifetime = maxLifetime;
+		for(ByteArrayWrapper key : blocksByRoutingKey.keys()) {
+			DiskBlock block = blocksByRoutingKey.peek(key);
+			if(block != null && now - block.lastAccessed >= lifetime)
+				remove(key, block);
+		}
 	}
 	
-	protected void purgeOldData(ByteArrayWrapper key, DiskBlock addFirst) {
-		List<DiskBlock> blocks = null;
+	private void add(ByteArrayWrapper key, DiskBlock block) {
+		block.lastAccessed = System.currentTimeMillis();
 		DiskBlock oldBlock;
 		synchronized(this) {
-			long now = System.currentTimeMillis();
-			if(addFirst != null) {
-				addFirst.lastAccessed = now;
-				oldBlock = blocksByRoutingKey.push(key, addFirst);
-				if(oldBlock != null) {
-	                if(blocks == null) blocks = new ArrayList<DiskBlock>();
-	                blocks.add(oldBlock);
-				}
-				writes++;
-			}
-			while(true) {
-				if(blocksByRoutingKey.isEmpty()) break;
-				DiskBlock block = blocksByRoutingKey.peekValue();
-				if(now - block.lastAccessed < maxLifetime && blocksByRoutingKey.size() < maxKeys) break;
-				if(blocks == null) blocks = new ArrayList<DiskBlock>();
-				blocks.add(block);
-				blocksByRoutingKey.popValue();
-			}
+			oldBlock = blocksByRoutingKey.put(key, block);
 		}
-		if(blocks == null) return;
-		for(DiskBlock block : blocks) {
-			block.data.free();
+		writes.incrementAndGet();
+		if(oldBlock != null)
+			oldBlock.release();
+	}
+	
+	/** Remove the block if it is still the one cached for the key, and free it. */
+	private void remove(ByteArrayWrapper key, DiskBlock block) {
+		synchronized(this) {
+			if(blocksByRoutingKey.peek(key) != block) return;
+			blocksByRoutingKey.remove(key);
 		}
+		block.release();
 	}
 
 	public synchronized Long getLifetime() {
@@ -274,12 +324,12 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -289,7 +339,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
 			}
 			
 		};
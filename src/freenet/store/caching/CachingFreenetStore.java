@@ -1,10 +1,11 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import freenet.keys.KeyVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
@@ -13,6 +14,8 @@ import freenet.store.ProxyFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
 import freenet.support.ByteArrayWrapper;
+import freenet.support.CacheMap;
+import freenet.support.CacheMaps;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -21,6 +24,11 @@ import freenet.support.io.NativeThread;
 /**
  * CachingFreenetStore
  * 
+ * Write-back cache in front of a store on disk, and optionally a read cache for hot blocks.
+ * Blocks are only ever given to us (by put() or by the underlying store) after they have been
+ * constructed and verified, so both caches keep the block objects and return them directly,
+ * without verifying them again.
+ * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
  */
@@ -34,6 +42,12 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
 	private final CachingFreenetStoreTracker tracker;
 	private final int sizeBlock;
+	/** Blocks which have been written to or read from the underlying store recently. Which
+	 * blocks are kept is decided by how often they are used, see {@link CacheMaps}. Null if 
+	 * there is no read cache. */
+	private final CacheMap<ByteArrayWrapper, CleanBlock<T>> readCache;
+	/** Fetches served from memory, either from the write cache or the read cache. */
+	private final AtomicLong cacheHits = new AtomicLong();
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
@@ -44,8 +58,25 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		boolean overwrite;
 		boolean isOldBlock;
 	}
+	
+	private final static class CleanBlock<T> {
+		final T block;
+		final boolean isOldBlock;
+		
+		CleanBlock(T block, boolean isOldBlock) {
+			this.block = block;
+			this.isOldBlock = isOldBlock;
+		}
+	}
 
 	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, CachingFreenetStoreTracker tracker) {
+		this(callback, backDatastore, tracker, 0);
+	}
+
+	/**
+	 * @param readCacheSize The maximum size of the read cache in bytes, or 0 for no read cache.
+	 */
+	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, CachingFreenetStoreTracker tracker, long readCacheSize) {
 		super(backDatastore);
 		this.callback = callback;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
@@ -54,6 +85,18 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		this.shuttingDown = false;
 		this.tracker = tracker;
 		this.sizeBlock = callback.getTotalBlockSize();
+		if(readCacheSize >= sizeBlock) {
+			final int weight = sizeBlock;
+			readCache = CacheMaps.create(readCacheSize, ByteArrayWrapper.FAST_COMPARATOR,
+					new CacheMap.Weigher<ByteArrayWrapper, CleanBlock<T>>() {
+						@Override
+						public int weigh(ByteArrayWrapper key, CleanBlock<T> value) {
+							return weight;
+						}
+					}, null);
+		} else {
+			readCache = null;
+		}
 		
 		callback.setStore(this);
 		shutdownHook.addEarlyJob(new NativeThread("Close CachingFreenetStore", NativeThread.HIGH_PRIORITY, true) {
@@ -81,14 +124,87 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		}
 		
 		if(block != null) {
-			try {
-				return this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
-			} catch (KeyVerifyException e) {
-				Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
-			}
+			// Already verified.
+			cacheHits.incrementAndGet();
+			return block.block;
+		}
+		
+		if(readCache == null)
+			return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		
+		CleanBlock<T> clean = dontPromote ? readCache.peek(key) : readCache.get(key);
+		if(clean != null && !(ignoreOldBlocks && clean.isOldBlock)) {
+			if(clean.isOldBlock && meta != null) meta.setOldBlock();
+			cacheHits.incrementAndGet();
+			return clean.block;
 		}
 		
-		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);	
+		// We need to know whether it's an old block if we cache it.
+		BlockMetadata fetchMeta = meta == null ? new BlockMetadata() : meta;
+		T fetched = backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, fetchMeta);
+		if(fetched != null && !dontPromote)
+			readCache.put(key, new CleanBlock<T>(fetched, fetchMeta.isOldBlock()));
+		return fetched;
+	}
+
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, BlockMetadata[] meta) throws IOException {
+		int found = 0;
+		// Indexes of the keys we need to fetch from the underlying store.
+		int[] missing = new int[routingKeys.length];
+		int missingCount = 0;
+		configLock.readLock().lock();
+		try {
+			for(int i = 0; i < routingKeys.length; i++) {
+				Block<T> block = blocksByRoutingKey.get(new ByteArrayWrapper(routingKeys[i]));
+				if(block != null) {
+					blocks[i] = block.block;
+					found++;
+				} else
+					missing[missingCount++] = i;
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+		if(readCache != null) {
+			int stillMissing = 0;
+			for(int j = 0; j < missingCount; j++) {
+				int i = missing[j];
+				ByteArrayWrapper key = new ByteArrayWrapper(routingKeys[i]);
+				CleanBlock<T> clean = dontPromote ? readCache.peek(key) : readCache.get(key);
+				if(clean != null && !(ignoreOldBlocks && clean.isOldBlock)) {
+					if(clean.isOldBlock && meta != null && meta[i] != null) meta[i].setOldBlock();
+					blocks[i] = clean.block;
+					found++;
+				} else
+					missing[stillMissing++] = i;
+			}
+			missingCount = stillMissing;
+		}
+		cacheHits.addAndGet(found);
+		if(missingCount == 0) return found;
+		byte[][] missingRoutingKeys = new byte[missingCount][];
+		byte[][] missingFullKeys = new byte[missingCount][];
+		BlockMetadata[] missingMeta = new BlockMetadata[missingCount];
+		for(int j = 0; j < missingCount; j++) {
+			int i = missing[j];
+			missingRoutingKeys[j] = routingKeys[i];
+			missingFullKeys[j] = fullKeys[i];
+			// We need to know whether it's an old block if we cache it.
+			missingMeta[j] = (meta == null || meta[i] == null) ? new BlockMetadata() : meta[i];
+		}
+		T[] fetched = Arrays.copyOf(blocks, missingCount);
+		Arrays.fill(fetched, null);
+		found += backDatastore.fetchBatch(missingRoutingKeys, missingFullKeys, fetched, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, missingMeta);
+		for(int j = 0; j < missingCount; j++) {
+			if(fetched[j] == null) continue;
+			blocks[missing[j]] = fetched[j];
+			if(readCache != null && !dontPromote)
+				readCache.put(new ByteArrayWrapper(missingRoutingKeys[j]), new CleanBlock<T>(fetched[j], missingMeta[j].isOldBlock()));
+		}
+		return found;
 	}
 
 	@Override
@@ -165,6 +281,8 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		//Case don't cache it
 		if(!cacheIt) {
 			backDatastore.put(block, data, header, overwrite, isOldBlock);
+			if(readCache != null)
+				readCache.put(key, new CleanBlock<T>(block, isOldBlock));
 			return;
 		}
 	}
@@ -187,8 +305,10 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			configLock.writeLock().unlock();
 		}
 			
+		boolean written = false;
 		try {
 			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
+			written = true;
 		} catch (IOException e) {
 			Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
 		} catch (KeyCollisionException e) {
@@ -202,8 +322,13 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			/** it might have changed if there was a put() with overwrite=true. 
 			 *  If it has changed, return 0 , i.e. don't remove it*/
 			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
+				if(blocksByRoutingKey.removeKey(key)) {
+					// Keep it for reads, if it is used enough. Do this under the lock, so a
+					// fetch always finds it in one cache or the other.
+					if(written && readCache != null)
+						readCache.put(key, new CleanBlock<T>(block.block, block.isOldBlock));
 					return sizeBlock;
+				}
 			}
 		} finally {
 			configLock.writeLock().unlock();
@@ -211,6 +336,16 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		return 0;
 	}
 
+	@Override
+	public long hits() {
+		return backDatastore.hits() + cacheHits.get();
+	}
+	
+	/** @return The number of fetches served from memory. */
+	public long cacheHits() {
+		return cacheHits.get();
+	}
+
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		tracker.registerCachingFS(this);
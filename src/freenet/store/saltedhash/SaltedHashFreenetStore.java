@@ -12,10 +12,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
@@ -310,17 +313,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
-		try {
-			int retry = 0;
-			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
-				if (shutdown)
-					return null;
-				if (retry++ > 10)
-					throw new IOException("lock timeout (20s)");
-			}
-		} catch(InterruptedException e) {
-			throw new IOException("interrupted: " +e);
-		}
+		if (!lockConfigForRead())
+			return null;
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
 			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
@@ -366,6 +360,200 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	/**
+	 * Take the read lock on the configuration, i.e. wait for any resize to finish.
+	 * @return False if we are shutting down.
+	 */
+	private boolean lockConfigForRead() throws IOException {
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return false;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		return true;
+	}
+
+	/** Most slots to read at once in fetchBatch(). */
+	private static final int MAX_BATCH_READ_SLOTS = 64;
+	/** Read through gaps of up to this many slots' metadata rather than seeking, in
+	 * fetchBatch(). A page is 32 slots. */
+	private static final int MAX_BATCH_METADATA_GAP = 32;
+
+	/** A slot which might hold one of the keys in a fetchBatch(). */
+	private class Probe implements Comparable<Probe> {
+		final long offset;
+		final int key;
+		final int cache;
+		Entry entry;
+
+		Probe(long offset, int key, int cache) {
+			this.offset = offset;
+			this.key = key;
+			this.cache = cache;
+		}
+
+		@Override
+		public int compareTo(Probe other) {
+			if(offset != other.offset) return offset < other.offset ? -1 : 1;
+			return key - other.key;
+		}
+	}
+
+	/**
+	 * Fetch several keys. We work out which slots might hold them, skipping those the slot filter
+	 * rules out, and read them in the order they are stored, with one read for each run of
+	 * nearby slots. Each run is locked, in increasing order of offset like lockDigestedKey(), 
+	 * while we read it. As in fetch(), dontPromote makes no difference: slots are not kept in
+	 * LRU order, so there is nothing to promote.
+	 */
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta) throws IOException {
+		if (logMINOR)
+			Logger.minor(this, "Fetch batch of " + routingKeys.length + " for " + callback);
+		if (!lockConfigForRead())
+			return 0;
+		int found = 0;
+		boolean[] done = new boolean[routingKeys.length];
+		try {
+			byte[][] digestedKeys = new byte[routingKeys.length][];
+			ArrayList<Probe> probes = new ArrayList<Probe>();
+			for (int i = 0; i < routingKeys.length; i++) {
+				digestedKeys[i] = cipherManager.getDigestedKey(routingKeys[i]);
+				addProbes(probes, i, digestedKeys[i], storeSize);
+				if (prevStoreSize != 0)
+					addProbes(probes, i, digestedKeys[i], prevStoreSize);
+			}
+			Collections.sort(probes);
+			int start = 0;
+			while (start < probes.size()) {
+				int end = start + 1;
+				while (end < probes.size() && probes.get(end).offset - probes.get(end - 1).offset <= MAX_BATCH_METADATA_GAP &&
+						probes.get(end).offset - probes.get(start).offset < MAX_BATCH_READ_SLOTS)
+					end++;
+				List<Probe> run = probes.subList(start, end);
+				start = end;
+				if (!readRun(run, digestedKeys, routingKeys, done)) 
+					return found; // Shutting down.
+				for (Probe probe : run) {
+					if (probe.entry == null || done[probe.key]) continue;
+					int i = probe.key;
+					Entry entry = probe.entry;
+					done[i] = true;
+					BlockMetadata m = meta == null ? null : meta[i];
+					if ((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0) {
+						if (ignoreOldBlocks) {
+							Logger.normal(this, "Ignoring old block");
+							continue;
+						}
+						if (m != null)
+							m.setOldBlock();
+					}
+					try {
+						blocks[i] = entry.getStorableBlock(routingKeys[i], fullKeys[i], canReadClientCache, canReadSlashdotCache, m, null);
+					} catch (KeyVerifyException e) {
+						Logger.minor(this, "key verification exception", e);
+					}
+					if (blocks[i] != null) {
+						hits.incrementAndGet();
+						found++;
+					} else
+						misses.incrementAndGet();
+				}
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+		for (int i = 0; i < routingKeys.length; i++) {
+			if (!done[i])
+				misses.incrementAndGet();
+		}
+		return found;
+	}
+
+	private void addProbes(List<Probe> probes, int key, byte[] digestedKey, long probeStoreSize) {
+		for (long offset : getOffsetFromDigestedKey(digestedKey, probeStoreSize)) {
+			if (storeFileOffsetReady != -1 && offset >= storeFileOffsetReady) continue;
+			int cache = 0;
+			if (!slotFilterDisabled) {
+				cache = slotFilter.get((int)offset);
+				boolean validCache = (cache & SLOT_CHECKED) != 0;
+				if (USE_SLOT_FILTER && validCache && !slotCacheLikelyMatch(cache, digestedKey)) continue;
+			}
+			probes.add(new Probe(offset, key, cache));
+		}
+	}
+
+	/**
+	 * Lock and read a run of slots, setting Probe.entry for those which match their keys.
+	 * @return False if we are shutting down.
+	 */
+	private boolean readRun(List<Probe> run, byte[][] digestedKeys, byte[][] routingKeys, boolean[] done) throws IOException {
+		long first = run.get(0).offset;
+		long last = run.get(run.size() - 1).offset;
+		int slots = (int) (last - first + 1);
+		Condition[] locks = new Condition[slots];
+		try {
+			for (Probe probe : run) {
+				int i = (int) (probe.offset - first);
+				if (locks[i] != null) continue;
+				locks[i] = lockManager.lockEntry(probe.offset);
+				if (locks[i] == null) return false;
+			}
+			ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH * slots);
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * first + mbf.position());
+				if (status == -1) {
+					// May occur on store shrinking, as in probeEntry0().
+					if (prevStoreSize == 0)
+						Logger.error(this, "EOF reading slots "+first+" to "+last);
+					break;
+				}
+			} while (mbf.hasRemaining());
+			int readSlots = mbf.position() / Entry.METADATA_LENGTH;
+			ArrayList<Probe> matched = new ArrayList<Probe>();
+			for (Probe probe : run) {
+				int i = (int) (probe.offset - first);
+				if (done[probe.key] || i >= readSlots) continue;
+				ByteBuffer slot = ByteBuffer.wrap(mbf.array(), i * Entry.METADATA_LENGTH, Entry.METADATA_LENGTH).slice();
+				probe.entry = matchEntry(probe.offset, slot, digestedKeys[probe.key], routingKeys[probe.key], probe.cache);
+				if (probe.entry != null) matched.add(probe);
+			}
+			// Read the header and data for each run of adjacent matching slots at once.
+			int hdLength = headerBlockLength + dataBlockLength + hdPadding;
+			for (int j = 0; j < matched.size();) {
+				int k = j + 1;
+				while (k < matched.size() && matched.get(k).offset - matched.get(k - 1).offset <= 1)
+					k++;
+				long from = matched.get(j).offset;
+				int count = (int) (matched.get(k - 1).offset - from + 1);
+				ByteBuffer hdBuf = ByteBuffer.allocate(hdLength * count);
+				do {
+					int status = hdFC.read(hdBuf, hdLength * from + hdBuf.position());
+					if (status == -1)
+						throw new EOFException();
+				} while (hdBuf.hasRemaining());
+				for (; j < k; j++) {
+					Probe probe = matched.get(j);
+					ByteBuffer hd = ByteBuffer.wrap(hdBuf.array(), (int) (probe.offset - from) * hdLength, hdLength).slice();
+					if (!decryptEntry(probe.entry, hd, routingKeys[probe.key], probe.cache))
+						probe.entry = null;
+				}
+			}
+			return true;
+		} finally {
+			for (int i = 0; i < slots; i++) {
+				if (locks[i] != null)
+					lockManager.unlockEntry(first + i, locks[i]);
+			}
+		}
+	}
+
 	/**
 	 * Find and lock an entry with a specific routing key. This function would <strong>not</strong>
 	 * lock the entries.
@@ -878,6 +1066,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		} while (mbf.hasRemaining());
 		mbf.flip();
 
+		Entry entry = matchEntry(offset, mbf, digestedRoutingKey, routingKey, cache);
+		if (entry == null || routingKey == null || !withData) return entry;
+		return decryptEntry(entry, readHD(offset), routingKey, cache) ? entry : null;
+	}
+
+	/**
+	 * Parse the metadata for a slot, and check whether it matches the key.
+	 * @param cache The slot filter entry for the slot, or 0.
+	 * @return <code>null</code> if <code>routingKey</code> is not <code>null</code> and the key
+	 *         does not match the entry.
+	 */
+	private Entry matchEntry(long offset, ByteBuffer mbf, byte[] digestedRoutingKey, byte[] routingKey, int cache) throws IOException {
+		boolean validCache = (cache & SLOT_CHECKED) != 0;
+		boolean likelyMatch = validCache && slotCacheLikelyMatch(cache, digestedRoutingKey);
+
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
 
@@ -911,25 +1114,30 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				Logger.error(this, "False NEGATIVE from slot cache on slot "+offset+" cache was "+cache);
 				bloomFalsePos.incrementAndGet();
 			}
-
-			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
-				boolean decrypted = cipherManager.decrypt(entry, routingKey);
-				if (!decrypted) {
-					if(logMINOR && validCache && likelyMatch)
-						Logger.minor(this, "True positive but decrypt failed on slot "+offset+" cache was "+cache);
-					return null;
-				} else {
-					if(logMINOR && validCache && likelyMatch)
-						Logger.minor(this, "True positive!");
-				}
-			}
 		}
 
 		return entry;
 	}
 
+	/**
+	 * Set the header and data of an entry which matches the key, and decrypt them.
+	 * @return False if the decryption failed.
+	 */
+	private boolean decryptEntry(Entry entry, ByteBuffer hdBuf, byte[] routingKey, int cache) {
+		boolean likelyMatch = (cache & SLOT_CHECKED) != 0 && slotCacheLikelyMatch(cache, entry.digestedRoutingKey);
+		entry.setHD(hdBuf);
+		boolean decrypted = cipherManager.decrypt(entry, routingKey);
+		if (!decrypted) {
+			if(logMINOR && likelyMatch)
+				Logger.minor(this, "True positive but decrypt failed on slot "+entry.curOffset+" cache was "+cache);
+			return false;
+		} else {
+			if(logMINOR && likelyMatch)
+				Logger.minor(this, "True positive!");
+		}
+		return true;
+	}
+
 	/**
 	 * Read header + data from disk
 	 *
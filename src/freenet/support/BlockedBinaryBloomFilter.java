@@ -0,0 +1,56 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Blocked Bloom filter with one bit per entry. Each key sets k bits in one 512 bit block.
+ * Replaces {@link BinaryBloomFilter} where the filter is rebuilt from scratch rather than
+ * forked and merged.
+ */
+public class BlockedBinaryBloomFilter extends BlockedBloomFilter {
+
+	/**
+	 * @param sizeBytes The size of the filter in bytes.
+	 * @param k The number of hash functions.
+	 */
+	public BlockedBinaryBloomFilter(int sizeBytes, int k) {
+		super(sizeBytes, k, 8);
+	}
+
+	/**
+	 * Create a filter with the given contents.
+	 * @param buf The serialized filter, as written by {@link #writeTo(java.io.OutputStream)}.
+	 */
+	public BlockedBinaryBloomFilter(byte[] buf, int offset, int sizeBytes, int k) {
+		super(sizeBytes, k, 8);
+		readFrom(buf, offset);
+	}
+
+	@Override
+	public void addKey(byte[] key) {
+		if(k == 0) return;
+		long h2 = hash(key, SEED2);
+		int first = firstWord(hash(key, SEED1));
+		for(int i = 0; i < k; i++) {
+			h2 = nextProbe(h2);
+			int bit = entry(h2);
+			setBits(first + (bit >> 6), 1L << (bit & 63));
+		}
+	}
+
+	@Override
+	public boolean checkFilter(byte[] key) {
+		if(k == 0) return true;
+		long h2 = hash(key, SEED2);
+		int first = firstWord(hash(key, SEED1));
+		for(int i = 0; i < k; i++) {
+			h2 = nextProbe(h2);
+			int bit = entry(h2);
+			if((words.get(first + (bit >> 6)) & (1L << (bit & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+}
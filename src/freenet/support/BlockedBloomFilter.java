@@ -0,0 +1,164 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter which puts all of a key's bits in one 64 byte block, so a lookup touches one
+ * block of memory instead of k scattered ones. The block is chosen by one 64-bit hash of the
+ * key, and the positions within it by stepping a linear congruential sequence from a second
+ * hash, rather than by seeding a {@link freenet.support.math.MersenneTwister} with the key as
+ * {@link BloomFilter} does, which is much cheaper for the keys we use, which are already salted
+ * hashes. (Plain double hashing, a + i*d, is not good enough within a block this small: it
+ * gives several times the expected false positive rate.)
+ *
+ * Updates use compare-and-set on the words of the block, so there is no lock: concurrent adds
+ * and checks are safe, and once an add has returned, checks for that key will succeed.
+ *
+ * A blocked filter has a slightly higher false positive rate than a classic one of the same
+ * size, because keys are not spread evenly across blocks; see the benchmark in the unit test.
+ *
+ * The serialized form is little endian and the same size as the corresponding
+ * {@link BinaryBloomFilter} or {@link CountingBloomFilter}, but the bits are in different
+ * places, so the formats are not interchangeable; a filter in the old format must be rebuilt
+ * from its keys.
+ */
+public abstract class BlockedBloomFilter {
+
+	/** Size of a block in bytes. Filters smaller than this are a single, smaller block. */
+	public static final int BLOCK_SIZE = 64;
+
+	/** Seeds for the two hashes. Changing these changes the serialized format. */
+	protected static final long SEED1 = 0x9E3779B97F4A7C15L;
+	protected static final long SEED2 = 0xC2B2AE3D27D4EB4FL;
+
+	protected final AtomicLongArray words;
+	/** Number of hash functions */
+	protected final int k;
+	protected final int sizeBytes;
+	protected final int blockBytes;
+	protected final int blocks;
+	/** Number of entries (bits or counters) in a block. */
+	protected final int blockEntries;
+
+	/**
+	 * @param sizeBytes The size of the filter in bytes.
+	 * @param k The number of hash functions.
+	 * @param entriesPerByte Bits per byte for a binary filter, counters per byte for a counting
+	 * filter.
+	 */
+	protected BlockedBloomFilter(int sizeBytes, int k, int entriesPerByte) {
+		if(sizeBytes < 0)
+			throw new IllegalArgumentException("Filter must have positive or zero length");
+		if(k < 0)
+			throw new IllegalArgumentException("Filter must have positive or zero hashes");
+		if(sizeBytes == 0)
+			k = 0;
+		this.sizeBytes = sizeBytes;
+		this.k = k;
+		blockBytes = Math.min(sizeBytes, BLOCK_SIZE);
+		blocks = blockBytes == 0 ? 0 : sizeBytes / blockBytes;
+		blockEntries = blockBytes * entriesPerByte;
+		words = new AtomicLongArray((sizeBytes + 7) / 8);
+	}
+
+	/** Load the contents of the filter as written by {@link #writeTo(OutputStream)}. */
+	protected void readFrom(byte[] buf, int offset) {
+		for(int i = 0; i < sizeBytes; i += 8) {
+			long w = 0;
+			int end = Math.min(8, sizeBytes - i);
+			for(int j = 0; j < end; j++)
+				w |= (buf[offset + i + j] & 0xFFL) << (j * 8);
+			words.set(i / 8, w);
+		}
+	}
+
+	public abstract void addKey(byte[] key);
+
+	public abstract boolean checkFilter(byte[] key);
+
+	/** Hash the key. The keys used in practice are already hashes, so this is mainly to make
+	 * sure that short or structured keys still spread out. */
+	protected static long hash(byte[] key, long seed) {
+		long h = seed ^ (key.length * 0xFF51AFD7ED558CCDL);
+		int i = 0;
+		for(; i + 8 <= key.length; i += 8) {
+			long v = (key[i] & 0xFFL) | (key[i+1] & 0xFFL) << 8 | (key[i+2] & 0xFFL) << 16 |
+				(key[i+3] & 0xFFL) << 24 | (key[i+4] & 0xFFL) << 32 | (key[i+5] & 0xFFL) << 40 |
+				(key[i+6] & 0xFFL) << 48 | (key[i+7] & 0xFFL) << 56;
+			h = Long.rotateLeft(h ^ mix(v), 27) * 5 + 0x52DCE729;
+		}
+		long v = 0;
+		for(int j = 0; i < key.length; i++, j += 8)
+			v |= (key[i] & 0xFFL) << j;
+		return mix(h ^ mix(v));
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** @return The index of the first word of the block for a key with this first hash. */
+	protected final int firstWord(long h1) {
+		int block = (int) ((h1 >>> 1) % blocks);
+		return block * blockBytes / 8;
+	}
+
+	/** Advance the probe sequence, which starts at the key's second hash. */
+	protected static long nextProbe(long h) {
+		return h * 0x5851F42D4C957F2DL + 0x14057B7EF767814FL;
+	}
+
+	/** @return The entry within the block for this point in the probe sequence. */
+	protected final int entry(long h) {
+		return (int) (((h >>> 32) * blockEntries) >>> 32);
+	}
+
+	/** Set the masked bits in a word. Lock-free. */
+	protected final void setBits(int word, long mask) {
+		while(true) {
+			long w = words.get(word);
+			if((w & mask) == mask) return;
+			if(words.compareAndSet(word, w, w | mask)) return;
+		}
+	}
+
+	public void unsetAll() {
+		for(int i = 0; i < words.length(); i++)
+			words.set(i, 0);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getSizeBytes() {
+		return sizeBytes;
+	}
+
+	public void writeTo(OutputStream os) throws IOException {
+		byte[] buf = new byte[sizeBytes];
+		copyTo(buf, 0);
+		os.write(buf);
+	}
+
+	public int copyTo(byte[] buf, int offset) {
+		for(int i = 0; i < sizeBytes; i += 8) {
+			long w = words.get(i / 8);
+			int end = Math.min(8, sizeBytes - i);
+			for(int j = 0; j < end; j++)
+				buf[offset + i + j] = (byte) (w >>> (j * 8));
+		}
+		return sizeBytes;
+	}
+
+}
@@ -0,0 +1,89 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Blocked Bloom filter with a 2 bit counter per entry, so keys can be removed. Each key uses k
+ * counters in one block of 256 counters. As with {@link CountingBloomFilter}, a counter which
+ * reaches 3 sticks there, since we no longer know how many keys use it.
+ */
+public class BlockedCountingBloomFilter extends BlockedBloomFilter {
+
+	private boolean warnOnRemoveFromEmpty;
+
+	public void setWarnOnRemoveFromEmpty() {
+		warnOnRemoveFromEmpty = true;
+	}
+
+	/**
+	 * @param sizeBytes The size of the filter in bytes.
+	 * @param k The number of hash functions.
+	 */
+	public BlockedCountingBloomFilter(int sizeBytes, int k) {
+		super(sizeBytes, k, 4);
+	}
+
+	/**
+	 * Create a filter with the given contents.
+	 * @param buf The serialized filter, as written by {@link #writeTo(java.io.OutputStream)}.
+	 */
+	public BlockedCountingBloomFilter(byte[] buf, int offset, int sizeBytes, int k) {
+		super(sizeBytes, k, 4);
+		readFrom(buf, offset);
+	}
+
+	@Override
+	public void addKey(byte[] key) {
+		if(k == 0) return;
+		long h2 = hash(key, SEED2);
+		int first = firstWord(hash(key, SEED1));
+		for(int i = 0; i < k; i++) {
+			h2 = nextProbe(h2);
+			int counter = entry(h2);
+			int word = first + (counter >> 5);
+			int shift = (counter & 31) << 1;
+			while(true) {
+				long w = words.get(word);
+				long v = (w >>> shift) & 3;
+				if(v == 3) break; // overflow
+				if(words.compareAndSet(word, w, w + (1L << shift))) break;
+			}
+		}
+	}
+
+	public void removeKey(byte[] key) {
+		if(k == 0) return;
+		long h2 = hash(key, SEED2);
+		int first = firstWord(hash(key, SEED1));
+		for(int i = 0; i < k; i++) {
+			h2 = nextProbe(h2);
+			int counter = entry(h2);
+			int word = first + (counter >> 5);
+			int shift = (counter & 31) << 1;
+			while(true) {
+				long w = words.get(word);
+				long v = (w >>> shift) & 3;
+				if(v == 0 && warnOnRemoveFromEmpty)
+					Logger.error(this, "Unsetting bit but already unset - probable double remove, can cause false negatives, is very bad!", new Exception("error"));
+				if(v == 0 || v == 3) break; // overflow / underflow
+				if(words.compareAndSet(word, w, w - (1L << shift))) break;
+			}
+		}
+	}
+
+	@Override
+	public boolean checkFilter(byte[] key) {
+		if(k == 0) return true;
+		long h2 = hash(key, SEED2);
+		int first = firstWord(hash(key, SEED1));
+		for(int i = 0; i < k; i++) {
+			h2 = nextProbe(h2);
+			int counter = entry(h2);
+			if(((words.get(first + (counter >> 5)) >>> ((counter & 31) << 1)) & 3) == 0)
+				return false;
+		}
+		return true;
+	}
+
+}
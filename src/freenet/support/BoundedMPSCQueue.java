@@ -0,0 +1,70 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer for many producers and a single consumer. Producers claim a
+ * slot with a CAS on the tail and then fill it; the consumer empties slots in order. Items
+ * from any one producer are consumed in the order they were offered. Never blocks: offer()
+ * fails if the buffer is full.
+ */
+final class BoundedMPSCQueue<T> {
+
+	private final AtomicReferenceArray<T> slots;
+	private final int mask;
+	/** Next slot to be claimed by a producer. */
+	private final AtomicLong tail = new AtomicLong();
+	/** Next slot to be read by the consumer. Only written by the consumer. */
+	private volatile long head;
+
+	/** @param capacity Rounded up to a power of 2. */
+	BoundedMPSCQueue(int capacity) {
+		if(capacity <= 0 || capacity > (1 << 30)) throw new IllegalArgumentException();
+		int length = 1;
+		while(length < capacity)
+			length <<= 1;
+		slots = new AtomicReferenceArray<T>(length);
+		mask = length - 1;
+	}
+
+	/** Called by any thread.
+	 * @return False if the buffer is full. */
+	boolean offer(T item) {
+		if(item == null) throw new NullPointerException();
+		while(true) {
+			long t = tail.get();
+			if(t - head > mask) return false;
+			if(tail.compareAndSet(t, t + 1)) {
+				slots.lazySet((int) t & mask, item);
+				return true;
+			}
+		}
+	}
+
+	/** Called only by the consumer thread.
+	 * @return The next item, or null if the buffer is empty, or the next producer has claimed
+	 * its slot but not yet filled it. */
+	T poll() {
+		long h = head;
+		int index = (int) h & mask;
+		T item = slots.get(index);
+		if(item == null) return null;
+		slots.lazySet(index, null);
+		head = h + 1;
+		return item;
+	}
+
+	/** @return Approximately how many items are waiting. */
+	int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+}
@@ -0,0 +1,65 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.List;
+
+/**
+ * A bounded cache from K to V. Unlike {@link LRUMap}, the cache enforces its own size limit,
+ * measured as the total weight of its entries (for example bytes), and tells an
+ * {@link EvictionListener} about entries it drops. Get an instance from {@link CacheMaps}.
+ * Does not support null keys or values. Implementations are thread-safe.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public interface CacheMap<K, V> {
+
+	/** Gives the weight of an entry, which must not change while it is in the cache. */
+	public interface Weigher<K, V> {
+		int weigh(K key, V value);
+	}
+
+	/** Called when an entry is evicted to keep the cache within its maximum weight. Not called
+	 * for entries which are removed or replaced explicitly, or by {@link CacheMap#clear()}.
+	 * Called without holding any lock in the cache, on the thread which caused the eviction. */
+	public interface EvictionListener<K, V> {
+		void onEviction(K key, V value);
+	}
+
+	/** Get a value, and record the access, so it will be kept in preference to entries which
+	 * are used less.
+	 * @return The value, or null if it is not in the cache. */
+	V get(K key);
+
+	/** Get a value without recording the access. */
+	V peek(K key);
+
+	/** Add or replace an entry, evicting others if necessary. The new entry may itself be
+	 * evicted immediately if the cache thinks it is less useful than what is already there.
+	 * @return The previous value, or null. */
+	V put(K key, V value);
+
+	/** @return The value removed, or null. */
+	V remove(K key);
+
+	boolean containsKey(K key);
+
+	/** @return The number of entries. */
+	int size();
+
+	/** @return The total weight of the entries. */
+	long weightedSize();
+
+	long getMaximumWeight();
+
+	/** Change the maximum weight, evicting entries if it has shrunk. */
+	void setMaximumWeight(long maximumWeight);
+
+	/** Remove everything, without telling the eviction listener. */
+	void clear();
+
+	/** @return A snapshot of the keys, in no particular order. */
+	List<K> keys();
+
+}
@@ -0,0 +1,50 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Comparator;
+
+import freenet.support.CacheMap.EvictionListener;
+import freenet.support.CacheMap.Weigher;
+
+/**
+ * Creates {@link CacheMap}s: a {@link ConcurrentCacheMap} normally, or a synchronized
+ * {@link LRUCacheMap} if node.concurrentCaches has been turned off. The setting only affects
+ * caches created after it is changed, so changing it needs a restart.
+ */
+public final class CacheMaps {
+
+	private CacheMaps() {}
+
+	private static volatile boolean concurrent = true;
+
+	public static boolean isConcurrent() {
+		return concurrent;
+	}
+
+	public static void setConcurrent(boolean concurrent) {
+		CacheMaps.concurrent = concurrent;
+	}
+
+	/** Create a cache limited to a number of entries. */
+	public static <K, V> CacheMap<K, V> create(long maximumSize, Comparator<K> comparator) {
+		return create(maximumSize, comparator, null, null);
+	}
+
+	/**
+	 * @param maximumWeight The maximum total weight of the entries.
+	 * @param comparator If non-null, the cache is safe with keys chosen by an attacker. See
+	 * {@link LRUMap#createSafeMap(Comparator)}.
+	 * @param weigher If null, each entry has weight 1.
+	 * @param listener May be null.
+	 */
+	public static <K, V> CacheMap<K, V> create(long maximumWeight, Comparator<K> comparator,
+			Weigher<? super K, ? super V> weigher, EvictionListener<? super K, ? super V> listener) {
+		if(concurrent)
+			return new ConcurrentCacheMap<K, V>(maximumWeight, comparator, weigher, listener);
+		else
+			return new LRUCacheMap<K, V>(maximumWeight, comparator, weigher, listener);
+	}
+
+}
@@ -0,0 +1,24 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Source of the current time, so that code which decays things over time can be tested against
+ * a clock the test controls, rather than against the wall clock.
+ */
+public interface Clock {
+
+	/** The wall clock. */
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/** The current time in milliseconds, with the same meaning as
+	 * System.currentTimeMillis(). */
+	public long currentTimeMillis();
+
+}
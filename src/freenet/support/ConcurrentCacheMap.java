@@ -0,0 +1,466 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent {@link CacheMap} with W-TinyLFU eviction.
+ *
+ * Reads don't take a lock: they look up the entry in a concurrent map, and record the access
+ * in a small striped buffer. Whichever thread fills a buffer applies the recorded accesses to
+ * the eviction policy in a batch, if it can get the lock without waiting; if the buffers are
+ * full, accesses are dropped, which only makes the policy slightly less accurate. Writes
+ * take the lock.
+ *
+ * New entries go into a small LRU window (1% of the maximum weight). Entries leaving the
+ * window are candidates for the main area, which is a segmented LRU: a probation segment, and
+ * a protected segment (80% of the main area) for entries used again while on probation. A
+ * candidate only replaces the least recently used entry on probation if a
+ * {@link FrequencySketch} says it has been used more often recently. So a burst of keys which
+ * are only used once, such as a big splitfile passing through the slashdot cache, can only
+ * flush the window, not the entries which are used repeatedly.
+ */
+public class ConcurrentCacheMap<K, V> implements CacheMap<K, V> {
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int DEAD = 3;
+
+	/** Size of each read buffer. Must be a power of 2. */
+	private static final int READ_BUFFER_SIZE = 32;
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	/** Drain the read buffers when one has this many accesses pending. */
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+	private static final int READ_BUFFER_STRIPES;
+	static {
+		int stripes = 1;
+		while(stripes < Runtime.getRuntime().availableProcessors())
+			stripes <<= 1;
+		READ_BUFFER_STRIPES = stripes;
+	}
+
+	private static final class Node<K, V> {
+		final K key;
+		volatile V value;
+		// The rest are guarded by the eviction lock.
+		int weight;
+		int queue;
+		Node<K, V> prev;
+		Node<K, V> next;
+
+		Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/** Doubly linked list with a sentinel, least recently used first. */
+	private static final class AccessQueue<K, V> {
+		private final Node<K, V> head = new Node<K, V>(null, null, 0);
+		private final int id;
+
+		AccessQueue(int id) {
+			this.id = id;
+			head.prev = head;
+			head.next = head;
+		}
+
+		Node<K, V> first() {
+			return head.next == head ? null : head.next;
+		}
+
+		Node<K, V> last() {
+			return head.prev == head ? null : head.prev;
+		}
+
+		void addLast(Node<K, V> node) {
+			node.queue = id;
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+		}
+
+		void remove(Node<K, V> node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+		}
+
+		void moveToLast(Node<K, V> node) {
+			remove(node);
+			addLast(node);
+		}
+
+		/** @return The entry before this one, or null. */
+		Node<K, V> previous(Node<K, V> node) {
+			return node.prev == head ? null : node.prev;
+		}
+
+		void clear() {
+			head.prev = head;
+			head.next = head;
+		}
+	}
+
+	/** Lossy buffer of accesses. Written by any thread, drained under the eviction lock. */
+	private static final class ReadBuffer<K, V> {
+		final AtomicReferenceArray<Node<K, V>> buffer = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+		final AtomicLong writeCount = new AtomicLong();
+		volatile long readCount;
+
+		/** @return The number of accesses pending, or -1 if the access was dropped. */
+		int offer(Node<K, V> node) {
+			long head = readCount;
+			long tail = writeCount.get();
+			int pending = (int) (tail - head);
+			if(pending >= READ_BUFFER_SIZE) return -1;
+			if(!writeCount.compareAndSet(tail, tail + 1)) return -1;
+			buffer.lazySet((int) tail & READ_BUFFER_MASK, node);
+			return pending + 1;
+		}
+	}
+
+	private final ConcurrentMap<K, Node<K, V>> data;
+	private final Weigher<? super K, ? super V> weigher;
+	private final EvictionListener<? super K, ? super V> listener;
+	private final ReadBuffer<K, V>[] readBuffers;
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	// Guarded by evictionLock.
+	private final AccessQueue<K, V> window = new AccessQueue<K, V>(WINDOW);
+	private final AccessQueue<K, V> probation = new AccessQueue<K, V>(PROBATION);
+	private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>(PROTECTED);
+	private final FrequencySketch sketch;
+	private long windowMaximum;
+	private long protectedMaximum;
+	private long windowWeight;
+	private long protectedWeight;
+
+	// Written under evictionLock.
+	private volatile long maximumWeight;
+	private volatile long weightedSize;
+	private volatile int size;
+
+	/**
+	 * @param comparator If non-null, use a sorted map, which is safe with keys chosen by an
+	 * attacker (no hash collision attacks), rather than a hash map.
+	 * @param weigher If null, every entry has weight 1.
+	 * @param listener May be null.
+	 */
+	public ConcurrentCacheMap(long maximumWeight, Comparator<K> comparator,
+			Weigher<? super K, ? super V> weigher, EvictionListener<? super K, ? super V> listener) {
+		if(maximumWeight < 0) throw new IllegalArgumentException();
+		this.data = comparator == null ? new ConcurrentHashMap<K, Node<K, V>>() :
+			new ConcurrentSkipListMap<K, Node<K, V>>(comparator);
+		this.weigher = weigher;
+		this.listener = listener;
+		@SuppressWarnings("unchecked")
+		ReadBuffer<K, V>[] buffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[READ_BUFFER_STRIPES];
+		readBuffers = buffers;
+		for(int i = 0; i < readBuffers.length; i++)
+			readBuffers[i] = new ReadBuffer<K, V>();
+		sketch = new FrequencySketch((int) Math.min(weigher == null ? maximumWeight : 64, 1024));
+		setMaximums(maximumWeight);
+	}
+
+	private void setMaximums(long maximumWeight) {
+		this.maximumWeight = maximumWeight;
+		windowMaximum = Math.max(1, maximumWeight / 100);
+		protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+	}
+
+	@Override
+	public V get(K key) {
+		Node<K, V> node = data.get(key);
+		if(node == null) return null;
+		V value = node.value;
+		recordAccess(node);
+		return value;
+	}
+
+	@Override
+	public V peek(K key) {
+		Node<K, V> node = data.get(key);
+		return node == null ? null : node.value;
+	}
+
+	private void recordAccess(Node<K, V> node) {
+		int stripe = (int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1);
+		int pending = readBuffers[stripe].offer(node);
+		if(pending == -1 || pending >= READ_BUFFER_DRAIN_THRESHOLD) {
+			if(evictionLock.tryLock()) {
+				try {
+					drainReadBuffers();
+				} finally {
+					evictionLock.unlock();
+				}
+			}
+		}
+	}
+
+	private void drainReadBuffers() {
+		for(ReadBuffer<K, V> buffer : readBuffers) {
+			long head = buffer.readCount;
+			long tail = buffer.writeCount.get();
+			for(; head < tail; head++) {
+				int index = (int) head & READ_BUFFER_MASK;
+				Node<K, V> node = buffer.buffer.get(index);
+				// The writer has claimed the slot but not filled it yet.
+				if(node == null) break;
+				buffer.buffer.lazySet(index, null);
+				onAccess(node);
+			}
+			buffer.readCount = head;
+		}
+	}
+
+	private void onAccess(Node<K, V> node) {
+		switch(node.queue) {
+		case WINDOW:
+			sketch.increment(node.key);
+			window.moveToLast(node);
+			break;
+		case PROBATION:
+			sketch.increment(node.key);
+			probation.remove(node);
+			protectedQueue.addLast(node);
+			protectedWeight += node.weight;
+			demoteFromProtected();
+			break;
+		case PROTECTED:
+			sketch.increment(node.key);
+			protectedQueue.moveToLast(node);
+			break;
+		default:
+			// Removed since the access was recorded.
+		}
+	}
+
+	private void demoteFromProtected() {
+		while(protectedWeight > protectedMaximum) {
+			Node<K, V> node = protectedQueue.first();
+			if(node == null) break;
+			protectedQueue.remove(node);
+			protectedWeight -= node.weight;
+			probation.addLast(node);
+		}
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if(value == null) throw new NullPointerException();
+		int weight = weigher == null ? 1 : weigher.weigh(key, value);
+		if(weight < 0) throw new IllegalArgumentException();
+		V ret = null;
+		List<Node<K, V>> evicted;
+		evictionLock.lock();
+		try {
+			drainReadBuffers();
+			Node<K, V> node = data.get(key);
+			if(node != null) {
+				ret = node.value;
+				node.value = value;
+				int delta = weight - node.weight;
+				node.weight = weight;
+				weightedSize += delta;
+				if(node.queue == WINDOW) windowWeight += delta;
+				else if(node.queue == PROTECTED) protectedWeight += delta;
+				onAccess(node);
+			} else {
+				node = new Node<K, V>(key, value, weight);
+				data.put(key, node);
+				size++;
+				if(size > sketch.capacity())
+					sketch.ensureCapacity(size * 2);
+				sketch.increment(key);
+				window.addLast(node);
+				windowWeight += weight;
+				weightedSize += weight;
+			}
+			evicted = evict();
+		} finally {
+			evictionLock.unlock();
+		}
+		notifyEvicted(evicted);
+		return ret;
+	}
+
+	/** Move entries which don't fit in the window to probation, and then evict entries until
+	 * we are within the maximum weight, using the frequency sketch to decide between each
+	 * candidate from the window and the victim at the head of probation. Caller must hold the
+	 * lock.
+	 * @return The evicted entries, or null. */
+	private List<Node<K, V>> evict() {
+		int candidates = 0;
+		while(windowWeight > windowMaximum) {
+			Node<K, V> node = window.first();
+			if(node == null) break;
+			window.remove(node);
+			windowWeight -= node.weight;
+			probation.addLast(node);
+			candidates++;
+		}
+		if(weightedSize <= maximumWeight) return null;
+		List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+		// The candidates are the last entries on probation, and we go backwards through them.
+		Node<K, V> candidate = candidates == 0 ? null : probation.last();
+		while(weightedSize > maximumWeight) {
+			Node<K, V> victim = probation.first();
+			if(victim == null) {
+				victim = protectedQueue.first();
+				if(victim == null) victim = window.first();
+				if(victim == null) break;
+				evicted.add(evictNode(victim));
+				continue;
+			}
+			if(candidate == null || candidate == victim) {
+				evicted.add(evictNode(victim));
+				candidate = null;
+				continue;
+			}
+			Node<K, V> next = --candidates == 0 ? null : probation.previous(candidate);
+			if(admit(candidate.key, victim.key)) {
+				if(next == victim) next = null;
+				evicted.add(evictNode(victim));
+			} else {
+				evicted.add(evictNode(candidate));
+			}
+			candidate = next;
+		}
+		return evicted;
+	}
+
+	/** TinyLFU: admit the candidate if it has been used more often than the victim. */
+	private boolean admit(K candidate, K victim) {
+		int candidateFrequency = sketch.frequency(candidate);
+		int victimFrequency = sketch.frequency(victim);
+		if(candidateFrequency > victimFrequency) return true;
+		// An attacker could keep a victim's frequency high by finding keys which collide with
+		// it in the sketch. Occasionally admit a warm candidate anyway so it can't be pinned.
+		return candidateFrequency >= 6 && (ThreadLocalRandom.current().nextInt() & 127) == 0;
+	}
+
+	private Node<K, V> evictNode(Node<K, V> node) {
+		unlink(node);
+		data.remove(node.key);
+		return node;
+	}
+
+	/** Remove the node from the policy. Caller must hold the lock. */
+	private void unlink(Node<K, V> node) {
+		switch(node.queue) {
+		case WINDOW:
+			window.remove(node);
+			windowWeight -= node.weight;
+			break;
+		case PROBATION:
+			probation.remove(node);
+			break;
+		case PROTECTED:
+			protectedQueue.remove(node);
+			protectedWeight -= node.weight;
+			break;
+		default:
+			return;
+		}
+		node.queue = DEAD;
+		weightedSize -= node.weight;
+		size--;
+	}
+
+	private void notifyEvicted(List<Node<K, V>> evicted) {
+		if(evicted == null || listener == null) return;
+		for(Node<K, V> node : evicted)
+			listener.onEviction(node.key, node.value);
+	}
+
+	@Override
+	public V remove(K key) {
+		evictionLock.lock();
+		try {
+			Node<K, V> node = data.remove(key);
+			if(node == null) return null;
+			unlink(node);
+			return node.value;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(K key) {
+		return data.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long weightedSize() {
+		return weightedSize;
+	}
+
+	@Override
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	@Override
+	public void setMaximumWeight(long maximumWeight) {
+		if(maximumWeight < 0) throw new IllegalArgumentException();
+		List<Node<K, V>> evicted;
+		evictionLock.lock();
+		try {
+			setMaximums(maximumWeight);
+			drainReadBuffers();
+			demoteFromProtected();
+			evicted = evict();
+		} finally {
+			evictionLock.unlock();
+		}
+		notifyEvicted(evicted);
+	}
+
+	@Override
+	public void clear() {
+		evictionLock.lock();
+		try {
+			drainReadBuffers();
+			for(Node<K, V> node : data.values())
+				node.queue = DEAD;
+			data.clear();
+			window.clear();
+			probation.clear();
+			protectedQueue.clear();
+			windowWeight = 0;
+			protectedWeight = 0;
+			weightedSize = 0;
+			size = 0;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	@Override
+	public List<K> keys() {
+		return new ArrayList<K>(data.keySet());
+	}
+
+}
@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -14,6 +15,12 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -25,7 +32,8 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -109,23 +117,69 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Logging threads only capture the fields of the message and add it to this lock-free
+	 * ring buffer. The WriterThread formats messages in batches, encodes them into a single
+	 * reusable buffer and writes each batch with one call. If the buffer is full, or more than
+	 * MAX_LIST_BYTES are waiting, new messages are dropped, and the writer reports how many.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final BoundedMPSCQueue<LogEvent> list;
+	/** Estimated memory used by messages in the list. */
+	protected final AtomicLong listBytes = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final Object closedSync = new Object();
+	private volatile Thread writerThread;
+	/** True while the WriterThread is parked waiting for messages. */
+	private volatile boolean writerWaiting;
+	private boolean needHashCode;
+	private boolean needThreadName;
+
+	/** A message waiting to be written. Either formatted later by the WriterThread, or raw bytes. */
+	protected static final class LogEvent {
+		final long time;
+		final Class<?> source;
+		final boolean hasObject;
+		final int hashCode;
+		final String threadName;
+		final LogLevel priority;
+		final String message;
+		final Throwable e;
+		final byte[] raw;
+		final long size;
+
+		LogEvent(long time, Class<?> source, boolean hasObject, int hashCode, String threadName,
+				LogLevel priority, String message, Throwable e) {
+			this.time = time;
+			this.source = source;
+			this.hasObject = hasObject;
+			this.hashCode = hashCode;
+			this.threadName = threadName;
+			this.priority = priority;
+			this.message = message;
+			this.e = e;
+			this.raw = null;
+			this.size = LINE_OVERHEAD + (message == null ? 0 : message.length() * 2) + (e == null ? 0 : 1024);
+		}
+
+		LogEvent(byte[] raw) {
+			this.time = 0;
+			this.source = null;
+			this.hasObject = false;
+			this.hashCode = 0;
+			this.threadName = null;
+			this.priority = null;
+			this.message = null;
+			this.e = null;
+			this.raw = raw;
+			this.size = LINE_OVERHEAD + raw.length;
+		}
+	}
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -145,10 +199,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = len / 4;
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -238,7 +290,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+
+	/** Write the buffer when it gets this big, even if there are more messages waiting. */
+	private static final int BATCH_BYTES = 256 * 1024;
 
 	class WriterThread extends Thread {
 		WriterThread() {
@@ -249,7 +304,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		@SuppressWarnings("fallthrough")
 		public void run() {
 			File currentFilename = null;
-			byte[] o = null;
 			long thisTime;
 			long lastTime = -1;
 			long startTime;
@@ -299,10 +353,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				nextHour = gc.getTimeInMillis();
 			}
 			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -321,66 +371,31 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
+					boolean died = closed;
+					long pending = listBytes.get();
+					if(!died && (pending == 0 || pending < LIST_WRITE_THRESHOLD) && droppedMessages.get() == 0) {
+						// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
+						long wait;
+						if(pending == 0) {
+							timeWaitingForSync = -1;
+							wait = 500;
+						} else {
+							if(timeWaitingForSync == -1)
+								timeWaitingForSync = thisTime;
+							wait = timeWaitingForSync + flushTime - thisTime;
 						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+						if(wait > 0) {
+							// Wait no more than 500ms since the CloserThread might be waiting for closedFinished,
+							// and we may need to rotate the log.
+							writerWaiting = true;
+							if(listBytes.get() == pending && !closed)
+								LockSupport.parkNanos(MILLISECONDS.toNanos(Math.min(500L, wait)));
+							writerWaiting = false;
+							continue;
 						}
 					}
-					if(timeoutFlush || died) {
-						// Flush to disk 
-						myWrite(logStream, null);
-				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
-					}
+					timeWaitingForSync = -1;
+					writeBatches();
 					if(died) {
 						try {
 							logStream.close();
@@ -394,16 +409,12 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(closedSync) {
 							closedFinished = true;
-							list.notifyAll();
+							closedSync.notifyAll();
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -417,6 +428,79 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		private final StringBuilder sb = new StringBuilder(1024);
+		private final CharsetEncoder encoder = Charset.forName(ENCODING).newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES + 65536);
+
+		/** Format everything in the list, write it in batches, and flush. */
+		private void writeBatches() {
+			long dropped = droppedMessages.getAndSet(0);
+			if(dropped > 0) {
+				sb.setLength(0);
+				sb.append("GRRR: ERROR: Logging too fast, dropped ").append(dropped).append(" entries, ");
+				sb.append(listBytes.get()).append(" bytes in memory\n");
+				encode();
+			}
+			LogEvent event;
+			while((event = list.poll()) != null) {
+				listBytes.addAndGet(-event.size);
+				if(event.raw != null) {
+					ensureSpace(event.raw.length);
+					batch.put(event.raw);
+				} else {
+					sb.setLength(0);
+					format(event, sb);
+					encode();
+				}
+				if(batch.position() >= BATCH_BYTES)
+					writeBatch();
+			}
+			writeBatch();
+			// Flush to disk
+			myWrite(logStream, null, 0);
+			if(altLogStream != null)
+				myWrite(altLogStream, null, 0);
+		}
+
+		/** Append the contents of sb to the batch. */
+		private void encode() {
+			CharBuffer in = CharBuffer.wrap(sb);
+			encoder.reset();
+			while(true) {
+				CoderResult result = encoder.encode(in, batch, true);
+				if(result.isOverflow()) {
+					ensureSpace(Math.max(65536, (int) (in.remaining() * encoder.maxBytesPerChar())));
+					continue;
+				}
+				result = encoder.flush(batch);
+				if(result.isOverflow()) {
+					ensureSpace(65536);
+					continue;
+				}
+				return;
+			}
+		}
+
+		private void ensureSpace(int bytes) {
+			if(batch.remaining() >= bytes) return;
+			ByteBuffer bigger = ByteBuffer.allocate(batch.position() + Math.max(bytes, batch.capacity()));
+			batch.flip();
+			bigger.put(batch);
+			batch = bigger;
+		}
+
+		private void writeBatch() {
+			if(batch.position() == 0) return;
+			myWrite(logStream, batch.array(), batch.position());
+			if(altLogStream != null)
+				myWrite(altLogStream, batch.array(), batch.position());
+			batch.clear();
+			if(batch.capacity() > 2 * BATCH_BYTES)
+				// A huge message, don't keep the memory.
+				batch = ByteBuffer.allocate(BATCH_BYTES + 65536);
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -462,14 +546,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		/**
 		 * @param b
 		 *            the bytes to write, null to flush
+		 * @param length
+		 *            the number of bytes to write from the start of b
 		 */
-		protected void myWrite(OutputStream os, byte[] b) {
+		protected void myWrite(OutputStream os, byte[] b, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, 0, length);
 					else
 						os.flush();
 				} catch (IOException e) {
@@ -504,10 +590,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 						o = new GZIPOutputStream(o);
 						// gzip block size is 32kB
 						o = new BufferedOutputStream(o, 65536); // to gzipper
-					} else {
-						// buffer -> file
-						o = new BufferedOutputStream(o, 512*1024);
 					}
+					// Else the WriterThread writes big batches directly to the file.
 					o.write(BOM);
 					return o;
 				} catch (IOException e) {
@@ -538,7 +622,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
+	/** Only used by the WriterThread. */
+	private final Date myDate = new Date();
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
@@ -806,6 +891,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 		WriterThread wt = new WriterThread();
 		wt.setDaemon(true);
+		writerThread = wt;
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
 		wt.start();
@@ -830,7 +916,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (rotate) {
 			this.baseFilename = baseFilename;
 		} else {
-			logStream = new BufferedOutputStream(new FileOutputStream(baseFilename, !logOverwrite), 65536);
+			logStream = new FileOutputStream(baseFilename, !logOverwrite);
 		}
 	}
 	
@@ -854,7 +940,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		list = new BoundedMPSCQueue<LogEvent>(Math.max(1, MAX_LIST_SIZE));
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -875,6 +961,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			int type = numberOf(fi);
 			if(type == UNAME)
 				getUName();
+			if(type == HASHCODE)
+				needHashCode = true;
+			if(type == THREAD)
+				needThreadName = true;
 			if (!comment && (type != 0)) {
 				if (sb.length() > 0) {
 					strVec.add(sb.toString());
@@ -924,7 +1014,15 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+		// Capture what may change before the WriterThread gets to it, and leave the rest.
+		enqueue(new LogEvent(System.currentTimeMillis(), c, o != null,
+				(needHashCode && o != null) ? o.hashCode() : 0,
+				needThreadName ? Thread.currentThread().getName() : null,
+				priority, msg, e));
+	}
+
+	/** Called by the WriterThread. */
+	private void format(LogEvent event, StringBuilder sb) {
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -933,29 +1031,26 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					myDate.setTime(event.time);
+					sb.append(df.format(myDate));
 					break;
 				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
+					sb.append(event.source == null ? "<none>" : event.source.getName());
 					break;
 				case HASHCODE :
 					sb.append(
-						o == null
+						!event.hasObject
 							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+							: Integer.toHexString(event.hashCode));
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(event.threadName);
 					break;
 				case PRIORITY :
-					sb.append(priority.name());
+					sb.append(event.priority.name());
 					break;
 				case MESSAGE :
-					sb.append(msg);
+					sb.append(event.message);
 					break;
 				case UNAME :
 					sb.append(uname);
@@ -965,6 +1060,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		sb.append('\n');
 
 		// Write stacktrace if available
+		Throwable e = event.e;
 		for(int j=0;j<20 && e != null;j++) {
 			sb.append(e.toString());
 			
@@ -987,71 +1083,34 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			if(cause != e) e = cause;
 			else break;
 		}
-
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
-		}
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
 	
 	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
+		enqueue(new LogEvent(b));
+	}
+
+	private void enqueue(LogEvent event) {
+		long pending = listBytes.addAndGet(event.size);
+		if(pending > MAX_LIST_BYTES || !list.offer(event)) {
+			listBytes.addAndGet(-event.size);
+			droppedMessages.incrementAndGet();
+			wakeWriter();
+			return;
 		}
+		if(writerWaiting && (pending == event.size || pending >= LIST_WRITE_THRESHOLD))
+			wakeWriter();
+	}
+
+	private void wakeWriter() {
+		Thread t = writerThread;
+		if(t != null) LockSupport.unpark(t);
 	}
 
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+		return listBytes.get();
 	}
 
 	public static int numberOf(char c) {
@@ -1078,19 +1137,20 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		wakeWriter();
 	}
 
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
+			close();
+			synchronized(closedSync) {
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						closedSync.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -1219,7 +1279,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		return redirectStdOut || redirectStdErr;
 	}
 
-	public synchronized void setMaxBacklogNotBusy(long val) {
+	public void setMaxBacklogNotBusy(long val) {
 		flushTime = val;
+		wakeWriter();
 	}
 }
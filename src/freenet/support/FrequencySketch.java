@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often each key has been used recently,
+ * for the admission policy in {@link ConcurrentCacheMap} (TinyLFU). When the number of
+ * increments reaches ten times the capacity, all counters are halved, so the counts favour
+ * recent use. Not thread-safe.
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private long[] table;
+	private int tableMask;
+	private int sampleSize;
+	private int size;
+
+	FrequencySketch(int capacity) {
+		ensureCapacity(capacity);
+	}
+
+	/** Grow the table to suit a cache of this many entries. Forgets all counts if it grows. */
+	void ensureCapacity(int capacity) {
+		int length = 1;
+		while(length < capacity && length < (1 << 30))
+			length <<= 1;
+		if(table != null && table.length >= length) return;
+		table = new long[length];
+		tableMask = length - 1;
+		sampleSize = length >= Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : 10 * length;
+		size = 0;
+	}
+
+	int capacity() {
+		return table.length;
+	}
+
+	/** @return The estimated number of recent uses, at most 15. */
+	int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int freq = 15;
+		for(int i = 0; i < 4; i++) {
+			int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xF);
+			if(count < freq) freq = count;
+		}
+		return freq;
+	}
+
+	void increment(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for(int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int offset = (start + i) << 2;
+			long mask = 0xFL << offset;
+			if((table[index] & mask) != mask) {
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+		if(added && ++size == sampleSize)
+			reset();
+	}
+
+	/** Halve every counter. */
+	private void reset() {
+		int odd = 0;
+		for(int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size >>> 1) - (odd >>> 2);
+	}
+
+	/** @return The index of the word holding the i'th counter for this hash. */
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & tableMask;
+	}
+
+	/** Hash codes such as Integer's are not well distributed. */
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+}
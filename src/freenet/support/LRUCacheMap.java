@@ -0,0 +1,161 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * {@link CacheMap} implemented as a strict LRU on top of {@link LRUMap}, with a single lock.
+ * This is how the caches worked before {@link ConcurrentCacheMap}, and is used when
+ * node.concurrentCaches is off.
+ */
+public class LRUCacheMap<K, V> implements CacheMap<K, V> {
+
+	private static class Entry<V> {
+		final V value;
+		final int weight;
+
+		Entry(V value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private final LRUMap<K, Entry<V>> map;
+	private final Weigher<? super K, ? super V> weigher;
+	private final EvictionListener<? super K, ? super V> listener;
+	private long maximumWeight;
+	private long weight;
+
+	/**
+	 * @param comparator If non-null, use a map which is safe with keys chosen by an attacker,
+	 * see {@link LRUMap#createSafeMap(Comparator)}.
+	 * @param weigher If null, every entry has weight 1.
+	 * @param listener May be null.
+	 */
+	public LRUCacheMap(long maximumWeight, Comparator<K> comparator,
+			Weigher<? super K, ? super V> weigher, EvictionListener<? super K, ? super V> listener) {
+		if(maximumWeight < 0) throw new IllegalArgumentException();
+		this.maximumWeight = maximumWeight;
+		this.map = comparator == null ? new LRUMap<K, Entry<V>>() : LRUMap.<K, Entry<V>>createSafeMap(comparator);
+		this.weigher = weigher;
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized V get(K key) {
+		Entry<V> e = map.get(key);
+		if(e == null) return null;
+		map.push(key, e);
+		return e.value;
+	}
+
+	@Override
+	public synchronized V peek(K key) {
+		Entry<V> e = map.get(key);
+		return e == null ? null : e.value;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if(value == null) throw new NullPointerException();
+		int w = weigher == null ? 1 : weigher.weigh(key, value);
+		List<Object> evicted;
+		V ret = null;
+		synchronized(this) {
+			Entry<V> old = map.push(key, new Entry<V>(value, w));
+			if(old != null) {
+				weight -= old.weight;
+				ret = old.value;
+			}
+			weight += w;
+			evicted = evict();
+		}
+		notifyEvicted(evicted);
+		return ret;
+	}
+
+	/** Evict from the LRU end until we are within the limit. Caller must hold the lock.
+	 * @return Alternating keys and values evicted, or null. */
+	private List<Object> evict() {
+		List<Object> evicted = null;
+		while(weight > maximumWeight && !map.isEmpty()) {
+			K key = map.peekKey();
+			Entry<V> e = map.popValue();
+			weight -= e.weight;
+			if(listener != null) {
+				if(evicted == null) evicted = new ArrayList<Object>();
+				evicted.add(key);
+				evicted.add(e.value);
+			}
+		}
+		return evicted;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void notifyEvicted(List<Object> evicted) {
+		if(evicted == null) return;
+		for(int i = 0; i < evicted.size(); i += 2)
+			listener.onEviction((K) evicted.get(i), (V) evicted.get(i + 1));
+	}
+
+	@Override
+	public synchronized V remove(K key) {
+		Entry<V> e = map.get(key);
+		if(e == null) return null;
+		map.removeKey(key);
+		weight -= e.weight;
+		return e.value;
+	}
+
+	@Override
+	public synchronized boolean containsKey(K key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public synchronized int size() {
+		return map.size();
+	}
+
+	@Override
+	public synchronized long weightedSize() {
+		return weight;
+	}
+
+	@Override
+	public synchronized long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	@Override
+	public void setMaximumWeight(long maximumWeight) {
+		if(maximumWeight < 0) throw new IllegalArgumentException();
+		List<Object> evicted;
+		synchronized(this) {
+			this.maximumWeight = maximumWeight;
+			evicted = evict();
+		}
+		notifyEvicted(evicted);
+	}
+
+	@Override
+	public synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	@Override
+	public synchronized List<K> keys() {
+		List<K> keys = new ArrayList<K>(map.size());
+		Enumeration<K> e = map.keys();
+		while(e.hasMoreElements())
+			keys.add(e.nextElement());
+		return keys;
+	}
+
+}
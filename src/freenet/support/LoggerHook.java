@@ -6,7 +6,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class LoggerHook extends Logger {
 
-	protected LogLevel threshold;
+	protected volatile LogLevel threshold;
 
 	public static final class DetailedThreshold {
 		final String section;
@@ -25,7 +25,7 @@ public abstract class LoggerHook extends Logger {
 		this.threshold = parseThreshold(thresh.toUpperCase());
 	}
 
-	public DetailedThreshold[] detailedThresholds = new DetailedThreshold[0];
+	public volatile DetailedThreshold[] detailedThresholds = new DetailedThreshold[0];
 	private CopyOnWriteArrayList<LogThresholdCallback> thresholdsCallbacks = new CopyOnWriteArrayList<LogThresholdCallback>();
 
 	/**
@@ -152,17 +152,12 @@ public abstract class LoggerHook extends Logger {
 		}
 		DetailedThreshold[] newThresholds = new DetailedThreshold[stuff.size()];
 		stuff.toArray(newThresholds);
-		synchronized(this) {
-			detailedThresholds = newThresholds;
-		}
+		detailedThresholds = newThresholds;
 		notifyLogThresholdCallbacks();
 	}
 
 	public String getDetailedThresholds() {
-		DetailedThreshold[] thresh = null;
-		synchronized(this) {
-			thresh = detailedThresholds;
-		}
+		DetailedThreshold[] thresh = detailedThresholds;
 		if (thresh.length == 0)
 			return "";
 		StringBuilder sb = new StringBuilder();
@@ -188,12 +183,9 @@ public abstract class LoggerHook extends Logger {
 
 	@Override
 	public boolean instanceShouldLog(LogLevel priority, Class<?> c) {
-		DetailedThreshold[] thresholds;
-		LogLevel thresh;
-		synchronized(this) {
-			thresholds = detailedThresholds;
-			thresh = threshold;
-		}
+		// Both are replaced rather than modified, so no need to lock.
+		DetailedThreshold[] thresholds = detailedThresholds;
+		LogLevel thresh = threshold;
 		if ((c != null) && (thresholds.length > 0)) {
 			String cname = c.getName();
 				for(DetailedThreshold dt : thresholds) {
@@ -49,6 +49,7 @@ public class PrioritizedTicker implements Ticker, Runnable {
 	private final HashMap<Job, Long> timedJobsQueued;
 	final NativeThread myThread;
 	final Executor executor;
+	private boolean started;
 	static final int MAX_SLEEP_TIME = 200;
 	
 	public PrioritizedTicker(Executor executor, int portNumber) {
@@ -59,7 +60,13 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		myThread.setDaemon(true);
 	}
 	
+	/** Start the ticker thread. Does nothing if already started, since several nodes in a
+	 * simulation may share a ticker. */
 	public void start() {
+		synchronized(this) {
+			if(started) return;
+			started = true;
+		}
 		Logger.normal(this, "Starting Ticker");
 		System.out.println("Starting Ticker");
 		myThread.start();
@@ -2,11 +2,14 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
@@ -337,6 +340,58 @@ public class BucketTools {
 		}
 	}
 
+	/** Copy part of a bucket to the given OutputStream. Skips to the start of the range rather
+	 * than reading through it, so for file-backed buckets this is a seek.
+	 * @param offset The first byte to copy.
+	 * @param length The number of bytes to copy.
+	 * @throws IOException If there was an error reading from the bucket or writing to the stream,
+	 * or if the bucket is too short. */
+	public static void copyTo(Bucket data, OutputStream os, long offset, long length) throws IOException {
+		if(length == 0) return;
+		InputStream is = data.getInputStreamUnbuffered();
+		try {
+			FileUtil.skipFully(is, offset);
+			FileUtil.copy(is, os, length);
+		} finally {
+			is.close();
+			os.flush();
+		}
+	}
+
+	/** Copy part of a file to a channel using {@link FileChannel#transferTo(long, long,
+	 * WritableByteChannel)}, which allows the kernel to send the data without copying it
+	 * through the Java heap. The channel must be in blocking mode. */
+	public static void transferTo(File file, WritableByteChannel channel, long offset, long length) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel fc = fis.getChannel();
+			if(offset + length > fc.size())
+				throw new EOFException("File too short: "+fc.size()+" but need "+(offset+length));
+			while(length > 0) {
+				long moved = fc.transferTo(offset, length, channel);
+				if(moved <= 0)
+					throw new IOException("Unable to transfer "+length+" bytes from "+file);
+				offset += moved;
+				length -= moved;
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
+	/** @return The file containing the plaintext of the bucket, or null if it is not backed
+	 * directly by a file (e.g. it is in RAM or encrypted). Looks through NoFreeBucket and
+	 * TempBucket wrappers. */
+	public static File getFile(Bucket data) {
+		if(data instanceof NoFreeBucket)
+			data = ((NoFreeBucket)data).proxy;
+		if(data instanceof TempBucketFactory.TempBucket)
+			data = ((TempBucketFactory.TempBucket)data).getUnderlying();
+		if(data instanceof BaseFileBucket)
+			return ((BaseFileBucket)data).getFile();
+		return null;
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
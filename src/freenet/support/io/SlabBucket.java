@@ -0,0 +1,213 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * An in-RAM bucket stored in slabs from a SlabPool. Unlike an ArrayBucket it doesn't copy the
+ * data as it grows, and freeing it returns the slabs to the pool. Each slab is at least as big
+ * as the data before it, up to SlabPool.SLAB_SIZE, so at most about half the space is wasted.
+ * Thread-safe, so the data can be copied elsewhere while it is still being written.
+ */
+class SlabBucket implements RandomAccessBucket {
+
+	private final SlabPool pool;
+	private final long sizeHint;
+	private SlabList slabs;
+	private long size;
+	private boolean readOnly;
+	private boolean freed;
+	/** Set once the slabs have been handed over to a SlabRandomAccessBuffer. */
+	private boolean converted;
+
+	/**
+	 * @param sizeHint The expected size, or -1. Only used to choose the size of the first slab.
+	 */
+	SlabBucket(SlabPool pool, long sizeHint) {
+		this.pool = pool;
+		this.sizeHint = sizeHint;
+		slabs = new SlabList(pool);
+	}
+
+	private void checkOpen() throws IOException {
+		if(freed) throw new IOException("Already freed");
+		if(converted) throw new IOException("Converted to a RandomAccessBuffer");
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if(readOnly) throw new IOException("Read only");
+		checkOpen();
+		// Overwrite, like ArrayBucket.
+		slabs.release();
+		size = 0;
+		return new SlabOutputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStreamUnbuffered() throws IOException {
+		return getOutputStream();
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		checkOpen();
+		return new SlabInputStream();
+	}
+
+	@Override
+	public InputStream getInputStreamUnbuffered() throws IOException {
+		return getInputStream();
+	}
+
+	private class SlabOutputStream extends OutputStream {
+
+		private final byte[] oneByte = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			oneByte[0] = (byte) b;
+			write(oneByte, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			synchronized(SlabBucket.this) {
+				if(readOnly) throw new IOException("Read only");
+				checkOpen();
+				long newSize = size + len;
+				while(slabs.capacity() < newSize) {
+					long capacity = slabs.capacity();
+					long next = capacity == 0 ? Math.max(sizeHint, newSize) : Math.max(capacity, newSize - capacity);
+					slabs.grow(SlabPool.slabSize(next), false);
+				}
+				slabs.write(size, buf, off, len);
+				size = newSize;
+			}
+		}
+
+	}
+
+	private class SlabInputStream extends InputStream {
+
+		private long pos;
+		private final byte[] oneByte = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			if(read(oneByte, 0, 1) < 0) return -1;
+			return oneByte[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			int read = SlabBucket.this.read(pos, buf, off, len);
+			if(read > 0) pos += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			synchronized(SlabBucket.this) {
+				checkOpen();
+				if(n <= 0) return 0;
+				n = Math.min(n, size - pos);
+				pos += n;
+				return n;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized(SlabBucket.this) {
+				return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size - pos));
+			}
+		}
+
+	}
+
+	/**
+	 * Read from the given offset.
+	 * @return The number of bytes read, or -1 if the offset is at or after the end.
+	 */
+	synchronized int read(long offset, byte[] buf, int off, int len) throws IOException {
+		checkOpen();
+		if(offset >= size) return len == 0 ? 0 : -1;
+		len = (int) Math.min(len, size - offset);
+		slabs.read(offset, buf, off, len);
+		return len;
+	}
+
+	@Override
+	public String getName() {
+		return "SlabBucket";
+	}
+
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	@Override
+	public void free() {
+		synchronized(this) {
+			if(freed) return;
+			freed = true;
+			if(converted) return;
+		}
+		slabs.release();
+	}
+
+	/** @return The number of slabs used. */
+	synchronized int slabCount() {
+		return slabs.slabCount();
+	}
+
+	@Override
+	public RandomAccessBucket createShadow() {
+		return null;
+	}
+
+	@Override
+	public void onResume(ClientContext context) {
+		// Do nothing.
+	}
+
+	@Override
+	public void storeTo(DataOutputStream dos) {
+		// Should not be used for persistent requests.
+		throw new UnsupportedOperationException();
+	}
+
+	/** Hands the slabs over to the buffer: freeing the buffer frees the data, and the bucket
+	 * can't be used any more. */
+	@Override
+	public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+		checkOpen();
+		readOnly = true;
+		converted = true;
+		SlabRandomAccessBuffer raf = new SlabRandomAccessBuffer(slabs, size, true);
+		slabs = new SlabList(pool);
+		return raf;
+	}
+
+}
@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A run of slabs from a SlabPool, addressed as one range of bytes. The slabs may be of
+ * different sizes. Not thread-safe: the owner locks.
+ */
+final class SlabList {
+
+	private final SlabPool pool;
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	/** Offset of the first byte of each slab. */
+	private long[] starts = new long[4];
+	private long capacity;
+
+	SlabList(SlabPool pool) {
+		this.pool = pool;
+	}
+
+	/** Add a slab at the end. */
+	void grow(int size, boolean zero) {
+		if(slabs.size() == starts.length)
+			starts = Arrays.copyOf(starts, starts.length * 2);
+		starts[slabs.size()] = capacity;
+		ByteBuffer slab = pool.allocate(size, zero);
+		slabs.add(slab);
+		capacity += slab.capacity();
+	}
+
+	/** Add slabs until we can hold at least this many bytes. The last slab is only as big as
+	 * it needs to be. */
+	void growTo(long size, boolean zero) {
+		while(capacity < size)
+			grow(SlabPool.slabSize(size - capacity), zero);
+	}
+
+	long capacity() {
+		return capacity;
+	}
+
+	int slabCount() {
+		return slabs.size();
+	}
+
+	private int find(long offset) {
+		int i = Arrays.binarySearch(starts, 0, slabs.size(), offset);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	void read(long offset, byte[] buf, int off, int len) {
+		int i = find(offset);
+		while(len > 0) {
+			ByteBuffer slab = slabs.get(i);
+			int pos = (int) (offset - starts[i]);
+			int n = Math.min(len, slab.capacity() - pos);
+			slab.position(pos);
+			slab.get(buf, off, n);
+			offset += n;
+			off += n;
+			len -= n;
+			i++;
+		}
+	}
+
+	void write(long offset, byte[] buf, int off, int len) {
+		int i = find(offset);
+		while(len > 0) {
+			ByteBuffer slab = slabs.get(i);
+			int pos = (int) (offset - starts[i]);
+			int n = Math.min(len, slab.capacity() - pos);
+			slab.position(pos);
+			slab.put(buf, off, n);
+			offset += n;
+			off += n;
+			len -= n;
+			i++;
+		}
+	}
+
+	/** Give the slabs back to the pool. */
+	void release() {
+		pool.release(slabs);
+		capacity = 0;
+	}
+
+}
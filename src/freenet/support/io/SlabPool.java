@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import freenet.support.Logger;
+
+/**
+ * Fixed-size chunks of memory for in-RAM temp buckets, normally direct ByteBuffer's, i.e. off
+ * the Java heap, so that lots of short-lived RAM buckets don't keep the garbage collector busy.
+ * Slabs are recycled rather than freed. There are a few size classes, from MIN_SLAB_SIZE to
+ * SLAB_SIZE, so a small bucket doesn't take a whole slab.
+ *
+ * If we can't allocate any more direct memory (-XX:MaxDirectMemorySize), we fall back to slabs
+ * on the heap.
+ */
+final class SlabPool {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SlabPool.class);
+	}
+
+	/** The largest, and usual, slab size. */
+	static final int SLAB_SIZE = 32 * 1024;
+	static final int MIN_SLAB_SIZE = 1024;
+	private static final int CLASSES = Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_SLAB_SIZE) + 1;
+
+	private final boolean direct;
+	/** Free slabs by size class. */
+	private final ArrayDeque<ByteBuffer>[] free;
+	/** Keep at most this many bytes of free slabs. */
+	private long maxFreeBytes;
+	private long freeBytes;
+	private long bytesInUse;
+	private boolean directFailed;
+
+	@SuppressWarnings("unchecked")
+	SlabPool(long maxFreeBytes, boolean direct) {
+		this.maxFreeBytes = maxFreeBytes;
+		this.direct = direct;
+		free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASSES];
+		for(int i = 0; i < CLASSES; i++)
+			free[i] = new ArrayDeque<ByteBuffer>();
+	}
+
+	/** @return The slab size to use for the given number of bytes, at most SLAB_SIZE. */
+	static int slabSize(long bytes) {
+		if(bytes >= SLAB_SIZE) return SLAB_SIZE;
+		if(bytes <= MIN_SLAB_SIZE) return MIN_SLAB_SIZE;
+		return Integer.highestOneBit((int) bytes - 1) << 1;
+	}
+
+	private static int sizeClass(int size) {
+		return Integer.numberOfTrailingZeros(size / MIN_SLAB_SIZE);
+	}
+
+	/**
+	 * Get a slab.
+	 * @param size The slab size, as returned by slabSize().
+	 * @param zero If true, the slab is filled with zeros, otherwise it may contain old data.
+	 * @return A slab with position 0 and limit equal to its capacity.
+	 */
+	ByteBuffer allocate(int size, boolean zero) {
+		ByteBuffer slab;
+		synchronized(this) {
+			slab = free[sizeClass(size)].pollFirst();
+			if(slab != null) freeBytes -= size;
+			bytesInUse += size;
+		}
+		if(slab == null)
+			return create(size);
+		slab.clear();
+		if(zero) {
+			while(slab.remaining() >= 8)
+				slab.putLong(0);
+			while(slab.hasRemaining())
+				slab.put((byte) 0);
+			slab.clear();
+		}
+		return slab;
+	}
+
+	private ByteBuffer create(int size) {
+		if(direct && !directFailed) {
+			try {
+				return ByteBuffer.allocateDirect(size);
+			} catch (OutOfMemoryError e) {
+				// Direct memory limit, not the heap.
+				synchronized(this) {
+					directFailed = true;
+				}
+				Logger.error(this, "Unable to allocate direct memory for RAM buckets, using the heap: "+e);
+			}
+		}
+		return ByteBuffer.allocate(size);
+	}
+
+	void release(ByteBuffer slab) {
+		int size = slab.capacity();
+		synchronized(this) {
+			bytesInUse -= size;
+			if(freeBytes + size > maxFreeBytes) return; // Let the GC have it.
+			freeBytes += size;
+			free[sizeClass(size)].addFirst(slab);
+		}
+	}
+
+	void release(List<ByteBuffer> slabs) {
+		for(ByteBuffer slab : slabs)
+			release(slab);
+		slabs.clear();
+	}
+
+	synchronized void setMaxFreeBytes(long max) {
+		maxFreeBytes = max;
+		for(int i = CLASSES - 1; i >= 0 && freeBytes > maxFreeBytes; i--) {
+			while(freeBytes > maxFreeBytes && !free[i].isEmpty()) {
+				free[i].pollLast();
+				freeBytes -= MIN_SLAB_SIZE << i;
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Keeping up to "+maxFreeBytes+" bytes of free slabs, "+freeBytes+" now");
+	}
+
+	/** @return Bytes of slabs in use by buckets. Includes the unused end of each bucket's last
+	 * slab, so is a little more than the bytes in the buckets. */
+	synchronized long bytesInUse() {
+		return bytesInUse;
+	}
+
+	/** @return Bytes of slabs waiting to be reused. */
+	synchronized long freeBytes() {
+		return freeBytes;
+	}
+
+	/** @return True if the slabs are off the Java heap. */
+	synchronized boolean isDirect() {
+		return direct && !directFailed;
+	}
+
+}
@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+/** A fixed-size in-RAM buffer stored in slabs from a SlabPool. Freeing it returns the slabs. */
+class SlabRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+	private final SlabList slabs;
+	private final long size;
+	private boolean readOnly;
+	private boolean closed;
+	private boolean freed;
+
+	/** Create a buffer filled with zeros. */
+	SlabRandomAccessBuffer(SlabPool pool, long size) {
+		this.size = size;
+		slabs = new SlabList(pool);
+		slabs.growTo(size, true);
+	}
+
+	SlabRandomAccessBuffer(SlabPool pool, byte[] initialContents, int offset, int size, boolean readOnly) {
+		this.size = size;
+		this.readOnly = readOnly;
+		slabs = new SlabList(pool);
+		slabs.growTo(size, false);
+		slabs.write(0, initialContents, offset, size);
+	}
+
+	/** Take over the slabs from a SlabBucket. */
+	SlabRandomAccessBuffer(SlabList slabs, long size, boolean readOnly) {
+		this.slabs = slabs;
+		this.size = size;
+		this.readOnly = readOnly;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		if(closed || freed) throw new IOException("Closed");
+		if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+		if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+		slabs.read(fileOffset, buf, bufOffset, length);
+	}
+
+	@Override
+	public synchronized void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		if(closed || freed) throw new IOException("Closed");
+		if(fileOffset < 0) throw new IllegalArgumentException("Cannot write before zero");
+		if(fileOffset + length > size) throw new IOException("Cannot write after end: trying to write from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+		if(readOnly) throw new IOException("Read-only");
+		slabs.write(fileOffset, buf, bufOffset, length);
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+	}
+
+	@Override
+	public void free() {
+		synchronized(this) {
+			if(freed) return;
+			freed = true;
+		}
+		slabs.release();
+	}
+
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public RAFLock lockOpen() {
+		return new RAFLock() {
+
+			@Override
+			protected void innerUnlock() {
+				// Do nothing. Always open.
+			}
+
+		};
+	}
+
+	@Override
+	public void onResume(ClientContext context) {
+		// Do nothing.
+	}
+
+	@Override
+	public void storeTo(DataOutputStream dos) {
+		throw new UnsupportedOperationException();
+	}
+
+	// Default hashCode() and equals() are correct for this type.
+
+}
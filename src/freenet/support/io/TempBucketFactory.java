@@ -41,11 +41,11 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- SlabBuckets, off the Java heap (or ArrayBuckets if offHeap is disabled)
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * RAM buckets are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
@@ -54,6 +54,8 @@ import freenet.support.api.RandomAccessBucket;
  * Currently they are two factors considered for a migration:
  *	- if they are long-lived or not (@see RAMBUCKET_MAX_AGE)
  *	- if their size is over RAMBUCKET_CONVERSION_FACTOR*maxRAMBucketSize
+ * SlabBuckets which grow over RAMBUCKET_BACKGROUND_FACTOR*maxRAMBucketSize are copied to disk
+ * in the background while the writer carries on.
  */
 public class TempBucketFactory implements BucketFactory, LockableRandomAccessBufferFactory {
 	public final static long defaultIncrement = 4096;
@@ -77,6 +79,16 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
 	/** How many times the maxRAMBucketSize can a RAMBucket be before it gets migrated? */
 	final static int RAMBUCKET_CONVERSION_FACTOR = 4;
+	/** How many times the maxRAMBucketSize can a RAMBucket be before we start migrating it in 
+	 * the background? */
+	final static int RAMBUCKET_BACKGROUND_FACTOR = 2;
+	
+	/** Where the RAM buckets are kept, if offHeap is set */
+	private final SlabPool slabPool;
+	/** If true, RAM buckets are kept in slabs off the Java heap, otherwise in byte arrays */
+	private volatile boolean offHeap = true;
+	private long backgroundMigrations;
+	private long foregroundMigrations;
 	
 	final static boolean TRACE_BUCKET_LEAKS = false;
 
@@ -114,6 +126,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		/** A timestamp used to evaluate the age of the bucket and maybe consider it for a migration */
 		public final long creationTime;
 		private boolean hasBeenFreed = false;
+		/** True while slabs are being copied to disk, possibly without holding the lock */
+		private boolean migrating;
+		/** True once a background migration has been queued */
+		private boolean migrationQueued;
 		
 		private final Throwable tracer;
 		
@@ -154,12 +170,28 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		
 		/** A blocking method to force-migrate from a RAMBucket to a FileBucket */
 		public final boolean migrateToDisk() throws IOException {
+			return migrateToDisk(false);
+		}
+
+		private boolean migrateToDisk(boolean background) throws IOException {
 			Bucket toMigrate = null;
 			long size;
 			synchronized(this) {
+				waitForMigration();
 				if(!isRAMBucket() || hasBeenFreed)
 					// Nothing to migrate! We don't want to switch back to ram, do we?					
 					return false;
+				if(currentBucket instanceof SlabBucket) {
+					migrating = true;
+					toMigrate = currentBucket;
+				}
+			}
+			if(toMigrate != null) {
+				if(!migrateSlabs((SlabBucket) toMigrate)) return false;
+				onMigrated(background);
+				return true;
+			}
+			synchronized(this) {
 				toMigrate = currentBucket;
 				RandomAccessBucket tempFB = _makeFileBucket();
 				size = currentSize;
@@ -199,11 +231,119 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
 			_hasFreed(size);
+			onMigrated(background);
+			return true;
+		}
+		
+		/** Wait for a migration on another thread to finish. Caller must hold the lock. */
+		private void waitForMigration() {
+			while(migrating) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		}
+		
+		/**
+		 * Copy the slabs to disk a chunk at a time. Other threads can keep on reading and 
+		 * writing while we copy; only the last chunk is copied with the lock held, after 
+		 * which we switch to the file. 
+		 * @return False if the bucket was freed before we finished.
+		 */
+		private boolean migrateSlabs(SlabBucket toMigrate) throws IOException {
+			RandomAccessBucket tempFB = null;
+			OutputStream out = null;
+			long size;
+			boolean success = false;
+			try {
+				tempFB = _makeFileBucket();
+				out = tempFB.getOutputStreamUnbuffered();
+				byte[] buf = new byte[SlabPool.SLAB_SIZE];
+				long copied = 0;
+				while(true) {
+					synchronized(this) {
+						if(hasBeenFreed) return false;
+						if(currentSize - copied <= buf.length) {
+							size = currentSize;
+							while(copied < size) {
+								int read = toMigrate.read(copied, buf, 0, (int) Math.min(buf.length, size - copied));
+								out.write(buf, 0, read);
+								copied += read;
+							}
+							if(os != null) {
+								// DO NOT INCREMENT THE osIndex HERE!
+								os.close();
+								os = out;
+							} else {
+								out.close();
+							}
+							out = null;
+							if(toMigrate.isReadOnly())
+								tempFB.setReadOnly();
+							currentBucket = tempFB;
+							// Reopen the streams on the file, the slabs are about to be freed.
+							closeInputStreams(false);
+							success = true;
+							break;
+						}
+					}
+					int read;
+					try {
+						read = toMigrate.read(copied, buf, 0, buf.length);
+					} catch (IOException e) {
+						synchronized(this) {
+							if(hasBeenFreed) return false;
+						}
+						throw e;
+					}
+					out.write(buf, 0, read);
+					copied += read;
+				}
+			} finally {
+				synchronized(this) {
+					migrating = false;
+					notifyAll();
+				}
+				if(!success) {
+					Closer.close(out);
+					if(tempFB != null) tempFB.free();
+				}
+			}
+			if(logMINOR)
+				Logger.minor(this, "We have migrated "+toMigrate.hashCode()+" in chunks");
+			synchronized(ramBucketQueue) {
+				ramBucketQueue.remove(getReference());
+			}
+			toMigrate.free();
+			_hasFreed(size);
 			return true;
 		}
 		
+		/** Migrate to disk on the executor, while the writer carries on. */
+		private void queueMigration() {
+			// Caller holds the lock.
+			if(migrationQueued || migrating) return;
+			migrationQueued = true;
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						migrateToDisk(true);
+					} catch (InsufficientDiskSpaceException e) {
+						Logger.error(this, "Insufficient disk space to migrate in-RAM bucket to disk!");
+					} catch (IOException e) {
+						Logger.error(this, "An IOE occured while migrating "+TempBucket.this+" : "+e, e);
+					}
+				}
+
+			}, "Migrating "+this);
+		}
+		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof SlabBucket) || (currentBucket instanceof ArrayBucket);
 		}
 		
 		@Override
@@ -216,6 +356,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			if(os != null)
 				throw new IOException("Only one OutputStream per bucket on "+this+" !");
 			if(hasBeenFreed) throw new IOException("Already freed");
+			// Opening a new stream truncates, so can't be done while the old data is copied.
+			waitForMigration();
 			// Hence we don't need to reset currentSize / _hasTaken() if a bucket is reused.
 			// FIXME we should migrate to disk rather than throwing.
 			hasWritten = true;
@@ -247,6 +389,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 						shouldMigrate = true;
 					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
 						shouldMigrate = true;
+					else if(futureSize >= maxRAMBucketSize * RAMBUCKET_BACKGROUND_FACTOR && currentBucket instanceof SlabBucket)
+						// Copy it to disk while we carry on writing, rather than stalling at the limit.
+						queueMigration();
 					
 					if(shouldMigrate) {
 						if(logMINOR) {
@@ -516,6 +661,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         @Override
         public LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
             synchronized(this) {
+                waitForMigration();
                 if(hasBeenFreed) throw new IOException("Already freed");
                 if(os != null) throw new IOException("Can't migrate with open OutputStream's");
                 if(!tbis.isEmpty()) throw new IOException("Can't migrate with open InputStream's");
@@ -533,7 +679,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
             }
         }
 
-        /** Only for testing */
+        /** For testing, and for BucketTools.getFile(). Once a bucket has migrated to disk it
+         * stays there, so a file returned from this remains valid until the bucket is freed. */
         synchronized Bucket getUnderlying() {
             return currentBucket;
         }
@@ -552,6 +699,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory, 
 		        filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
 		this.secret = masterSecret;
+		// Keep up to the pool size in free slabs, so we don't thrash the direct allocator.
+		this.slabPool = new SlabPool(maxRamUsed, true);
 	}
 	
 	@Override
@@ -577,6 +726,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		slabPool.setMaxFreeBytes(size);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -605,6 +755,50 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	public boolean isEncrypting() {
 	    return reallyEncrypt;
 	}
+	
+	/** If true, new RAM buckets are kept in slabs, normally off the Java heap, rather than in
+	 * byte arrays. */
+	public void setOffHeap(boolean value) {
+		offHeap = value;
+	}
+	
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+	
+	/** @return Bytes of slabs allocated to RAM buckets, including the unused end of each 
+	 * bucket's last slab. */
+	public long getSlabBytesInUse() {
+		return slabPool.bytesInUse();
+	}
+	
+	/** @return Bytes of slabs kept for reuse. */
+	public long getSlabBytesFree() {
+		return slabPool.freeBytes();
+	}
+	
+	/** @return True if the slabs are off the Java heap, false if we couldn't get direct memory. */
+	public boolean isSlabPoolDirect() {
+		return slabPool.isDirect();
+	}
+	
+	/** @return The number of buckets migrated to disk in the background while being written. */
+	public synchronized long getBackgroundMigrations() {
+		return backgroundMigrations;
+	}
+	
+	/** @return The number of buckets migrated to disk on the thread which needed the space, or
+	 * by the cleaner. */
+	public synchronized long getForegroundMigrations() {
+		return foregroundMigrations;
+	}
+	
+	private synchronized void onMigrated(boolean background) {
+		if(background)
+			backgroundMigrations++;
+		else
+			foregroundMigrations++;
+	}
 
 	static final double MAX_USAGE_LOW = 0.8;
 	static final double MAX_USAGE_HIGH = 0.9;
@@ -638,7 +832,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		if(!useRAMBucket)
+			realBucket = _makeFileBucket();
+		else if(offHeap)
+			realBucket = new SlabBucket(slabPool, size);
+		else
+			realBucket = new ArrayBucket();
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -802,7 +1001,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    private final Throwable tracer;
 	    
 	    TempRandomAccessBuffer(int size, long time) throws IOException {
-	        super(new ByteArrayRandomAccessBuffer(size), size);
+	        this(new ByteArrayRandomAccessBuffer(size), size, time);
+	    }
+
+	    TempRandomAccessBuffer(LockableRandomAccessBuffer ram, int size, long time) throws IOException {
+	        super(ram, size);
 	        creationTime = time;
 	        hasMigrated = false;
 	        original = null;
@@ -813,14 +1016,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    }
 
         public TempRandomAccessBuffer(byte[] initialContents, int offset, int size, long time, boolean readOnly) throws IOException {
-            super(new ByteArrayRandomAccessBuffer(initialContents, offset, size, readOnly), size);
-            creationTime = time;
-            hasMigrated = false;
-            original = null;
-            if (TRACE_BUCKET_LEAKS)
-                tracer = new Throwable();
-            else
-                tracer = null;
+            this(new ByteArrayRandomAccessBuffer(initialContents, offset, size, readOnly), size, time);
         }
 
         public TempRandomAccessBuffer(LockableRandomAccessBuffer underlying, long creationTime, boolean migrated, TempBucket tempBucket) throws IOException {
@@ -836,9 +1032,33 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
         @Override
         protected LockableRandomAccessBuffer innerMigrate(LockableRandomAccessBuffer underlying) throws IOException {
-            ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer)underlying;
-            byte[] buf = b.getBuffer();
-            return diskRAFFactory.makeRAF(buf, 0, (int)size, b.isReadOnly());
+            if(underlying instanceof ByteArrayRandomAccessBuffer) {
+                ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer)underlying;
+                byte[] buf = b.getBuffer();
+                return diskRAFFactory.makeRAF(buf, 0, (int)size, b.isReadOnly());
+            }
+            SlabRandomAccessBuffer slabs = (SlabRandomAccessBuffer)underlying;
+            if(slabs.isReadOnly()) {
+                // The file must be created read-only, so it needs the data up front.
+                byte[] buf = new byte[(int)size];
+                slabs.pread(0, buf, 0, (int)size);
+                return diskRAFFactory.makeRAF(buf, 0, (int)size, true);
+            }
+            // Copy a slab at a time rather than making one big array.
+            LockableRandomAccessBuffer ret = diskRAFFactory.makeRAF(size);
+            try {
+                byte[] buf = new byte[(int)Math.min(size, SlabPool.SLAB_SIZE)];
+                for(long pos = 0; pos < size; pos += buf.length) {
+                    int len = (int)Math.min(buf.length, size - pos);
+                    slabs.pread(pos, buf, 0, len);
+                    ret.pwrite(pos, buf, 0, len);
+                }
+            } catch (IOException e) {
+                ret.close();
+                ret.free();
+                throw e;
+            }
+            return ret;
         }
 
         @Override
@@ -882,6 +1102,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 hasMigrated = true;
             }
             migrate();
+            onMigrated(false);
             return true;
         }
 
@@ -928,7 +1149,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	    synchronized(this) {
 	        if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-	            raf = new TempRandomAccessBuffer((int)size, now);
+	            if(offHeap)
+	                raf = new TempRandomAccessBuffer(new SlabRandomAccessBuffer(slabPool, size), (int)size, now);
+	            else
+	                raf = new TempRandomAccessBuffer((int)size, now);
 	            bytesInUse += size;
 	        }
 	        if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
@@ -976,7 +1200,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         
         synchronized(this) {
             if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-                raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
+                if(offHeap)
+                    raf = new TempRandomAccessBuffer(new SlabRandomAccessBuffer(slabPool, initialContents, offset, size, readOnly), size, now);
+                else
+                    raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
                 bytesInUse += size;
             }
             if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
@@ -0,0 +1,151 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A {@link BootstrappingDecayingRunningAverage} without locking, for averages which are
+ * reported to on every request. The value and the number of reports are kept together in an
+ * immutable object, which a report replaces by compare-and-set, so the results are exactly
+ * those of the synchronized version given the same reports in the same order.
+ *
+ * Exports to and imports from the same {@link SimpleFieldSet} format as
+ * BootstrappingDecayingRunningAverage.
+ */
+public final class LockFreeBootstrappingDecayingRunningAverage implements RunningAverage, Cloneable {
+	private static final long serialVersionUID = -1;
+
+	private static final class State implements Serializable {
+		private static final long serialVersionUID = -1;
+		final double currentValue;
+		final long reports;
+
+		State(double currentValue, long reports) {
+			this.currentValue = currentValue;
+			this.reports = reports;
+		}
+	}
+
+	private final double min;
+	private final double max;
+	private volatile int maxReports;
+	private final AtomicReference<State> state;
+
+	private static volatile boolean logDEBUG;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+			}
+		});
+	}
+
+	/**
+	 * @see BootstrappingDecayingRunningAverage#BootstrappingDecayingRunningAverage(double,
+	 * double, double, int, SimpleFieldSet)
+	 */
+	public LockFreeBootstrappingDecayingRunningAverage(double defaultValue, double min,
+			double max, int maxReports, SimpleFieldSet fs) {
+		this.min = min;
+		this.max = max;
+		this.maxReports = maxReports;
+		assert(maxReports > 0);
+		long reports = 0;
+		double currentValue = defaultValue;
+		if(fs != null) {
+			double d = fs.getDouble("CurrentValue", currentValue);
+			if(!(Double.isNaN(d) || d < min || d > max)) {
+				currentValue = d;
+				reports = fs.getLong("Reports", reports);
+			}
+		}
+		state = new AtomicReference<State>(new State(currentValue, reports));
+	}
+
+	private LockFreeBootstrappingDecayingRunningAverage(LockFreeBootstrappingDecayingRunningAverage a) {
+		this.min = a.min;
+		this.max = a.max;
+		this.maxReports = a.maxReports;
+		this.state = new AtomicReference<State>(a.state.get());
+	}
+
+	@Override
+	public LockFreeBootstrappingDecayingRunningAverage clone() {
+		return new LockFreeBootstrappingDecayingRunningAverage(this);
+	}
+
+	@Override
+	public double currentValue() {
+		return state.get().currentValue;
+	}
+
+	@Override
+	public void report(double d) {
+		if(d < min) {
+			if(logDEBUG)
+				Logger.debug(this, "Too low: "+d, new Exception("debug"));
+			d = min;
+		}
+		if(d > max) {
+			if(logDEBUG)
+				Logger.debug(this, "Too high: "+d, new Exception("debug"));
+			d = max;
+		}
+		while(true) {
+			State s = state.get();
+			long reports = s.reports + 1;
+			double decayFactor = 1.0 / (Math.min(reports, maxReports));
+			State next = new State((d * decayFactor) + (s.currentValue * (1-decayFactor)), reports);
+			if(state.compareAndSet(s, next)) return;
+		}
+	}
+
+	@Override
+	public void report(long d) {
+		report((double)d);
+	}
+
+	@Override
+	public double valueIfReported(double d) {
+		if(d < min) {
+			Logger.error(this, "Too low: "+d, new Exception("debug"));
+			d = min;
+		}
+		if(d > max) {
+			Logger.error(this, "Too high: "+d, new Exception("debug"));
+			d = max;
+		}
+		State s = state.get();
+		double decayFactor = 1.0 / (Math.min(s.reports + 1, maxReports));
+		return (d * decayFactor) + (s.currentValue * (1-decayFactor));
+	}
+
+	/** @see BootstrappingDecayingRunningAverage#changeMaxReports(int) */
+	public void changeMaxReports(int maxReports) {
+		this.maxReports = maxReports;
+	}
+
+	@Override
+	public long countReports() {
+		return state.get().reports;
+	}
+
+	/** @see BootstrappingDecayingRunningAverage#exportFieldSet(boolean) */
+	public SimpleFieldSet exportFieldSet(boolean shortLived) {
+		State s = state.get();
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		fs.putSingle("Type", "BootstrappingDecayingRunningAverage");
+		fs.put("CurrentValue", s.currentValue);
+		fs.put("Reports", s.reports);
+		return fs;
+	}
+}
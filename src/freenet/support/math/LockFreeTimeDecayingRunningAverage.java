@@ -0,0 +1,249 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import freenet.node.TimeSkewDetectorCallback;
+import freenet.support.Clock;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A {@link TimeDecayingRunningAverage} without locking, for averages which are reported to on
+ * every request or packet. The value, the time of the last report, the number of reports and
+ * whether we have started are kept together in an immutable object, which a report replaces by
+ * compare-and-set. The time is read after the state on each attempt, so a report never sees a
+ * last report time later than its own, and the results are exactly those of the synchronized
+ * version given the same reports at the same times.
+ *
+ * Exports to and imports from the same {@link SimpleFieldSet} format as
+ * TimeDecayingRunningAverage.
+ */
+public final class LockFreeTimeDecayingRunningAverage implements RunningAverage, Cloneable {
+
+	private static final long serialVersionUID = -1;
+
+	private static final class State implements Serializable {
+		private static final long serialVersionUID = -1;
+		final double curValue;
+		/** -1 if we have just been loaded from a SimpleFieldSet. */
+		final long lastReportTime;
+		final long totalReports;
+		final boolean started;
+
+		State(double curValue, long lastReportTime, long totalReports, boolean started) {
+			this.curValue = curValue;
+			this.lastReportTime = lastReportTime;
+			this.totalReports = totalReports;
+			this.started = started;
+		}
+	}
+
+	private final double halfLife;
+	private final long createdTime;
+	private final double defaultValue;
+	private final double minReport;
+	private final double maxReport;
+	private final TimeSkewDetectorCallback timeSkewCallback;
+	private final Clock clock;
+	private final AtomicReference<State> state;
+
+	private static volatile boolean logDEBUG;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+			}
+		});
+	}
+
+	/** @see TimeDecayingRunningAverage#TimeDecayingRunningAverage(double, long, double, double,
+	 * TimeSkewDetectorCallback) */
+	public LockFreeTimeDecayingRunningAverage(double defaultValue, long halfLife,
+			double min, double max, TimeSkewDetectorCallback callback) {
+		this(defaultValue, halfLife, min, max, callback, Clock.SYSTEM);
+	}
+
+	/** @see TimeDecayingRunningAverage#TimeDecayingRunningAverage(double, long, double, double,
+	 * TimeSkewDetectorCallback, Clock) */
+	public LockFreeTimeDecayingRunningAverage(double defaultValue, long halfLife,
+			double min, double max, TimeSkewDetectorCallback callback, Clock clock) {
+		this.clock = clock;
+		this.defaultValue = defaultValue;
+		this.halfLife = halfLife;
+		this.minReport = min;
+		this.maxReport = max;
+		this.timeSkewCallback = callback;
+		createdTime = clock.currentTimeMillis();
+		state = new AtomicReference<State>(new State(defaultValue, createdTime, 0, false));
+		if(logDEBUG)
+			Logger.debug(this, "Created "+this, new Exception("debug"));
+	}
+
+	/** @see TimeDecayingRunningAverage#TimeDecayingRunningAverage(double, long, double, double,
+	 * SimpleFieldSet, TimeSkewDetectorCallback) */
+	public LockFreeTimeDecayingRunningAverage(double defaultValue, long halfLife,
+			double min, double max, SimpleFieldSet fs, TimeSkewDetectorCallback callback) {
+		this.clock = Clock.SYSTEM;
+		this.defaultValue = defaultValue;
+		this.halfLife = halfLife;
+		this.minReport = min;
+		this.maxReport = max;
+		this.timeSkewCallback = callback;
+		double curValue = defaultValue;
+		boolean started = false;
+		long totalReports = 0;
+		long createdTime = clock.currentTimeMillis();
+		if(fs != null) {
+			started = fs.getBoolean("Started", false);
+			if(started) {
+				curValue = fs.getDouble("CurrentValue", curValue);
+				if(curValue > maxReport || curValue < minReport || Double.isNaN(curValue)) {
+					curValue = defaultValue;
+				} else {
+					totalReports = fs.getLong("TotalReports", 0);
+					createdTime -= fs.getLong("Uptime", 0);
+				}
+			}
+		}
+		this.createdTime = createdTime;
+		// Long warm-up may skew results, so wait for the first report.
+		state = new AtomicReference<State>(new State(curValue, -1, totalReports, started));
+		if(logDEBUG)
+			Logger.debug(this, "Created "+this, new Exception("debug"));
+	}
+
+	private LockFreeTimeDecayingRunningAverage(LockFreeTimeDecayingRunningAverage a) {
+		this.clock = a.clock;
+		this.defaultValue = a.defaultValue;
+		this.halfLife = a.halfLife;
+		this.minReport = a.minReport;
+		this.maxReport = a.maxReport;
+		this.timeSkewCallback = a.timeSkewCallback;
+		this.createdTime = a.createdTime;
+		this.state = new AtomicReference<State>(a.state.get());
+	}
+
+	@Override
+	public LockFreeTimeDecayingRunningAverage clone() {
+		return new LockFreeTimeDecayingRunningAverage(this);
+	}
+
+	@Override
+	public String toString() {
+		long now = clock.currentTimeMillis();
+		State s = state.get();
+		return super.toString() + ": currentValue="+s.curValue+", halfLife="+halfLife+
+			", lastReportTime="+(now - s.lastReportTime)+
+			"ms ago, createdTime="+(now - createdTime)+
+			"ms ago, totalReports="+s.totalReports+", started="+s.started+
+			", defaultValue="+defaultValue+", min="+minReport+", max="+maxReport;
+	}
+
+	@Override
+	public double currentValue() {
+		return state.get().curValue;
+	}
+
+	@Override
+	public void report(double d) {
+		if(d < minReport) {
+			Logger.error(this, "Impossible: "+d+" on "+this, new Exception("error"));
+			return;
+		}
+		if(d > maxReport) {
+			Logger.error(this, "Impossible: "+d+" on "+this, new Exception("error"));
+			return;
+		}
+		if(Double.isInfinite(d) || Double.isNaN(d)) {
+			Logger.error(this, "Reported infinity or NaN to "+this+" : "+d, new Exception("error"));
+			return;
+		}
+		while(true) {
+			State s = state.get();
+			long now = clock.currentTimeMillis();
+			long totalReports = s.totalReports + 1;
+			if(!s.started) {
+				if(!state.compareAndSet(s, new State(d, now, totalReports, true))) continue;
+				if(logDEBUG)
+					Logger.debug(this, "Reported "+d+" on "+this+" when just started");
+				return;
+			}
+			if(s.lastReportTime == -1) {
+				// Just loaded from a SimpleFieldSet.
+				if(state.compareAndSet(s, new State(s.curValue, now, totalReports, true))) return;
+				continue;
+			}
+			long thisInterval = now - s.lastReportTime;
+			long uptime = now - createdTime;
+			if(thisInterval < 0) {
+				if(!state.compareAndSet(s, new State(s.curValue, now, totalReports, true))) continue;
+				Logger.error(this, "Clock (reporting) went back in time, ignoring report: "+now+" was "+s.lastReportTime+" (back "+(-thisInterval)+"ms)");
+				if(timeSkewCallback != null)
+					timeSkewCallback.setTimeSkewDetectedUserAlert();
+				return;
+			}
+			if(uptime < 0) {
+				if(!state.compareAndSet(s, new State(s.curValue, s.lastReportTime, totalReports, true))) continue;
+				Logger.error(this, "Clock (uptime) went back in time, ignoring report: "+now+" was "+createdTime+" (back "+(-uptime)+"ms)");
+				if(timeSkewCallback != null)
+					timeSkewCallback.setTimeSkewDetectedUserAlert();
+				return;
+			}
+			double thisHalfLife = halfLife;
+			if(thisHalfLife == 0) thisHalfLife = 1;
+			double changeFactor =
+				Math.pow(0.5, (thisInterval) / thisHalfLife);
+			double curValue = s.curValue * changeFactor + (1.0 - changeFactor) * d;
+			boolean outOfRange = curValue < minReport || curValue > maxReport;
+			if(outOfRange) curValue = s.curValue;
+			if(!state.compareAndSet(s, new State(curValue, now, totalReports, true))) continue;
+			// FIXME remove when stop getting reports of wierd output values
+			if(outOfRange)
+				Logger.error(this, "curValue="+(s.curValue * changeFactor + (1.0 - changeFactor) * d)+" was "+s.curValue+" - out of range");
+			if(logDEBUG)
+				Logger.debug(this, "Reported "+d+" on "+this+": thisInterval="+thisInterval+
+						", halfLife="+halfLife+", uptime="+uptime+", thisHalfLife="+thisHalfLife+
+						", changeFactor="+changeFactor+", oldCurValue="+s.curValue+
+						", currentValue="+curValue);
+			return;
+		}
+	}
+
+	@Override
+	public void report(long d) {
+		report((double)d);
+	}
+
+	@Override
+	public double valueIfReported(double r) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public long countReports() {
+		return state.get().totalReports;
+	}
+
+	public long lastReportTime() {
+		return state.get().lastReportTime;
+	}
+
+	/** @see TimeDecayingRunningAverage#exportFieldSet(boolean) */
+	public SimpleFieldSet exportFieldSet(boolean shortLived) {
+		State s = state.get();
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		fs.putSingle("Type", "TimeDecayingRunningAverage");
+		fs.put("CurrentValue", s.curValue);
+		fs.put("Started", s.started);
+		fs.put("TotalReports", s.totalReports);
+		fs.put("Uptime", clock.currentTimeMillis() - createdTime);
+		return fs;
+	}
+}
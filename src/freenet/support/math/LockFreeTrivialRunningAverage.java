@@ -0,0 +1,79 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link TrivialRunningAverage} without locking. The total and the number of reports are
+ * replaced together by compare-and-set, so the average never mixes a total with the wrong
+ * count.
+ */
+public final class LockFreeTrivialRunningAverage implements RunningAverage, Cloneable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final class State implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final double total;
+		final long reports;
+
+		State(double total, long reports) {
+			this.total = total;
+			this.reports = reports;
+		}
+	}
+
+	private static final State EMPTY = new State(0.0, 0);
+
+	private final AtomicReference<State> state;
+
+	public LockFreeTrivialRunningAverage() {
+		state = new AtomicReference<State>(EMPTY);
+	}
+
+	public LockFreeTrivialRunningAverage(LockFreeTrivialRunningAverage average) {
+		state = new AtomicReference<State>(average.state.get());
+	}
+
+	@Override
+	public long countReports() {
+		return state.get().reports;
+	}
+
+	public double totalValue() {
+		return state.get().total;
+	}
+
+	@Override
+	public double currentValue() {
+		State s = state.get();
+		return s.total / s.reports;
+	}
+
+	@Override
+	public void report(double d) {
+		while(true) {
+			State s = state.get();
+			if(state.compareAndSet(s, new State(s.total + d, s.reports + 1))) return;
+		}
+	}
+
+	@Override
+	public void report(long d) {
+		report((double)d);
+	}
+
+	@Override
+	public double valueIfReported(double r) {
+		State s = state.get();
+		return (s.total + r) / (s.reports + 1);
+	}
+
+	@Override
+	public LockFreeTrivialRunningAverage clone() {
+		return new LockFreeTrivialRunningAverage(this);
+	}
+}
@@ -8,6 +8,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import freenet.node.TimeSkewDetectorCallback;
+import freenet.support.Clock;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Logger.LogLevel;
@@ -48,10 +49,11 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
     double maxReport;
     boolean logDEBUG;
     private final TimeSkewDetectorCallback timeSkewCallback;
+    private final Clock clock;
     
     @Override
 	public String toString() {
-		long now = System.currentTimeMillis();
+		long now = clock.currentTimeMillis();
 		synchronized(this) {
 		return super.toString() + ": currentValue="+curValue+", halfLife="+halfLife+
 			", lastReportTime="+(now - lastReportTime)+
@@ -71,11 +73,26 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
      */
     public TimeDecayingRunningAverage(double defaultValue, long halfLife,
             double min, double max, TimeSkewDetectorCallback callback) {
+        this(defaultValue, halfLife, min, max, callback, Clock.SYSTEM);
+    }
+    
+    /**
+     *
+     * @param defaultValue
+     * @param halfLife
+     * @param min
+     * @param max
+     * @param callback
+     * @param clock The clock to decay by, e.g. one controlled by a test.
+     */
+    public TimeDecayingRunningAverage(double defaultValue, long halfLife,
+            double min, double max, TimeSkewDetectorCallback callback, Clock clock) {
+        this.clock = clock;
     	curValue = defaultValue;
         this.defaultValue = defaultValue;
         started = false;
         this.halfLife = halfLife;
-        createdTime = lastReportTime = System.currentTimeMillis();
+        createdTime = lastReportTime = clock.currentTimeMillis();
         this.minReport = min;
         this.maxReport = max;
         totalReports = 0;
@@ -97,11 +114,12 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
      */
     public TimeDecayingRunningAverage(double defaultValue, long halfLife,
             double min, double max, SimpleFieldSet fs, TimeSkewDetectorCallback callback) {
+        clock = Clock.SYSTEM;
     	curValue = defaultValue;
         this.defaultValue = defaultValue;
         started = false;
         this.halfLife = halfLife;
-        createdTime = System.currentTimeMillis();
+        createdTime = clock.currentTimeMillis();
         this.lastReportTime = -1; // long warm-up may skew results, so lets wait for the first report
         this.minReport = min;
         this.maxReport = max;
@@ -117,11 +135,11 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
         		if(curValue > maxReport || curValue < minReport || Double.isNaN(curValue)) {
         			curValue = defaultValue;
         			totalReports = 0;
-        			createdTime = System.currentTimeMillis();
+        			createdTime = clock.currentTimeMillis();
         		} else {
         			totalReports = fs.getLong("TotalReports", 0);
             		long uptime = fs.getLong("Uptime", 0);
-            		createdTime = System.currentTimeMillis() - uptime;
+            		createdTime = clock.currentTimeMillis() - uptime;
         		}
         	}
         }
@@ -139,6 +157,7 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
      * @throws IOException
      */
     public TimeDecayingRunningAverage(double defaultValue, double halfLife, double min, double max, DataInputStream dis, TimeSkewDetectorCallback callback) throws IOException {
+        clock = Clock.SYSTEM;
         int m = dis.readInt();
         if(m != MAGIC) throw new IOException("Invalid magic "+m);
         int v = dis.readInt();
@@ -156,7 +175,7 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
         this.defaultValue = defaultValue;
         logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
         lastReportTime = -1;
-        createdTime = System.currentTimeMillis() - priorExperienceTime;
+        createdTime = clock.currentTimeMillis() - priorExperienceTime;
         totalReports = dis.readLong();
         this.timeSkewCallback = callback;
     }
@@ -176,6 +195,7 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
         this.totalReports = a.totalReports;
         this.curValue = a.curValue;
         this.timeSkewCallback = a.timeSkewCallback;
+        this.clock = a.clock;
     }
 
     /**
@@ -195,7 +215,7 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
     public void report(double d) {
 		synchronized(this) {
 			// Must synchronize first to achieve serialization.
-			long now = System.currentTimeMillis();
+			long now = clock.currentTimeMillis();
 			if(d < minReport) {
 				Logger.error(this, "Impossible: "+d+" on "+this, new Exception("error"));
 				return;
@@ -283,7 +303,7 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
      * @throws IOException
      */
     public void writeDataTo(DataOutputStream out) throws IOException {
-		long now = System.currentTimeMillis();
+		long now = clock.currentTimeMillis();
 		synchronized(this) {
 			out.writeInt(MAGIC);
 			out.writeInt(1);
@@ -326,7 +346,7 @@ public final class TimeDecayingRunningAverage implements RunningAverage, Cloneab
 		fs.put("CurrentValue", curValue);
 		fs.put("Started", started);
 		fs.put("TotalReports", totalReports);
-		fs.put("Uptime", System.currentTimeMillis() - createdTime);
+		fs.put("Uptime", clock.currentTimeMillis() - createdTime);
 		return fs;
 	}
 }
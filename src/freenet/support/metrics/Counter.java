@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.SimpleFieldSet;
+
+/** A count which only goes up. Lock-free. */
+public final class Counter extends Metric {
+
+	private final AtomicLong count = new AtomicLong();
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long n) {
+		count.addAndGet(n);
+	}
+
+	public long get() {
+		return count.get();
+	}
+
+	@Override
+	String type() {
+		return "counter";
+	}
+
+	@Override
+	void writeText(StringBuilder sb, String name, String labels) {
+		appendSample(sb, name, labels, Long.toString(count.get()));
+	}
+
+	@Override
+	void put(SimpleFieldSet fs, String key) {
+		fs.put(key, count.get());
+	}
+
+}
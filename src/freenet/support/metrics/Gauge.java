@@ -0,0 +1,12 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+/** A value which is read when the metrics are exported, so costs nothing until then. Should be
+ * cheap, and must not block for long, since it is called for every scrape. */
+public interface Gauge {
+
+	public double value();
+
+}
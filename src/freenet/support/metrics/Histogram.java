@@ -0,0 +1,140 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Distribution of non-negative integer values, e.g. times in milliseconds. Lock-free, and
+ * recording a value costs a few atomic increments, so it can be used on busy paths.
+ *
+ * As in HdrHistogram, the buckets are log-linear: each power of two is split into 8 buckets, so
+ * quantiles are accurate to 12.5% over the whole range of a long. A bucket holds the values
+ * greater than the previous bucket's upper bound, up to and including its own, so every power of
+ * two is a bucket boundary. Only the powers of two up to the given maximum are exported to
+ * Prometheus, to keep the output short and the buckets the same between scrapes.
+ */
+public final class Histogram extends Metric {
+
+	static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Bucket 0 is for 0 and below, the rest are for the values 1 up. */
+	static final int BUCKETS = 2 + bucketBelow(Long.MAX_VALUE - 1);
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final double unit;
+	private final long max;
+
+	/**
+	 * @param unit The size of the unit values are recorded in, in the unit to export, e.g. 0.001
+	 * to record milliseconds and export seconds as Prometheus expects.
+	 * @param max The largest value we expect, which sets the largest bucket exported.
+	 */
+	public Histogram(double unit, long max) {
+		if(unit <= 0.0 || max < 1) throw new IllegalArgumentException();
+		this.unit = unit;
+		this.max = max;
+	}
+
+	/** The bucket for v+1, for v &gt;= 0. */
+	private static int bucketBelow(long v) {
+		if(v < SUB_BUCKETS) return (int) v;
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static int bucket(long value) {
+		if(value <= 0) return 0;
+		return 1 + bucketBelow(value - 1);
+	}
+
+	/** The largest value in a bucket. */
+	static long upperBound(int bucket) {
+		if(bucket == 0) return 0;
+		int i = bucket - 1;
+		if(i < SUB_BUCKETS) return i + 1;
+		int exponent = i / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = i % SUB_BUCKETS;
+		long upper = (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+		return upper <= 0 ? Long.MAX_VALUE : upper;
+	}
+
+	/** @return The value rounded up to the largest value in its bucket, as quantile() would
+	 * return it, so the two can be compared. */
+	public static long roundUp(long value) {
+		return upperBound(bucket(value));
+	}
+
+	public void record(long value) {
+		buckets.incrementAndGet(bucket(value));
+		sum.addAndGet(value);
+	}
+
+	public long count() {
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			count += buckets.get(i);
+		return count;
+	}
+
+	/** The sum of the values recorded, in the units they were recorded in. */
+	public long sum() {
+		return sum.get();
+	}
+
+	/** @return A value at least as big as the given fraction of the values recorded, and
+	 * within 12.5% of the real quantile, or 0 if nothing has been recorded. */
+	public long quantile(double q) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			count += counts[i] = buckets.get(i);
+		if(count == 0) return 0;
+		long target = (long) Math.ceil(q * count);
+		if(target < 1) target = 1;
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= target) return upperBound(i);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	@Override
+	String type() {
+		return "histogram";
+	}
+
+	@Override
+	void writeText(StringBuilder sb, String name, String labels) {
+		String prefix = labels.length() > 0 ? labels + ",le=\"" : "le=\"";
+		long seen = 0;
+		long nextBound = 1;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if(upperBound(i) == nextBound && nextBound <= Long.highestOneBit(max) * 2) {
+				appendSample(sb, name + "_bucket", prefix + format(nextBound * unit) + "\"", Long.toString(seen));
+				nextBound *= 2;
+			}
+		}
+		appendSample(sb, name + "_bucket", prefix + "+Inf\"", Long.toString(seen));
+		appendSample(sb, name + "_sum", labels, format(sum.get() * unit));
+		appendSample(sb, name + "_count", labels, Long.toString(seen));
+	}
+
+	@Override
+	void put(SimpleFieldSet fs, String key) {
+		fs.put(key + ".Count", count());
+		fs.put(key + ".Sum", sum.get());
+		fs.put(key + ".P50", quantile(0.5));
+		fs.put(key + ".P90", quantile(0.9));
+		fs.put(key + ".P99", quantile(0.99));
+	}
+
+}
@@ -0,0 +1,35 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import freenet.support.SimpleFieldSet;
+
+/** Something a MetricsRegistry can export. */
+public abstract class Metric {
+
+	/** The Prometheus type: counter, gauge or histogram. */
+	abstract String type();
+
+	/** Append the samples in Prometheus text format.
+	 * @param labels The labels, e.g. <code>type="chk"</code>, or an empty string. */
+	abstract void writeText(StringBuilder sb, String name, String labels);
+
+	/** Add the values to a SimpleFieldSet, under the given key. */
+	abstract void put(SimpleFieldSet fs, String key);
+
+	static void appendSample(StringBuilder sb, String name, String labels, String value) {
+		sb.append(name);
+		if(labels.length() > 0)
+			sb.append('{').append(labels).append('}');
+		sb.append(' ').append(value).append('\n');
+	}
+
+	static String format(double d) {
+		if(d == Double.POSITIVE_INFINITY) return "+Inf";
+		if(d == Double.NEGATIVE_INFINITY) return "-Inf";
+		if(d == Math.rint(d) && Math.abs(d) < 1e15) return Long.toString((long) d);
+		return Double.toString(d);
+	}
+
+}
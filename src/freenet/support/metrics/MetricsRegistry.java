@@ -0,0 +1,176 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import freenet.support.SimpleFieldSet;
+
+/**
+ * A node's metrics, by name and labels, for export in the Prometheus text format or over FCP.
+ * Updating a metric never touches the registry, and exporting only reads the metrics, so this
+ * doesn't add any locking to the code being measured.
+ *
+ * Labels are given as pairs of strings: name, value, name, value. They are not escaped, so
+ * should be constants without quotes or backslashes.
+ */
+public class MetricsRegistry {
+
+	private static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+
+	private static final class Entry implements Comparable<Entry> {
+		final String name;
+		final String help;
+		final String labels;
+		final String[] labelValues;
+		final Metric metric;
+
+		Entry(String name, String help, String[] labels, Metric metric) {
+			this.name = name;
+			this.help = help;
+			this.metric = metric;
+			StringBuilder sb = new StringBuilder();
+			labelValues = new String[labels.length / 2];
+			for(int i = 0; i < labels.length; i += 2) {
+				if(!NAME.matcher(labels[i]).matches())
+					throw new IllegalArgumentException("Bad label name: " + labels[i]);
+				if(i > 0) sb.append(',');
+				sb.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+				labelValues[i / 2] = labels[i + 1];
+			}
+			this.labels = sb.toString();
+		}
+
+		String key() {
+			return key(name, labels);
+		}
+
+		static String key(String name, String labels) {
+			return name + '{' + labels + '}';
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			int c = name.compareTo(e.name);
+			if(c != 0) return c;
+			return labels.compareTo(e.labels);
+		}
+	}
+
+	/** A Gauge exported as a gauge or a counter. */
+	private static final class CallbackMetric extends Metric {
+		final Gauge gauge;
+		final String type;
+
+		CallbackMetric(Gauge gauge, String type) {
+			this.gauge = gauge;
+			this.type = type;
+		}
+
+		@Override
+		String type() {
+			return type;
+		}
+
+		@Override
+		void writeText(StringBuilder sb, String name, String labels) {
+			appendSample(sb, name, labels, format(gauge.value()));
+		}
+
+		@Override
+		void put(SimpleFieldSet fs, String key) {
+			fs.put(key, gauge.value());
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> metrics = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Register a metric, unless one is already registered with the same name and labels, e.g.
+	 * by another instance of the same class.
+	 * @return The metric now registered under the name and labels.
+	 * @throws IllegalArgumentException If the name or labels are invalid, or the metric already
+	 * registered is a different kind.
+	 */
+	public <T extends Metric> T register(String name, String help, T metric, String... labels) {
+		if(!NAME.matcher(name).matches())
+			throw new IllegalArgumentException("Bad metric name: " + name);
+		if(labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be name, value pairs");
+		Entry entry = new Entry(name, help, labels, metric);
+		Entry old = metrics.putIfAbsent(entry.key(), entry);
+		if(old == null) return metric;
+		if(old.metric.getClass() != metric.getClass())
+			throw new IllegalArgumentException("Already registered as a " + old.metric.type() + ": " + entry.key());
+		@SuppressWarnings("unchecked")
+		T ret = (T) old.metric;
+		return ret;
+	}
+
+	public Counter counter(String name, String help, String... labels) {
+		return register(name, help, new Counter(), labels);
+	}
+
+	/** @see Histogram#Histogram(double, long) */
+	public Histogram histogram(String name, String help, double unit, long max, String... labels) {
+		return register(name, help, new Histogram(unit, max), labels);
+	}
+
+	/** Export a value which can go up and down, read when exporting. */
+	public void gauge(String name, String help, Gauge gauge, String... labels) {
+		register(name, help, new CallbackMetric(gauge, "gauge"), labels);
+	}
+
+	/** Export a total kept elsewhere, which only goes up, read when exporting. */
+	public void counter(String name, String help, Gauge total, String... labels) {
+		register(name, help, new CallbackMetric(total, "counter"), labels);
+	}
+
+	public void remove(String name, String... labels) {
+		metrics.remove(new Entry(name, null, labels, null).key());
+	}
+
+	public int size() {
+		return metrics.size();
+	}
+
+	private ArrayList<Entry> sorted() {
+		ArrayList<Entry> entries = new ArrayList<Entry>(metrics.values());
+		Collections.sort(entries);
+		return entries;
+	}
+
+	/** Everything, in the Prometheus text exposition format, version 0.0.4. */
+	public String toText() {
+		StringBuilder sb = new StringBuilder(16384);
+		String lastName = null;
+		for(Entry e : sorted()) {
+			if(!e.name.equals(lastName)) {
+				if(e.help != null)
+					sb.append("# HELP ").append(e.name).append(' ').append(e.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+				sb.append("# TYPE ").append(e.name).append(' ').append(e.metric.type()).append('\n');
+				lastName = e.name;
+			}
+			e.metric.writeText(sb, e.name, e.labels);
+		}
+		return sb.toString();
+	}
+
+	/** Everything, keyed by the name followed by the label values, e.g.
+	 * freenet_requests_total.chk.success. */
+	public SimpleFieldSet toFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		for(Entry e : sorted()) {
+			StringBuilder key = new StringBuilder(e.name);
+			for(String value : e.labelValues)
+				key.append('.').append(value);
+			e.metric.put(fs, key.toString());
+		}
+		return fs;
+	}
+
+}
@@ -0,0 +1,5 @@
+/**
+ * Counters, gauges and histograms which can be updated cheaply from busy code and exported, e.g.
+ * to Prometheus.
+ */
+package freenet.support.metrics;
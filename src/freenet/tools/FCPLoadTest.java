@@ -0,0 +1,192 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.support.io.LineReadingInputStream;
+
+/**
+ * Load test for the FCP server. Opens a number of concurrent connections, each of which
+ * repeatedly starts a ClientGet for one of the given keys and polls it with GetRequestStatus
+ * until it finishes, then removes it. Reports round trips per second and latency percentiles for
+ * the GetRequestStatus polls. Use keys which are in the node's datastore (or which fail quickly)
+ * to measure the FCP layer rather than the network.
+ *
+ * Usage: java -cp freenet.jar freenet.tools.FCPLoadTest [-h host] [-p port] [-c clients] [-d seconds] key...
+ *
+ * Compare the node's thread count (on the statistics page) with fcp.multiplexConnections on and
+ * off.
+ */
+public class FCPLoadTest {
+
+	private final String host;
+	private final int port;
+	private final String[] keys;
+	private final int clients;
+	private final long durationMillis;
+	private final AtomicInteger errors = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger connected = new AtomicInteger();
+
+	FCPLoadTest(String host, int port, String[] keys, int clients, long durationMillis) {
+		this.host = host;
+		this.port = port;
+		this.keys = keys;
+		this.clients = clients;
+		this.durationMillis = durationMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = "127.0.0.1";
+		int port = 9481;
+		int clients = 1000;
+		int seconds = 30;
+		List<String> keys = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-h") && i + 1 < args.length)
+				host = args[++i];
+			else if(args[i].equals("-p") && i + 1 < args.length)
+				port = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-c") && i + 1 < args.length)
+				clients = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-d") && i + 1 < args.length)
+				seconds = Integer.parseInt(args[++i]);
+			else
+				keys.add(args[i]);
+		}
+		if(keys.isEmpty()) {
+			System.err.println("Usage: FCPLoadTest [-h host] [-p port] [-c clients] [-d seconds] key...");
+			System.exit(1);
+		}
+		new FCPLoadTest(host, port, keys.toArray(new String[keys.size()]), clients, seconds * 1000L).run();
+	}
+
+	void run() throws InterruptedException {
+		final long end = System.currentTimeMillis() + durationMillis;
+		final long[][] latencies = new long[clients][];
+		final int[] counts = new int[clients];
+		Thread[] threads = new Thread[clients];
+		for(int i = 0; i < clients; i++) {
+			final int client = i;
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					long[] samples = new long[1024];
+					int count = 0;
+					Socket s = null;
+					try {
+						s = new Socket(host, port);
+						LineReadingInputStream is = new LineReadingInputStream(new BufferedInputStream(s.getInputStream()));
+						OutputStream os = new BufferedOutputStream(s.getOutputStream());
+						send(os, "ClientHello\nName=FCPLoadTest-"+client+"-"+System.currentTimeMillis()+"\nExpectedVersion=2.0\nEndMessage\n");
+						if(!"NodeHello".equals(readMessage(is))) throw new IOException("No NodeHello");
+						connected.incrementAndGet();
+						int next = client;
+						while(System.currentTimeMillis() < end) {
+							String id = "load-"+client+"-"+next;
+							String key = keys[next++ % keys.length];
+							send(os, "ClientGet\nIdentifier="+id+"\nURI="+key+"\nReturnType=none\nPersistence=reboot\nMaxRetries=0\nVerbosity=0\nEndMessage\n");
+							while(true) {
+								long start = System.nanoTime();
+								send(os, "GetRequestStatus\nIdentifier="+id+"\nEndMessage\n");
+								String reply = readUntilStatus(is);
+								if(count == samples.length)
+									samples = Arrays.copyOf(samples, count * 2);
+								samples[count++] = System.nanoTime() - start;
+								if(reply.equals("DataFound") || reply.equals("GetFailed")) break;
+								if(reply.equals("ProtocolError")) {
+									errors.incrementAndGet();
+									break;
+								}
+							}
+							send(os, "RemoveRequest\nIdentifier="+id+"\nEndMessage\n");
+							completed.incrementAndGet();
+						}
+					} catch (IOException e) {
+						errors.incrementAndGet();
+					} finally {
+						latencies[client] = samples;
+						counts[client] = count;
+						if(s != null) {
+							try {
+								s.close();
+							} catch (IOException e) {
+								// Ignore
+							}
+						}
+					}
+				}
+
+			}, "FCPLoadTest client "+i);
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		int total = 0;
+		for(int c : counts) total += c;
+		long[] all = new long[total];
+		int x = 0;
+		for(int i = 0; i < clients; i++) {
+			System.arraycopy(latencies[i], 0, all, x, counts[i]);
+			x += counts[i];
+		}
+		Arrays.sort(all);
+		System.out.println("Clients: "+clients+" (connected: "+connected.get()+") keys: "+keys.length+" duration: "+durationMillis+"ms");
+		System.out.println("Requests completed: "+completed.get()+" status polls: "+total+" errors: "+errors.get());
+		System.out.println("Status polls/sec: "+(total * 1000.0 / durationMillis));
+		if(total > 0) {
+			System.out.println("Latency p50: "+millis(percentile(all, 0.50))+"ms p90: "+
+					millis(percentile(all, 0.90))+"ms p99: "+millis(percentile(all, 0.99))+"ms max: "+
+					millis(all[total - 1])+"ms");
+		}
+	}
+
+	private static void send(OutputStream os, String message) throws IOException {
+		os.write(message.getBytes("UTF-8"));
+		os.flush();
+	}
+
+	/** Read one message and return its name. None of the messages we ask for carry data. */
+	private static String readMessage(LineReadingInputStream is) throws IOException {
+		String name;
+		do {
+			name = is.readLine(128, 128, true);
+			if(name == null) throw new IOException("Connection closed");
+		} while(name.isEmpty());
+		while(true) {
+			String line = is.readLine(4096, 128, true);
+			if(line == null) throw new IOException("Connection closed");
+			if(line.startsWith("End")) return name;
+		}
+	}
+
+	/** Skip progress and other messages until the reply to GetRequestStatus. */
+	private static String readUntilStatus(LineReadingInputStream is) throws IOException {
+		while(true) {
+			String name = readMessage(is);
+			if(name.equals("PersistentGet") || name.equals("SimpleProgress") || name.equals("DataFound") ||
+					name.equals("GetFailed") || name.equals("ProtocolError"))
+				return name;
+		}
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f", nanos / 1000000.0);
+	}
+
+}
@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for the web interface. Runs a number of concurrent clients, each of which
+ * repeatedly fetches the given URLs (round robin) over persistent connections, and reports
+ * requests per second and latency percentiles. Mix static files (e.g. /static/themes/...) and
+ * FProxy key URLs to exercise both paths.
+ *
+ * Usage: java -cp freenet.jar freenet.tools.FProxyLoadTest [-c clients] [-d seconds] url...
+ *
+ * Remember to enable persistent connections in the FProxy settings, otherwise every request
+ * uses a new connection.
+ */
+public class FProxyLoadTest {
+
+	private final URL[] urls;
+	private final int clients;
+	private final long durationMillis;
+	private final AtomicInteger errors = new AtomicInteger();
+
+	FProxyLoadTest(URL[] urls, int clients, long durationMillis) {
+		this.urls = urls;
+		this.clients = clients;
+		this.durationMillis = durationMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = 50;
+		int seconds = 30;
+		List<URL> urls = new ArrayList<URL>();
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-c") && i + 1 < args.length)
+				clients = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-d") && i + 1 < args.length)
+				seconds = Integer.parseInt(args[++i]);
+			else
+				urls.add(new URL(args[i]));
+		}
+		if(urls.isEmpty()) {
+			System.err.println("Usage: FProxyLoadTest [-c clients] [-d seconds] url...");
+			System.exit(1);
+		}
+		new FProxyLoadTest(urls.toArray(new URL[urls.size()]), clients, seconds * 1000L).run();
+	}
+
+	void run() throws InterruptedException {
+		final long end = System.currentTimeMillis() + durationMillis;
+		final long[][] latencies = new long[clients][];
+		final int[] counts = new int[clients];
+		Thread[] threads = new Thread[clients];
+		for(int i = 0; i < clients; i++) {
+			final int client = i;
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					long[] samples = new long[1024];
+					int count = 0;
+					int next = client;
+					byte[] buf = new byte[32768];
+					while(System.currentTimeMillis() < end) {
+						URL url = urls[next++ % urls.length];
+						long start = System.nanoTime();
+						if(!fetch(url, buf)) continue;
+						if(count == samples.length)
+							samples = Arrays.copyOf(samples, count * 2);
+						samples[count++] = System.nanoTime() - start;
+					}
+					latencies[client] = samples;
+					counts[client] = count;
+				}
+
+			}, "FProxyLoadTest client "+i);
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		int total = 0;
+		for(int c : counts) total += c;
+		long[] all = new long[total];
+		int x = 0;
+		for(int i = 0; i < clients; i++) {
+			System.arraycopy(latencies[i], 0, all, x, counts[i]);
+			x += counts[i];
+		}
+		Arrays.sort(all);
+		System.out.println("Clients: "+clients+" URLs: "+urls.length+" duration: "+durationMillis+"ms");
+		System.out.println("Requests: "+total+" errors: "+errors.get());
+		System.out.println("Requests/sec: "+(total * 1000.0 / durationMillis));
+		if(total > 0) {
+			System.out.println("Latency p50: "+millis(percentile(all, 0.50))+"ms p90: "+
+					millis(percentile(all, 0.90))+"ms p99: "+millis(percentile(all, 0.99))+"ms max: "+
+					millis(all[total - 1])+"ms");
+		}
+	}
+
+	private boolean fetch(URL url, byte[] buf) {
+		HttpURLConnection conn = null;
+		try {
+			conn = (HttpURLConnection) url.openConnection();
+			conn.setInstanceFollowRedirects(false);
+			int code = conn.getResponseCode();
+			InputStream is = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+			if(is != null) {
+				// Read to the end so the connection can be reused.
+				while(is.read(buf) != -1);
+				is.close();
+			}
+			if(code >= 400) {
+				errors.incrementAndGet();
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			errors.incrementAndGet();
+			if(conn != null) conn.disconnect();
+			return false;
+		}
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f", nanos / 1000000.0);
+	}
+
+}
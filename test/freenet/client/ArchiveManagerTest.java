@@ -0,0 +1,430 @@
+package freenet.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.crypt.MasterSecret;
+import freenet.keys.FreenetURI;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.TempBucketFactory;
+
+public class ArchiveManagerTest extends TestCase {
+
+	private static final long MAX_ARCHIVE_SIZE = 64 * 1024 * 1024;
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	/** Counts buckets and bytes written. */
+	private static class CountingBucketFactory implements BucketFactory {
+		private final BucketFactory factory;
+		long buckets;
+		long bytes;
+
+		CountingBucketFactory(BucketFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public RandomAccessBucket makeBucket(long size) throws IOException {
+			buckets++;
+			return new CountingBucket(factory.makeBucket(size));
+		}
+
+		private class CountingBucket implements RandomAccessBucket {
+			private final RandomAccessBucket bucket;
+
+			CountingBucket(RandomAccessBucket bucket) {
+				this.bucket = bucket;
+			}
+
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				return new FilterOutputStream(bucket.getOutputStream()) {
+					@Override
+					public void write(byte[] buf, int offset, int length) throws IOException {
+						bytes += length;
+						out.write(buf, offset, length);
+					}
+				};
+			}
+
+			@Override
+			public OutputStream getOutputStreamUnbuffered() throws IOException {
+				return getOutputStream();
+			}
+
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return bucket.getInputStream();
+			}
+
+			@Override
+			public InputStream getInputStreamUnbuffered() throws IOException {
+				return bucket.getInputStreamUnbuffered();
+			}
+
+			@Override
+			public String getName() {
+				return bucket.getName();
+			}
+
+			@Override
+			public long size() {
+				return bucket.size();
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return bucket.isReadOnly();
+			}
+
+			@Override
+			public void setReadOnly() {
+				bucket.setReadOnly();
+			}
+
+			@Override
+			public void free() {
+				bucket.free();
+			}
+
+			@Override
+			public RandomAccessBucket createShadow() {
+				return null;
+			}
+
+			@Override
+			public void onResume(ClientContext context) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void storeTo(DataOutputStream dos) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+				return bucket.toRandomAccessBuffer();
+			}
+		}
+	}
+
+	private static class Callback implements ArchiveExtractCallback {
+		private static final long serialVersionUID = 1L;
+		Bucket data;
+		long time;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			this.data = data;
+			time = System.nanoTime();
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			fail(e.toString());
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			fail(e.toString());
+		}
+	}
+
+	private static byte[][] makeFiles(int count, int maxSize, Random random) {
+		byte[][] files = new byte[count][];
+		for(int i = 0; i < count; i++) {
+			files[i] = new byte[random.nextInt(maxSize)];
+			random.nextBytes(files[i]);
+		}
+		return files;
+	}
+
+	private static String name(int i) {
+		return "dir" + (i % 10) + "/file" + i + ".html";
+	}
+
+	private static Bucket makeZip(byte[][] files) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		for(int i = 0; i < files.length; i++) {
+			ZipEntry entry = new ZipEntry(name(i));
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(files[i].length);
+			CRC32 crc = new CRC32();
+			crc.update(files[i]);
+			entry.setCrc(crc.getValue());
+			zos.putNextEntry(entry);
+			zos.write(files[i]);
+			zos.closeEntry();
+		}
+		zos.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private static FreenetURI key(int i) throws MalformedURLException {
+		return new FreenetURI("KSK@archive-" + i);
+	}
+
+	private static Callback extract(ArchiveManager manager, FreenetURI key, Bucket zip, String element) throws ArchiveFailureException, ArchiveRestartException {
+		ArchiveHandler handler = manager.makeHandler(key, ARCHIVE_TYPE.ZIP, null, false, false);
+		Callback callback = new Callback();
+		handler.extractToCache(zip, new ArchiveContext(MAX_ARCHIVE_SIZE, 1), element, callback, manager, null);
+		return callback;
+	}
+
+	private static void checkCached(ArchiveManager manager, FreenetURI key, byte[][] files) throws IOException, ArchiveFailureException {
+		for(int i = 0; i < files.length; i++) {
+			Bucket data = manager.getCached(key, name(i));
+			assertNotNull(name(i), data);
+			assertTrue(Arrays.equals(files[i], BucketTools.toByteArray(data)));
+			data.free();
+		}
+		assertNotNull(manager.getCached(key, ".metadata"));
+	}
+
+	public void testExtract() throws IOException, ArchiveFailureException, ArchiveRestartException {
+		byte[][] files = makeFiles(100, 5000, new Random(1));
+		Bucket zip = makeZip(files);
+		for(boolean indexed : new boolean[] { false, true }) {
+			ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 1024 * 1024, 1000, new ArrayBucketFactory());
+			manager.setIndexedExtraction(indexed);
+			Callback callback = extract(manager, key(0), zip, name(50));
+			assertTrue(Arrays.equals(files[50], BucketTools.toByteArray(callback.data)));
+			checkCached(manager, key(0), files);
+			assertTrue(extract(manager, key(1), zip, "missing.html").notInArchive);
+		}
+	}
+
+	/** Files bigger than the limit aren't cached, but we still get the one we asked for. */
+	public void testTooBig() throws IOException, ArchiveFailureException, ArchiveRestartException {
+		byte[][] files = makeFiles(20, 2000, new Random(2));
+		files[3] = new byte[5000];
+		files[4] = new byte[5000];
+		Bucket zip = makeZip(files);
+		ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 4000, 1000, new ArrayBucketFactory());
+		Callback callback = extract(manager, key(0), zip, name(3));
+		assertTrue(Arrays.equals(files[3], BucketTools.toByteArray(callback.data)));
+		assertNull(manager.getCached(key(0), name(3)));
+		assertNull(manager.getCached(key(0), name(4)));
+		assertNotNull(manager.getCached(key(0), name(5)));
+	}
+
+	/** The container is freed once all its files have been dropped from the cache, and the
+	 * buckets returned have been freed. */
+	public void testContainerFreed() throws IOException, ArchiveFailureException, ArchiveRestartException {
+		byte[][] files = makeFiles(50, 2000, new Random(3));
+		Bucket zip = makeZip(files);
+		File dir = new File("tmp.archive-manager-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+		try {
+			Random random = new Random(3);
+			// Everything in RAM, so we can see what has been freed.
+			TempBucketFactory tbf = new TempBucketFactory(new PooledExecutor(),
+					new FilenameGenerator(random, false, dir, "archive-test-"), 1024 * 1024, 1024 * 1024,
+					random, false, 0, null);
+			CountingBucketFactory factory = new CountingBucketFactory(tbf);
+			ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 1024 * 1024, 1000, factory);
+			Callback callback = extract(manager, key(0), zip, name(0));
+			// The container and the generated metadata.
+			assertEquals(2, factory.buckets);
+			Bucket data = manager.getCached(key(0), name(1));
+			manager.makeContext(key(0), ARCHIVE_TYPE.ZIP, null, true).removeAllCachedItems(manager);
+			assertNull(manager.getCached(key(0), name(1)));
+			assertTrue(tbf.getRamUsed() > 0);
+			assertTrue(Arrays.equals(files[1], BucketTools.toByteArray(data)));
+			assertTrue(Arrays.equals(files[0], BucketTools.toByteArray(callback.data)));
+			data.free();
+			assertTrue(tbf.getRamUsed() > 0);
+			callback.data.free();
+			assertEquals(0, tbf.getRamUsed());
+		} finally {
+			FileUtil.removeAll(dir);
+		}
+	}
+
+	/** Any file left in the cache keeps the whole container, so that is what is counted. */
+	public void testContainerCounted() throws IOException, ArchiveFailureException, ArchiveRestartException {
+		byte[][] files = makeFiles(50, 2000, new Random(5));
+		long total = 0;
+		for(byte[] file : files)
+			total += file.length;
+		Bucket zip = makeZip(files);
+		// Only 10 files fit, but they still hold all of the container.
+		ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 1024 * 1024, 11, new ArrayBucketFactory());
+		extract(manager, key(0), zip, name(0)).data.free();
+		assertNull(manager.getCached(key(0), name(0)));
+		Bucket data = manager.getCached(key(0), name(49));
+		assertTrue(Arrays.equals(files[49], BucketTools.toByteArray(data)));
+		data.free();
+		long metadata = manager.getCachedData() - total;
+		assertTrue(metadata > 0 && metadata < total);
+		manager.makeContext(key(0), ARCHIVE_TYPE.ZIP, null, true).removeAllCachedItems(manager);
+		assertEquals(0, manager.getCachedData());
+		// A container bigger than the limit is not kept at all.
+		manager = new ArchiveManager(10, total / 2, 1024 * 1024, 1000, new ArrayBucketFactory());
+		Callback callback = extract(manager, key(0), zip, name(3));
+		assertTrue(Arrays.equals(files[3], BucketTools.toByteArray(callback.data)));
+		for(int i = 0; i < files.length; i++)
+			assertNull(manager.getCached(key(0), name(i)));
+		assertTrue(manager.getCachedData() <= total / 2);
+	}
+
+	/** One file of a container being dropped while the next is being added still leaves the
+	 * container counted once. */
+	public void testContainerCountedOnce() throws IOException, ArchiveFailureException {
+		ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 1024 * 1024, 1000, new ArrayBucketFactory());
+		ArchiveStoreContext ctx = manager.makeContext(key(0), ARCHIVE_TYPE.ZIP, null, false);
+		byte[][] files = makeFiles(2, 2000, new Random(6));
+		IndexedArchiveStoreItem.Container container = new IndexedArchiveStoreItem.Container(new ArrayBucket());
+		byte[] buf = new byte[4096];
+		for(int i = 0; i < files.length; i++)
+			assertTrue(container.add(name(i), new ByteArrayInputStream(files[i]), -1, buf));
+		Bucket ref = container.finish();
+		IndexedArchiveStoreItem first = new IndexedArchiveStoreItem(ctx, key(0), name(0), container,
+				container.offset(0), container.length(0));
+		long cached = first.onCached();
+		assertEquals(container.written(), cached);
+		// The second is created, then the first is dropped before the second is added.
+		IndexedArchiveStoreItem second = new IndexedArchiveStoreItem(ctx, key(0), name(1), container,
+				container.offset(1), container.length(1));
+		cached -= first.onUncached();
+		first.innerClose();
+		cached += second.onCached();
+		assertEquals(container.written(), cached);
+		cached -= second.onUncached();
+		assertEquals(0, cached);
+		// Dropping it again doesn't refund it again.
+		assertEquals(0, second.onUncached());
+		second.innerClose();
+		ref.free();
+	}
+
+	/** Archives extracted at the same time, evicting each other's files, are all counted and
+	 * uncounted exactly once. */
+	public void testConcurrentExtractCounted() throws Exception {
+		final byte[][] files = makeFiles(50, 2000, new Random(7));
+		final Bucket zip = makeZip(files);
+		long total = 0;
+		for(byte[] file : files)
+			total += file.length;
+		// Room for about one and a half containers.
+		final ArchiveManager manager = new ArchiveManager(100, total * 3 / 2, 1024 * 1024, 1000, new ArrayBucketFactory());
+		final int rounds = 20;
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			final int t = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int j = 0; j < rounds; j++)
+							extract(manager, key(t * rounds + j), zip, name(j)).data.free();
+					} catch (Throwable e) {
+						synchronized(failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		synchronized(failure) {
+			if(failure[0] != null) {
+				AssertionFailedError e = new AssertionFailedError("Extracting failed: " + failure[0]);
+				e.initCause(failure[0]);
+				throw e;
+			}
+		}
+		for(int i = 0; i < threads.length * rounds; i++)
+			manager.makeContext(key(i), ARCHIVE_TYPE.ZIP, null, true).removeAllCachedItems(manager);
+		assertEquals(0, manager.getCachedData());
+	}
+
+	/** Time until we have the page we asked for, time to extract everything, and the temp
+	 * buckets and bytes written, for a freesite with 5,000 files. */
+	public void testBenchmark() throws IOException, ArchiveFailureException, ArchiveRestartException {
+		if(!TestProperty.BENCHMARK) return;
+		int count = TestProperty.EXTENSIVE ? 20000 : 5000;
+		byte[][] files = makeFiles(count, 8192, new Random(4));
+		Bucket zip = makeZip(files);
+		File dir = new File("tmp.archive-manager-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+		try {
+			Random random = new Random(5);
+			FilenameGenerator fg = new FilenameGenerator(random, false, dir, "archive-test-");
+			MasterSecret secret = new MasterSecret();
+			for(int round = 0; round < 3; round++) {
+				for(boolean indexed : new boolean[] { false, true }) {
+					// The node's defaults: 2MB of RAM buckets of up to 128KB each.
+					TempBucketFactory tbf = new TempBucketFactory(new PooledExecutor(), fg, 128 * 1024,
+							2 * 1024 * 1024, random, true, 0, secret);
+					CountingBucketFactory factory = new CountingBucketFactory(tbf);
+					ArchiveManager manager = new ArchiveManager(200, 32 * 1024 * 1024, 1024 * 1024, 256 * 1024, factory);
+					manager.setIndexedExtraction(indexed);
+					long start = System.nanoTime();
+					Callback callback = extract(manager, key(round), zip, name(count / 2));
+					long extracted = System.nanoTime() - start;
+					long firstPage = callback.time - start;
+					assertTrue(Arrays.equals(files[count / 2], BucketTools.toByteArray(callback.data)));
+					long read = System.nanoTime();
+					for(int i = 0; i < count; i += 97)
+						BucketTools.toByteArray(manager.getCached(key(round), name(i)));
+					read = System.nanoTime() - read;
+					System.out.println(count + " files, " + zip.size() + " bytes, " + (indexed ? "indexed" : "a bucket per file") +
+							": first page after " + firstPage / 1000000 + "ms, all extracted after " +
+							extracted / 1000000 + "ms, " + factory.buckets + " temp buckets, " + factory.bytes + " bytes written, " +
+							(read / (count / 97 + 1) / 1000) + "us per cached file");
+				}
+			}
+		} finally {
+			FileUtil.removeAll(dir);
+		}
+	}
+
+}
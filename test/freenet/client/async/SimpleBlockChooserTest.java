@@ -0,0 +1,223 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+import freenet.support.io.StorageFormatException;
+
+public class SimpleBlockChooserTest extends TestCase {
+
+	/** Blocks which are being fetched aren't valid, as with KeysFetchingLocally. */
+	private static class FetchingBlockChooser extends CooldownBlockChooser {
+		final boolean[] fetching;
+
+		FetchingBlockChooser(int blocks, Random random, int maxRetries, int cooldownTries, long cooldownTime) {
+			super(blocks, random, maxRetries, cooldownTries, cooldownTime);
+			fetching = new boolean[blocks];
+		}
+
+		@Override
+		protected boolean checkValid(int chosen) {
+			if(!super.checkValid(chosen)) return false;
+			return !fetching[chosen];
+		}
+	}
+
+	/** Only the least retried blocks are chosen, at random. */
+	public void testLeastRetried() {
+		SimpleBlockChooser chooser = new SimpleBlockChooser(10, new Random(1), 5);
+		for(int i = 0; i < 10; i++)
+			if(i != 3 && i != 7) chooser.onNonFatalFailure(i);
+		int[] counts = new int[10];
+		for(int i = 0; i < 1000; i++)
+			counts[chooser.chooseKey()]++;
+		for(int i = 0; i < 10; i++) {
+			if(i == 3 || i == 7)
+				assertTrue(counts[i] > 400);
+			else
+				assertEquals(0, counts[i]);
+		}
+		chooser.onNonFatalFailure(3);
+		for(int i = 0; i < 100; i++)
+			assertEquals(7, chooser.chooseKey());
+		chooser.onSuccess(7);
+		counts = new int[10];
+		for(int i = 0; i < 2000; i++)
+			counts[chooser.chooseKey()]++;
+		for(int i = 0; i < 10; i++) {
+			if(i == 7)
+				assertEquals(0, counts[i]);
+			else
+				assertTrue(counts[i] > 100);
+		}
+	}
+
+	/** Blocks are chosen up to and including maxRetries failures. */
+	public void testMaxRetries() {
+		SimpleBlockChooser chooser = new SimpleBlockChooser(2, new Random(1), 2);
+		assertFalse(chooser.onNonFatalFailure(0));
+		assertFalse(chooser.onNonFatalFailure(0));
+		assertTrue(chooser.onNonFatalFailure(0));
+		for(int i = 0; i < 10; i++)
+			assertEquals(1, chooser.chooseKey());
+		chooser.onSuccess(1);
+		assertEquals(-1, chooser.chooseKey());
+		assertEquals(1, chooser.countFailedBlocks());
+		chooser.onUnSuccess(1);
+		assertEquals(1, chooser.chooseKey());
+	}
+
+	/** Invalid blocks are skipped, falling back to blocks which have been retried more. */
+	public void testInvalid() {
+		FetchingBlockChooser chooser = new FetchingBlockChooser(200, new Random(1), -1, 1000, 1000);
+		for(int i = 0; i < 200; i++) {
+			if(i % 2 == 0) chooser.onNonFatalFailure(i);
+			if(i % 2 == 1) chooser.fetching[i] = true;
+		}
+		chooser.fetching[101] = false;
+		assertEquals(101, chooser.chooseKey());
+		chooser.fetching[101] = true;
+		boolean[] seen = new boolean[200];
+		for(int i = 0; i < 5000; i++) {
+			int chosen = chooser.chooseKey();
+			assertEquals(0, chosen % 2);
+			seen[chosen] = true;
+		}
+		for(int i = 0; i < 200; i += 2)
+			assertTrue(seen[i]);
+		for(int i = 0; i < 200; i += 2)
+			chooser.fetching[i] = true;
+		assertEquals(-1, chooser.chooseKey());
+	}
+
+	public void testCooldown() {
+		FetchingBlockChooser chooser = new FetchingBlockChooser(3, new Random(1), -1, 2, 100000);
+		chooser.onNonFatalFailure(0);
+		assertEquals(0, chooser.overallCooldownTime());
+		chooser.onNonFatalFailure(0);
+		long cooldown = chooser.getCooldownTime(0);
+		assertTrue(cooldown > System.currentTimeMillis());
+		chooser.onSuccess(1);
+		chooser.fetching[2] = true;
+		assertEquals(-1, chooser.chooseKey());
+		assertEquals(cooldown, chooser.overallCooldownTime());
+		chooser.fetching[2] = false;
+		// Still waiting until something changes.
+		assertEquals(-1, chooser.chooseKey());
+		chooser.clearCooldown();
+		assertEquals(2, chooser.chooseKey());
+		// A further failure takes it out of cooldown.
+		chooser.onNonFatalFailure(0);
+		assertEquals(0, chooser.getCooldownTime(0));
+		chooser.fetching[2] = true;
+		assertEquals(0, chooser.chooseKey());
+	}
+
+	public void testCooldownExpires() throws InterruptedException {
+		FetchingBlockChooser chooser = new FetchingBlockChooser(2, new Random(1), -1, 1, 50);
+		chooser.onNonFatalFailure(0);
+		chooser.onNonFatalFailure(1);
+		assertEquals(-1, chooser.chooseKey());
+		Thread.sleep(100);
+		int chosen = chooser.chooseKey();
+		assertTrue(chosen == 0 || chosen == 1);
+		assertEquals(0, chooser.getCooldownTime(chosen));
+	}
+
+	/** Only blocks below getMaxBlockNumber() are chosen, as with an insert before encoding. */
+	public void testMaxBlockNumber() {
+		final int[] max = new int[] { 70 };
+		SimpleBlockChooser chooser = new SimpleBlockChooser(130, new Random(1), -1) {
+			@Override
+			protected int getMaxBlockNumber() {
+				return max[0];
+			}
+		};
+		for(int i = 0; i < 1000; i++)
+			assertTrue(chooser.chooseKey() < 70);
+		max[0] = 130;
+		boolean high = false;
+		for(int i = 0; i < 1000; i++)
+			if(chooser.chooseKey() >= 70) high = true;
+		assertTrue(high);
+	}
+
+	public void testPersistence() throws IOException, StorageFormatException {
+		SimpleBlockChooser chooser = new SimpleBlockChooser(100, new Random(1), 3);
+		for(int i = 0; i < 100; i++) {
+			if(i % 3 == 0) chooser.onSuccess(i);
+			for(int j = 0; j < i % 5; j++)
+				chooser.onNonFatalFailure(i);
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		chooser.write(new DataOutputStream(baos));
+		SimpleBlockChooser read = new SimpleBlockChooser(100, new Random(1), 3);
+		read.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+		assertEquals(chooser.successCount(), read.successCount());
+		assertEquals(chooser.countFailedBlocks(), read.countFailedBlocks());
+		for(int i = 0; i < 100; i++) {
+			assertEquals(chooser.getRetries(i), read.getRetries(i));
+			assertEquals(chooser.hasSucceeded(i), read.hasSucceeded(i));
+		}
+		// Least retried, not succeeded: 1 mod 5, not 0 mod 3.
+		for(int i = 0; i < 1000; i++) {
+			int chosen = read.chooseKey();
+			assertEquals(0, chosen % 5);
+			assertTrue(chosen % 3 != 0);
+		}
+		// Retries only.
+		baos = new ByteArrayOutputStream();
+		chooser.writeRetries(new DataOutputStream(baos));
+		assertEquals(400, baos.size());
+		read = new SimpleBlockChooser(100, new Random(1), 3);
+		read.readRetries(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+		for(int i = 0; i < 100; i++)
+			assertEquals(chooser.getRetries(i), read.getRetries(i));
+	}
+
+	/** Choosing blocks from a segment of 128 data and 128 check blocks, and failing most of them,
+	 * with 1, 8 and 32 requests running at a time. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int blocks = 256;
+		int rounds = TestProperty.EXTENSIVE ? 10000000 : 2000000;
+		for(int pass = 0; pass < 3; pass++) {
+			for(int inFlight : new int[] { 1, 8, 32 }) {
+				Random random = new Random(pass);
+				FetchingBlockChooser chooser = new FetchingBlockChooser(blocks, random, -1, Integer.MAX_VALUE, 0);
+				ArrayDeque<Integer> fetching = new ArrayDeque<Integer>();
+				int succeeded = 0;
+				long start = System.nanoTime();
+				for(int i = 0; i < rounds; i++) {
+					if(fetching.size() < inFlight && chooser.successCount() + fetching.size() < blocks) {
+						int block = chooser.chooseKey();
+						assertTrue(block != -1);
+						chooser.fetching[block] = true;
+						fetching.addLast(block);
+						continue;
+					}
+					int block = fetching.removeFirst();
+					chooser.fetching[block] = false;
+					if(random.nextInt(20) == 0 && succeeded < blocks - inFlight * 2) {
+						chooser.onSuccess(block);
+						succeeded++;
+					} else {
+						chooser.onNonFatalFailure(block);
+					}
+				}
+				long time = System.nanoTime() - start;
+				System.out.println(blocks + " block segment, " + inFlight + " requests running: " + (time / (rounds / 2)) +
+						"ns to choose a block and fail it");
+			}
+		}
+	}
+
+}
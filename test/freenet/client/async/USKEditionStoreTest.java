@@ -0,0 +1,200 @@
+package freenet.client.async;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.USK;
+import freenet.node.DatabaseKey;
+import freenet.support.CheatingTicker;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.WaitableExecutor;
+import freenet.support.io.FileUtil;
+
+public class USKEditionStoreTest extends TestCase {
+
+	private WaitableExecutor exec;
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		exec = new WaitableExecutor(new PooledExecutor());
+		dir = new File("tmp.usk-edition-store-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		exec.waitForIdle();
+		FileUtil.removeAll(dir);
+	}
+
+	private USKEditionStore makeStore(int maxUSKs) {
+		return new USKEditionStore(new CheatingTicker(exec), maxUSKs);
+	}
+
+	/** Cheap USKs: random pubkey hashes, with valid extra bytes. */
+	private static List<USK> makeUSKs(int count) throws MalformedURLException {
+		DummyRandomSource random = new DummyRandomSource(1234);
+		byte[] extra = InsertableClientSSK.createRandom(random, "site").getURI().getExtra();
+		List<USK> usks = new ArrayList<USK>(count);
+		for(int i = 0; i < count; i++) {
+			byte[] pubKeyHash = new byte[32];
+			byte[] cryptoKey = new byte[32];
+			random.nextBytes(pubKeyHash);
+			random.nextBytes(cryptoKey);
+			usks.add(new USK(pubKeyHash, cryptoKey, extra, "site" + i, 0));
+		}
+		return usks;
+	}
+
+	public void testWriteAndLoad() throws MalformedURLException {
+		USKEditionStore store = makeStore(1000);
+		assertTrue(store.setFilesAndLoad(dir, false, false, null).isEmpty());
+		List<USK> usks = makeUSKs(100);
+		for(int i = 0; i < usks.size(); i++)
+			store.update(usks.get(i), i, i + 10);
+		// Only goes up.
+		store.update(usks.get(0), -1, 5);
+		store.update(usks.get(0), 3, -1);
+		exec.waitForIdle();
+		assertTrue(new File(dir, USKEditionStore.FILENAME).exists());
+		Map<USK, long[]> loaded = makeStore(1000).setFilesAndLoad(dir, false, false, null);
+		assertEquals(100, loaded.size());
+		// Least recently updated first.
+		int i = 1;
+		for(Map.Entry<USK, long[]> e : loaded.entrySet()) {
+			int index = i++ % usks.size();
+			assertEquals(usks.get(index), e.getKey());
+			assertEquals(index == 0 ? 3 : index, e.getValue()[0]);
+			assertEquals(index + 10, e.getValue()[1]);
+		}
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		byte[] buf = new byte[(int) f.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(f));
+		try {
+			dis.readFully(buf);
+		} finally {
+			dis.close();
+		}
+		return buf;
+	}
+
+	public void testEncrypted() throws IOException {
+		DatabaseKey key = DatabaseKey.createRandom(new DummyRandomSource(1));
+		USKEditionStore store = makeStore(1000);
+		store.setFilesAndLoad(dir, true, false, key);
+		List<USK> usks = makeUSKs(10);
+		for(int i = 0; i < usks.size(); i++)
+			store.update(usks.get(i), i, i);
+		exec.waitForIdle();
+		File crypt = new File(dir, USKEditionStore.FILENAME + ".crypt");
+		File plain = new File(dir, USKEditionStore.FILENAME);
+		assertTrue(crypt.exists());
+		assertFalse(plain.exists());
+		// Padded.
+		assertTrue(crypt.length() >= USKEditionStore.PADDING);
+		// Can't read it without the key, and doesn't delete it.
+		assertTrue(makeStore(1000).setFilesAndLoad(dir, false, false, null).isEmpty());
+		assertTrue(makeStore(1000).setFilesAndLoad(dir, true, false, null).isEmpty());
+		exec.waitForIdle();
+		assertTrue(crypt.exists());
+		assertFalse(plain.exists());
+		// Physical security level goes to LOW.
+		store = makeStore(1000);
+		assertEquals(10, store.setFilesAndLoad(dir, true, false, key).size());
+		store.setFilesAndLoad(dir, false, false, key);
+		exec.waitForIdle();
+		assertTrue(plain.exists());
+		assertFalse(crypt.exists());
+		// And then to MAXIMUM.
+		store.setFilesAndLoad(dir, false, true, key);
+		store.update(usks.get(0), 100, 100);
+		exec.waitForIdle();
+		assertFalse(plain.exists());
+		assertFalse(crypt.exists());
+		// Wrong key.
+		store = makeStore(1000);
+		store.setFilesAndLoad(dir, true, false, key);
+		store.update(usks.get(0), 100, 100);
+		exec.waitForIdle();
+		assertTrue(crypt.exists());
+		byte[] before = readFile(crypt);
+		DatabaseKey wrongKey = DatabaseKey.createRandom(new DummyRandomSource(2));
+		store = makeStore(1000);
+		assertTrue(store.setFilesAndLoad(dir, true, false, wrongKey).isEmpty());
+		store.update(usks.get(1), 200, 200);
+		exec.waitForIdle();
+		// Not overwritten.
+		assertTrue(Arrays.equals(before, readFile(crypt)));
+		assertFalse(plain.exists());
+		// Still readable with the right key.
+		assertEquals(1, makeStore(1000).setFilesAndLoad(dir, true, false, key).size());
+		exec.waitForIdle();
+	}
+
+	public void testBounded() throws MalformedURLException {
+		USKEditionStore store = makeStore(10);
+		store.setFilesAndLoad(dir, false, false, null);
+		List<USK> usks = makeUSKs(20);
+		for(int i = 0; i < usks.size(); i++)
+			store.update(usks.get(i), i, i);
+		assertEquals(10, store.size());
+		exec.waitForIdle();
+		Map<USK, long[]> loaded = makeStore(10).setFilesAndLoad(dir, false, false, null);
+		assertEquals(10, loaded.size());
+		for(int i = 10; i < 20; i++)
+			assertEquals(i, loaded.get(usks.get(i))[1]);
+	}
+
+	/** Time to write and load the editions of many subscribed USKs, and the size of the file. */
+	public void testBenchmark() throws MalformedURLException {
+		if(!TestProperty.BENCHMARK) return;
+		int count = TestProperty.EXTENSIVE ? USKEditionStore.DEFAULT_MAX_USKS : 5000;
+		List<USK> usks = makeUSKs(count);
+		Random random = new Random(1234);
+		DatabaseKey key = DatabaseKey.createRandom(new DummyRandomSource(1));
+		for(boolean encrypt : new boolean[] { false, true }) {
+			for(int round = 0; round < 3; round++) {
+				FileUtil.removeAll(dir);
+				dir.mkdir();
+				USKEditionStore store = makeStore(count);
+				store.setFilesAndLoad(dir, encrypt, false, key);
+				exec.waitForIdle();
+				for(USK usk : usks) {
+					long edition = random.nextInt(1000);
+					store.update(usk, edition, edition + random.nextInt(3));
+				}
+				exec.waitForIdle();
+				long start = System.nanoTime();
+				store.update(usks.get(0), 1000, 1000);
+				store.write();
+				long written = System.nanoTime();
+				Map<USK, long[]> loaded = makeStore(count).setFilesAndLoad(dir, encrypt, false, key);
+				long read = System.nanoTime();
+				assertEquals(count, loaded.size());
+				File f = new File(dir, USKEditionStore.FILENAME + (encrypt ? ".crypt" : ""));
+				System.out.println(count + " USKs" + (encrypt ? " encrypted" : "") + ": write " +
+						(written - start) / 1000000 + "ms, load " + (read - written) / 1000000 + "ms, " +
+						f.length() + " bytes");
+				exec.waitForIdle();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,247 @@
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.USK;
+import freenet.support.TestProperty;
+
+public class USKPollSchedulerTest extends TestCase {
+
+	private static List<USK> makeUSKs(int count) throws MalformedURLException {
+		DummyRandomSource random = new DummyRandomSource(1234);
+		byte[] extra = InsertableClientSSK.createRandom(random, "site").getURI().getExtra();
+		List<USK> usks = new ArrayList<USK>(count);
+		for(int i = 0; i < count; i++) {
+			byte[] pubKeyHash = new byte[32];
+			byte[] cryptoKey = new byte[32];
+			random.nextBytes(pubKeyHash);
+			random.nextBytes(cryptoKey);
+			usks.add(new USK(pubKeyHash, cryptoKey, extra, "site" + i, 0));
+		}
+		return usks;
+	}
+
+	/** A USK which is never updated backs off to once a day. */
+	public void testBackOff() throws MalformedURLException {
+		USKPollScheduler scheduler = new USKPollScheduler(null, null, 1000);
+		USK usk = makeUSKs(1).get(0);
+		Random random = new Random(1);
+		long now = 1;
+		long total = 0;
+		for(int i = 0; i < 30; i++) {
+			long next = scheduler.onRoundFinished(usk, false, now, random);
+			assertTrue(next >= now);
+			assertTrue(next - now <= USKPollScheduler.MAX_INTERVAL);
+			if(i >= 10) total += next - now;
+			now = next;
+		}
+		assertTrue(total / 20 >= USKPollScheduler.MAX_INTERVAL / 4);
+	}
+
+	/** A USK which is updated regularly is polled a few times per update, and less often the
+	 * longer it has been quiet. */
+	public void testAdaptive() throws MalformedURLException {
+		USKPollScheduler scheduler = new USKPollScheduler(null, null, 1000);
+		USK usk = makeUSKs(1).get(0);
+		Random random = new Random(1);
+		long period = HOURS.toMillis(8);
+		long interval = period / USKPollScheduler.POLLS_PER_UPDATE;
+		long now = 1;
+		for(int i = 0; i < 10; i++) {
+			assertEquals(now, scheduler.onRoundFinished(usk, true, now, random));
+			long next = scheduler.onRoundFinished(usk, false, now, random);
+			if(i > 2) {
+				assertTrue(next - now >= interval / 2);
+				assertTrue(next - now < interval * 3 / 2);
+			}
+			now += period;
+		}
+		assertTrue(scheduler.averageDetectionDelay() >= 0);
+		// Goes quiet.
+		for(int i = 0; i < 20; i++)
+			now = scheduler.onRoundFinished(usk, false, now, random);
+		long gap = scheduler.onRoundFinished(usk, false, now, random) - now;
+		assertTrue(gap > period);
+		assertTrue(gap < USKPollScheduler.MAX_INTERVAL * 3 / 2);
+	}
+
+	public void testBudget() {
+		int perHour = 1200;
+		USKPollScheduler scheduler = new USKPollScheduler(null, null, perHour);
+		Runnable poll = new Runnable() {
+
+			@Override
+			public void run() {
+				// Do nothing.
+			}
+
+		};
+		long now = HOURS.toMillis(1);
+		for(int i = 0; i < 500; i++)
+			scheduler.queue(poll, now - i);
+		// A burst of 5 minutes' worth.
+		assertEquals(perHour / 12, scheduler.runDue(now).size());
+		assertEquals(0, scheduler.runDue(now).size());
+		assertEquals(perHour / 60, scheduler.runDue(now + MINUTES.toMillis(1)).size());
+		// Not due yet.
+		scheduler = new USKPollScheduler(null, null, perHour);
+		scheduler.queue(poll, now + 1);
+		assertEquals(0, scheduler.runDue(now).size());
+		assertEquals(1, scheduler.runDue(now + 1).size());
+		assertEquals(0, scheduler.queued());
+	}
+
+	public void testDateHints() throws MalformedURLException {
+		USKPollScheduler scheduler = new USKPollScheduler(null, null, 1000);
+		List<USK> usks = makeUSKs(2);
+		assertTrue(scheduler.shouldFetchDateHints(usks.get(0)));
+		// Until a hint is actually found, e.g. the first attempt failed.
+		assertTrue(scheduler.shouldFetchDateHints(usks.get(0)));
+		scheduler.onDateHintFetched(usks.get(0));
+		assertFalse(scheduler.shouldFetchDateHints(usks.get(0)));
+		assertTrue(scheduler.shouldFetchDateHints(usks.get(1)));
+	}
+
+	public void testPollsLastHour() throws MalformedURLException {
+		USKPollScheduler scheduler = new USKPollScheduler(null, null, 1000);
+		USK usk = makeUSKs(1).get(0);
+		Random random = new Random(1);
+		long start = DAYS.toMillis(1);
+		for(int i = 0; i < 90; i++)
+			scheduler.onRoundFinished(usk, false, start + MINUTES.toMillis(i), random);
+		assertEquals(60, scheduler.pollsLastHour(start + MINUTES.toMillis(89)));
+		assertEquals(30, scheduler.pollsLastHour(start + MINUTES.toMillis(119)));
+		assertEquals(0, scheduler.pollsLastHour(start + DAYS.toMillis(1)));
+	}
+
+	/** Simulated USKs: when they are updated, and when we noticed. */
+	private static class Simulation {
+		final long[] period;
+		final long[] nextUpdate;
+		final Random random = new Random(42);
+		long polls;
+		long updates;
+		long totalLatency;
+
+		Simulation(int count) {
+			period = new long[count];
+			nextUpdate = new long[count];
+			for(int i = 0; i < count; i++) {
+				double r = random.nextDouble();
+				if(r < 0.2) // Active: every 1 hour to 1 day.
+					period[i] = (long) (HOURS.toMillis(1) * Math.pow(24, random.nextDouble()));
+				else if(r < 0.5) // Occasional: every 1 to 30 days.
+					period[i] = (long) (DAYS.toMillis(1) * Math.pow(30, random.nextDouble()));
+				else // Never updated.
+					period[i] = -1;
+				nextUpdate[i] = period[i] < 0 ? Long.MAX_VALUE : next(period[i]);
+			}
+		}
+
+		private long next(long mean) {
+			return (long) (-Math.log(1 - random.nextDouble()) * mean);
+		}
+
+		/** Poll USK i at time now. @return True if there was an update. */
+		boolean poll(int i, long now) {
+			polls++;
+			boolean updated = false;
+			while(nextUpdate[i] <= now) {
+				updates++;
+				totalLatency += now - nextUpdate[i];
+				nextUpdate[i] += next(period[i]);
+				updated = true;
+			}
+			return updated;
+		}
+
+		String result(long duration) {
+			return (polls * HOURS.toMillis(1) / duration) + " polls/hour, " + updates + " updates noticed after " +
+					(updates == 0 ? 0 : totalLatency / updates / MINUTES.toMillis(1)) + " minutes on average";
+		}
+	}
+
+	/** How USKFetcher used to do it: each fetcher doubles its sleep time, up to a day, and starts
+	 * again at 30 minutes when it finds something. */
+	private static String simulateOld(int count, long duration) {
+		Simulation sim = new Simulation(count);
+		long[] sleepTime = new long[count];
+		PriorityQueue<long[]> queue = new PriorityQueue<long[]>(count, new Comparator<long[]>() {
+
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+
+		});
+		for(int i = 0; i < count; i++) {
+			sleepTime[i] = USKPollScheduler.MIN_INTERVAL;
+			queue.add(new long[] { 0, i });
+		}
+		while(queue.peek()[0] < duration) {
+			long[] e = queue.poll();
+			long now = e[0];
+			int i = (int) e[1];
+			if(sim.poll(i, now)) {
+				sleepTime[i] = USKPollScheduler.MIN_INTERVAL;
+				sim.poll(i, now);
+			}
+			sleepTime[i] = Math.min(sleepTime[i] * 2, USKPollScheduler.MAX_INTERVAL);
+			e[0] = now + (long) (sim.random.nextDouble() * sleepTime[i]);
+			queue.add(e);
+		}
+		return sim.result(duration);
+	}
+
+	private static String simulateScheduler(final List<USK> usks, long duration, int perHour) {
+		final Simulation sim = new Simulation(usks.size());
+		final USKPollScheduler scheduler = new USKPollScheduler(null, null, perHour);
+		final long[] clock = new long[1];
+		for(int i = 0; i < usks.size(); i++) {
+			final int index = i;
+			scheduler.queue(new Runnable() {
+
+				@Override
+				public void run() {
+					long now = clock[0];
+					USK usk = usks.get(index);
+					if(scheduler.onRoundFinished(usk, sim.poll(index, now), now, sim.random) <= now)
+						sim.poll(index, now);
+					scheduler.queue(this, scheduler.onRoundFinished(usk, false, now, sim.random));
+				}
+
+			}, 0);
+		}
+		for(clock[0] = 0; clock[0] < duration; clock[0] += USKPollScheduler.TICK)
+			for(Runnable r : scheduler.runDue(clock[0]))
+				r.run();
+		return sim.result(duration) + ", " + scheduler.queued() + " waiting at the end";
+	}
+
+	/** 10,000 subscriptions over a simulated week: how often we poll and how long it takes to
+	 * notice an update. 20% of the USKs are updated every hour to every day, 30% every 1 to 30
+	 * days, the rest never. */
+	public void testBenchmark() throws MalformedURLException {
+		if(!TestProperty.BENCHMARK) return;
+		int count = TestProperty.EXTENSIVE ? 100000 : 10000;
+		long duration = DAYS.toMillis(7);
+		List<USK> usks = makeUSKs(count);
+		System.out.println("Per-fetcher backoff: " + simulateOld(count, duration));
+		for(int perHour : new int[] { 1000000, USKPollScheduler.DEFAULT_MAX_POLLS_PER_HOUR, 2000 })
+			System.out.println("Scheduler, at most " + perHour + " polls/hour: " + simulateScheduler(usks, duration, perHour));
+	}
+
+}
@@ -0,0 +1,140 @@
+package freenet.clients.fcp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.TooLongException;
+
+import junit.framework.TestCase;
+
+public class FCPMessageParserTest extends TestCase {
+
+	private static final String HELLO = "ClientHello\nName=test\nExpectedVersion=2.0\nEndMessage\n";
+	private static final String PUT = "ClientPut\r\nIdentifier=put\r\nURI=CHK@\r\nDataLength=5\r\n# a comment\r\nData\r\nhello";
+
+	private static ByteBuffer bytes(String s) throws IOException {
+		return ByteBuffer.wrap(s.getBytes("UTF-8"));
+	}
+
+	/** Parse the way the blocking input handler does. */
+	private static SimpleFieldSet parseBlocking(String s, StringBuilder messageType) throws IOException {
+		LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(s.getBytes("UTF-8")));
+		String name;
+		do {
+			name = lis.readLine(128, 128, true);
+		} while(name.isEmpty());
+		messageType.append(name);
+		return new SimpleFieldSet(lis, 4096, 128, true, true, true);
+	}
+
+	private static void assertSameMessage(String s, FCPMessageParser parser) throws IOException {
+		StringBuilder name = new StringBuilder();
+		SimpleFieldSet expected = parseBlocking(s, name);
+		assertEquals(name.toString(), parser.getMessageType());
+		assertEquals(expected.toOrderedString(), parser.getFieldSet().toOrderedString());
+		assertEquals(expected.getEndMarker(), parser.getFieldSet().getEndMarker());
+	}
+
+	public void testWholeMessage() throws IOException {
+		FCPMessageParser parser = new FCPMessageParser();
+		ByteBuffer buf = bytes(HELLO);
+		assertTrue(parser.parse(buf));
+		assertFalse(buf.hasRemaining());
+		assertEquals("ClientHello", parser.getMessageType());
+		assertEquals("test", parser.getFieldSet().get("Name"));
+		assertEquals("EndMessage", parser.getFieldSet().getEndMarker());
+		assertSameMessage(HELLO, parser);
+	}
+
+	public void testByteAtATime() throws IOException {
+		String s = "\n\r\n" + PUT;
+		byte[] data = s.getBytes("UTF-8");
+		FCPMessageParser parser = new FCPMessageParser();
+		int i = 0;
+		ByteBuffer buf = null;
+		while(i < data.length) {
+			buf = ByteBuffer.wrap(data, i++, 1);
+			if(parser.parse(buf)) break;
+		}
+		assertEquals("hello", new String(data, i, data.length - i, "UTF-8"));
+		assertSameMessage(s, parser);
+		assertEquals("Data", parser.getFieldSet().getEndMarker());
+		assertEquals("5", parser.getFieldSet().get("DataLength"));
+	}
+
+	public void testSeveralMessages() throws IOException {
+		FCPMessageParser parser = new FCPMessageParser();
+		ByteBuffer buf = bytes(HELLO + PUT + HELLO.substring(0, 20));
+		assertTrue(parser.parse(buf));
+		assertEquals("ClientHello", parser.getMessageType());
+		assertTrue(parser.parse(buf));
+		assertEquals("ClientPut", parser.getMessageType());
+		// The data is left for the caller.
+		assertEquals(5 + 20, buf.remaining());
+		buf.position(buf.position() + 5);
+		assertFalse(parser.parse(buf));
+		assertTrue(parser.parse(bytes(HELLO.substring(20))));
+		assertSameMessage(HELLO, parser);
+	}
+
+	public void testTooLong() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < FCPMessageParser.MAX_NAME_LENGTH; i++) sb.append('x');
+		assertTrue(new FCPMessageParser().parse(bytes(sb + "\nEnd\n")));
+		try {
+			new FCPMessageParser().parse(bytes(sb + "x\nEnd\n"));
+			fail("Parsed a message with too long a name");
+		} catch (TooLongException e) {
+			// Expected.
+		}
+		sb.setLength(0);
+		sb.append("Key=");
+		while(sb.length() <= FCPMessageParser.MAX_LINE_LENGTH) sb.append('x');
+		try {
+			new FCPMessageParser().parse(bytes("ClientHello\n" + sb + "\nEndMessage\n"));
+			fail("Parsed a message with too long a field");
+		} catch (TooLongException e) {
+			// Expected.
+		}
+	}
+
+	/** Parse a stream of GetRequestStatus messages, as a busy client polling its requests would
+	 * send, with the blocking reader and with the incremental parser. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		final int messages = TestProperty.EXTENSIVE ? 1000000 : 200000;
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < messages; i++)
+			sb.append("GetRequestStatus\nIdentifier=request-").append(i).append("\nGlobal=false\nOnlyData=false\nEndMessage\n");
+		byte[] data = sb.toString().getBytes("UTF-8");
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			LineReadingInputStream lis = new LineReadingInputStream(new BufferedInputStream(new ByteArrayInputStream(data), 4096));
+			int count = 0;
+			while(lis.readLine(128, 128, true) != null) {
+				new SimpleFieldSet(lis, 4096, 128, true, true, true);
+				count++;
+			}
+			assertEquals(messages, count);
+			long blocking = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			FCPMessageParser parser = new FCPMessageParser();
+			count = 0;
+			for(int offset = 0; offset < data.length; offset += 4096) {
+				ByteBuffer buf = ByteBuffer.wrap(data, offset, Math.min(4096, data.length - offset));
+				while(parser.parse(buf)) count++;
+			}
+			assertEquals(messages, count);
+			long incremental = System.nanoTime() - start;
+			System.out.println(messages + " messages: LineReadingInputStream " + (blocking / messages) +
+					"ns/message, FCPMessageParser " + (incremental / messages) + "ns/message");
+		}
+	}
+
+}
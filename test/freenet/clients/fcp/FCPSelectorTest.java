@@ -0,0 +1,208 @@
+package freenet.clients.fcp;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mockito.ArgumentCaptor;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+
+import junit.framework.TestCase;
+
+/** Connections multiplexed by an {@link FCPSelector}, i.e. the non-blocking input and output
+ * handlers. */
+public class FCPSelectorTest extends TestCase {
+
+	private static final String HELLO = "ClientHello\nName=test\nExpectedVersion=2.0\nEndMessage\n";
+
+	private ServerSocketChannel listener;
+	private Socket client;
+	private SocketChannel accepted;
+	private Node node;
+	private FCPServer server;
+	private FCPSelector selector;
+
+	/** The server, node and core are mocks, so set the fields the handlers use directly. */
+	private static void setField(Object o, Class<?> c, String name, Object value) throws Exception {
+		Field f = c.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+		client.setSoTimeout(10000);
+		accepted = listener.accept();
+		node = mock(Node.class);
+		setField(node, Node.class, "random", new DummyRandomSource(1234));
+		server = mock(FCPServer.class);
+		setField(server, FCPServer.class, "node", node);
+		setField(server, FCPServer.class, "core", mock(NodeClientCore.class));
+		when(server.maxMessageQueueLength()).thenReturn(1024);
+		when(server.registerRebootClient(anyString(), any(NodeClientCore.class), any(FCPConnectionHandler.class)))
+				.thenReturn(mock(PersistentRequestClient.class));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if(selector != null) selector.close();
+		client.close();
+		accepted.close();
+		listener.close();
+	}
+
+	private void startSelector() throws Exception {
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		setField(node, Node.class, "executor", executor);
+		selector = new FCPSelector();
+		selector.start();
+		server.selector = selector;
+	}
+
+	private FCPConnectionHandler connect() {
+		FCPConnectionHandler handler = new FCPConnectionHandler(accepted.socket(), server);
+		// Don't tidy up the clients on close, that needs a real client context.
+		handler.setKilledDupe();
+		handler.start();
+		return handler;
+	}
+
+	private void send(String s) throws IOException {
+		OutputStream os = client.getOutputStream();
+		os.write(s.getBytes("UTF-8"));
+		os.flush();
+	}
+
+	/** @return The names of the next count messages from the node. */
+	private String[] receive(BufferedReader br, int count) throws IOException {
+		String[] names = new String[count];
+		for(int i = 0; i < count; i++) {
+			names[i] = br.readLine();
+			String line;
+			do {
+				line = br.readLine();
+				assertNotNull(line);
+			} while(!line.equals("EndMessage"));
+		}
+		return names;
+	}
+
+	private static ProtocolErrorMessage error(String extra) {
+		return new ProtocolErrorMessage(ProtocolErrorMessage.INVALID_MESSAGE, false, extra, null, false);
+	}
+
+	/** A message is read and handled, the reply sent, and the connection closed when the client
+	 * closes it, all without a thread per connection. */
+	public void testRoundTrip() throws Exception {
+		startSelector();
+		connect();
+		send(HELLO);
+		BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+		assertEquals("NodeHello", receive(br, 1)[0]);
+		assertFalse(accepted.isBlocking());
+		client.shutdownOutput();
+		assertNull(br.readLine());
+	}
+
+	/** A reply bigger than the socket buffer waits for the selector rather than spinning. */
+	public void testWriteWaitsForSelector() throws Exception {
+		accepted.socket().setSendBufferSize(8192);
+		startSelector();
+		FCPConnectionHandler handler = connect();
+		// Replies are only sent after the selector has read a request, i.e. once the channel
+		// is registered and non-blocking.
+		long deadline = System.currentTimeMillis() + 10000;
+		while(accepted.isBlocking() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertFalse(accepted.isBlocking());
+		char[] big = new char[65536];
+		Arrays.fill(big, 'x');
+		int count = 64;
+		for(int i = 0; i < count; i++)
+			handler.send(error(new String(big)));
+		deadline = System.currentTimeMillis() + 10000;
+		while(!handler.outputHandler.wantsWrite() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue(handler.outputHandler.wantsWrite());
+		BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+		for(String name : receive(br, count))
+			assertEquals("ProtocolError", name);
+		assertFalse(handler.outputHandler.wantsWrite());
+	}
+
+	/** Nothing more is read while the output queue is more than half full, and reading resumes
+	 * once the client has taken enough of the replies. */
+	public void testBackpressure() throws Exception {
+		Executor executor = mock(Executor.class);
+		setField(node, Node.class, "executor", executor);
+		FCPSelector selector = mock(FCPSelector.class);
+		server.selector = selector;
+		when(server.maxMessageQueueLength()).thenReturn(4);
+		FCPConnectionHandler handler = connect();
+		verify(selector).register(handler);
+		FCPConnectionInputHandler input = handler.inputHandler;
+		assertTrue(input.wantsRead());
+
+		// Do what the selector would do.
+		accepted.configureBlocking(false);
+		send(HELLO);
+		long deadline = System.currentTimeMillis() + 10000;
+		while(input.wantsRead() && System.currentTimeMillis() < deadline) {
+			input.onReadable();
+			Thread.sleep(10);
+		}
+		assertFalse(input.wantsRead());
+
+		// The client isn't reading: the sender hasn't run yet.
+		for(int i = 0; i < 3; i++)
+			handler.send(error("reply " + i));
+		ArgumentCaptor<Runnable> jobs = ArgumentCaptor.forClass(Runnable.class);
+		verify(executor, times(2)).execute(jobs.capture(), anyString());
+		List<Runnable> started = jobs.getAllValues();
+		Runnable messageHandler = started.get(0);
+		Runnable sender = started.get(1);
+
+		// Handling the hello queues a fourth reply, so we don't go back to reading.
+		messageHandler.run();
+		assertTrue(handler.outputHandler.isQueueHalfFull());
+		assertFalse(input.wantsRead());
+		verify(selector, times(1)).update(handler);
+		input.onMessageSent();
+		assertFalse(input.wantsRead());
+
+		// Sending the first two replies unblocks the input.
+		sender.run();
+		assertFalse(handler.outputHandler.isQueueHalfFull());
+		assertTrue(input.wantsRead());
+		verify(selector, times(2)).update(handler);
+		BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+		assertEquals(Arrays.asList("ProtocolError", "ProtocolError", "ProtocolError", "NodeHello"),
+				Arrays.asList(receive(br, 4)));
+	}
+
+}
@@ -0,0 +1,112 @@
+package freenet.clients.fcp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+import freenet.support.TestProperty;
+
+public class RequestStatusCacheTest extends TestCase {
+
+	private static DownloadRequestStatus download(String identifier, short prio) throws MalformedURLException {
+		return new DownloadRequestStatus(identifier, Persistence.FOREVER, true, false, false,
+				100, 50, 10, null, 0, 0, null, true, prio, null, null, -1, null, null, null,
+				new FreenetURI("KSK@" + identifier), null, null, false, null, true, false);
+	}
+
+	private static List<RequestStatus> sorted(RequestStatusCache cache, boolean uploads) {
+		List<RequestStatus> list = new ArrayList<RequestStatus>();
+		cache.addSortedTo(list, uploads);
+		return list;
+	}
+
+	private static void assertIdentifiers(List<RequestStatus> list, String... identifiers) {
+		assertEquals(identifiers.length, list.size());
+		for(int i = 0; i < identifiers.length; i++)
+			assertEquals(identifiers[i], list.get(i).getIdentifier());
+	}
+
+	public void testQueueOrder() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.addDownload(download("c", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS));
+		cache.addDownload(download("b", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS));
+		cache.addDownload(download("a", RequestStarter.PAUSED_PRIORITY_CLASS));
+		cache.addDownload(download("d", RequestStarter.INTERACTIVE_PRIORITY_CLASS));
+		assertIdentifiers(sorted(cache, false), "d", "b", "c", "a");
+		assertTrue(sorted(cache, true).isEmpty());
+
+		// Changing the priority moves the request.
+		cache.setPriority("a", RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS);
+		assertIdentifiers(sorted(cache, false), "d", "a", "b", "c");
+		assertEquals(RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS, cache.get("a").getPriority());
+
+		// Replacing a request with the same identifier doesn't leave the old one behind.
+		cache.addDownload(download("c", RequestStarter.MAXIMUM_PRIORITY_CLASS));
+		assertIdentifiers(sorted(cache, false), "c", "d", "a", "b");
+
+		cache.removeByIdentifier("d");
+		assertIdentifiers(sorted(cache, false), "c", "a", "b");
+		assertNull(cache.get("d"));
+	}
+
+	public void testGetCopies() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		DownloadRequestStatus status = download("a", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+		cache.addDownload(status);
+		RequestStatus copy = cache.get("a");
+		assertNotSame(status, copy);
+		cache.setPriority("a", RequestStarter.PAUSED_PRIORITY_CLASS);
+		assertEquals(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, copy.getPriority());
+	}
+
+	/** @return Bytes allocated by this thread so far, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/** Getting a page of a big queue in the default order: the old copy everything and sort,
+	 * against the index. */
+	public void testBenchmark() throws MalformedURLException {
+		if(!TestProperty.BENCHMARK) return;
+		int count = 50000;
+		int pageSize = 100;
+		Random random = new Random(1);
+		RequestStatusCache cache = new RequestStatusCache();
+		for(int i = 0; i < count; i++)
+			cache.addDownload(download("request-" + i, (short) random.nextInt(RequestStarter.NUMBER_OF_PRIORITY_CLASSES)));
+		for(int round = 0; round < 5; round++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			List<RequestStatus> all = new ArrayList<RequestStatus>();
+			cache.addTo(all);
+			Collections.sort(all, RequestStatusCache.QUEUE_ORDER);
+			List<RequestStatus> page = new ArrayList<RequestStatus>(all.subList(0, pageSize));
+			long copyAndSort = System.nanoTime() - start;
+			long copyAndSortBytes = allocatedBytes() - allocated;
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			List<RequestStatus> sorted = sorted(cache, false);
+			List<RequestStatus> indexedPage = new ArrayList<RequestStatus>(pageSize);
+			for(RequestStatus status : sorted.subList(0, pageSize))
+				indexedPage.add(status.clone());
+			long indexed = System.nanoTime() - start;
+			long indexedBytes = allocatedBytes() - allocated;
+			assertEquals(page.get(pageSize - 1).getIdentifier(), indexedPage.get(pageSize - 1).getIdentifier());
+			System.out.println(count + " requests, first " + pageSize + ": copy and sort " +
+					copyAndSort / 1000 + "us " + copyAndSortBytes / 1024 + "KB, index " +
+					indexed / 1000 + "us " + indexedBytes / 1024 + "KB");
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package freenet.clients.http;
+
+import java.util.List;
+
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+
+import junit.framework.TestCase;
+
+public class FProxyRangeTest extends TestCase {
+
+	private static final String CHK = "CHK@ZsfHd1kWXdE6YU4vBxKLGFg6tjX~KdsmVMRZCP2L6DE,l3~NRz4OXFDaAfSy3WfN9JUgAqFVTvpDiOz1Y3WLtM8,AAMC--8/test.ogv";
+
+	private static List<long[]> resolve(String header, long size) throws HTTPRangeException {
+		return FProxyToadlet.getSatisfiableRanges(FProxyToadlet.parseRange(header), size);
+	}
+
+	private static void assertRange(long from, long to, long[] range) {
+		assertEquals(from, range[0]);
+		assertEquals(to, range[1]);
+	}
+
+	public void testSingleRanges() throws HTTPRangeException {
+		assertRange(0, 99, resolve("bytes=0-99", 1000).get(0));
+		assertRange(500, 999, resolve("bytes=500-", 1000).get(0));
+		assertRange(900, 999, resolve("bytes=-100", 1000).get(0));
+		assertRange(0, 999, resolve("bytes=-5000", 1000).get(0));
+		assertRange(10, 10, resolve("bytes=10-10", 1000).get(0));
+		assertRange(990, 999, resolve("bytes=990-2000", 1000).get(0));
+	}
+
+	public void testMultipleRanges() throws HTTPRangeException {
+		List<long[]> ranges = resolve("bytes=0-0, 10-19 ,-1", 100);
+		assertEquals(3, ranges.size());
+		assertRange(0, 0, ranges.get(0));
+		assertRange(10, 19, ranges.get(1));
+		assertRange(99, 99, ranges.get(2));
+	}
+
+	public void testUnsatisfiable() throws HTTPRangeException {
+		assertTrue(resolve("bytes=1000-", 1000).isEmpty());
+		assertTrue(resolve("bytes=-0", 1000).isEmpty());
+		assertTrue(resolve("bytes=0-10", 0).isEmpty());
+		// Only the satisfiable ranges are kept.
+		assertEquals(1, resolve("bytes=2000-3000,0-1", 1000).size());
+	}
+
+	public void testInvalid() {
+		String[] invalid = { "bytes=10-5", "bytes=a-b", "bytes=", "bytes=,", "lines=0-1", "bytes", "bytes=-" };
+		for (String header : invalid) {
+			try {
+				FProxyToadlet.parseRange(header);
+				fail("Parsed invalid range " + header);
+			} catch (HTTPRangeException e) {
+				// Expected.
+			}
+		}
+	}
+
+	public void testETag() throws Exception {
+		FreenetURI key = new FreenetURI(CHK);
+		String etag = FProxyToadlet.getETag(key, false, null, null, false, false, 1024, REFILTER_POLICY.RE_FILTER);
+		assertNotNull(etag);
+		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+		assertEquals(etag, FProxyToadlet.getETag(new FreenetURI(CHK), false, null, null, false, false, 1024, REFILTER_POLICY.RE_FILTER));
+		// Anything that changes what we send must change the tag.
+		assertFalse(etag.equals(FProxyToadlet.getETag(key, false, "text/plain", null, false, false, 1024, REFILTER_POLICY.RE_FILTER)));
+		assertFalse(etag.equals(FProxyToadlet.getETag(key, false, null, "UTF-8", false, false, 1024, REFILTER_POLICY.RE_FILTER)));
+		assertFalse(etag.equals(FProxyToadlet.getETag(key, false, null, null, true, false, 1024, REFILTER_POLICY.RE_FILTER)));
+		assertFalse(etag.equals(FProxyToadlet.getETag(key, false, null, null, false, true, 1024, REFILTER_POLICY.RE_FILTER)));
+		assertFalse(etag.equals(FProxyToadlet.getETag(key, false, null, null, false, false, 1024, REFILTER_POLICY.ACCEPT_OLD)));
+		// Only CHKs are immutable.
+		assertNull(FProxyToadlet.getETag(new FreenetURI("KSK@test"), false, null, null, false, false, 1024, REFILTER_POLICY.RE_FILTER));
+	}
+
+	/** Pages filtered for web pushing differ on every request, so there is no tag for even
+	 * If-None-Match: * to match. */
+	public void testNoETagWhenPushing() throws Exception {
+		assertNull(FProxyToadlet.getETag(new FreenetURI(CHK), true, null, null, false, false, 1024, REFILTER_POLICY.RE_FILTER));
+		assertNull(FProxyToadlet.getETag(new FreenetURI(CHK), true, "text/html", null, false, false, 1024, REFILTER_POLICY.RE_FILTER));
+	}
+
+	public void testMatchesETag() {
+		String etag = "\"abc\"";
+		assertTrue(FProxyToadlet.matchesETag("\"abc\"", etag));
+		assertTrue(FProxyToadlet.matchesETag("\"x\", W/\"abc\"", etag));
+		assertTrue(FProxyToadlet.matchesETag("*", etag));
+		assertFalse(FProxyToadlet.matchesETag(null, etag));
+		assertFalse(FProxyToadlet.matchesETag("\"abcd\"", etag));
+		assertFalse(FProxyToadlet.matchesETag("abc", etag));
+	}
+}
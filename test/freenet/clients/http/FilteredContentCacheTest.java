@@ -0,0 +1,221 @@
+package freenet.clients.http;
+
+import static freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY.RE_FILTER;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import freenet.client.FetchResult;
+import freenet.client.filter.ContentFilter;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.clients.http.FilteredContentCache.Mode;
+import freenet.crypt.MasterSecret;
+import freenet.keys.FreenetURI;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+import junit.framework.TestCase;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private static final String CHK = "CHK@OR904t6ylZOwoobMJRmSn7HsPGefHSP7zAjoLyenSPw,x2EzszO4Kqot8akqmKYXJbkD-fSj6noOVGB-K2YisZ4,AAIC--8/";
+
+	private final File dir = new File("tmp.filtered-content-cache-test");
+	private final ArrayBucketFactory bf = new ArrayBucketFactory();
+	private final MasterSecret secret = new MasterSecret();
+
+	@Override
+	protected void setUp() {
+		FileUtil.removeAll(dir);
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	private FilteredContentCache makeCache(File dir, long maxSize, Mode mode, ArrayBucketFactory bf) {
+		FilteredContentCache cache = new FilteredContentCache(dir, maxSize, mode, bf);
+		cache.init();
+		return cache;
+	}
+
+	private static FreenetURI uri(String name) throws Exception {
+		return new FreenetURI(CHK + name);
+	}
+
+	private static byte[] page(int i, int size) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) ('a' + i % 26));
+		return data;
+	}
+
+	private static byte[] read(FetchResult result) throws IOException {
+		Bucket b = result.asBucket();
+		byte[] data = BucketTools.toByteArray(b);
+		b.free();
+		return data;
+	}
+
+	private void checkRoundTrip(Mode mode) throws Exception {
+		FilteredContentCache cache = makeCache(dir, 1024 * 1024, mode, bf);
+		byte[] data = page(1, 5000);
+		cache.store(uri("index.html"), null, null, RE_FILTER, "text/html; charset=UTF-8", new ArrayBucket(data), secret);
+		assertEquals(1, cache.countEntries());
+		FetchResult result = cache.lookup(uri("index.html"), null, null, RE_FILTER, Long.MAX_VALUE, secret);
+		assertNotNull(result);
+		assertEquals("text/html; charset=UTF-8", result.getMimeType());
+		assertTrue(Arrays.equals(data, read(result)));
+		// Other parameters which change the filter output are different entries.
+		assertNull(cache.lookup(uri("index.html"), "text/plain", null, RE_FILTER, Long.MAX_VALUE, secret));
+		assertNull(cache.lookup(uri("index.html"), null, "ISO-8859-1", RE_FILTER, Long.MAX_VALUE, secret));
+		assertNull(cache.lookup(uri("index.html"), null, null, REFILTER_POLICY.ACCEPT_OLD, Long.MAX_VALUE, secret));
+		assertNull(cache.lookup(uri("other.html"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+		// Too big for the request.
+		assertNull(cache.lookup(uri("index.html"), null, null, RE_FILTER, 4000, secret));
+	}
+
+	public void testPlain() throws Exception {
+		checkRoundTrip(Mode.PLAIN);
+	}
+
+	public void testEncrypted() throws Exception {
+		checkRoundTrip(Mode.ENCRYPTED);
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		String raw = new String(Files.readAllBytes(files[0].toPath()), "ISO-8859-1");
+		assertFalse(raw.contains("aaaaaaaaaaaaaaaa"));
+		assertFalse(raw.contains("index.html"));
+		// Can't read it without the right secret, and doesn't even find it.
+		FilteredContentCache cache = makeCache(dir, 1024 * 1024, Mode.ENCRYPTED, bf);
+		assertNull(cache.lookup(uri("index.html"), null, null, RE_FILTER, Long.MAX_VALUE, new MasterSecret()));
+		assertNull(cache.lookup(uri("index.html"), null, null, RE_FILTER, Long.MAX_VALUE, null));
+		assertNotNull(cache.lookup(uri("index.html"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+	}
+
+	public void testPadding() throws Exception {
+		FilteredContentCache cache = makeCache(dir, 1024 * 1024, Mode.ENCRYPTED, bf);
+		cache.store(uri("a"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 5000)), secret);
+		cache.store(uri("b"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 6000)), secret);
+		File[] files = dir.listFiles();
+		assertEquals(2, files.length);
+		assertEquals(files[0].length(), files[1].length());
+		assertTrue(Arrays.equals(page(0, 6000), read(cache.lookup(uri("b"), null, null, RE_FILTER, Long.MAX_VALUE, secret))));
+	}
+
+	/** Nothing is used until the files left by the last run have been indexed. */
+	public void testInit() throws Exception {
+		makeCache(dir, 1024 * 1024, Mode.PLAIN, bf).store(uri("a"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 10)), secret);
+		FilteredContentCache cache = new FilteredContentCache(dir, 1024 * 1024, Mode.PLAIN, bf);
+		assertNull(cache.lookup(uri("a"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+		cache.store(uri("b"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 10)), secret);
+		assertEquals(0, cache.countEntries());
+		cache.init();
+		assertEquals(1, cache.countEntries());
+		assertNotNull(cache.lookup(uri("a"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+	}
+
+	public void testOnlyCHKs() throws Exception {
+		FilteredContentCache cache = makeCache(dir, 1024 * 1024, Mode.PLAIN, bf);
+		cache.store(new FreenetURI("KSK@index.html"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 10)), secret);
+		assertEquals(0, cache.countEntries());
+	}
+
+	public void testDisabled() throws Exception {
+		FilteredContentCache cache = makeCache(dir, 1024 * 1024, Mode.PLAIN, bf);
+		cache.store(uri("a"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 10)), secret);
+		assertEquals(1, cache.countEntries());
+		cache.setMode(Mode.DISABLED);
+		assertEquals(0, cache.countEntries());
+		assertEquals(0, dir.listFiles().length);
+		cache.store(uri("a"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 10)), secret);
+		assertNull(cache.lookup(uri("a"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+		cache.setMode(Mode.PLAIN);
+		cache.setMaxSize(0);
+		cache.store(uri("a"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 10)), secret);
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	public void testEviction() throws Exception {
+		FilteredContentCache cache = makeCache(dir, 16 * 1024 * 10, Mode.PLAIN, bf);
+		// Too big.
+		cache.store(uri("big"), null, null, RE_FILTER, "text/html", new ArrayBucket(page(0, 20 * 1024)), secret);
+		assertEquals(0, cache.countEntries());
+		for (int i = 0; i < 30; i++) {
+			cache.store(uri("page" + i), null, null, RE_FILTER, "text/html", new ArrayBucket(page(i, 8 * 1024)), secret);
+			// Keep page0 in use.
+			assertNotNull(cache.lookup(uri("page0"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+		}
+		assertTrue(cache.getTotalSize() <= cache.getMaxSize());
+		assertNotNull(cache.lookup(uri("page0"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+		assertNotNull(cache.lookup(uri("page29"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+		assertNull(cache.lookup(uri("page1"), null, null, RE_FILTER, Long.MAX_VALUE, secret));
+		int entries = cache.countEntries();
+		assertEquals(entries, dir.listFiles().length);
+		// Survives a restart.
+		cache = makeCache(dir, 16 * 1024 * 10, Mode.PLAIN, bf);
+		assertEquals(entries, cache.countEntries());
+		assertTrue(Arrays.equals(page(29, 8 * 1024), read(cache.lookup(uri("page29"), null, null, RE_FILTER, Long.MAX_VALUE, secret))));
+		cache.setMaxSize(20 * 1024);
+		assertTrue(cache.countEntries() <= 2);
+		assertEquals(cache.countEntries(), dir.listFiles().length);
+	}
+
+	private static String makePage(int i) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<html><head><title>Page ").append(i).append("</title>");
+		sb.append("<style type=\"text/css\">body { color: #333; margin: 1em } .n").append(i).append(" { font-weight: bold }</style>");
+		sb.append("</head><body>");
+		for (int j = 0; j < 200; j++) {
+			sb.append("<p class=\"n").append(i).append("\">Paragraph ").append(j).append(" of page ").append(i);
+			sb.append(" <a href=\"page").append((i + j) % 200).append(".html\">next</a>");
+			sb.append(" <img src=\"img").append(j).append(".png\" alt=\"\"></p>\n");
+		}
+		sb.append("</body></html>");
+		return sb.toString();
+	}
+
+	/** Load every page of a 200 page freesite twice: cold, running the content filter as
+	 * FProxy does and storing the output, then warm, from the cache. Doesn't include the fetch
+	 * itself, which the cache also saves. */
+	public void testBenchmark() throws Exception {
+		if (!TestProperty.BENCHMARK) return;
+		final int pages = 200;
+		byte[][] site = new byte[pages][];
+		for (int i = 0; i < pages; i++) site[i] = makePage(i).getBytes("UTF-8");
+		for (Mode mode : new Mode[] { Mode.PLAIN, Mode.ENCRYPTED }) {
+			FileUtil.removeAll(dir);
+			FilteredContentCache cache = makeCache(dir, 64 * 1024 * 1024, mode, bf);
+			long start = System.nanoTime();
+			for (int i = 0; i < pages; i++) {
+				FreenetURI key = uri("page" + i + ".html");
+				assertNull(cache.lookup(key, null, null, RE_FILTER, Long.MAX_VALUE, secret));
+				InputStream is = new ByteArrayInputStream(site[i]);
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				ContentFilter.filter(is, bos, "text/html", new URI("/" + key.toString()), null, null, null);
+				cache.store(key, null, null, RE_FILTER, "text/html; charset=UTF-8", new ArrayBucket(bos.toByteArray()), secret);
+			}
+			long cold = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < pages; i++) {
+				FetchResult result = cache.lookup(uri("page" + i + ".html"), null, null, RE_FILTER, Long.MAX_VALUE, secret);
+				assertNotNull(result);
+				result.asBucket().free();
+			}
+			long warm = System.nanoTime() - start;
+			System.out.println(pages + " page crawl, " + mode + ": cold " + (cold / pages / 1000) +
+					"us/page (filter), warm " + (warm / pages / 1000) + "us/page (cache)");
+		}
+	}
+
+}
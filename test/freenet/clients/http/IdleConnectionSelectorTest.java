@@ -0,0 +1,97 @@
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class IdleConnectionSelectorTest extends TestCase {
+
+	private ServerSocketChannel listener;
+	private SocketChannel client;
+	private ToadletConnection conn;
+
+	/** Records the connections it resumes rather than handing them to a server. */
+	private static class TestSelector extends IdleConnectionSelector {
+
+		final List<ToadletConnection> resumed = new ArrayList<ToadletConnection>();
+
+		TestSelector() throws IOException {
+			super(null);
+		}
+
+		@Override
+		synchronized void handle(ToadletConnection conn) {
+			resumed.add(conn);
+			notifyAll();
+		}
+
+		synchronized void waitForResume() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(resumed.isEmpty() && System.currentTimeMillis() < deadline)
+				wait(100);
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = SocketChannel.open(listener.socket().getLocalSocketAddress());
+		conn = new ToadletConnection(listener.accept().socket());
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		conn.sock.close();
+		client.close();
+		listener.close();
+	}
+
+	/** A parked connection is handed back, in blocking mode, when the client sends something. */
+	public void testParkAndResume() throws IOException, InterruptedException {
+		TestSelector idle = new TestSelector();
+		idle.start();
+		try {
+			assertTrue(idle.park(conn));
+			assertEquals(1, idle.countParked());
+			Thread.sleep(100);
+			synchronized(idle) {
+				assertTrue(idle.resumed.isEmpty());
+			}
+			client.write(ByteBuffer.wrap(new byte[] { 42 }));
+			idle.waitForResume();
+			synchronized(idle) {
+				assertEquals(1, idle.resumed.size());
+				assertSame(conn, idle.resumed.get(0));
+			}
+			assertEquals(0, idle.countParked());
+			assertEquals(-1, conn.idleSince);
+			assertTrue(conn.sock.getChannel().isBlocking());
+			assertTrue(conn.hasPendingInput());
+			assertEquals(42, conn.is.read());
+		} finally {
+			idle.close();
+		}
+	}
+
+	/** Closing the selector closes the connections parked in it, and no more are accepted. */
+	public void testClose() throws IOException, InterruptedException {
+		TestSelector idle = new TestSelector();
+		idle.start();
+		assertTrue(idle.park(conn));
+		idle.close();
+		// The client sees the connection closed.
+		client.socket().setSoTimeout(10000);
+		assertEquals(-1, client.socket().getInputStream().read());
+		assertFalse(idle.park(conn));
+	}
+
+}
@@ -18,6 +18,7 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Security;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.After;
@@ -27,6 +28,8 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import freenet.client.async.ClientContext;
+import freenet.support.HexUtil;
+import freenet.support.TestProperty;
 import freenet.support.io.BucketTools;
 import freenet.support.io.ByteArrayRandomAccessBuffer;
 import freenet.support.io.FileUtil;
@@ -259,7 +262,164 @@ public class EncryptedRandomAccessBufferTest {
         erat.pwrite(0, result, 0, 20);
     }
     
+    /** Files written before reads and writes were done in parallel, by types[0] and types[1],
+     * with a MasterSecret of bytes 0 to 63, containing bytes 0 to 199. */
+    private final static String[] oldFiles = new String[] {
+            "11b8c3e5bc7059c5beae9ab3dbe0bb5c88c2a0ba4becd8424387636238aa237c63c31810b4724ff2273f448d"+
+            "359e7ab27bd125a970262cd9000000012c158a6c7772acd39fed0d1c205f6594f343277d8fa7e03497b5589b"+
+            "7b488b7831bdde62ff6a8af004bed791d8d91b787022d774009364a042d655d26abe1cf5b6224c2e7f499874"+
+            "4412d57765c56a9a4977dc6bcb902dfae8aa2c344f1cbd2ba9b408eb859a66d3d7b1115b855b331fa4c105a3"+
+            "15b8bd66a2699c7594b17185efdcf140cde14f986b62a05c440e9342d479b06621eb9e33f84eae5384b60fd2"+
+            "60c592a6fb43b63f55ddb77365dbe6ef9638aeb37ce6628feb4d015b605aa62ff3573934c99c094f437240a1"+
+            "c05ebd2f",
+            "f0ef48a1c358a51e0180023a366362bb8f62ef99ffd2f115c5ac382c30680da94c3e27e51c783d99c926b127"+
+            "f0d13b4e67d73e7d45a84f8c746d34123b5394affdbea5f0794f5e08000000022c158a6c7772acd3b19a0098"+
+            "f27b4a29ef3e0626edc453f1c1ceb050d4bcf5719924afbf6a146c5882dea0c832346302b7b82cdd956b51cb"+
+            "f4d7b34671f14ca59811862286f565d23d49d4b8244f6c264a64ecf04c0ff712720b123ff3dd21b2b98e6162"+
+            "0b820ea32ed4347cff1e4a8c788d5566e4170177dd2a3b9da62740afa74943bef2f53fa4532a59b79ea20fa9"+
+            "6964b9965739379b7fe7c63b7ed62d4d400942cc09aebc29ec9c64c7533f6df9fa7081a26530e6784e703e22"+
+            "7b536756044263bf2f7110c17eefd203a6a0fac3"
+    };
+
+    @Test
+    public void testReadOldFile() throws IOException, GeneralSecurityException {
+        byte[] s = new byte[64];
+        for(int i = 0; i < s.length; i++) s[i] = (byte) i;
+        MasterSecret oldSecret = new MasterSecret(s);
+        byte[] plain = new byte[200];
+        for(int i = 0; i < plain.length; i++) plain[i] = (byte) i;
+        for(int t = 0; t < types.length; t++) {
+            byte[] bytes = HexUtil.hexToBytes(oldFiles[t]);
+            byte[] copy = bytes.clone();
+            EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[t], 
+                    new ByteArrayRandomAccessBuffer(bytes), oldSecret, false);
+            // Out of order, crossing 64 byte keystream blocks.
+            int[][] ranges = new int[][] { { 150, 50 }, { 0, 200 }, { 63, 67 }, { 1, 1 }, { 128, 3 } };
+            for(int[] range : ranges) {
+                byte[] buf = new byte[range[1] + 2];
+                erat.pread(range[0], buf, 1, range[1]);
+                for(int i = 0; i < range[1]; i++)
+                    assertEquals(plain[range[0] + i], buf[i + 1]);
+            }
+            // Writing the same data back gives the same bytes.
+            for(int[] range : ranges)
+                erat.pwrite(range[0], plain, range[0], range[1]);
+            assertArrayEquals(copy, bytes);
+            erat.close();
+        }
+    }
+
+    @Test
+    public void testLargeWrite() throws IOException, GeneralSecurityException {
+        int length = EncryptedRandomAccessBuffer.WRITE_CHUNK * 3 + 1000;
+        byte[] plain = new byte[length];
+        new Random(1).nextBytes(plain);
+        byte[] bytes = new byte[length + types[0].headerLen];
+        EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[0], 
+                new ByteArrayRandomAccessBuffer(bytes), secret, true);
+        erat.pwrite(0, plain, 0, length);
+        byte[] copy = bytes.clone();
+        // Same keystream when written in small pieces.
+        for(int i = 0; i < length; i += 777)
+            erat.pwrite(i, plain, i, Math.min(777, length - i));
+        assertArrayEquals(copy, bytes);
+        byte[] result = new byte[length];
+        erat.pread(0, result, 0, length);
+        assertArrayEquals(plain, result);
+        erat.close();
+    }
+
+    @Test
+    public void testConcurrentReadWrite() throws Exception {
+        final int threads = 8;
+        final int blockSize = 1000;
+        final int blocks = 100;
+        final byte[] plain = new byte[blockSize * blocks];
+        new Random(2).nextBytes(plain);
+        byte[] bytes = new byte[plain.length + types[0].headerLen];
+        final EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[0], 
+                new ByteArrayRandomAccessBuffer(bytes), secret, true);
+        final AtomicReference<Throwable> failed = new AtomicReference<Throwable>();
+        Thread[] t = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            final int thread = i;
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(thread);
+                        byte[] buf = new byte[blockSize];
+                        // Each thread owns every threads'th block.
+                        for(int j = 0; j < 200; j++) {
+                            int block = random.nextInt(blocks / threads) * threads + thread;
+                            int offset = block * blockSize;
+                            erat.pwrite(offset, plain, offset, blockSize);
+                            erat.pread(offset, buf, 0, blockSize);
+                            for(int k = 0; k < blockSize; k++)
+                                if(buf[k] != plain[offset + k]) throw new AssertionError("Corrupt block "+block);
+                        }
+                    } catch (Throwable e) {
+                        failed.compareAndSet(null, e);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for(Thread thread : t)
+            thread.join();
+        if(failed.get() != null) throw new AssertionError(failed.get());
+        erat.close();
+    }
+
+    /** Random 32KB reads from a 512MB (4GB if extensive) file with 1, 4 and 16 threads. */
+    @Test
+    public void testBenchmark() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        final long size = TestProperty.EXTENSIVE ? 4L * 1024 * 1024 * 1024 : 512 * 1024 * 1024;
+        final int readSize = 32 * 1024;
+        File tempFile = File.createTempFile("test-benchmark", ".tmp", base);
+        FileRandomAccessBuffer raf = new FileRandomAccessBuffer(tempFile, size + types[0].headerLen, false);
+        final EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[0], raf, secret, true);
+        byte[] buf = new byte[1024 * 1024];
+        new Random(3).nextBytes(buf);
+        for(long offset = 0; offset < size; offset += buf.length)
+            erat.pwrite(offset, buf, 0, buf.length);
+        for(int round = 0; round < 3; round++) {
+            for(int threads : new int[] { 1, 4, 16 }) {
+                final int reads = 20000 / threads;
+                Thread[] t = new Thread[threads];
+                for(int i = 0; i < threads; i++) {
+                    final int thread = i;
+                    t[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            Random random = new Random(thread);
+                            byte[] buf = new byte[readSize];
+                            try {
+                                for(int j = 0; j < reads; j++)
+                                    erat.pread((random.nextLong() & Long.MAX_VALUE) % (size - readSize), buf, 0, readSize);
+                            } catch (IOException e) {
+                                throw new Error(e);
+                            }
+                        }
+                    };
+                }
+                long start = System.nanoTime();
+                for(Thread thread : t)
+                    thread.start();
+                for(Thread thread : t)
+                    thread.join();
+                long time = System.nanoTime() - start;
+                long bytes = (long) reads * threads * readSize;
+                System.out.println((size >> 20) + "MB file, " + threads + " threads: " + 
+                        (bytes * 1000 / time) + "MB/sec, " + (time / (reads * threads) / 1000) + "us per read");
+            }
+        }
+        erat.close();
+    }
+    
     private File base = new File("tmp.encrypted-random-access-thing-test");
+
     
     @Before
     public void setUp() {
@@ -3,10 +3,17 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.crypt;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.HashSet;
 import org.spaceroots.mantissa.random.ScalarSampleStatistics;
 
+import freenet.support.TestProperty;
+
 import junit.framework.*;
 
 public class YarrowTest extends TestCase {
@@ -94,4 +101,150 @@ public class YarrowTest extends TestCase {
 		assertTrue(results[0] > RUNS/2 - RUNS/1000);
 		assertTrue(results[1] > RUNS/2 - RUNS/1000);
 	}
+
+	/** Each thread has its own generator, and they don't repeat each other. */
+	public void testThreads() throws InterruptedException {
+		final Yarrow y = new Yarrow(SEED_FILE, "SHA1", "Rijndael", false, false, false);
+		final long[][] values = new long[4][];
+		Thread[] threads = new Thread[values.length];
+		for(int i = 0; i < threads.length; i++) {
+			final int t = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					values[t] = new long[10000];
+					for(int j = 0; j < values[t].length; j++)
+						values[t][j] = y.nextLong();
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		HashSet<Long> seen = new HashSet<Long>();
+		for(long[] v : values)
+			for(long l : v)
+				assertTrue(seen.add(l));
+		for(int i = 0; i < 10000; i++)
+			assertTrue(seen.add(y.nextLong()));
+	}
+
+	/** Many more threads than stripes give timing entropy at once, as the packet senders do. */
+	public void testConcurrentEntropy() throws InterruptedException {
+		final Yarrow y = new Yarrow(SEED_FILE, "SHA1", "Rijndael", false, false, false);
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[64];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					EntropySource source = new EntropySource();
+					try {
+						for(int j = 0; j < 100000; j++)
+							y.acceptTimerEntropy(source, 0.25);
+					} catch (Throwable t) {
+						synchronized(failure) {
+							failure[0] = t;
+						}
+					}
+				}
+			};
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		synchronized(failure) {
+			if(failure[0] != null) {
+				AssertionFailedError e = new AssertionFailedError("Accepting entropy failed: " + failure[0]);
+				e.initCause(failure[0]);
+				throw e;
+			}
+		}
+		y.flushEntropy();
+		y.nextLong();
+	}
+
+	public void testNextBytes() {
+		Yarrow y = new Yarrow(SEED_FILE, "SHA1", "Rijndael", false, false, false);
+		int[] counts = new int[256];
+		byte[] buf = new byte[1001];
+		for(int i = 0; i < 256; i++) {
+			y.nextBytes(buf);
+			for(byte b : buf)
+				counts[b & 0xFF]++;
+		}
+		for(int count : counts)
+			assertTrue(count > 800 && count < 1200);
+	}
+
+	private static byte[] readSeedFile() throws IOException {
+		byte[] buf = new byte[(int) SEED_FILE.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(SEED_FILE));
+		try {
+			dis.readFully(buf);
+		} finally {
+			dis.close();
+		}
+		return buf;
+	}
+
+	/** Entropy which is still buffered is added to the pools before writing the seed file. */
+	public void testWriteSeed() throws Exception {
+		Yarrow y = new Yarrow(SEED_FILE, "SHA1", "Rijndael", true, false, false);
+		byte[] before = readSeedFile();
+		EntropySource source = new EntropySource();
+		for(int i = 0; i < 10; i++)
+			y.acceptEntropy(source, i * 12345L, 32);
+		y.write_seed(true);
+		assertEquals(256, SEED_FILE.length());
+		byte[] after = readSeedFile();
+		assertFalse(Arrays.equals(before, after));
+		// And it can be read back.
+		new Yarrow(SEED_FILE, "SHA1", "Rijndael", false, false, false).nextLong();
+	}
+
+	/** nextInt(), nextBytes() and a packet's worth of work (timing entropy, an IV and an int)
+	 * per second, with 1, 4 and 16 threads using one Yarrow. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final Yarrow y = new Yarrow(SEED_FILE, "SHA1", "Rijndael", false, false, false);
+		final int total = TestProperty.EXTENSIVE ? 10000000 : 2000000;
+		for(int round = 0; round < 3; round++) {
+			for(final String op : new String[] { "nextInt", "nextBytes(16)", "packets" }) {
+				for(int threadCount : new int[] { 1, 4, 16 }) {
+					final int count = total / threadCount;
+					Thread[] threads = new Thread[threadCount];
+					for(int i = 0; i < threadCount; i++) {
+						threads[i] = new Thread() {
+							@Override
+							public void run() {
+								EntropySource source = new EntropySource();
+								byte[] iv = new byte[16];
+								for(int j = 0; j < count; j++) {
+									if(op.equals("nextInt")) {
+										y.nextInt();
+									} else if(op.equals("nextBytes(16)")) {
+										y.nextBytes(iv);
+									} else {
+										y.acceptTimerEntropy(source, 0.25);
+										y.nextBytes(iv);
+										y.nextInt();
+									}
+								}
+							}
+						};
+					}
+					long start = System.nanoTime();
+					for(Thread t : threads)
+						t.start();
+					for(Thread t : threads)
+						t.join();
+					long time = System.nanoTime() - start;
+					System.out.println(op + ", " + threadCount + " threads: " + 
+							((long) count * threadCount * 1000 / (time / 1000000)) + " per second");
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,131 @@
+package freenet.keys;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DSAGroup;
+import freenet.crypt.DSAPrivateKey;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.Global;
+import freenet.crypt.RandomSource;
+import freenet.crypt.SHA256;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor;
+import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.io.ArrayBucket;
+
+public class SSKBlockTest extends TestCase {
+
+	private static List<SSKBlock> makeBlocks(int count) throws IOException, SSKEncodeException,
+			InvalidCompressionCodecException {
+		RandomSource random = new DummyRandomSource(12345);
+		byte[] ckey = new byte[32];
+		random.nextBytes(ckey);
+		DSAGroup g = Global.DSAgroupBigA;
+		DSAPrivateKey privKey = new DSAPrivateKey(g, random);
+		DSAPublicKey pubKey = new DSAPublicKey(g, privKey);
+		byte[] pkHash = SHA256.digest(pubKey.asBytes());
+		List<SSKBlock> blocks = new ArrayList<SSKBlock>(count);
+		for(int i = 0; i < count; i++) {
+			InsertableClientSSK ik = new InsertableClientSSK("edition-" + i, pkHash, pubKey, privKey, ckey,
+					Key.ALGO_AES_PCFB_256_SHA256);
+			ArrayBucket bucket = new ArrayBucket(("edition " + i).getBytes("UTF-8"));
+			ClientSSKBlock block = ik.encode(bucket, false, false, (short) -1, bucket.size(), random,
+					Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false);
+			blocks.add((SSKBlock) block.getBlock());
+		}
+		return blocks;
+	}
+
+	private static SSKBlock reconstruct(SSKBlock block) throws SSKVerifyException {
+		return new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+	}
+
+	/** The second time a block is constructed, its signature isn't checked again. */
+	public void testVerifyTwice() throws Exception {
+		SSKBlock block = makeBlocks(1).get(0);
+		SSKVerificationCache.clear();
+		long hits = SSKVerificationCache.hits();
+		assertEquals(block, reconstruct(block));
+		assertEquals(hits, SSKVerificationCache.hits());
+		// Now cached.
+		assertEquals(block, reconstruct(block));
+		assertEquals(hits + 1, SSKVerificationCache.hits());
+	}
+
+	/** Once a block has been verified, changing the data or the signature still fails. */
+	public void testTamperedAfterVerified() throws Exception {
+		SSKBlock block = makeBlocks(1).get(0);
+		reconstruct(block);
+		byte[] data = block.getRawData().clone();
+		data[0] ^= 1;
+		try {
+			new SSKBlock(data, block.getRawHeaders(), block.getKey(), false);
+			fail("Accepted tampered data");
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+		byte[] headers = block.getRawHeaders().clone();
+		headers[headers.length - 1] ^= 1;
+		try {
+			new SSKBlock(block.getRawData(), headers, block.getKey(), false);
+			fail("Accepted tampered signature");
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+	}
+
+	/** Blocks verified per second: every block new, every block seen before, and new blocks
+	 * verified on several threads as the datastore checker does for a burst of SSKs. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final List<SSKBlock> blocks = makeBlocks(TestProperty.EXTENSIVE ? 1000 : 200);
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for(int round = 0; round < 3; round++) {
+				SSKVerificationCache.clear();
+				long start = System.nanoTime();
+				for(SSKBlock block : blocks)
+					reconstruct(block);
+				long cold = System.nanoTime() - start;
+				start = System.nanoTime();
+				for(SSKBlock block : blocks)
+					reconstruct(block);
+				long warm = System.nanoTime() - start;
+				SSKVerificationCache.clear();
+				List<Callable<SSKBlock>> tasks = new ArrayList<Callable<SSKBlock>>();
+				for(final SSKBlock block : blocks) {
+					tasks.add(new Callable<SSKBlock>() {
+						@Override
+						public SSKBlock call() throws SSKVerifyException {
+							return reconstruct(block);
+						}
+					});
+				}
+				start = System.nanoTime();
+				for(Future<SSKBlock> f : executor.invokeAll(tasks))
+					f.get();
+				long parallel = System.nanoTime() - start;
+				System.out.println(blocks.size() + " SSKs: " + perSecond(blocks.size(), cold) + "/sec verifying, " +
+						perSecond(blocks.size(), warm) + "/sec cached, " + perSecond(blocks.size(), parallel) +
+						"/sec verifying on " + threads + " threads");
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static long perSecond(int count, long nanos) {
+		return count * 1000000000L / Math.max(1, nanos);
+	}
+
+}
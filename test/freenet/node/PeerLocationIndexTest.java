@@ -0,0 +1,231 @@
+package freenet.node;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.support.TestProperty;
+
+import junit.framework.TestCase;
+
+public class PeerLocationIndexTest extends TestCase {
+
+	private static final int ROUNDS = 500;
+
+	/** Routes over a fixed set of connected peers. */
+	private static class TestPeerManager extends PeerManager {
+
+		private PeerNode[] peers;
+
+		TestPeerManager(Node node, PeerNode[] peers) {
+			super(node, mock(SemiOrderedShutdownHook.class));
+			this.peers = peers;
+		}
+
+		@Override
+		synchronized PeerNode[] connectedPeers() {
+			return peers;
+		}
+
+	}
+
+	/** Routing state of a mock peer. */
+	private static class PeerState {
+		final PeerLocation location;
+		boolean foaf;
+		boolean routable;
+		boolean backedOff;
+
+		PeerState(double loc, double[] peersLocs) {
+			location = new PeerLocation(Double.toString(loc));
+			location.updateLocation(loc, peersLocs);
+		}
+	}
+
+	private static PeerNode peer(final PeerState state) {
+		PeerNode pn = mock(PeerNode.class);
+		when(pn.getLocation()).thenAnswer(new Answer<Double>() {
+			@Override
+			public Double answer(InvocationOnMock invocation) {
+				return state.location.getLocation();
+			}
+		});
+		when(pn.getPeersLocationArray()).thenAnswer(new Answer<double[]>() {
+			@Override
+			public double[] answer(InvocationOnMock invocation) {
+				return state.location.getPeersLocationArray();
+			}
+		});
+		when(pn.getClosestPeerLocation(Matchers.anyDouble(), Matchers.<Set<Double>>any())).thenAnswer(new Answer<Double>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Double answer(InvocationOnMock invocation) {
+				Object[] args = invocation.getArguments();
+				return state.location.getClosestPeerLocation((Double) args[0], (Set<Double>) args[1]);
+			}
+		});
+		when(pn.shallWeRouteAccordingToOurPeersLocation(Matchers.anyInt())).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return state.foaf;
+			}
+		});
+		when(pn.isRoutable()).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return state.routable;
+			}
+		});
+		when(pn.isRoutingBackedOff(Matchers.anyLong(), Matchers.anyBoolean())).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return state.backedOff;
+			}
+		});
+		return pn;
+	}
+
+	private static Node node(double location) {
+		Node node = mock(Node.class);
+		when(node.getLocation()).thenReturn(location);
+		return node;
+	}
+
+	private static PeerState[] randomStates(Random r, int count, int degree) {
+		PeerState[] states = new PeerState[count];
+		for(int i = 0; i < count; i++) {
+			double[] locs = new double[r.nextInt(degree + 1)];
+			for(int j = 0; j < locs.length; j++)
+				locs[j] = r.nextDouble();
+			states[i] = new PeerState(r.nextDouble(), locs);
+			states[i].foaf = r.nextInt(4) != 0;
+			states[i].routable = true;
+		}
+		return states;
+	}
+
+	private static PeerNode[] peers(PeerState[] states) {
+		PeerNode[] peers = new PeerNode[states.length];
+		for(int i = 0; i < states.length; i++)
+			peers[i] = peer(states[i]);
+		return peers;
+	}
+
+	/** closerPeer() uses the index unless asked for the locations it didn't pick, when it
+	 * scores every peer. */
+	private static PeerNode closerPeer(PeerManager pm, PeerNode source, Set<PeerNode> routedTo,
+			double target, boolean ignoreSelf, double maxDistance, boolean linear) {
+		return pm.closerPeer(source, routedTo, target, ignoreSelf, false, 0,
+				linear ? new ArrayList<Double>() : null, maxDistance, null, (short) 10, 0, false,
+				false, null, false, System.currentTimeMillis(), false);
+	}
+
+	public void testWalkOrder() {
+		Random r = new Random(1234);
+		PeerState[] states = randomStates(r, 20, 10);
+		PeerLocationIndex<PeerNode> index = PeerLocationIndex.create(peers(states), 0);
+		for(int i = 0; i < 100; i++) {
+			final double target = r.nextDouble();
+			final int[] count = new int[1];
+			final double[] last = new double[] { 0.0 };
+			index.walk(target, 2.0, new PeerLocationIndex.Visitor() {
+				@Override
+				public boolean visit(int item, double location, boolean direct, double distance) {
+					assertEquals(Location.distance(location, target), distance, 0.0);
+					assertTrue(distance >= last[0]);
+					last[0] = distance;
+					count[0]++;
+					return false;
+				}
+			});
+			assertEquals(index.entries(), count[0]);
+		}
+	}
+
+	public void testEmpty() {
+		PeerManager pm = new TestPeerManager(node(0.5), new PeerNode[0]);
+		assertNull(closerPeer(pm, null, new HashSet<PeerNode>(), 0.25, true, 2.0, false));
+	}
+
+	/** Routing through the index picks the same peer as the linear scan. */
+	public void testEquivalentToLinearScan() {
+		Random r = new Random(5678);
+		for(int round = 0; round < ROUNDS; round++) {
+			PeerState[] states = randomStates(r, 1 + r.nextInt(40), 1 + r.nextInt(30));
+			PeerNode[] peers = peers(states);
+			PeerManager pm = new TestPeerManager(node(r.nextDouble()), peers);
+			for(int i = 0; i < 10; i++) {
+				for(PeerState state : states) {
+					state.routable = r.nextInt(5) != 0;
+					state.backedOff = r.nextInt(3) == 0;
+				}
+				Set<PeerNode> routedTo = new HashSet<PeerNode>();
+				int routed = r.nextInt(4);
+				for(int j = 0; j < routed; j++)
+					routedTo.add(peers[r.nextInt(peers.length)]);
+				PeerNode source = r.nextBoolean() ? null : peers[r.nextInt(peers.length)];
+				double target = r.nextDouble();
+				boolean ignoreSelf = r.nextBoolean();
+				double maxDistance = r.nextBoolean() ? 2.0 : r.nextDouble() / 2;
+				assertSame(closerPeer(pm, source, routedTo, target, ignoreSelf, maxDistance, true),
+						closerPeer(pm, source, routedTo, target, ignoreSelf, maxDistance, false));
+			}
+		}
+	}
+
+	/** The index is rebuilt when a peer's location changes. */
+	public void testInvalidate() {
+		PeerState[] states = new PeerState[] {
+				new PeerState(0.1, new double[0]), new PeerState(0.6, new double[0]) };
+		states[0].routable = states[1].routable = true;
+		PeerNode[] peers = peers(states);
+		PeerManager pm = new TestPeerManager(node(0.0), peers);
+		Set<PeerNode> routedTo = new HashSet<PeerNode>();
+		assertSame(peers[0], closerPeer(pm, null, routedTo, 0.2, true, 2.0, false));
+		states[1].location.updateLocation(0.25, new double[0]);
+		pm.invalidateLocationIndex();
+		assertSame(peers[1], closerPeer(pm, null, routedTo, 0.2, true, 2.0, false));
+		assertSame(peers[1], closerPeer(pm, null, routedTo, 0.2, true, 2.0, true));
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(42);
+		PeerState[] states = randomStates(r, 100, 100);
+		for(PeerState state : states)
+			state.backedOff = r.nextInt(5) == 0;
+		PeerManager pm = new TestPeerManager(node(0.5), peers(states));
+		Set<PeerNode> routedTo = new HashSet<PeerNode>();
+		int lookups = 100000;
+		double[] targets = new double[1024];
+		for(int i = 0; i < targets.length; i++)
+			targets[i] = r.nextDouble();
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			int found = 0;
+			for(int i = 0; i < lookups; i++) {
+				if(closerPeer(pm, null, routedTo, targets[i & 1023], true, 2.0, true) != null)
+					found++;
+			}
+			long linearTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < lookups; i++) {
+				if(closerPeer(pm, null, routedTo, targets[i & 1023], true, 2.0, false) != null)
+					found--;
+			}
+			long indexTime = System.nanoTime() - start;
+			assertEquals(0, found);
+			System.out.println("Routing 100 peers with 100 FOAF locations each: linear scan " +
+					(lookups * 1000000000L / linearTime) + " lookups/sec, index " +
+					(lookups * 1000000000L / indexTime) + " lookups/sec");
+		}
+	}
+}
@@ -0,0 +1,407 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.client.async.ChosenBlock;
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequestSelector;
+import freenet.keys.ClientKey;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.NodeStats.RejectReason;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+/** Runs a RequestStarter against a stub scheduler and a stub network layer, which completes
+ * every request as soon as it is sent. */
+public class RequestStarterTest extends TestCase {
+
+	private static class Throttle implements BaseRequestThrottle {
+		volatile long delay;
+
+		Throttle(long delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		public long getDelay() {
+			return delay;
+		}
+	}
+
+	private static class Item implements SendableRequestItem, SendableRequestItemKey {
+		@Override
+		public void dump() {
+			// Ignore
+		}
+
+		@Override
+		public SendableRequestItemKey getKey() {
+			return this;
+		}
+	}
+
+	private class Block extends ChosenBlock {
+		Block(Key key) {
+			super(new Item(), key, null, false, false, false, false, false, null);
+		}
+
+		@Override
+		public boolean send(NodeClientCore core, RequestScheduler sched) {
+			synchronized(RequestStarterTest.this) {
+				sent++;
+			}
+			sched.removeFetchingKey(key);
+			return true;
+		}
+
+		@Override
+		public boolean isPersistent() {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public void onFailure(LowLevelPutException e, ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		public void onInsertSuccess(ClientKey key, ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		public void onFailure(LowLevelGetException e, ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		public void onFetchSuccess(ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		public short getPriority() {
+			return RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+		}
+
+		@Override
+		public SendableRequestSender getSender(ClientContext context) {
+			return null;
+		}
+	}
+
+	/** Hands out blocks from a queue. Choosing each one takes grabCost nanoseconds, as if the
+	 * selector had to search a big queue. */
+	private static class Scheduler implements RequestScheduler {
+		final ArrayDeque<ChosenBlock> queue = new ArrayDeque<ChosenBlock>();
+		final HashSet<Key> fetching = new HashSet<Key>();
+		final long grabCost;
+		RequestStarter starter;
+
+		Scheduler(long grabCost) {
+			this.grabCost = grabCost;
+		}
+
+		private void spin() {
+			long end = System.nanoTime() + grabCost;
+			while(System.nanoTime() < end) {
+				// Busy
+			}
+		}
+
+		void queue(ChosenBlock block) {
+			synchronized(this) {
+				queue.add(block);
+			}
+			starter.wakeUp();
+		}
+
+		@Override
+		public ChosenBlock grabRequest() {
+			spin();
+			synchronized(this) {
+				return queue.poll();
+			}
+		}
+
+		@Override
+		public List<ChosenBlock> grabRequests(int max) {
+			List<ChosenBlock> ret = new ArrayList<ChosenBlock>(max);
+			for(int i = 0; i < max; i++) {
+				spin();
+				synchronized(this) {
+					ChosenBlock block = queue.poll();
+					if(block == null) break;
+					if(fetching.add(block.key))
+						ret.add(block);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public synchronized boolean addToFetching(Key key) {
+			return fetching.add(key);
+		}
+
+		@Override
+		public synchronized void removeFetchingKey(Key key) {
+			fetching.remove(key);
+		}
+
+		@Override
+		public synchronized boolean hasFetchingKey(Key key, BaseSendableGet getterWaiting, boolean persistent) {
+			return fetching.contains(key);
+		}
+
+		@Override
+		public synchronized long countQueuedRequests() {
+			return queue.size();
+		}
+
+		@Override
+		public void succeeded(BaseSendableGet get, boolean persistent) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public KeysFetchingLocally fetchingKeys() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void callFailure(SendableGet get, LowLevelGetException e, int prio, boolean persistent) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void callFailure(SendableInsert insert, LowLevelPutException exception, int prio, boolean persistent) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ClientContext getContext() {
+			return null;
+		}
+
+		@Override
+		public void removeRunningRequest(SendableRequest request) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isRunningOrQueuedPersistentRequest(SendableRequest request) {
+			return false;
+		}
+
+		@Override
+		public boolean addRunningInsert(SendableInsert insert, SendableRequestItemKey token) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void removeRunningInsert(SendableInsert insert, SendableRequestItemKey token) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void wakeStarter() {
+			starter.wakeUp();
+		}
+
+		@Override
+		public boolean wantKey(Key key) {
+			return false;
+		}
+
+		@Override
+		public ClientRequestSelector getSelector() {
+			return null;
+		}
+	}
+
+	private static class Starter extends RequestStarter {
+		volatile boolean reject;
+
+		Starter(Throttle throttle, boolean batched) {
+			super(null, null, new PooledExecutor(), throttle, "Test starter", null, null, false, false, false);
+			setBatched(batched);
+		}
+
+		@Override
+		boolean waitForPeers() {
+			return false;
+		}
+
+		@Override
+		RejectReason shouldRejectRequest() {
+			return reject ? new RejectReason("test", true) : null;
+		}
+
+		@Override
+		void waitUntilNotOverloaded() {
+			// Never overloaded.
+		}
+
+		@Override
+		void reportOutgoingLocalRequestLocation(Key key) {
+			// Ignore
+		}
+
+		@Override
+		RequestTrace maybeTrace(ChosenBlock req, long grabbed) {
+			return null;
+		}
+	}
+
+	private final Random random = new Random(1);
+	private int sent;
+
+	private Key makeKey() {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+	private Scheduler start(Starter starter, long grabCost, int requests) {
+		Scheduler sched = new Scheduler(grabCost);
+		sched.starter = starter;
+		starter.setScheduler(sched);
+		for(int i = 0; i < requests; i++)
+			sched.queue(new Block(makeKey()));
+		Thread t = new Thread(starter, "Test starter");
+		t.setDaemon(true);
+		t.start();
+		return sched;
+	}
+
+	/** Stop feeding the starter, so its thread just waits. */
+	private static void stop(Scheduler sched) {
+		synchronized(sched) {
+			sched.queue.clear();
+		}
+	}
+
+	private synchronized int sent() {
+		return sent;
+	}
+
+	private synchronized void resetSent() {
+		sent = 0;
+	}
+
+	public void testThrottleRate() throws InterruptedException {
+		for(boolean batched : new boolean[] { false, true }) {
+			resetSent();
+			Starter starter = new Starter(new Throttle(50), batched);
+			Scheduler sched = start(starter, 0, 1000);
+			Thread.sleep(1000);
+			int count = sent();
+			stop(sched);
+			// About 20, plus one to start with.
+			assertTrue("Sent "+count, count >= 12 && count <= 25);
+			assertTrue(starter.getStartedPerSecond(System.currentTimeMillis()) > 0);
+		}
+	}
+
+	/** If choosing a request takes longer than the throttle delay, the old loop falls behind,
+	 * but batched mode still starts requests at the throttle's rate. */
+	public void testSlowScheduler() throws InterruptedException {
+		resetSent();
+		Starter starter = new Starter(new Throttle(50), true);
+		Scheduler sched = start(starter, 30 * 1000 * 1000, 1000);
+		Thread.sleep(2000);
+		int count = sent();
+		stop(sched);
+		assertTrue("Sent "+count, count >= 30);
+	}
+
+	/** Follows the throttle, e.g. when the AIMD window shrinks. */
+	public void testThrottleChange() throws InterruptedException {
+		resetSent();
+		Throttle throttle = new Throttle(20);
+		Starter starter = new Starter(throttle, true);
+		Scheduler sched = start(starter, 0, 10000);
+		Thread.sleep(500);
+		throttle.delay = 200;
+		Thread.sleep(200);
+		int before = sent();
+		Thread.sleep(1000);
+		int count = sent() - before;
+		stop(sched);
+		assertTrue("Sent "+count, count >= 3 && count <= 7);
+	}
+
+	/** Requests rejected by load limiting are kept and started later. */
+	public void testRejected() throws InterruptedException {
+		resetSent();
+		Starter starter = new Starter(new Throttle(20), true);
+		starter.reject = true;
+		Scheduler sched = start(starter, 0, 5);
+		Thread.sleep(300);
+		assertEquals(0, sent());
+		assertTrue(sched.countQueuedRequests() < 5);
+		starter.reject = false;
+		Thread.sleep(500);
+		assertEquals(5, sent());
+		synchronized(sched) {
+			assertTrue(sched.fetching.isEmpty());
+		}
+		assertTrue(starter.getAverageWaitTime() > 0);
+	}
+
+	/** Switching back to the old loop gives back the requests grabbed but not started. */
+	public void testSwitchMode() throws InterruptedException {
+		resetSent();
+		Starter starter = new Starter(new Throttle(20), true);
+		starter.reject = true;
+		Scheduler sched = start(starter, 0, 5);
+		Thread.sleep(300);
+		synchronized(sched) {
+			assertEquals(1, sched.fetching.size());
+		}
+		starter.setBatched(false);
+		Thread.sleep(300);
+		synchronized(sched) {
+			assertTrue(sched.fetching.isEmpty());
+		}
+		starter.reject = false;
+		Thread.sleep(500);
+		assertEquals(4, sent());
+	}
+
+	/** Requests started per second at the throttle's minimum delay, when choosing a request
+	 * takes 0, 20 or 40ms. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		long duration = TestProperty.EXTENSIVE ? 30000 : 10000;
+		for(long grabCost : new long[] { 0, 20, 40 }) {
+			for(boolean batched : new boolean[] { false, true }) {
+				resetSent();
+				Starter starter = new Starter(new Throttle(BaseRequestThrottle.MIN_DELAY), batched);
+				Scheduler sched = start(starter, grabCost * 1000 * 1000, 10000);
+				Thread.sleep(duration);
+				int count = sent();
+				stop(sched);
+				System.out.println((batched ? "Batched" : "One at a time") + ", " + grabCost + "ms to choose a request: " +
+						(count * 1000L / duration) + " requests/sec, " + (long) starter.getAverageWaitTime() + "ms wait");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package freenet.node;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import freenet.client.FetchResult;
+import freenet.client.HighLevelSimpleClient;
+import freenet.crypt.DummyRandomSource;
+import freenet.io.comm.SimulatedNetwork;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.DarknetPeerNode.FRIEND_TRUST;
+import freenet.node.DarknetPeerNode.FRIEND_VISIBILITY;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.node.RequestTrace.Phase;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.FileUtil;
+import freenet.support.metrics.MetricsRegistry;
+
+public class RequestTracerTest extends TestCase {
+
+	private static final File dir = new File("test-request-tracer");
+
+	private final Key key = new NodeCHK(new byte[32], Key.ALGO_AES_CTR_256_SHA256);
+
+	/** The time in each phase is up to the next phase, and repeated phases add up. */
+	public void testPhaseTimes() {
+		RequestTracer tracer = new RequestTracer(new MetricsRegistry(), 1);
+		RequestTrace trace = new RequestTrace(tracer, key, false);
+		trace.enter(Phase.SCHEDULER, 1000);
+		trace.enter(Phase.THROTTLE, 3000);
+		trace.enter(Phase.ROUTING, 4000);
+		trace.enter(Phase.ROUTING, 6000);
+		trace.enter(Phase.WAITING, 10000);
+		trace.finish("SUCCESS");
+		long[] times = trace.phaseTimes();
+		assertEquals(2000, times[Phase.SCHEDULER.ordinal()]);
+		assertEquals(1000, times[Phase.THROTTLE.ordinal()]);
+		assertEquals(6000, times[Phase.ROUTING.ordinal()]);
+		assertEquals(0, times[Phase.TRANSFER.ordinal()]);
+		assertEquals(trace.totalTime(), times[Phase.WAITING.ordinal()] + 9000);
+		assertTrue(trace.hasPhase(Phase.WAITING));
+		assertFalse(trace.hasPhase(Phase.STORE));
+		// Phases after finishing are ignored.
+		trace.enter(Phase.COMMIT);
+		assertFalse(trace.hasPhase(Phase.COMMIT));
+		assertEquals(1, tracer.getTracedCount());
+	}
+
+	/** Only the most recent traces about as slow as the slowest tenth so far are kept. */
+	public void testSlowTraces() {
+		RequestTracer tracer = new RequestTracer(new MetricsRegistry(), 1);
+		for(int i = 1; i <= 100; i++) {
+			RequestTrace trace = new RequestTrace(tracer, key, false);
+			trace.enter(Phase.THROTTLE, System.nanoTime() - i * 1000000L);
+			trace.finish("SUCCESS");
+		}
+		assertEquals(100, tracer.getTracedCount());
+		RequestTrace[] slow = tracer.getSlowTraces();
+		assertTrue(slow.length > 0 && slow.length <= RequestTracer.MAX_SLOW_TRACES);
+		assertTrue(slow[0].totalTime() >= 100 * 1000000L);
+		for(RequestTrace trace : slow)
+			assertTrue(trace.totalTime() >= 80 * 1000000L);
+	}
+
+	public void testJSON() {
+		RequestTracer tracer = new RequestTracer(new MetricsRegistry(), 1);
+		RequestTrace trace = new RequestTrace(tracer, key, true);
+		trace.setUID(42);
+		trace.enter(Phase.THROTTLE, 0);
+		trace.finish("quote \" and \\");
+		String json = tracer.toJSON();
+		assertTrue(json, json.startsWith("{\"sampleInterval\":1,\"traced\":1,\"slowTraces\":[{\"uid\":42,"));
+		assertTrue(json, json.contains("\"result\":\"quote \\\" and \\\\\""));
+		assertTrue(json, json.contains("{\"phase\":\"throttle\",\"startMillis\":0.0,"));
+	}
+
+	/** Fetches a block which only another node has, through the client layer, and checks that
+	 * every phase of the fetch was traced. */
+	public void testTwoNodes() throws Exception {
+		if(!TestProperty.EXTENSIVE) return;
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+		NodeStarter.globalTestInit(dir, false, Logger.LogLevel.ERROR, "", true, new DummyRandomSource(3142));
+		SimulatedNetwork network = new SimulatedNetwork(3142, 10, 0, 0.0, 0, 1);
+		Executor executor = new PooledExecutor();
+		Node[] nodes = new Node[2];
+		for(int i = 0; i < nodes.length; i++) {
+			TestNodeParameters params = new TestNodeParameters();
+			params.port = 5010 + i;
+			params.baseDirectory = dir;
+			params.random = new DummyRandomSource(3143 + i);
+			params.executor = executor;
+			params.network = network;
+			params.maxHTL = 5;
+			params.disableProbabilisticHTLs = true;
+			params.ramStore = true;
+			params.storeSize = 1024 * 1024;
+			nodes[i] = NodeStarter.createTestNode(params);
+		}
+		nodes[0].connect(nodes[1], FRIEND_TRUST.LOW, FRIEND_VISIBILITY.NO);
+		nodes[1].connect(nodes[0], FRIEND_TRUST.LOW, FRIEND_VISIBILITY.NO);
+		for(Node node : nodes)
+			node.start(false);
+		long deadline = System.currentTimeMillis() + 60 * 1000;
+		while(nodes[0].peers.countConnectedPeers() == 0 || nodes[1].peers.countConnectedPeers() == 0) {
+			assertTrue("Nodes did not connect", System.currentTimeMillis() < deadline);
+			Thread.sleep(100);
+		}
+
+		byte[] data = "Request tracer test".getBytes("UTF-8");
+		ClientCHKBlock block = ClientCHKBlock.encode(data, false, false, (short) -1, data.length, COMPRESSOR_TYPE.DEFAULT_COMPRESSORDESCRIPTOR, false);
+		nodes[0].store(block.getBlock(), false, false, true, false);
+
+		RequestTracer tracer = nodes[1].nodeStats.tracer;
+		tracer.setSampleInterval(1);
+		HighLevelSimpleClient client = nodes[1].clientCore.makeClient((short) 0, false, false);
+		FetchResult result = client.fetch(block.getClientKey().getURI());
+		assertEquals("Request tracer test", new String(result.asByteArray(), "UTF-8"));
+
+		// The trace finishes after the data has been stored and the fetch has returned. The node
+		// may also be fetching its peers' ARKs, so look for the trace of this key.
+		RequestTrace trace = null;
+		deadline = System.currentTimeMillis() + 10 * 1000;
+		while(trace == null) {
+			for(RequestTrace t : tracer.getSlowTraces())
+				if(t.getKey().equals(block.getKey())) trace = t;
+			if(trace != null) break;
+			assertTrue("Request not traced: " + tracer.toJSON(), System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertEquals("SUCCESS", trace.getResult());
+		for(Phase phase : Phase.values())
+			assertTrue("No " + phase + " in " + tracer.toJSON(), trace.hasPhase(phase));
+		long total = 0;
+		for(long time : trace.phaseTimes())
+			total += time;
+		assertEquals(trace.totalTime(), total);
+		assertTrue(nodes[1].metrics.toText().contains("freenet_traced_request_phase_seconds_count{phase=\"transfer\"} 1\n"));
+		FileUtil.removeAll(dir);
+	}
+
+}
@@ -87,6 +87,52 @@ public class SlashdotStoreTest extends TestCase {
 		fail();
 	}
 
+	/** Blocks evicted or purged while being read are a miss, not an error. */
+	public void testConcurrentEviction() throws Exception {
+		final CHKStore store = new CHKStore();
+		final SlashdotStore<CHKBlock> ss = new SlashdotStore<>(store, 4, 30*1000, 5*1000, new TrivialTicker(exec), tbf);
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[8];
+		for(int i = 0; i < blocks.length; i++)
+			blocks[i] = encodeBlock("test" + i);
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			final boolean writer = i == 0;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int j = 0; j < 5000; j++) {
+							ClientCHKBlock block = blocks[j % blocks.length];
+							if(writer) {
+								store.put(block.getBlock(), false);
+								if(j % 100 == 0) ss.purgeOldData();
+							} else {
+								CHKBlock found = store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+								if(found != null)
+									assertEquals("test" + (j % blocks.length), decodeBlock(found, block.getClientKey()));
+							}
+						}
+					} catch (Throwable t) {
+						synchronized(failure) {
+							failure[0] = t;
+						}
+					}
+				}
+			};
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		synchronized(failure) {
+			if(failure[0] != null) {
+				failure[0].printStackTrace();
+				fail("Reading while evicting failed: " + failure[0]);
+			}
+		}
+	}
+
 	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
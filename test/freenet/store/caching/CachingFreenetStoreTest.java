@@ -29,6 +29,7 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
@@ -47,6 +48,7 @@ import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Fields;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -776,6 +778,96 @@ public class CachingFreenetStoreTest extends TestCase {
 		cachingStore.close();
 	}
 	
+	/* Blocks written to disk are kept in the read cache, and blocks read from disk are added to it,
+	 * and either way are returned without being verified again. */
+	public void testReadCache() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, KeyCollisionException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, 50, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker, cachingFreenetStoreMaxSize);
+		cachingStore.start(null, true);
+
+		ClientCHKBlock block = encodeBlockCHK("test0");
+		store.put(block.getBlock(), false);
+		ClientCHK key = block.getClientKey();
+		assertSame(block.getBlock(), store.fetch(key.getNodeCHK(), false, false, null));
+		assertEquals(1, cachingStore.cacheHits());
+		
+		// Write it to disk. It stays in memory.
+		assertEquals(cachingStore.pushLeastRecentlyBlock(), store.getTotalBlockSize());
+		assertNotNull(saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null));
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+		assertSame(block.getBlock(), verify);
+		assertEquals(2, cachingStore.cacheHits());
+		assertEquals("test0", decodeBlockCHK(verify, key));
+		
+		// Read from disk, and then from memory.
+		ClientCHKBlock block1 = encodeBlockCHK("test1");
+		saltStore.put(block1.getBlock(), block1.getBlock().getRawData(), block1.getBlock().getRawHeaders(), false, false);
+		ClientCHK key1 = block1.getClientKey();
+		CHKBlock verify1 = store.fetch(key1.getNodeCHK(), false, false, null);
+		assertEquals(2, cachingStore.cacheHits());
+		assertEquals("test1", decodeBlockCHK(verify1, key1));
+		assertSame(verify1, store.fetch(key1.getNodeCHK(), false, false, null));
+		assertEquals(3, cachingStore.cacheHits());
+		
+		cachingStore.close();
+	}
+	
+	/** Hit rate and fetch latency with Zipf-distributed requests for blocks on disk, with and
+	 * without the read cache. */
+	public void testBenchmark() throws IOException, CHKEncodeException, KeyCollisionException {
+		if(!TestProperty.BENCHMARK) return;
+		int blocks = TestProperty.EXTENSIVE ? 2000 : 500;
+		int fetches = blocks * 20;
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, blocks * 5, false, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+		saltStore.start(null, true);
+		List<ClientCHKBlock> chkBlocks = new ArrayList<ClientCHKBlock>();
+		for(int i=0;i<blocks;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			saltStore.put(block.getBlock(), block.getBlock().getRawData(), block.getBlock().getRawHeaders(), false, false);
+			chkBlocks.add(block);
+		}
+		double[] cumulative = new double[blocks];
+		double sum = 0;
+		for(int i=0;i<blocks;i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		int[] trace = new int[fetches];
+		for(int i=0;i<fetches;i++) {
+			double r = weakPRNG.nextDouble() * sum;
+			int lo = 0, hi = blocks - 1;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(cumulative[mid] < r) lo = mid + 1;
+				else hi = mid;
+			}
+			trace[i] = lo;
+		}
+		long blockSize = store.getTotalBlockSize();
+		for(long readCacheSize : new long[] { 0, blocks / 10 * blockSize, blocks / 4 * blockSize }) {
+			CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+			CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker, readCacheSize);
+			long start = System.nanoTime();
+			for(int i : trace) {
+				NodeCHK key = chkBlocks.get(i).getClientKey().getNodeCHK();
+				assertNotNull(store.fetch(key, false, false, null));
+			}
+			long time = System.nanoTime() - start;
+			System.out.println("Read cache " + readCacheSize + " bytes: hit rate " + (cachingStore.cacheHits() * 100 / fetches) + 
+					"%, mean fetch latency " + (time / fetches / 1000) + "us");
+		}
+		saltStore.close();
+	}
+	
 	private String decodeBlockSSK(SSKBlock verify, ClientSSK key) throws SSKVerifyException, KeyDecodeException, IOException {
 		ClientSSKBlock cb = ClientSSKBlock.construct(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
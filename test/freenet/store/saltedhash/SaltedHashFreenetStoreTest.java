@@ -23,6 +23,7 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
@@ -37,6 +38,7 @@ import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -125,6 +127,81 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 
+	/* fetchBatch() finds the same blocks as fetch(), with and without the slot filter */
+	public void testFetchBatch() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		for(boolean useSlotFilter : new boolean[] { false, true }) {
+			File f = new File(tempDir, "saltstore");
+			FileUtil.removeAll(f);
+
+			CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBatch", store, weakPRNG, 100, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(null, true);
+
+			NodeCHK[] keys = new NodeCHK[60];
+			ClientCHK[] clientKeys = new ClientCHK[keys.length];
+			for(int i=0;i<keys.length;i++) {
+				ClientCHKBlock block = encodeBlockCHK("test" + i);
+				// Every other block isn't stored.
+				if(i % 2 == 0)
+					store.put(block.getBlock(), false);
+				clientKeys[i] = block.getClientKey();
+				keys[i] = clientKeys[i].getNodeCHK();
+			}
+			CHKBlock[] found = store.fetch(keys, false, false);
+			int count = 0;
+			for(int i=0;i<keys.length;i++) {
+				CHKBlock single = store.fetch(keys[i], false, false, null);
+				assertEquals(single == null, found[i] == null);
+				if(found[i] != null) {
+					count++;
+					assertEquals("test" + i, decodeBlockCHK(found[i], clientKeys[i]));
+				}
+			}
+			// Some of them may have been overwritten, it's a small store.
+			assertTrue(count > 20);
+			assertEquals(0, saltStore.fetchBatch(new byte[0][], new byte[0][], new CHKBlock[0], false, false, false, false, null));
+
+			saltStore.close();
+		}
+	}
+
+	/* Checking a 10,000 block splitfile, half of which we have, against a large store: one key
+	 * at a time, and as a batch. */
+	public void testBenchmark() throws IOException, CHKEncodeException {
+		if(!TestProperty.BENCHMARK) return;
+		int blocks = 10000;
+		long storeSize = TestProperty.EXTENSIVE ? 200000 : 50000;
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBenchmark", store, weakPRNG, storeSize, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		NodeCHK[] keys = new NodeCHK[blocks];
+		for(int i=0;i<blocks;i++) {
+			ClientCHKBlock block = encodeBlockCHK("benchmark" + i);
+			if(i % 2 == 0)
+				store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey().getNodeCHK();
+		}
+		for(int round=0;round<3;round++) {
+			long start = System.nanoTime();
+			int found = 0;
+			for(NodeCHK key : keys)
+				if(store.fetch(key, false, false, null) != null) found++;
+			long single = System.nanoTime() - start;
+			start = System.nanoTime();
+			int batchFound = 0;
+			for(CHKBlock block : store.fetch(keys, false, false))
+				if(block != null) batchFound++;
+			long batch = System.nanoTime() - start;
+			assertEquals(found, batchFound);
+			System.out.println(blocks + " keys, " + found + " found, in a store of " + storeSize + ": one at a time " + 
+					single / 1000000 + "ms, batch " + batch / 1000000 + "ms");
+		}
+		saltStore.close();
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -0,0 +1,163 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BlockedBloomFilterTest extends TestCase {
+	private static final int KEYS = 2048;
+	/** Bits per key. Gives a theoretical false positive rate of about 0.6185^16 = 0.05%. */
+	private static final int BITS_PER_KEY = 16;
+
+	private final Random rand = new Random(12345);
+
+	private byte[][] randomKeys(int count) {
+		byte[][] keys = new byte[count][];
+		for(int i = 0; i < count; i++) {
+			keys[i] = new byte[32];
+			rand.nextBytes(keys[i]);
+		}
+		return keys;
+	}
+
+	private static double falsePositiveRate(BlockedBloomFilter filter, byte[][] keys) {
+		int fp = 0;
+		for(byte[] key : keys)
+			if(filter.checkFilter(key)) fp++;
+		return (double) fp / keys.length;
+	}
+
+	public void testBinaryPositive() {
+		int k = BloomFilter.optimialK(KEYS * BITS_PER_KEY, KEYS);
+		BlockedBloomFilter filter = new BlockedBinaryBloomFilter(KEYS * BITS_PER_KEY / 8, k);
+		byte[][] keys = randomKeys(KEYS);
+		for(byte[] key : keys) filter.addKey(key);
+		for(byte[] key : keys) assertTrue(filter.checkFilter(key));
+		double fp = falsePositiveRate(filter, randomKeys(100000));
+		assertTrue("False positive rate too high: "+fp, fp < 0.005);
+	}
+
+	public void testCountingRemove() {
+		int k = BloomFilter.optimialK(KEYS * BITS_PER_KEY, KEYS);
+		BlockedCountingBloomFilter filter = new BlockedCountingBloomFilter(KEYS * BITS_PER_KEY / 4, k);
+		byte[][] keys = randomKeys(KEYS);
+		byte[][] removed = randomKeys(KEYS);
+		for(byte[] key : keys) filter.addKey(key);
+		for(byte[] key : removed) filter.addKey(key);
+		for(byte[] key : removed) assertTrue(filter.checkFilter(key));
+		for(byte[] key : removed) filter.removeKey(key);
+		// No false negatives for the keys which are still there.
+		for(byte[] key : keys) assertTrue(filter.checkFilter(key));
+		double fp = falsePositiveRate(filter, removed);
+		assertTrue("False positive rate too high after remove: "+fp, fp < 0.01);
+	}
+
+	public void testSmallFilters() {
+		for(int size = 1; size < 200; size++) {
+			BlockedBinaryBloomFilter binary = new BlockedBinaryBloomFilter(size, 3);
+			BlockedCountingBloomFilter counting = new BlockedCountingBloomFilter(size, 3);
+			byte[][] keys = randomKeys(size / 4 + 1);
+			for(byte[] key : keys) {
+				binary.addKey(key);
+				counting.addKey(key);
+			}
+			for(byte[] key : keys) {
+				assertTrue(binary.checkFilter(key));
+				assertTrue(counting.checkFilter(key));
+			}
+		}
+		BlockedBinaryBloomFilter empty = new BlockedBinaryBloomFilter(0, 3);
+		empty.addKey(new byte[32]);
+		assertTrue(empty.checkFilter(new byte[32]));
+	}
+
+	public void testSerialization() throws IOException {
+		// Not a multiple of 8 or of the block size.
+		int size = 1000 + 5;
+		BlockedCountingBloomFilter filter = new BlockedCountingBloomFilter(size, 5);
+		byte[][] keys = randomKeys(200);
+		for(byte[] key : keys) filter.addKey(key);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		filter.writeTo(baos);
+		assertEquals(size, baos.size());
+		byte[] buf = new byte[size + 10];
+		System.arraycopy(baos.toByteArray(), 0, buf, 10, size);
+		BlockedCountingBloomFilter copy = new BlockedCountingBloomFilter(buf, 10, size, 5);
+		for(byte[] key : keys) assertTrue(copy.checkFilter(key));
+		byte[] out = new byte[size];
+		copy.copyTo(out, 0);
+		assertTrue(java.util.Arrays.equals(baos.toByteArray(), out));
+		copy.unsetAll();
+		assertEquals(0, falsePositiveRate(copy, keys), 0.0);
+	}
+
+	public void testConcurrentAdd() throws InterruptedException {
+		final int threads = 4;
+		final byte[][] keys = randomKeys(KEYS * threads);
+		final BlockedBinaryBloomFilter binary = new BlockedBinaryBloomFilter(keys.length * BITS_PER_KEY / 8, 11);
+		final BlockedCountingBloomFilter counting = new BlockedCountingBloomFilter(keys.length * BITS_PER_KEY / 4, 11);
+		Thread[] t = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			final int offset = i;
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = offset; j < keys.length; j += threads) {
+						binary.addKey(keys[j]);
+						counting.addKey(keys[j]);
+					}
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t) thread.join();
+		for(byte[] key : keys) {
+			assertTrue(binary.checkFilter(key));
+			assertTrue(counting.checkFilter(key));
+		}
+	}
+
+	/** Compare add and check throughput and the false positive rate with the unblocked filters,
+	 * at the sizes used for the main filter of a splitfile. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int keys = TestProperty.EXTENSIVE ? 1000000 : 100000;
+		// As SplitFileFetcherKeyListener.
+		int bits = keys * 19;
+		int k = (int) (19 * 0.7);
+		byte[][] added = randomKeys(keys);
+		byte[][] absent = randomKeys(keys);
+		for(int round = 0; round < 3; round++) {
+			BloomFilter binary = new BinaryBloomFilter(bits, k);
+			BloomFilter counting = new CountingBloomFilter(bits, k);
+			BlockedBloomFilter blockedBinary = new BlockedBinaryBloomFilter(bits / 8, k);
+			BlockedBloomFilter blockedCounting = new BlockedCountingBloomFilter(bits / 4, k);
+			System.out.println(keys + " keys, " + bits + " entries, k=" + k);
+			benchmark("BinaryBloomFilter", binary, null, added, absent);
+			benchmark("BlockedBinaryBloomFilter", null, blockedBinary, added, absent);
+			benchmark("CountingBloomFilter", counting, null, added, absent);
+			benchmark("BlockedCountingBloomFilter", null, blockedCounting, added, absent);
+		}
+	}
+
+	private static void benchmark(String name, BloomFilter filter, BlockedBloomFilter blocked,
+			byte[][] added, byte[][] absent) {
+		long start = System.nanoTime();
+		for(byte[] key : added) {
+			if(filter != null) filter.addKey(key);
+			else blocked.addKey(key);
+		}
+		long addTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		int fp = 0;
+		for(byte[] key : absent) {
+			if(filter != null ? filter.checkFilter(key) : blocked.checkFilter(key)) fp++;
+		}
+		long checkTime = System.nanoTime() - start;
+		System.out.println(name + ": add " + (addTime / added.length) + "ns/key, check " +
+				(checkTime / absent.length) + "ns/key, false positives " + (100.0 * fp / absent.length) + "%");
+	}
+
+}
@@ -0,0 +1,279 @@
+package freenet.support;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.CacheMap.EvictionListener;
+import freenet.support.CacheMap.Weigher;
+
+import junit.framework.TestCase;
+
+public class ConcurrentCacheMapTest extends TestCase {
+
+	private static final Weigher<Integer, String> LENGTH = new Weigher<Integer, String>() {
+
+		@Override
+		public int weigh(Integer key, String value) {
+			return value.length();
+		}
+
+	};
+
+	private static class RecordingListener implements EvictionListener<Integer, String> {
+		final Map<Integer, String> evicted = new HashMap<Integer, String>();
+
+		@Override
+		public synchronized void onEviction(Integer key, String value) {
+			assertNull(evicted.put(key, value));
+		}
+	}
+
+	private static List<CacheMap<Integer, String>> both(long maximumWeight, Weigher<Integer, String> weigher,
+			EvictionListener<Integer, String> listener) {
+		List<CacheMap<Integer, String>> caches = new ArrayList<CacheMap<Integer, String>>();
+		caches.add(new ConcurrentCacheMap<Integer, String>(maximumWeight, null, weigher, listener));
+		caches.add(new LRUCacheMap<Integer, String>(maximumWeight, null, weigher, listener));
+		return caches;
+	}
+
+	public void testBasic() {
+		for(CacheMap<Integer, String> cache : both(100, null, null)) {
+			assertNull(cache.put(1, "one"));
+			assertEquals("one", cache.get(1));
+			assertEquals("one", cache.peek(1));
+			assertTrue(cache.containsKey(1));
+			assertEquals("one", cache.put(1, "uno"));
+			assertEquals("uno", cache.get(1));
+			assertEquals(1, cache.size());
+			assertEquals(1, cache.weightedSize());
+			assertNull(cache.get(2));
+			assertEquals("uno", cache.remove(1));
+			assertNull(cache.remove(1));
+			assertFalse(cache.containsKey(1));
+			assertEquals(0, cache.size());
+			assertEquals(0, cache.weightedSize());
+			for(int i = 0; i < 10; i++) cache.put(i, Integer.toString(i));
+			assertEquals(10, cache.keys().size());
+			cache.clear();
+			assertEquals(0, cache.size());
+			assertNull(cache.get(5));
+		}
+	}
+
+	/** The cache stays within its maximum weight, and everything which leaves it other than by
+	 * remove() or replacement goes to the listener. */
+	public void testWeightAndListener() {
+		Random random = new Random(1234);
+		for(int round = 0; round < 2; round++) {
+			RecordingListener listener = new RecordingListener();
+			CacheMap<Integer, String> cache = both(1000, LENGTH, listener).get(round);
+			Map<Integer, String> added = new HashMap<Integer, String>();
+			for(int i = 0; i < 500; i++) {
+				StringBuilder sb = new StringBuilder();
+				int length = 1 + random.nextInt(40);
+				for(int j = 0; j < length; j++) sb.append('x');
+				cache.put(i, sb.toString());
+				added.put(i, sb.toString());
+				if(random.nextBoolean()) cache.get(random.nextInt(i + 1));
+				assertTrue(cache.weightedSize() <= 1000);
+			}
+			long weight = 0;
+			for(Integer key : cache.keys()) {
+				String value = cache.peek(key);
+				assertEquals(added.get(key), value);
+				assertFalse(listener.evicted.containsKey(key));
+				weight += value.length();
+			}
+			assertEquals(weight, cache.weightedSize());
+			assertEquals(500, cache.size() + listener.evicted.size());
+			for(Map.Entry<Integer, String> e : listener.evicted.entrySet())
+				assertEquals(added.get(e.getKey()), e.getValue());
+			cache.setMaximumWeight(100);
+			assertTrue(cache.weightedSize() <= 100);
+			assertEquals(500, cache.size() + listener.evicted.size());
+		}
+	}
+
+	/** Keys which are used regularly survive a scan of keys which are only used once, which
+	 * pushes them out of a plain LRU. */
+	public void testScanResistance() {
+		for(CacheMap<Integer, String> cache : both(100, null, null)) {
+			int scanKey = 1000;
+			for(int round = 0; round < 200; round++) {
+				for(int i = 0; i < 50; i++) {
+					if(cache.get(i) == null) cache.put(i, "hot");
+					if(round >= 10)
+						for(int j = 0; j < 10; j++) {
+							if(cache.get(scanKey) == null) cache.put(scanKey, "scan");
+							scanKey++;
+						}
+				}
+			}
+			int hot = 0;
+			for(int i = 0; i < 50; i++)
+				if(cache.peek(i) != null) hot++;
+			if(cache instanceof ConcurrentCacheMap)
+				assertTrue("Only " + hot + " hot keys survived", hot >= 48);
+			else
+				assertTrue(hot < 10);
+		}
+	}
+
+	public void testConcurrentAccess() throws InterruptedException {
+		final CacheMap<Integer, String> cache = new ConcurrentCacheMap<Integer, String>(1000, null, null, null);
+		final AtomicLong errors = new AtomicLong();
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					for(int j = 0; j < 100000; j++) {
+						int key = random.nextInt(5000);
+						String value = cache.get(key);
+						if(value == null) cache.put(key, Integer.toString(key));
+						else if(!value.equals(Integer.toString(key))) errors.incrementAndGet();
+						if(j % 100 == 0) cache.remove(random.nextInt(5000));
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		assertEquals(0, errors.get());
+		assertTrue(cache.size() <= 1000);
+		assertEquals(cache.size(), cache.keys().size());
+		assertEquals(cache.size(), cache.weightedSize());
+	}
+
+	/** Zipf-distributed requests, like popular blocks on a node, interrupted by scans of keys
+	 * which are used once, like a big splitfile passing through the slashdot cache. */
+	private static int[] syntheticTrace(int length, int keys, int scanEvery, int scanLength) {
+		Random random = new Random(42);
+		double[] cumulative = new double[keys];
+		double sum = 0;
+		for(int i = 0; i < keys; i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		int[] trace = new int[length];
+		int scanKey = keys;
+		for(int i = 0; i < length; i++) {
+			if(scanEvery > 0 && (i / scanLength) % scanEvery == scanEvery - 1) {
+				trace[i] = scanKey++;
+				continue;
+			}
+			double r = random.nextDouble() * sum;
+			int lo = 0, hi = keys - 1;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(cumulative[mid] < r) lo = mid + 1;
+				else hi = mid;
+			}
+			trace[i] = lo;
+		}
+		return trace;
+	}
+
+	/** A recorded trace: one key per line. */
+	private static int[] readTrace(String filename) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+		try {
+			Map<String, Integer> ids = new HashMap<String, Integer>();
+			List<Integer> trace = new ArrayList<Integer>();
+			String line;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty()) continue;
+				Integer id = ids.get(line);
+				if(id == null) {
+					id = ids.size();
+					ids.put(line, id);
+				}
+				trace.add(id);
+			}
+			int[] ret = new int[trace.size()];
+			for(int i = 0; i < ret.length; i++) ret[i] = trace.get(i);
+			return ret;
+		} finally {
+			br.close();
+		}
+	}
+
+	private static double hitRate(CacheMap<Integer, String> cache, int[] trace) {
+		int hits = 0;
+		for(int key : trace) {
+			if(cache.get(key) != null) hits++;
+			else cache.put(key, "");
+		}
+		return 100.0 * hits / trace.length;
+	}
+
+	/** Compare hit rates of the LRU and W-TinyLFU caches, and read throughput with several
+	 * threads. Set test.cacheTrace to a file with one key per line to replay a recorded trace. */
+	public void testBenchmark() throws IOException, InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		List<String> names = new ArrayList<String>();
+		List<int[]> traces = new ArrayList<int[]>();
+		int length = TestProperty.EXTENSIVE ? 5000000 : 1000000;
+		names.add("zipf");
+		traces.add(syntheticTrace(length, 100000, 0, 0));
+		names.add("zipf+scans");
+		traces.add(syntheticTrace(length, 100000, 4, 20000));
+		String filename = System.getProperty("test.cacheTrace");
+		if(filename != null) {
+			names.add(filename);
+			traces.add(readTrace(filename));
+		}
+		for(int i = 0; i < traces.size(); i++) {
+			for(int size : new int[] { 1000, 10000 }) {
+				double lru = hitRate(new LRUCacheMap<Integer, String>(size, null, null, null), traces.get(i));
+				double tinyLfu = hitRate(new ConcurrentCacheMap<Integer, String>(size, null, null, null), traces.get(i));
+				System.out.println(names.get(i) + " size " + size + ": LRU hit rate " + String.format("%.2f", lru) +
+						"%, W-TinyLFU " + String.format("%.2f", tinyLfu) + "%");
+			}
+		}
+		int[] trace = traces.get(0);
+		for(int threads : new int[] { 1, 2, 4, 8 }) {
+			for(int round = 0; round < 2; round++) {
+				long lru = contention(new LRUCacheMap<Integer, String>(10000, null, null, null), trace, threads);
+				long concurrent = contention(new ConcurrentCacheMap<Integer, String>(10000, null, null, null), trace, threads);
+				System.out.println(threads + " threads: LRUCacheMap " + lru + " ops/ms, ConcurrentCacheMap " + concurrent + " ops/ms");
+			}
+		}
+	}
+
+	/** @return Operations per millisecond with this many threads replaying the trace. */
+	private static long contention(final CacheMap<Integer, String> cache, final int[] trace, int threadCount)
+			throws InterruptedException {
+		for(int i = 0; i < 20000; i++) cache.put(trace[i], "");
+		Thread[] threads = new Thread[threadCount];
+		for(int i = 0; i < threadCount; i++) {
+			final int offset = i * (trace.length / threadCount);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < trace.length; j++) {
+						int key = trace[(offset + j) % trace.length];
+						if(cache.get(key) == null) cache.put(key, "");
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : threads) t.start();
+		for(Thread t : threads) t.join();
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+		return (long) trace.length * threadCount / millis;
+	}
+
+}
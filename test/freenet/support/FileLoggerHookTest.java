@@ -0,0 +1,169 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import freenet.support.Logger.LogLevel;
+
+import junit.framework.TestCase;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+
+	/** Wait until the writer has written everything in the list. */
+	private static String waitForOutput(FileLoggerHook hook, ByteArrayOutputStream os, int lines)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(System.currentTimeMillis() < deadline) {
+			String output = os.toString();
+			if(hook.listBytes() == 0 && countLines(output) >= lines) return output;
+			Thread.sleep(10);
+		}
+		fail("Timed out waiting for the log writer");
+		return null;
+	}
+
+	private static int countLines(String s) {
+		int count = 0;
+		for(int i = 0; i < s.length(); i++)
+			if(s.charAt(i) == '\n') count++;
+		return count;
+	}
+
+	public void testMessagesFromManyThreads() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final FileLoggerHook hook = new FileLoggerHook(os, "t p: m", "", LogLevel.MINOR);
+		hook.setMaxListBytes(100 * 1000 * 1000);
+		hook.setMaxBacklogNotBusy(10);
+		hook.start();
+		try {
+			Thread[] threads = new Thread[4];
+			for(int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread("logger-" + i) {
+					@Override
+					public void run() {
+						for(int j = 0; j < 1000; j++)
+							hook.log(this, getClass(), "message " + j, null, LogLevel.MINOR);
+					}
+				};
+				threads[i].start();
+			}
+			for(Thread t : threads) t.join();
+			hook.log(this, getClass(), "ignored", null, LogLevel.DEBUG);
+			String output = waitForOutput(hook, os, 4000);
+			assertEquals(4000, countLines(output));
+			int[] next = new int[threads.length];
+			for(String line : output.split("\n")) {
+				assertTrue(line, line.startsWith("logger-"));
+				int thread = line.charAt("logger-".length()) - '0';
+				assertEquals("logger-" + thread + " MINOR: message " + next[thread], line);
+				next[thread]++;
+			}
+		} finally {
+			hook.close();
+		}
+	}
+
+	public void testThrowable() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "c: m", "", LogLevel.MINOR);
+		hook.start();
+		try {
+			Exception e = new IOException("test", new IllegalStateException("cause"));
+			hook.log(this, getClass(), "failed", e, LogLevel.ERROR);
+			String output = waitForOutput(hook, os, 3);
+			assertTrue(output.startsWith(getClass().getName() + ": failed\njava.io.IOException: test\n\tat "));
+			assertTrue(output.contains("\njava.lang.IllegalStateException: cause\n\tat "));
+		} finally {
+			hook.close();
+		}
+	}
+
+	/** When logging faster than the writer can keep up, new messages are dropped, and the writer
+	 * says how many. */
+	public void testDropWhenFull() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "m", "", LogLevel.MINOR);
+		// The writer isn't running yet, so nothing is written.
+		for(int i = 0; i < 100; i++)
+			hook.log(this, getClass(), "message " + i, null, LogLevel.MINOR);
+		assertTrue(hook.listBytes() > 0);
+		hook.start();
+		try {
+			String output = waitForOutput(hook, os, 1);
+			// The default list size is much bigger than this.
+			assertFalse(output.contains("GRRR"));
+			assertTrue(output.endsWith("message 99\n"));
+		} finally {
+			hook.close();
+		}
+		os = new ByteArrayOutputStream();
+		hook = new FileLoggerHook(os, "m", "", LogLevel.MINOR);
+		hook.setMaxListBytes(1000);
+		for(int i = 0; i < 100; i++)
+			hook.log(this, getClass(), "message " + i, null, LogLevel.MINOR);
+		assertTrue(hook.listBytes() <= 1000);
+		hook.start();
+		try {
+			String output = waitForOutput(hook, os, 2);
+			assertTrue(output, output.startsWith("GRRR: ERROR: Logging too fast, dropped "));
+			assertTrue(output.contains("\nmessage 0\n"));
+			assertFalse(output.contains("message 99"));
+		} finally {
+			hook.close();
+		}
+	}
+
+	/** Log calls per second from 16 threads through the global Logger, with the normal node
+	 * log format. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int threadCount = 16;
+		final int perThread = TestProperty.EXTENSIVE ? 1000000 : 100000;
+		File file = File.createTempFile("benchmark", ".log");
+		file.deleteOnExit();
+		for(int round = 0; round < 3; round++) {
+			// Big enough to hold every message, so none are dropped.
+			FileLoggerHook hook = new FileLoggerHook(false, file.getPath(), "d (c, t, p): m",
+					"MMM dd, yyyy HH:mm:ss:SSS", "HOUR", LogLevel.MINOR, true, true, -1, threadCount * perThread);
+			hook.setMaxListBytes(100 * 1000 * 1000);
+			hook.setMaxBacklogNotBusy(1000);
+			Logger.setupChain();
+			Logger.globalSetThreshold(LogLevel.MINOR);
+			Logger.globalAddHook(hook);
+			hook.start();
+			try {
+				Thread[] threads = new Thread[threadCount];
+				for(int i = 0; i < threadCount; i++) {
+					threads[i] = new Thread() {
+						@Override
+						public void run() {
+							for(int j = 0; j < perThread; j++)
+								Logger.minor(this, "Benchmark message number " + j);
+						}
+					};
+				}
+				long start = System.nanoTime();
+				for(Thread t : threads) t.start();
+				for(Thread t : threads) t.join();
+				long logged = System.nanoTime();
+				while(hook.listBytes() > 0)
+					Thread.sleep(1);
+				// The writer flushes after writing everything it has.
+				Thread.sleep(100);
+				long written = System.nanoTime();
+				long calls = (long) threadCount * perThread;
+				System.out.println(threadCount + " threads: " + (calls * 1000000000L / (logged - start)) +
+						" log calls/sec, " + ((written - start) / 1000000) + "ms until " + file.length() +
+						" bytes written");
+			} finally {
+				Logger.globalRemoveHook(hook);
+				Logger.destroyChainIfEmpty();
+				hook.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+
+import junit.framework.TestCase;
+
+public class BucketToolsTest extends TestCase {
+
+	private File base;
+	private FilenameGenerator fg;
+
+	@Override
+	protected void setUp() throws IOException {
+		base = new File("tmp.bucket-tools-test");
+		FileUtil.removeAll(base);
+		base.mkdir();
+		fg = new FilenameGenerator(new Random(12345), true, base, "junit");
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private Bucket makeFileBucket(byte[] data) throws IOException {
+		Bucket bucket = new TempFileBucket(fg.makeRandomFilename(), fg);
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+		return bucket;
+	}
+
+	public void testCopyRange() throws IOException {
+		Random r = new Random(1);
+		byte[] data = new byte[100000];
+		r.nextBytes(data);
+		Bucket[] buckets = { new ArrayBucket(data), makeFileBucket(data) };
+		for (Bucket bucket : buckets) {
+			for (int i = 0; i < 20; i++) {
+				int offset = r.nextInt(data.length);
+				int length = r.nextInt(data.length - offset + 1);
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				BucketTools.copyTo(bucket, bos, offset, length);
+				assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, offset + length), bos.toByteArray()));
+			}
+			try {
+				BucketTools.copyTo(bucket, new ByteArrayOutputStream(), data.length - 10, 20);
+				fail("Copied past the end of the bucket");
+			} catch (IOException e) {
+				// Expected.
+			}
+			bucket.free();
+		}
+	}
+
+	public void testTransferTo() throws IOException {
+		Random r = new Random(2);
+		byte[] data = new byte[100000];
+		r.nextBytes(data);
+		Bucket bucket = makeFileBucket(data);
+		File file = BucketTools.getFile(new NoFreeBucket(bucket));
+		assertNotNull(file);
+		File out = new File(base, "out");
+		FileOutputStream fos = new FileOutputStream(out);
+		BucketTools.transferTo(file, fos.getChannel(), 1000, 5000);
+		fos.close();
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 6000), BucketTools.toByteArray(new FileBucket(out, true, false, false, false))));
+		assertNull(BucketTools.getFile(new ArrayBucket(data)));
+		bucket.free();
+	}
+
+	/** Simulate a video player seeking: each seek asks for everything from a random offset to
+	 * the end, and reads the first megabyte before seeking again. */
+	public void testBenchmark() throws IOException {
+		if (!TestProperty.BENCHMARK) return;
+		final long size = TestProperty.EXTENSIVE ? 1024L * 1024 * 1024 : 64L * 1024 * 1024;
+		final int seeks = 100;
+		final int read = 1024 * 1024;
+		Random r = new Random(3);
+		Bucket bucket = new TempFileBucket(fg.makeRandomFilename(), fg);
+		OutputStream os = bucket.getOutputStream();
+		byte[] buf = new byte[1024 * 1024];
+		for (long written = 0; written < size; written += buf.length) {
+			r.nextBytes(buf);
+			os.write(buf);
+		}
+		os.close();
+		long[] offsets = new long[seeks];
+		for (int i = 0; i < seeks; i++) offsets[i] = (long) (r.nextDouble() * (size - read));
+		File out = new File(base, "out");
+
+		// Old FProxy behaviour: copy the rest of the file to a temporary bucket, then send it.
+		long start = System.nanoTime();
+		for (long offset : offsets) {
+			Bucket tmp = new TempFileBucket(fg.makeRandomFilename(), fg);
+			InputStream is = bucket.getInputStream();
+			OutputStream tos = tmp.getOutputStream();
+			FileUtil.skipFully(is, offset);
+			FileUtil.copy(is, tos, size - offset);
+			tos.close();
+			is.close();
+			FileOutputStream fos = new FileOutputStream(out);
+			BucketTools.copyTo(tmp, fos, read);
+			fos.close();
+			tmp.free();
+		}
+		long copyTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (long offset : offsets) {
+			FileOutputStream fos = new FileOutputStream(out);
+			BucketTools.copyTo(bucket, fos, offset, read);
+			fos.close();
+		}
+		long seekTime = System.nanoTime() - start;
+
+		File file = BucketTools.getFile(bucket);
+		start = System.nanoTime();
+		for (long offset : offsets) {
+			FileOutputStream fos = new FileOutputStream(out);
+			FileChannel channel = fos.getChannel();
+			BucketTools.transferTo(file, channel, offset, read);
+			fos.close();
+		}
+		long transferTime = System.nanoTime() - start;
+		bucket.free();
+
+		System.out.println(seeks + " seeks into a " + (size >> 20) + "MB file: copy to temp bucket " +
+				(copyTime / 1000000) + "ms, skip and stream " + (seekTime / 1000000) + "ms, transferTo " +
+				(transferTime / 1000000) + "ms");
+	}
+}
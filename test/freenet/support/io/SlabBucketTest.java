@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+public class SlabBucketTest extends BucketTestBase {
+	private final SlabPool pool = new SlabPool(1024 * 1024, true);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new SlabBucket(pool, size);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+	}
+
+	/** Slabs double in size as the bucket grows, and go back to the pool when it is freed. */
+	public void testSlabs() throws IOException {
+		SlabBucket bucket = new SlabBucket(pool, -1);
+		byte[] data = new byte[1024 * 1024 + 1];
+		new Random(1).nextBytes(data);
+		OutputStream os = bucket.getOutputStream();
+		for(int i = 0; i < data.length; i += 1000)
+			os.write(data, i, Math.min(1000, data.length - i));
+		os.close();
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(bucket)));
+		assertTrue(bucket.slabCount() <= data.length / SlabPool.SLAB_SIZE + 7);
+		assertTrue(pool.bytesInUse() >= data.length);
+		assertTrue(pool.bytesInUse() < data.length + SlabPool.SLAB_SIZE);
+		bucket.free();
+		assertEquals(0, pool.bytesInUse());
+		assertTrue(pool.freeBytes() > 0);
+		// Reused.
+		long free = pool.freeBytes();
+		bucket = new SlabBucket(pool, SlabPool.SLAB_SIZE);
+		os = bucket.getOutputStream();
+		os.write(data, 0, SlabPool.SLAB_SIZE);
+		os.close();
+		assertEquals(free - SlabPool.SLAB_SIZE, pool.freeBytes());
+		bucket.free();
+	}
+
+	public void testToRandomAccessBuffer() throws IOException {
+		SlabBucket bucket = new SlabBucket(pool, 100000);
+		byte[] data = new byte[100000];
+		new Random(2).nextBytes(data);
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+		LockableRandomAccessBuffer raf = bucket.toRandomAccessBuffer();
+		assertEquals(data.length, raf.size());
+		byte[] buf = new byte[data.length];
+		raf.pread(0, buf, 0, buf.length);
+		assertTrue(Arrays.equals(data, buf));
+		try {
+			raf.pwrite(0, buf, 0, 1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		try {
+			bucket.getInputStream();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// The buffer owns the slabs now.
+		bucket.free();
+		assertTrue(pool.bytesInUse() >= data.length);
+		raf.free();
+		assertEquals(0, pool.bytesInUse());
+	}
+
+	public void testFreeLimit() {
+		SlabPool pool = new SlabPool(2 * SlabPool.SLAB_SIZE, true);
+		SlabList slabs = new SlabList(pool);
+		slabs.growTo(10 * SlabPool.SLAB_SIZE, false);
+		slabs.release();
+		assertEquals(2 * SlabPool.SLAB_SIZE, pool.freeBytes());
+		pool.setMaxFreeBytes(SlabPool.SLAB_SIZE);
+		assertEquals(SlabPool.SLAB_SIZE, pool.freeBytes());
+	}
+}
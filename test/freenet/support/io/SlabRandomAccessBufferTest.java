@@ -0,0 +1,20 @@
+package freenet.support.io;
+
+import freenet.support.api.RandomAccessBuffer;
+
+public class SlabRandomAccessBufferTest extends RandomAccessBufferTestBase {
+
+    private static final int[] TEST_LIST = new int[] { 0, 1, 32, 64, 32768, 1024*1024, 1024*1024+1 };
+    
+    private final SlabPool pool = new SlabPool(1024*1024, true);
+    
+    public SlabRandomAccessBufferTest() {
+        super(TEST_LIST);
+    }
+
+    @Override
+    protected RandomAccessBuffer construct(long size) {
+        return new SlabRandomAccessBuffer(pool, size);
+    }
+
+}
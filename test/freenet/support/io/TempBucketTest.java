@@ -7,7 +7,10 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -19,7 +22,9 @@ import freenet.crypt.DummyRandomSource;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.RandomSource;
 import freenet.support.Executor;
+import freenet.support.PooledExecutor;
 import freenet.support.SerialExecutor;
+import freenet.support.TestProperty;
 import freenet.support.api.Bucket;
 import freenet.support.io.TempBucketFactory.TempBucket;
 
@@ -151,6 +156,107 @@ public class TempBucketTest extends TestSuite {
 			os.close();
 		}
 		
+		/** A bucket which grows past twice the limit is copied to disk while we carry on writing. */
+		public void testBackgroundMigration() throws IOException, InterruptedException {
+			TempBucketFactory tbf = new TempBucketFactory(new PooledExecutor(), fg, 1024, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
+			
+			TempBucket bucket = (TempBucket) tbf.makeBucket(1024);
+			byte[] data = new byte[3000];
+			new Random(90).nextBytes(data);
+			OutputStream os = bucket.getOutputStreamUnbuffered();
+			os.write(data, 0, 2048);
+			for(int i = 0; i < 100 && bucket.isRAMBucket(); i++)
+				Thread.sleep(50);
+			assertFalse(bucket.isRAMBucket());
+			os.write(data, 2048, data.length - 2048);
+			os.close();
+			assertEquals(1, tbf.getBackgroundMigrations());
+			assertEquals(0, tbf.getForegroundMigrations());
+			assertEquals(0, tbf.getRamUsed());
+			assertEquals(0, tbf.getSlabBytesInUse());
+			assertTrue(Arrays.equals(data, BucketTools.toByteArray(bucket)));
+			bucket.free();
+		}
+		
+		/**
+		 * 500 concurrent 1MB temp buckets, written a chunk at a time by a few threads, then read
+		 * back: throughput and time spent in GC, with RAM buckets on and off the heap. With 
+		 * 256KB RAM buckets and a 64MB pool, most of them have to be migrated to disk.
+		 */
+		public void testBenchmark() throws Exception {
+			if(!TestProperty.BENCHMARK) return;
+			final int count = TestProperty.EXTENSIVE ? 2000 : 500;
+			final int bucketSize = 1024 * 1024;
+			final int threads = 4;
+			final byte[] chunk = new byte[16 * 1024];
+			new Random(91).nextBytes(chunk);
+			for(int round = 0; round < 3; round++) {
+				for(boolean offHeap : new boolean[] { false, true }) {
+					final TempBucketFactory tbf = new TempBucketFactory(new PooledExecutor(), fg, 256 * 1024, 64 * 1024 * 1024, weakPRNG, false, 0, secret);
+					tbf.setOffHeap(offHeap);
+					final TempBucket[] buckets = new TempBucket[count];
+					final OutputStream[] streams = new OutputStream[count];
+					for(int i = 0; i < count; i++) {
+						buckets[i] = (TempBucket) tbf.makeBucket(256 * 1024);
+						streams[i] = buckets[i].getOutputStreamUnbuffered();
+					}
+					System.gc();
+					long gcTime = gcTime();
+					long gcCount = gcCount();
+					long start = System.nanoTime();
+					final Exception[] failed = new Exception[1];
+					Thread[] writers = new Thread[threads];
+					for(int t = 0; t < threads; t++) {
+						final int first = t;
+						writers[t] = new Thread() {
+							@Override
+							public void run() {
+								try {
+									for(int written = 0; written < bucketSize; written += chunk.length)
+										for(int i = first; i < count; i += threads)
+											streams[i].write(chunk);
+									for(int i = first; i < count; i += threads) {
+										streams[i].close();
+										InputStream is = buckets[i].getInputStreamUnbuffered();
+										byte[] buf = new byte[chunk.length];
+										for(int read = 0; read < bucketSize; read += buf.length)
+											new DataInputStream(is).readFully(buf);
+										is.close();
+										buckets[i].free();
+									}
+								} catch (Exception e) {
+									failed[0] = e;
+								}
+							}
+						};
+						writers[t].start();
+					}
+					for(Thread t : writers)
+						t.join();
+					if(failed[0] != null) throw failed[0];
+					long time = System.nanoTime() - start;
+					System.out.println(count + " x " + (bucketSize / 1024) + "KB buckets " + (offHeap ? "off the heap" : "on the heap") +
+							": " + ((long) count * bucketSize * 1000 / time) + "MB/s, GC " + (gcCount() - gcCount) +
+							" times for " + (gcTime() - gcTime) + "ms, " + tbf.getBackgroundMigrations() + " migrated in the background, " +
+							tbf.getForegroundMigrations() + " in the foreground");
+				}
+			}
+		}
+		
+		private static long gcTime() {
+			long total = 0;
+			for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+				total += gc.getCollectionTime();
+			return total;
+		}
+		
+		private static long gcCount() {
+			long total = 0;
+			for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+				total += gc.getCollectionCount();
+			return total;
+		}
+		
 	}
 
 	// Private because we only use it as a base class for the actual tests.
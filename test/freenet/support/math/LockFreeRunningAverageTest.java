@@ -0,0 +1,185 @@
+package freenet.support.math;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.Clock;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+
+/** The lock-free averages must give exactly the same results as the synchronized ones. */
+public class LockFreeRunningAverageTest extends TestCase {
+
+	private static class ManualClock implements Clock {
+		long now = 1000000;
+
+		@Override
+		public long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	public void testBootstrappingDecaying() {
+		Random random = new Random(1);
+		BootstrappingDecayingRunningAverage a = new BootstrappingDecayingRunningAverage(0.5, 0.0, 1.0, 100, null);
+		LockFreeBootstrappingDecayingRunningAverage b = new LockFreeBootstrappingDecayingRunningAverage(0.5, 0.0, 1.0, 100, null);
+		for(int i = 0; i < 1000; i++) {
+			// Some reports out of range, to be clipped.
+			double d = random.nextDouble() * 1.2 - 0.1;
+			assertEquals(a.valueIfReported(0.25), b.valueIfReported(0.25), 0.0);
+			a.report(d);
+			b.report(d);
+			assertEquals(a.currentValue(), b.currentValue(), 0.0);
+			assertEquals(a.countReports(), b.countReports());
+			if(i == 500) {
+				a.changeMaxReports(20);
+				b.changeMaxReports(20);
+			}
+		}
+		assertEquals(a.exportFieldSet(true).toOrderedString(), b.exportFieldSet(true).toOrderedString());
+		// Each can read what the other wrote.
+		SimpleFieldSet fs = b.exportFieldSet(true);
+		a = new BootstrappingDecayingRunningAverage(0.5, 0.0, 1.0, 100, fs);
+		b = new LockFreeBootstrappingDecayingRunningAverage(0.5, 0.0, 1.0, 100, fs);
+		assertEquals(a.currentValue(), b.currentValue(), 0.0);
+		assertEquals(a.countReports(), b.countReports());
+		LockFreeBootstrappingDecayingRunningAverage c = b.clone();
+		b.report(1.0);
+		assertEquals(a.currentValue(), c.currentValue(), 0.0);
+	}
+
+	public void testTrivial() {
+		Random random = new Random(2);
+		TrivialRunningAverage a = new TrivialRunningAverage();
+		LockFreeTrivialRunningAverage b = new LockFreeTrivialRunningAverage();
+		assertTrue(Double.isNaN(b.currentValue()));
+		for(int i = 0; i < 1000; i++) {
+			double d = random.nextGaussian() * 1000;
+			a.report(d);
+			b.report(d);
+			assertEquals(a.currentValue(), b.currentValue(), 0.0);
+			assertEquals(a.totalValue(), b.totalValue(), 0.0);
+			assertEquals(a.countReports(), b.countReports());
+			assertEquals(a.valueIfReported(d), b.valueIfReported(d), 0.0);
+		}
+	}
+
+	public void testTimeDecaying() {
+		Random random = new Random(3);
+		ManualClock clock = new ManualClock();
+		TimeDecayingRunningAverage a = new TimeDecayingRunningAverage(0.5, 60000, 0.0, 1.0, null, clock);
+		LockFreeTimeDecayingRunningAverage b = new LockFreeTimeDecayingRunningAverage(0.5, 60000, 0.0, 1.0, null, clock);
+		for(int i = 0; i < 1000; i++) {
+			// Occasionally a report out of range, or the clock going backwards.
+			clock.now += random.nextInt(100) == 0 ? -5000 : random.nextInt(10000);
+			double d = random.nextDouble() * 1.02 - 0.01;
+			a.report(d);
+			b.report(d);
+			assertEquals(a.currentValue(), b.currentValue(), 0.0);
+			assertEquals(a.countReports(), b.countReports());
+			assertEquals(a.lastReportTime(), b.lastReportTime());
+		}
+		assertEquals(a.exportFieldSet(true).toOrderedString(), b.exportFieldSet(true).toOrderedString());
+	}
+
+	public void testTimeDecayingFieldSet() {
+		LockFreeTimeDecayingRunningAverage b = new LockFreeTimeDecayingRunningAverage(0.5, 60000, 0.0, 1.0, null);
+		b.report(0.75);
+		SimpleFieldSet fs = b.exportFieldSet(true);
+		TimeDecayingRunningAverage a = new TimeDecayingRunningAverage(0.5, 60000, 0.0, 1.0, fs, null);
+		b = new LockFreeTimeDecayingRunningAverage(0.5, 60000, 0.0, 1.0, fs, null);
+		assertEquals(0.75, b.currentValue(), 0.0);
+		assertEquals(1, b.countReports());
+		// Loaded averages ignore the time of the first report after loading.
+		assertEquals(-1, b.lastReportTime());
+		a.report(0.25);
+		b.report(0.25);
+		assertEquals(a.currentValue(), b.currentValue(), 0.0);
+		assertEquals(2, b.countReports());
+		// Out of range values are replaced by the default.
+		fs.putOverwrite("CurrentValue", "2.0");
+		b = new LockFreeTimeDecayingRunningAverage(0.5, 60000, 0.0, 1.0, fs, null);
+		assertEquals(0.5, b.currentValue(), 0.0);
+		assertEquals(0, b.countReports());
+	}
+
+	/** No reports are lost when many threads report at once. */
+	public void testConcurrentReports() throws InterruptedException {
+		final int threads = 4;
+		final int reports = 100000;
+		final LockFreeTrivialRunningAverage trivial = new LockFreeTrivialRunningAverage();
+		final LockFreeBootstrappingDecayingRunningAverage bootstrapping =
+			new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null);
+		final LockFreeTimeDecayingRunningAverage timeDecaying =
+			new LockFreeTimeDecayingRunningAverage(0.0, 1000, 0.0, 1.0, null);
+		Thread[] t = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < reports; j++) {
+						trivial.report(1);
+						bootstrapping.report(0.5);
+						timeDecaying.report(0.5);
+					}
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t)
+			thread.join();
+		assertEquals(threads * reports, trivial.countReports());
+		assertEquals(threads * reports, trivial.totalValue(), 0.0);
+		assertEquals(threads * reports, bootstrapping.countReports());
+		assertEquals(0.5, bootstrapping.currentValue(), 1e-9);
+		assertEquals(threads * reports, timeDecaying.countReports());
+		assertEquals(0.5, timeDecaying.currentValue(), 1e-9);
+	}
+
+	/** Reporting from every core at once, synchronized against lock-free. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		int count = TestProperty.EXTENSIVE ? 10000000 : 1000000;
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int round = 0; round < 3; round++) {
+			for(int threads = 1; threads <= cores; threads *= 2) {
+				System.out.println(threads + " threads: BootstrappingDecayingRunningAverage: " +
+						benchmark(new BootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null), threads, count) +
+						"ns, lock-free: " +
+						benchmark(new LockFreeBootstrappingDecayingRunningAverage(0.0, 0.0, 1.0, 1000, null), threads, count) +
+						"ns; TimeDecayingRunningAverage: " +
+						benchmark(new TimeDecayingRunningAverage(0.0, 1000, 0.0, 1.0, null), threads, count) +
+						"ns, lock-free: " +
+						benchmark(new LockFreeTimeDecayingRunningAverage(0.0, 1000, 0.0, 1.0, null), threads, count) +
+						"ns; TrivialRunningAverage: " +
+						benchmark(new TrivialRunningAverage(), threads, count) +
+						"ns, lock-free: " +
+						benchmark(new LockFreeTrivialRunningAverage(), threads, count) + "ns");
+			}
+		}
+	}
+
+	/** @return The mean time per report, across all threads, in nanoseconds. */
+	private static double benchmark(final RunningAverage average, int threads, final int count) throws InterruptedException {
+		Thread[] t = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < count; j++) {
+						average.report((j & 0xFF) / 256.0);
+						if((j & 0xF) == 0) average.currentValue();
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread thread : t)
+			thread.start();
+		for(Thread thread : t)
+			thread.join();
+		return (System.nanoTime() - start) / ((double) count * threads);
+	}
+
+}
@@ -0,0 +1,120 @@
+package freenet.support.metrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+
+public class HistogramTest extends TestCase {
+
+	/** Every value is in the bucket whose bounds contain it, and every power of two is an upper
+	 * bound. */
+	public void testBuckets() {
+		assertEquals(0, Histogram.bucket(-5));
+		assertEquals(0, Histogram.bucket(0));
+		assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.BUCKETS - 1));
+		for(int i = 1; i < Histogram.BUCKETS; i++)
+			assertTrue(Histogram.upperBound(i) > Histogram.upperBound(i - 1));
+		for(int shift = 0; shift < 63; shift++) {
+			long power = 1L << shift;
+			assertEquals(power, Histogram.upperBound(Histogram.bucket(power)));
+			for(long v : new long[] { power - 1, power, power + 1, power + power / 3 }) {
+				if(v < 1) continue;
+				int bucket = Histogram.bucket(v);
+				assertTrue(v <= Histogram.upperBound(bucket));
+				assertTrue(v > Histogram.upperBound(bucket - 1));
+			}
+		}
+		assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+	}
+
+	public void testQuantiles() {
+		Histogram h = new Histogram(0.001, 60 * 1000);
+		assertEquals(0, h.quantile(0.5));
+		Random random = new Random(1234);
+		long[] values = new long[10000];
+		for(int i = 0; i < values.length; i++) {
+			values[i] = (long) (Math.exp(random.nextDouble() * 10));
+			h.record(values[i]);
+		}
+		Arrays.sort(values);
+		assertEquals(values.length, h.count());
+		for(double q : new double[] { 0.1, 0.5, 0.9, 0.99 }) {
+			long exact = values[(int) Math.ceil(q * values.length) - 1];
+			long estimate = h.quantile(q);
+			assertTrue(estimate >= exact);
+			assertTrue(estimate <= Math.max(exact + 1, exact * 1.125));
+		}
+		assertEquals(Histogram.upperBound(Histogram.bucket(values[values.length - 1])), h.quantile(1.0));
+	}
+
+	public void testText() {
+		Histogram h = new Histogram(0.001, 4);
+		h.record(1);
+		h.record(3);
+		h.record(1000);
+		StringBuilder sb = new StringBuilder();
+		h.writeText(sb, "t", "a=\"b\"");
+		assertEquals(
+				"t_bucket{a=\"b\",le=\"0.001\"} 1\n" +
+				"t_bucket{a=\"b\",le=\"0.002\"} 1\n" +
+				"t_bucket{a=\"b\",le=\"0.004\"} 2\n" +
+				"t_bucket{a=\"b\",le=\"0.008\"} 2\n" +
+				"t_bucket{a=\"b\",le=\"+Inf\"} 3\n" +
+				"t_sum{a=\"b\"} 1.004\n" +
+				"t_count{a=\"b\"} 3\n", sb.toString());
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		h.put(fs, "t");
+		assertEquals(3, fs.getLong("t.Count", -1));
+		assertEquals(1004, fs.getLong("t.Sum", -1));
+		assertEquals(3, fs.getLong("t.P50", -1));
+	}
+
+	/** Recording from many threads at once loses nothing. */
+	public void testConcurrent() throws InterruptedException {
+		final Histogram h = new Histogram(1, 1000);
+		final Counter c = new Counter();
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 10000; j++) {
+						h.record(j % 100);
+						c.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(40000, h.count());
+		assertEquals(40000, c.get());
+		assertEquals(4 * 100 * 99 / 2 * 100, h.sum());
+	}
+
+	/** The cost of recording, against the few milliseconds a request takes. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int count = TestProperty.EXTENSIVE ? 100000000 : 10000000;
+		Histogram h = new Histogram(0.001, 60 * 1000);
+		Counter c = new Counter();
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for(int i = 0; i < count; i++)
+				h.record(i & 0xFFFF);
+			long histogramTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < count; i++)
+				c.increment();
+			long counterTime = System.nanoTime() - start;
+			System.out.println("Histogram.record(): " + (histogramTime / (double) count) + "ns, Counter.increment(): " +
+					(counterTime / (double) count) + "ns");
+		}
+	}
+
+}
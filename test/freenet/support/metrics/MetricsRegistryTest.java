@@ -0,0 +1,77 @@
+package freenet.support.metrics;
+
+import junit.framework.TestCase;
+
+import freenet.support.SimpleFieldSet;
+
+public class MetricsRegistryTest extends TestCase {
+
+	private MetricsRegistry metrics;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metrics = new MetricsRegistry();
+	}
+
+	public void testText() {
+		metrics.counter("requests_total", "Requests.", "type", "ssk").add(2);
+		metrics.counter("requests_total", "Requests.", "type", "chk").increment();
+		metrics.gauge("peers", "Peers\nconnected.", new Gauge() {
+			@Override
+			public double value() {
+				return 1.5;
+			}
+		});
+		assertEquals(
+				"# HELP peers Peers\\nconnected.\n" +
+				"# TYPE peers gauge\n" +
+				"peers 1.5\n" +
+				"# HELP requests_total Requests.\n" +
+				"# TYPE requests_total counter\n" +
+				"requests_total{type=\"chk\"} 1\n" +
+				"requests_total{type=\"ssk\"} 2\n", metrics.toText());
+	}
+
+	/** Registering the same metric again returns the one already registered. */
+	public void testDuplicates() {
+		Counter c = metrics.counter("c", null, "a", "b");
+		assertSame(c, metrics.counter("c", null, "a", "b"));
+		assertNotSame(c, metrics.counter("c", null, "a", "c"));
+		assertEquals(2, metrics.size());
+		try {
+			metrics.histogram("c", null, 1, 10, "a", "b");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		metrics.remove("c", "a", "b");
+		assertEquals(1, metrics.size());
+		assertNotSame(c, metrics.counter("c", null, "a", "b"));
+	}
+
+	public void testBadNames() {
+		for(String[] args : new String[][] { { "bad-name" }, { "ok", "bad label", "x" }, { "ok", "odd" } }) {
+			String[] labels = new String[args.length - 1];
+			System.arraycopy(args, 1, labels, 0, labels.length);
+			try {
+				metrics.counter(args[0], null, labels);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// Expected.
+			}
+		}
+	}
+
+	public void testFieldSet() {
+		metrics.counter("total", null).add(7);
+		metrics.counter("total", null, "type", "chk").add(3);
+		metrics.histogram("time", null, 0.001, 1000, "type", "chk").record(10);
+		SimpleFieldSet fs = metrics.toFieldSet();
+		assertEquals(7, fs.getLong("total", -1));
+		assertEquals(3, fs.getLong("total.chk", -1));
+		assertEquals(1, fs.getLong("time.chk.Count", -1));
+		assertEquals(10, fs.getLong("time.chk.Sum", -1));
+	}
+
+}